@@ -8,6 +8,8 @@ import org.vaadin.appfoundation.authentication.data.User;
 import org.vaadin.appfoundation.authentication.exceptions.AccountLockedException;
 import org.vaadin.appfoundation.authentication.exceptions.InvalidCredentialsException;
 import org.vaadin.appfoundation.persistence.facade.FacadeFactory;
+import org.vaadin.appfoundation.persistence.facade.Mutation;
+import org.vaadin.appfoundation.persistence.facade.OptimisticLockRetrier;
 
 /**
  * 
@@ -18,6 +20,9 @@ import org.vaadin.appfoundation.persistence.facade.FacadeFactory;
  */
 public class AuthenticationUtil {
 
+    // Concurrent logins of the same user modify the same counter
+    private static final OptimisticLockRetrier retrier = new OptimisticLockRetrier();
+
     /**
      * Try to log in a user with the given user credentials
      * 
@@ -84,8 +89,12 @@ public class AuthenticationUtil {
      */
     private static void clearFailedLoginAttempts(User user) {
         if (user.getFailedLoginAttempts() > 0) {
-            user.clearFailedLoginAttempts();
-            FacadeFactory.getFacade().store(user);
+            retrier.store(FacadeFactory.getFacade(), user,
+                    new Mutation<User>() {
+                        public void apply(User pojo) {
+                            pojo.clearFailedLoginAttempts();
+                        }
+                    });
         }
     }
 
@@ -96,15 +105,19 @@ public class AuthenticationUtil {
      */
     private static void incrementFailedLoginAttempts(User user)
             throws AccountLockedException {
-        user.incrementFailedLoginAttempts();
-        try {
-            if (user.getFailedLoginAttempts() > numberOfAllowedFailedLoginAttempts()) {
-                user.setAccountLocked(true);
-                user.setReasonForLockedAccount("tooManyLoginAttempts");
-                throw new AccountLockedException();
+        final int allowedAttempts = numberOfAllowedFailedLoginAttempts();
+        retrier.store(FacadeFactory.getFacade(), user, new Mutation<User>() {
+            public void apply(User pojo) {
+                pojo.incrementFailedLoginAttempts();
+                if (pojo.getFailedLoginAttempts() > allowedAttempts) {
+                    pojo.setAccountLocked(true);
+                    pojo.setReasonForLockedAccount("tooManyLoginAttempts");
+                }
             }
-        } finally {
-            FacadeFactory.getFacade().store(user);
+        });
+
+        if (user.getFailedLoginAttempts() > allowedAttempts) {
+            throw new AccountLockedException();
         }
     }
 
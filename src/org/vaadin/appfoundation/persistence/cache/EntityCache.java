@@ -0,0 +1,278 @@
+package org.vaadin.appfoundation.persistence.cache;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.FieldCopier;
+
+/**
+ * A second-level cache for entities, with a separate size-bounded cache for
+ * each entity class. The cache never hands out the instances it holds;
+ * entities are copied both when they are put into the cache and when they are
+ * fetched from it, so callers may freely modify the entities they get.
+ * 
+ * An entity read from the database may already be stale when it is put into
+ * the cache, if a concurrent write evicted the entity after the read. Readers
+ * therefore take a stamp with getStamp() before reading from the database and
+ * pass it to put(), which discards the entity if the class was evicted from
+ * in the meanwhile.
+ * 
+ * @author Kim
+ * 
+ */
+public class EntityCache implements Serializable {
+
+    private static final long serialVersionUID = -6023155432117000716L;
+
+    private final int maxSize;
+
+    private final long timeToLive;
+
+    private final ConcurrentMap<Class<?>, LruCache<Long, AbstractPojo>> caches = new ConcurrentHashMap<Class<?>, LruCache<Long, AbstractPojo>>();
+
+    // Incremented on every eviction of an entity class
+    private final ConcurrentMap<Class<?>, AtomicLong> stamps = new ConcurrentHashMap<Class<?>, AtomicLong>();
+
+    /**
+     * Constructor
+     * 
+     * @param maxSize
+     *            The maximum number of cached entities per entity class
+     * @param timeToLive
+     *            The time in milliseconds after which a cached entity expires,
+     *            or zero if entities never expire
+     */
+    public EntityCache(int maxSize, long timeToLive) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Size must be positive");
+        }
+
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException(
+                    "Time to live may not be negative");
+        }
+
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Get a copy of the cached entity with the given primary key.
+     * 
+     * @param clazz
+     *            The class of the entity
+     * @param id
+     *            The primary key of the entity
+     * @return A copy of the cached entity, or null if it isn't cached
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends AbstractPojo> A get(Class<A> clazz, Long id) {
+        if (clazz == null || id == null) {
+            return null;
+        }
+
+        AbstractPojo cached = getCache(clazz).get(id);
+        return cached == null ? null : (A) FieldCopier.copyOf(cached);
+    }
+
+    /**
+     * Get the current eviction stamp of the given entity class. The stamp
+     * changes whenever entities of the class are evicted.
+     * 
+     * @param clazz
+     *            The class of the entity
+     * @return The eviction stamp
+     */
+    public long getStamp(Class<? extends AbstractPojo> clazz) {
+        return getStampCounter(clazz).get();
+    }
+
+    /**
+     * Stores a copy of the given entity in the cache. An entity already in the
+     * cache is only replaced if the given entity's consistency version isn't
+     * older than the cached one.
+     * 
+     * @param pojo
+     *            The entity to cache
+     */
+    public void put(AbstractPojo pojo) {
+        put(pojo, null);
+    }
+
+    /**
+     * Stores a copy of the given entity, which was read from the database, in
+     * the cache. The entity is discarded if its class has been evicted from
+     * since the stamp was taken, as the entity may be stale.
+     * 
+     * @param pojo
+     *            The entity to cache
+     * @param stamp
+     *            The eviction stamp taken with getStamp() before the entity
+     *            was read from the database
+     */
+    public void put(AbstractPojo pojo, long stamp) {
+        put(pojo, Long.valueOf(stamp));
+    }
+
+    /**
+     * Stores a copy of the given entity in the cache.
+     * 
+     * @param pojo
+     *            The entity to cache
+     * @param stamp
+     *            The eviction stamp to check, or null if it isn't checked
+     */
+    private void put(AbstractPojo pojo, Long stamp) {
+        if (pojo == null || pojo.getId() == null) {
+            return;
+        }
+
+        LruCache<Long, AbstractPojo> cache = getCache(pojo.getClass());
+        AtomicLong counter = getStampCounter(pojo.getClass());
+        AbstractPojo copy = FieldCopier.copyOf(pojo);
+        synchronized (cache) {
+            if (stamp != null && counter.get() != stamp.longValue()) {
+                return;
+            }
+            AbstractPojo cached = cache.peek(pojo.getId());
+            if (cached != null && isOlder(copy, cached)) {
+                return;
+            }
+            cache.put(pojo.getId(), copy);
+        }
+    }
+
+    /**
+     * Removes the entity with the given primary key from the cache.
+     * 
+     * @param clazz
+     *            The class of the entity
+     * @param id
+     *            The primary key of the entity
+     */
+    public void evict(Class<? extends AbstractPojo> clazz, Long id) {
+        if (clazz == null || id == null) {
+            return;
+        }
+
+        LruCache<Long, AbstractPojo> cache = getCache(clazz);
+        synchronized (cache) {
+            getStampCounter(clazz).incrementAndGet();
+            cache.remove(id);
+        }
+    }
+
+    /**
+     * Removes all entities of the given class from the cache.
+     * 
+     * @param clazz
+     *            The class of the entities
+     */
+    public void evictAll(Class<? extends AbstractPojo> clazz) {
+        LruCache<Long, AbstractPojo> cache = getCache(clazz);
+        synchronized (cache) {
+            getStampCounter(clazz).incrementAndGet();
+            cache.clear();
+        }
+    }
+
+    /**
+     * Removes all entities from the cache.
+     */
+    public void clear() {
+        for (Class<?> clazz : caches.keySet()) {
+            LruCache<Long, AbstractPojo> cache = getCache(clazz);
+            synchronized (cache) {
+                getStampCounter(clazz).incrementAndGet();
+                cache.clear();
+            }
+        }
+    }
+
+    /**
+     * Get the number of lookups which found the entity in the cache.
+     * 
+     * @return Number of cache hits
+     */
+    public long getHits() {
+        long hits = 0;
+        for (LruCache<Long, AbstractPojo> cache : caches.values()) {
+            hits += cache.getHits();
+        }
+        return hits;
+    }
+
+    /**
+     * Get the number of lookups which didn't find the entity in the cache.
+     * 
+     * @return Number of cache misses
+     */
+    public long getMisses() {
+        long misses = 0;
+        for (LruCache<Long, AbstractPojo> cache : caches.values()) {
+            misses += cache.getMisses();
+        }
+        return misses;
+    }
+
+    /**
+     * Returns the cache for the given entity class, creating it if necessary.
+     * 
+     * @param clazz
+     *            Entity class
+     * @return The cache of the entity class
+     */
+    private LruCache<Long, AbstractPojo> getCache(Class<?> clazz) {
+        LruCache<Long, AbstractPojo> cache = caches.get(clazz);
+        if (cache == null) {
+            cache = new LruCache<Long, AbstractPojo>(maxSize, timeToLive);
+            LruCache<Long, AbstractPojo> existing = caches.putIfAbsent(clazz,
+                    cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the eviction stamp counter of the given entity class, creating
+     * it if necessary.
+     * 
+     * @param clazz
+     *            Entity class
+     * @return The stamp counter of the entity class
+     */
+    private AtomicLong getStampCounter(Class<?> clazz) {
+        AtomicLong counter = stamps.get(clazz);
+        if (counter == null) {
+            counter = new AtomicLong();
+            AtomicLong existing = stamps.putIfAbsent(clazz, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Checks if the first entity has an older consistency version than the
+     * second one.
+     * 
+     * @param pojo
+     *            The entity to compare
+     * @param other
+     *            The entity to compare against
+     * @return true if pojo is older than other
+     */
+    private boolean isOlder(AbstractPojo pojo, AbstractPojo other) {
+        return pojo.getConsistencyVersion() != null
+                && other.getConsistencyVersion() != null
+                && pojo.getConsistencyVersion() < other
+                        .getConsistencyVersion();
+    }
+
+}
@@ -0,0 +1,230 @@
+package org.vaadin.appfoundation.persistence.cache;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded cache which evicts the least recently used entries first.
+ * Optionally the entries expire after a given time to live. The cache is
+ * thread-safe and keeps count of hits and misses.
+ * 
+ * @author Kim
+ * 
+ * @param <K>
+ *            Type of the keys
+ * @param <V>
+ *            Type of the values
+ */
+public class LruCache<K, V> implements Serializable {
+
+    private static final long serialVersionUID = 4633001364914018262L;
+
+    private final int maxSize;
+
+    private final long timeToLive;
+
+    private final Map<K, CacheEntry<V>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * A cached value and the time it was stored.
+     */
+    private static class CacheEntry<V> implements Serializable {
+
+        private static final long serialVersionUID = -1986322575447000437L;
+
+        private final V value;
+
+        private final long created;
+
+        public CacheEntry(V value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param maxSize
+     *            The maximum number of entries in the cache
+     * @param timeToLive
+     *            The time in milliseconds after which an entry expires, or
+     *            zero if entries never expire
+     */
+    public LruCache(final int maxSize, long timeToLive) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Size must be positive");
+        }
+
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException(
+                    "Time to live may not be negative");
+        }
+
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        // Access ordered map, which removes the least recently used entry
+        // when the cache is full.
+        entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 2718384420101473392L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<K, CacheEntry<V>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the value for the given key.
+     * 
+     * @param key
+     *            Key of the value
+     * @return The cached value or null if it was not found or has expired
+     */
+    public V get(K key) {
+        synchronized (entries) {
+            CacheEntry<V> entry = entries.get(key);
+            if (entry != null && isExpired(entry)) {
+                entries.remove(key);
+                entry = null;
+            }
+
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+
+            hits.incrementAndGet();
+            return entry.value;
+        }
+    }
+
+    /**
+     * Get the value for the given key without counting the lookup as a hit or
+     * a miss.
+     * 
+     * @param key
+     *            Key of the value
+     * @return The cached value or null if it was not found or has expired
+     */
+    public V peek(K key) {
+        synchronized (entries) {
+            CacheEntry<V> entry = entries.get(key);
+            return entry == null || isExpired(entry) ? null : entry.value;
+        }
+    }
+
+    /**
+     * Stores a value in the cache. If the cache is full, the least recently
+     * used entry is evicted.
+     * 
+     * @param key
+     *            Key of the value
+     * @param value
+     *            The value to store
+     */
+    public void put(K key, V value) {
+        synchronized (entries) {
+            entries.put(key, new CacheEntry<V>(value, currentTime()));
+        }
+    }
+
+    /**
+     * Removes the value of the given key from the cache.
+     * 
+     * @param key
+     *            Key of the value
+     */
+    public void remove(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Removes all values from the cache.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Get the number of entries in the cache, including entries which have
+     * expired but haven't yet been removed.
+     * 
+     * @return Number of entries
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Get the maximum number of entries in the cache.
+     * 
+     * @return Maximum number of entries
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Get the time in milliseconds after which an entry expires.
+     * 
+     * @return Time to live, zero if entries never expire
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Get the number of successful lookups.
+     * 
+     * @return Number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups which didn't find a value.
+     * 
+     * @return Number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Checks if the given entry has expired.
+     * 
+     * @param entry
+     *            Cache entry
+     * @return true if the entry has expired
+     */
+    private boolean isExpired(CacheEntry<V> entry) {
+        return timeToLive > 0 && currentTime() - entry.created >= timeToLive;
+    }
+
+    /**
+     * Returns the current time in milliseconds.
+     * 
+     * @return Current time
+     */
+    protected long currentTime() {
+        return System.currentTimeMillis();
+    }
+
+}
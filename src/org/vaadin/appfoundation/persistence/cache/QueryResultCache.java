@@ -0,0 +1,267 @@
+package org.vaadin.appfoundation.persistence.cache;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * A cache for the results of queries, such as counts and field values. The
+ * results are keyed by the entity class, the query string and the parameter
+ * values of the query. Each entity class has a separate size-bounded cache, so
+ * that the results of one class can be invalidated when its entities change.
+ * 
+ * As with EntityCache, a result computed before a concurrent invalidation
+ * would be stale once it is put into the cache. Readers take a stamp with
+ * getStamp() before running the query and pass it to put(), which discards
+ * the result if the class has been invalidated in the meanwhile.
+ * 
+ * @author Kim
+ * 
+ */
+public class QueryResultCache implements Serializable {
+
+    private static final long serialVersionUID = 6957245386522893066L;
+
+    private final int maxSize;
+
+    private final long timeToLive;
+
+    private final ConcurrentMap<Class<?>, LruCache<QueryKey, Object>> caches = new ConcurrentHashMap<Class<?>, LruCache<QueryKey, Object>>();
+
+    // Incremented on every invalidation of an entity class
+    private final ConcurrentMap<Class<?>, AtomicLong> stamps = new ConcurrentHashMap<Class<?>, AtomicLong>();
+
+    /**
+     * Cache key consisting of a query string and its parameter values.
+     */
+    private static class QueryKey implements Serializable {
+
+        private static final long serialVersionUID = -8221458340624577795L;
+
+        private final String query;
+
+        private final Map<String, Object> parameters;
+
+        public QueryKey(String query, Map<String, Object> parameters) {
+            this.query = query;
+            // Copy the parameters, so that later changes to the caller's map
+            // won't affect the key
+            this.parameters = parameters == null ? null
+                    : new HashMap<String, Object>(parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return query.hashCode() * 31
+                    + (parameters == null ? 0 : parameters.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof QueryKey)) {
+                return false;
+            }
+            QueryKey other = (QueryKey) obj;
+            return query.equals(other.query)
+                    && (parameters == null ? other.parameters == null
+                            : parameters.equals(other.parameters));
+        }
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param maxSize
+     *            The maximum number of cached results per entity class
+     * @param timeToLive
+     *            The time in milliseconds after which a cached result expires,
+     *            or zero if results only expire when they're invalidated
+     */
+    public QueryResultCache(int maxSize, long timeToLive) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Size must be positive");
+        }
+
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException(
+                    "Time to live may not be negative");
+        }
+
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Get the cached result of the given query.
+     * 
+     * @param c
+     *            Class of the queried entity
+     * @param query
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @return The cached result, or null if it isn't cached
+     */
+    public Object get(Class<? extends AbstractPojo> c, String query,
+            Map<String, Object> parameters) {
+        return getCache(c).get(new QueryKey(query, parameters));
+    }
+
+    /**
+     * Get the current invalidation stamp of the given entity class. The stamp
+     * changes whenever the results of the class are invalidated.
+     * 
+     * @param c
+     *            Entity class
+     * @return The invalidation stamp
+     */
+    public long getStamp(Class<? extends AbstractPojo> c) {
+        return getStampCounter(c).get();
+    }
+
+    /**
+     * Stores the result of the given query in the cache.
+     * 
+     * @param c
+     *            Class of the queried entity
+     * @param query
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @param result
+     *            Result of the query
+     */
+    public void put(Class<? extends AbstractPojo> c, String query,
+            Map<String, Object> parameters, Object result) {
+        if (result == null) {
+            return;
+        }
+        getCache(c).put(new QueryKey(query, parameters), result);
+    }
+
+    /**
+     * Stores the result of the given query in the cache, unless the results
+     * of the entity class have been invalidated since the stamp was taken.
+     * 
+     * @param c
+     *            Class of the queried entity
+     * @param query
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @param result
+     *            Result of the query
+     * @param stamp
+     *            The invalidation stamp taken with getStamp() before the query
+     *            was run
+     */
+    public void put(Class<? extends AbstractPojo> c, String query,
+            Map<String, Object> parameters, Object result, long stamp) {
+        if (result == null) {
+            return;
+        }
+        LruCache<QueryKey, Object> cache = getCache(c);
+        QueryKey key = new QueryKey(query, parameters);
+        synchronized (cache) {
+            if (getStampCounter(c).get() == stamp) {
+                cache.put(key, result);
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached results of the given entity class. This should
+     * be called whenever entities of the class are created, modified or
+     * removed.
+     * 
+     * @param c
+     *            Entity class
+     */
+    public void invalidate(Class<?> c) {
+        LruCache<QueryKey, Object> cache = getCache(c);
+        synchronized (cache) {
+            getStampCounter(c).incrementAndGet();
+            cache.clear();
+        }
+    }
+
+    /**
+     * Removes all the cached results.
+     */
+    public void clear() {
+        for (Class<?> c : caches.keySet()) {
+            invalidate(c);
+        }
+    }
+
+    /**
+     * Get the number of queries whose result was found in the cache.
+     * 
+     * @return Number of cache hits
+     */
+    public long getHits() {
+        long hits = 0;
+        for (LruCache<QueryKey, Object> cache : caches.values()) {
+            hits += cache.getHits();
+        }
+        return hits;
+    }
+
+    /**
+     * Get the number of queries whose result wasn't found in the cache.
+     * 
+     * @return Number of cache misses
+     */
+    public long getMisses() {
+        long misses = 0;
+        for (LruCache<QueryKey, Object> cache : caches.values()) {
+            misses += cache.getMisses();
+        }
+        return misses;
+    }
+
+    /**
+     * Returns the cache for the given entity class, creating it if necessary.
+     * 
+     * @param c
+     *            Entity class
+     * @return The cache of the entity class
+     */
+    private LruCache<QueryKey, Object> getCache(Class<?> c) {
+        LruCache<QueryKey, Object> cache = caches.get(c);
+        if (cache == null) {
+            cache = new LruCache<QueryKey, Object>(maxSize, timeToLive);
+            LruCache<QueryKey, Object> existing = caches.putIfAbsent(c, cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the invalidation stamp counter of the given entity class,
+     * creating it if necessary.
+     * 
+     * @param c
+     *            Entity class
+     * @return The stamp counter of the entity class
+     */
+    private AtomicLong getStampCounter(Class<?> c) {
+        AtomicLong counter = stamps.get(c);
+        if (counter == null) {
+            counter = new AtomicLong();
+            AtomicLong existing = stamps.putIfAbsent(c, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+}
@@ -0,0 +1,807 @@
+package org.vaadin.appfoundation.persistence.container;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.FacadeFactory;
+import org.vaadin.appfoundation.persistence.facade.FieldCopier;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.util.BeanItem;
+
+/**
+ * A lazy loading Vaadin container for the entities of one class. Only the
+ * number of the entities is queried when the container is created. The
+ * entities are fetched from the facade one page at a time when they are
+ * accessed, and a limited number of the fetched pages is cached. When a page
+ * is fetched, the next page in the direction of scrolling is fetched with it.
+ * 
+ * The item ids of the container are the primary keys of the entities and the
+ * items are {@link BeanItem}s. Sorting and filtering are executed by the
+ * database: the properties which have a persistent field of the same name can
+ * be sorted, and the string properties can be filtered. The entities are
+ * always ordered by their primary keys last, so that the order is stable.
+ * 
+ * The container is read-only, items can't be added or removed through it.
+ * After the entities have been modified elsewhere, {@link #refresh()} discards
+ * the cached pages.
+ * 
+ * @author Kim
+ * 
+ * @param <A>
+ *            Type of the entities
+ */
+public class EntityContainer<A extends AbstractPojo> implements
+        Container.Indexed, Container.Sortable, Container.Filterable,
+        Container.ItemSetChangeNotifier {
+
+    private static final long serialVersionUID = -2734530930962146553L;
+
+    private static final int DEFAULT_PAGE_SIZE = 50;
+
+    private static final int DEFAULT_CACHED_PAGES = 10;
+
+    // The character which escapes the wildcards in the filters
+    private static final char ESCAPE = '!';
+
+    private final Class<A> entityClass;
+
+    private final String facadeName;
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    private final List<String> propertyIds = new ArrayList<String>();
+
+    private final Map<String, Class<?>> propertyTypes = new HashMap<String, Class<?>>();
+
+    private final List<String> sortableIds = new ArrayList<String>();
+
+    private final List<String> sortFields = new ArrayList<String>();
+
+    private final List<Boolean> sortAscending = new ArrayList<Boolean>();
+
+    private final List<Filter> filters = new ArrayList<Filter>();
+
+    private final List<ItemSetChangeListener> listeners = new ArrayList<ItemSetChangeListener>();
+
+    // The ids of the entities on each cached page, least recently used first
+    private final LinkedHashMap<Integer, List<Long>> pages;
+
+    // The items of the entities on the cached pages
+    private final Map<Long, BeanItem<A>> items = new HashMap<Long, BeanItem<A>>();
+
+    // The number of entities, or -1 if it hasn't been queried yet
+    private int size = -1;
+
+    // The page which was fetched last, for detecting the scrolling direction
+    private int lastPage = 0;
+
+    /**
+     * A filter added with
+     * {@link EntityContainer#addContainerFilter(Object, String, boolean, boolean)}
+     * .
+     */
+    private static class Filter implements Serializable {
+
+        private static final long serialVersionUID = 5214389264709142287L;
+
+        private final String propertyId;
+
+        private final String filterString;
+
+        private final boolean ignoreCase;
+
+        private final boolean onlyMatchPrefix;
+
+        public Filter(String propertyId, String filterString,
+                boolean ignoreCase, boolean onlyMatchPrefix) {
+            this.propertyId = propertyId;
+            this.filterString = filterString;
+            this.ignoreCase = ignoreCase;
+            this.onlyMatchPrefix = onlyMatchPrefix;
+        }
+    }
+
+    /**
+     * Creates a container which fetches the entities from the default facade.
+     * 
+     * @param entityClass
+     *            The class of the entities
+     */
+    public EntityContainer(Class<A> entityClass) {
+        this(entityClass, null);
+    }
+
+    /**
+     * Creates a container which fetches the entities from the given facade.
+     * The facade is looked up from the {@link FacadeFactory} by its name, so
+     * that the container can be serialized with the application.
+     * 
+     * @param entityClass
+     *            The class of the entities
+     * @param facadeName
+     *            Name of the facade, or null to use the default facade
+     */
+    public EntityContainer(Class<A> entityClass, String facadeName) {
+        if (entityClass == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        this.entityClass = entityClass;
+        this.facadeName = facadeName;
+        pages = new LinkedHashMap<Integer, List<Long>>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 7418823452601129416L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Integer, List<Long>> eldest) {
+                if (size() > DEFAULT_CACHED_PAGES) {
+                    // Forget the items of the evicted page too
+                    for (Long id : eldest.getValue()) {
+                        items.remove(id);
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        FieldCopier copier = FieldCopier.forClass(entityClass);
+        for (PropertyDescriptor descriptor : getPropertyDescriptors(entityClass)) {
+            String name = descriptor.getName();
+            if (descriptor.getReadMethod() == null || "class".equals(name)) {
+                continue;
+            }
+
+            Class<?> type = descriptor.getPropertyType();
+            propertyIds.add(name);
+            propertyTypes.put(name, type);
+            if (copier.hasField(name)
+                    && (type.isPrimitive() || Comparable.class
+                            .isAssignableFrom(type))) {
+                sortableIds.add(name);
+            }
+        }
+    }
+
+    private static PropertyDescriptor[] getPropertyDescriptors(Class<?> c) {
+        try {
+            BeanInfo info = Introspector.getBeanInfo(c);
+            return info.getPropertyDescriptors();
+        } catch (IntrospectionException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Returns the facade from which the entities are fetched.
+     * 
+     * @return The facade
+     */
+    private IFacade getFacade() {
+        IFacade facade = facadeName == null ? FacadeFactory.getFacade()
+                : FacadeFactory.getFacade(facadeName);
+        if (facade == null) {
+            throw new IllegalStateException("Facade not found");
+        }
+        return facade;
+    }
+
+    /**
+     * Returns the class of the entities in the container.
+     * 
+     * @return The entity class
+     */
+    public Class<A> getEntityClass() {
+        return entityClass;
+    }
+
+    /**
+     * Returns the number of entities fetched at a time.
+     * 
+     * @return The page size
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the number of entities fetched at a time. It should be at least
+     * the number of rows visible at a time.
+     * 
+     * @param pageSize
+     *            The page size
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+
+        this.pageSize = pageSize;
+        clearCache();
+    }
+
+    /**
+     * Returns the entity with the given item id.
+     * 
+     * @param itemId
+     *            Id of the item
+     * @return The entity, or null if it wasn't found
+     */
+    public A getEntity(Object itemId) {
+        BeanItem<A> item = getItem(itemId);
+        return item == null ? null : item.getBean();
+    }
+
+    /**
+     * Discards the cached entities and notifies the listeners that the items
+     * may have changed.
+     */
+    public void refresh() {
+        clearCache();
+        fireItemSetChange();
+    }
+
+    private void clearCache() {
+        pages.clear();
+        items.clear();
+        size = -1;
+    }
+
+    /**
+     * Builds the conditions of the queries from the filters.
+     * 
+     * @param parameters
+     *            Map to which the values of the filters are added
+     * @return The conditions, or null if there are no filters
+     */
+    private String getWhereConditions(Map<String, Object> parameters) {
+        if (filters.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder where = new StringBuilder();
+        for (int i = 0; i < filters.size(); i++) {
+            Filter filter = filters.get(i);
+            String value = escape(filter.filterString);
+            String field = "p." + filter.propertyId;
+            if (filter.ignoreCase) {
+                value = value.toLowerCase();
+                field = "LOWER(" + field + ")";
+            }
+
+            if (where.length() > 0) {
+                where.append(" AND ");
+            }
+            where.append(field).append(" LIKE :filter").append(i).append(
+                    " ESCAPE '").append(ESCAPE).append("'");
+            parameters.put("filter" + i, (filter.onlyMatchPrefix ? "" : "%")
+                    + value + "%");
+        }
+        return where.toString();
+    }
+
+    /**
+     * Escapes the wildcards of LIKE in the given string.
+     */
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            if (c == '%' || c == '_' || c == ESCAPE) {
+                escaped.append(ESCAPE);
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Builds the ORDER BY clause of the queries from the sort order.
+     * 
+     * @return The ORDER BY clause
+     */
+    private String getOrderBy() {
+        StringBuilder orderBy = new StringBuilder(" ORDER BY ");
+        for (int i = 0; i < sortFields.size(); i++) {
+            orderBy.append("p.").append(sortFields.get(i)).append(
+                    sortAscending.get(i) ? " ASC, " : " DESC, ");
+        }
+        return orderBy.append("p.id ASC").toString();
+    }
+
+    /**
+     * Fetches the given page, and possibly its neighbour, and caches the
+     * fetched entities.
+     * 
+     * @param page
+     *            Index of the page
+     * @return The ids of the entities on the page
+     */
+    private List<Long> getPage(int page) {
+        List<Long> ids = pages.get(page);
+        if (ids != null) {
+            return ids;
+        }
+
+        // Prefetch the next page in the direction of scrolling
+        int first = page;
+        int count = 1;
+        if (page >= lastPage) {
+            if (!pages.containsKey(page + 1)) {
+                count = 2;
+            }
+        } else if (page > 0 && !pages.containsKey(page - 1)) {
+            first = page - 1;
+            count = 2;
+        }
+        lastPage = page;
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        String where = getWhereConditions(parameters);
+        String queryStr = "SELECT p FROM " + entityClass.getSimpleName()
+                + " p" + (where == null ? "" : " WHERE " + where)
+                + getOrderBy();
+        List<A> entities = getFacade().list(queryStr, parameters,
+                first * pageSize, count * pageSize);
+
+        for (int i = 0; i < count; i++) {
+            int from = Math.min(i * pageSize, entities.size());
+            int to = Math.min(from + pageSize, entities.size());
+            List<Long> pageIds = new ArrayList<Long>(to - from);
+            for (A entity : entities.subList(from, to)) {
+                pageIds.add(entity.getId());
+                items.put(entity.getId(), new BeanItem<A>(entity, propertyIds));
+            }
+            pages.put(first + i, pageIds);
+        }
+        // Make the requested page the most recently used one
+        return pages.get(page);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int size() {
+        if (size < 0) {
+            Map<String, Object> parameters = new HashMap<String, Object>();
+            String where = getWhereConditions(parameters);
+            Long count = where == null ? getFacade().count(entityClass)
+                    : getFacade().count(entityClass, where, parameters);
+            size = count.intValue();
+        }
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object getIdByIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+                    + size());
+        }
+
+        List<Long> ids = getPage(index / pageSize);
+        int offset = index % pageSize;
+        // The entities may have been removed after they were counted
+        return offset < ids.size() ? ids.get(offset) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * If the item is not on a cached page, its index is counted by the
+     * database. The count assumes that the database orders null values before
+     * all other values in ascending order and after them in descending order,
+     * as HSQLDB and the in-memory facade do.
+     */
+    public int indexOfId(Object itemId) {
+        if (!(itemId instanceof Long)) {
+            return -1;
+        }
+
+        for (Map.Entry<Integer, List<Long>> entry : pages.entrySet()) {
+            int offset = entry.getValue().indexOf(itemId);
+            if (offset != -1) {
+                return entry.getKey() * pageSize + offset;
+            }
+        }
+
+        if (!containsId(itemId)) {
+            return -1;
+        }
+
+        A entity = getFacade().find(entityClass, (Long) itemId);
+        if (entity == null) {
+            return -1;
+        }
+
+        // Count the entities which are ordered before the entity
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        String where = getWhereConditions(parameters);
+        FieldCopier copier = FieldCopier.forClass(entityClass);
+        List<String> fields = new ArrayList<String>(sortFields);
+        List<Boolean> ascending = new ArrayList<Boolean>(sortAscending);
+        fields.add("id");
+        ascending.add(true);
+
+        // A comparison with null is never true, so the null values are
+        // matched with IS NULL. A null value sorts before all other values.
+        StringBuilder before = new StringBuilder();
+        StringBuilder equal = new StringBuilder();
+        for (int i = 0; i < fields.size(); i++) {
+            String field = "p." + fields.get(i);
+            Object value = copier.getValue(entity, fields.get(i));
+            if (value != null) {
+                parameters.put("sort" + i, value);
+            }
+
+            String term;
+            if (ascending.get(i)) {
+                term = value == null ? null : "(" + field + " < :sort" + i
+                        + " OR " + field + " IS NULL)";
+            } else {
+                term = value == null ? field + " IS NOT NULL" : field
+                        + " > :sort" + i;
+            }
+            if (term != null) {
+                before.append(before.length() == 0 ? "(" : " OR (").append(
+                        equal).append(term).append(")");
+            }
+            equal.append(field).append(
+                    value == null ? " IS NULL" : " = :sort" + i)
+                    .append(" AND ");
+        }
+
+        String conditions = "(" + before + ")";
+        if (where != null) {
+            conditions = where + " AND " + conditions;
+        }
+        return getFacade().count(entityClass, conditions, parameters)
+                .intValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean containsId(Object itemId) {
+        if (!(itemId instanceof Long)) {
+            return false;
+        }
+
+        if (items.containsKey(itemId)) {
+            return true;
+        }
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        String where = getWhereConditions(parameters);
+        parameters.put("itemId", itemId);
+        String conditions = "p.id = :itemId";
+        if (where != null) {
+            conditions = where + " AND " + conditions;
+        }
+        return getFacade().count(entityClass, conditions, parameters) > 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public BeanItem<A> getItem(Object itemId) {
+        if (!(itemId instanceof Long)) {
+            return null;
+        }
+
+        BeanItem<A> item = items.get(itemId);
+        if (item == null) {
+            A entity = getFacade().find(entityClass, (Long) itemId);
+            if (entity != null) {
+                item = new BeanItem<A>(entity, propertyIds);
+            }
+        }
+        return item;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Collection<?> getContainerPropertyIds() {
+        return Collections.unmodifiableList(propertyIds);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The returned collection is a view, which fetches the ids only when they
+     * are iterated.
+     */
+    public Collection<?> getItemIds() {
+        return new AbstractList<Object>() {
+            @Override
+            public Object get(int index) {
+                return getIdByIndex(index);
+            }
+
+            @Override
+            public int size() {
+                return EntityContainer.this.size();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Property getContainerProperty(Object itemId, Object propertyId) {
+        Item item = getItem(itemId);
+        return item == null ? null : item.getItemProperty(propertyId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Class<?> getType(Object propertyId) {
+        return propertyTypes.get(propertyId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object firstItemId() {
+        return size() == 0 ? null : getIdByIndex(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object lastItemId() {
+        return size() == 0 ? null : getIdByIndex(size() - 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object nextItemId(Object itemId) {
+        int index = indexOfId(itemId);
+        if (index == -1 || index + 1 >= size()) {
+            return null;
+        }
+        return getIdByIndex(index + 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object prevItemId(Object itemId) {
+        int index = indexOfId(itemId);
+        if (index < 1) {
+            return null;
+        }
+        return getIdByIndex(index - 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isFirstId(Object itemId) {
+        return itemId != null && itemId.equals(firstItemId());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isLastId(Object itemId) {
+        return itemId != null && itemId.equals(lastItemId());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void sort(Object[] propertyId, boolean[] ascending) {
+        sortFields.clear();
+        sortAscending.clear();
+        for (int i = 0; i < propertyId.length; i++) {
+            if (sortableIds.contains(propertyId[i])) {
+                sortFields.add((String) propertyId[i]);
+                sortAscending.add(i < ascending.length ? ascending[i] : true);
+            }
+        }
+        refresh();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Collection<?> getSortableContainerPropertyIds() {
+        return Collections.unmodifiableList(sortableIds);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Only the string properties which have a persistent field of the same
+     * name can be filtered.
+     */
+    public void addContainerFilter(Object propertyId, String filterString,
+            boolean ignoreCase, boolean onlyMatchPrefix) {
+        if (filterString == null) {
+            throw new IllegalArgumentException("Filter may not be null");
+        }
+
+        if (propertyTypes.get(propertyId) != String.class
+                || !FieldCopier.forClass(entityClass).hasField(
+                        (String) propertyId)) {
+            throw new IllegalArgumentException("Property '" + propertyId
+                    + "' can't be filtered");
+        }
+
+        filters.add(new Filter((String) propertyId, filterString, ignoreCase,
+                onlyMatchPrefix));
+        refresh();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeAllContainerFilters() {
+        if (!filters.isEmpty()) {
+            filters.clear();
+            refresh();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeContainerFilters(Object propertyId) {
+        boolean removed = false;
+        for (Iterator<Filter> i = filters.iterator(); i.hasNext();) {
+            if (i.next().propertyId.equals(propertyId)) {
+                i.remove();
+                removed = true;
+            }
+        }
+
+        if (removed) {
+            refresh();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void addListener(ItemSetChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeListener(ItemSetChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fireItemSetChange() {
+        ItemSetChangeEvent event = new ItemSetChangeEvent() {
+
+            private static final long serialVersionUID = -4530317851127413604L;
+
+            public Container getContainer() {
+                return EntityContainer.this;
+            }
+        };
+
+        for (ItemSetChangeListener listener : new ArrayList<ItemSetChangeListener>(
+                listeners)) {
+            listener.containerItemSetChange(event);
+        }
+    }
+
+    /**
+     * The container is read-only.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    public Item addItem(Object itemId) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The container is read-only.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    public Object addItem() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The container is read-only.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    public boolean removeItem(Object itemId) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The properties are defined by the entity class.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    public boolean addContainerProperty(Object propertyId, Class<?> type,
+            Object defaultValue) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The properties are defined by the entity class.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    public boolean removeContainerProperty(Object propertyId) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The container is read-only.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    public boolean removeAllItems() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The container is read-only.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    public Object addItemAfter(Object previousItemId) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The container is read-only.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    public Item addItemAfter(Object previousItemId, Object newItemId) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The container is read-only.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    public Object addItemAt(int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The container is read-only.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    public Item addItemAt(int index, Object newItemId) {
+        throw new UnsupportedOperationException();
+    }
+
+}
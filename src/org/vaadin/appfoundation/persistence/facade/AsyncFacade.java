@@ -0,0 +1,264 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * An implementation of the {@link IAsyncFacade} interface. The calls are
+ * executed by a dedicated, bounded pool of threads, which delegate them to a
+ * synchronous {@link IFacade}. Each call is executed in a unit of work of its
+ * own, so every task uses its own EntityManager.
+ * 
+ * A call is never executed by the calling thread, since it would then run
+ * inside the caller's unit of work or transaction. When all the threads are
+ * busy and the queue is full, the call is rejected instead.
+ * 
+ * @author Kim
+ * 
+ */
+public class AsyncFacade implements IAsyncFacade {
+
+    private final IFacade facade;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Constructor
+     * 
+     * @param facade
+     *            The facade which executes the calls
+     * @param poolSize
+     *            The number of threads executing the calls
+     * @param queueSize
+     *            The maximum number of calls waiting for a free thread. If the
+     *            queue is full, the call is rejected with a
+     *            RejectedExecutionException.
+     */
+    public AsyncFacade(IFacade facade, int poolSize, int queueSize) {
+        if (facade == null) {
+            throw new IllegalArgumentException("Facade may not be null");
+        }
+
+        if (poolSize < 1 || queueSize < 1) {
+            throw new IllegalArgumentException(
+                    "Pool and queue sizes must be positive");
+        }
+
+        this.facade = facade;
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 60L,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize),
+                new FacadeThreadFactory("AsyncFacade"),
+                new ThreadPoolExecutor.AbortPolicy());
+        // Let the threads die when the facade isn't used
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submits the given call to the executor. The call is wrapped in a unit of
+     * work, which releases the EntityManager once the call is done.
+     * 
+     * @param call
+     *            The call to execute
+     * @return Future for the result of the call
+     */
+    private <T> Future<T> submit(final Callable<T> call) {
+        return executor.submit(new Callable<T>() {
+            public T call() throws Exception {
+                facade.beginUnitOfWork();
+                try {
+                    return call.call();
+                } finally {
+                    facade.endUnitOfWork();
+                }
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Future<A> find(final Class<A> clazz,
+            final Long id) {
+        return submit(new Callable<A>() {
+            public A call() {
+                return facade.find(clazz, id);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Future<A> find(final String queryStr,
+            final Map<String, Object> parameters) {
+        return submit(new Callable<A>() {
+            public A call() {
+                return facade.<A> find(queryStr, parameters);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Future<List<A>> list(final Class<A> clazz) {
+        return submit(new Callable<List<A>>() {
+            public List<A> call() {
+                return facade.list(clazz);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Future<List<A>> list(final Class<A> clazz,
+            final int startIndex, final int amount) {
+        return submit(new Callable<List<A>>() {
+            public List<A> call() {
+                return facade.list(clazz, startIndex, amount);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Future<List<A>> list(final String queryStr,
+            final Map<String, Object> parameters) {
+        return submit(new Callable<List<A>>() {
+            public List<A> call() {
+                return facade.<A> list(queryStr, parameters);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Future<List<A>> list(final String queryStr,
+            final Map<String, Object> parameters, final int startIndex,
+            final int amount) {
+        return submit(new Callable<List<A>>() {
+            public List<A> call() {
+                return facade.<A> list(queryStr, parameters, startIndex,
+                        amount);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Future<Void> store(final AbstractPojo pojo) {
+        return submit(new Callable<Void>() {
+            public Void call() {
+                facade.store(pojo);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Future<Void> storeAll(
+            final Collection<A> pojos) {
+        return submit(new Callable<Void>() {
+            public Void call() {
+                facade.storeAll(pojos);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Future<Void> delete(final AbstractPojo pojo) {
+        return submit(new Callable<Void>() {
+            public Void call() {
+                facade.delete(pojo);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Future<Void> deleteAll(
+            final Collection<A> pojos) {
+        return submit(new Callable<Void>() {
+            public Void call() {
+                facade.deleteAll(pojos);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Future<Long> count(final Class<? extends AbstractPojo> c) {
+        return submit(new Callable<Long>() {
+            public Long call() {
+                return facade.count(c);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Future<Long> count(final Class<? extends AbstractPojo> c,
+            final String whereClause, final Map<String, Object> parameters) {
+        return submit(new Callable<Long>() {
+            public Long call() {
+                return facade.count(c, whereClause, parameters);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public IFacade getFacade() {
+        return facade;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Waits until the calls submitted before shutdown() have been executed, or
+     * until the timeout expires.
+     * 
+     * @param timeout
+     *            The maximum time to wait
+     * @param unit
+     *            The unit of the timeout
+     * @return true if all the calls have been executed, otherwise false
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        try {
+            return executor.awaitTermination(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator which fetches its elements in chunks. Only one chunk is held in
+ * memory at a time, which makes it possible to go through large result sets
+ * with a bounded amount of memory. Subclasses define how a chunk is fetched.
+ * 
+ * @author Kim
+ * 
+ * @param <A>
+ *            Type of the iterated elements
+ */
+public abstract class ChunkedIterator<A> implements Iterator<A> {
+
+    private final int chunkSize;
+
+    private List<A> chunk = null;
+
+    // Position within the current chunk
+    private int index = 0;
+
+    // Number of elements fetched so far
+    private int fetched = 0;
+
+    private boolean lastChunk = false;
+
+    /**
+     * Constructor
+     * 
+     * @param chunkSize
+     *            The maximum number of elements fetched at a time
+     */
+    public ChunkedIterator(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Fetches the next chunk of elements. If the returned list contains less
+     * elements than requested, it is considered to be the last chunk.
+     * 
+     * @param startIndex
+     *            Index of the first element in the chunk
+     * @param lastElement
+     *            The last element of the previous chunk, or null if this is
+     *            the first chunk
+     * @param amount
+     *            The maximum amount of elements to fetch
+     * @return List of elements, may be empty or null if there are no more
+     *         elements
+     */
+    protected abstract List<A> fetchChunk(int startIndex, A lastElement,
+            int amount);
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasNext() {
+        if (chunk != null && index < chunk.size()) {
+            return true;
+        }
+
+        if (lastChunk) {
+            return false;
+        }
+
+        A lastElement = chunk == null || chunk.isEmpty() ? null : chunk
+                .get(chunk.size() - 1);
+        // Let go of the previous chunk before fetching the next one
+        chunk = null;
+        List<A> nextChunk = fetchChunk(fetched, lastElement, chunkSize);
+        if (nextChunk == null || nextChunk.size() < chunkSize) {
+            lastChunk = true;
+        }
+
+        if (nextChunk == null || nextChunk.isEmpty()) {
+            return false;
+        }
+
+        chunk = nextChunk;
+        index = 0;
+        fetched += chunk.size();
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public A next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return chunk.get(index++);
+    }
+
+    /**
+     * Removing elements is not supported.
+     */
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,228 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Keeps snapshots of the persistent state of entities, so that the fields
+ * modified after the entity was loaded or stored can be found out without
+ * querying the database.
+ * 
+ * Only entities whose persistent fields all have basic types, such as
+ * primitives, strings, numbers, dates and enums, are tracked. Changes made to
+ * relationships or embedded objects can't be detected by comparing the field
+ * values, so the state of the other entities is always unknown. The snapshots
+ * are kept for as long as the entity objects are in use and are identified by
+ * the identity of the objects, which must not override equals().
+ * 
+ * @author Kim
+ * 
+ */
+public class DirtyTracker {
+
+    // The tracked fields of each class, or an empty array if the class can't
+    // be tracked
+    private static final ConcurrentMap<Class<?>, Field[]> trackedFields = new ConcurrentHashMap<Class<?>, Field[]>();
+
+    private final Map<AbstractPojo, Snapshot> snapshots = Collections
+            .synchronizedMap(new WeakHashMap<AbstractPojo, Snapshot>());
+
+    /**
+     * State of an entity at the time it was loaded or stored.
+     */
+    private static class Snapshot {
+
+        private final Long id;
+
+        private final Long version;
+
+        private final Object[] values;
+
+        public Snapshot(Long id, Long version, Object[] values) {
+            this.id = id;
+            this.version = version;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Records the current state of the given entity. Call this whenever the
+     * state of the entity is known to match the database.
+     * 
+     * @param pojo
+     *            The entity
+     */
+    public void snapshot(AbstractPojo pojo) {
+        if (pojo == null || pojo.getId() == null) {
+            return;
+        }
+
+        Field[] fields = getTrackedFields(pojo.getClass());
+        if (fields.length == 0) {
+            return;
+        }
+
+        Object[] values = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            values[i] = copyValue(getValue(fields[i], pojo));
+        }
+        snapshots.put(pojo, new Snapshot(pojo.getId(), pojo
+                .getConsistencyVersion(), values));
+    }
+
+    /**
+     * Removes the snapshot of the given entity, so that its state is unknown.
+     * 
+     * @param pojo
+     *            The entity
+     */
+    public void forget(AbstractPojo pojo) {
+        if (pojo != null) {
+            snapshots.remove(pojo);
+        }
+    }
+
+    /**
+     * Checks if the state of the given entity is known.
+     * 
+     * @param pojo
+     *            The entity
+     * @return true if the entity has a snapshot, otherwise false
+     */
+    public boolean isTracked(AbstractPojo pojo) {
+        return pojo != null && snapshots.containsKey(pojo);
+    }
+
+    /**
+     * Returns the fields of the given entity which have been modified since
+     * its snapshot was taken.
+     * 
+     * @param pojo
+     *            The entity
+     * @return List of modified fields, an empty list if nothing has been
+     *         modified or null if the state of the entity is unknown
+     */
+    public List<Field> getDirtyFields(AbstractPojo pojo) {
+        Snapshot snapshot = pojo == null ? null : snapshots.get(pojo);
+        if (snapshot == null) {
+            return null;
+        }
+
+        // The state has been replaced, for example by copying another
+        // instance over it
+        if (!equal(snapshot.id, pojo.getId())
+                || !equal(snapshot.version, pojo.getConsistencyVersion())) {
+            return null;
+        }
+
+        Field[] fields = getTrackedFields(pojo.getClass());
+        List<Field> dirty = new ArrayList<Field>();
+        for (int i = 0; i < fields.length; i++) {
+            if (!equal(snapshot.values[i], getValue(fields[i], pojo))) {
+                dirty.add(fields[i]);
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Returns the tracked fields of the given class. The id and the version
+     * are not included.
+     * 
+     * @param c
+     *            Entity class
+     * @return The tracked fields or an empty array if the class can't be
+     *         tracked
+     */
+    private static Field[] getTrackedFields(Class<?> c) {
+        Field[] fields = trackedFields.get(c);
+        if (fields == null) {
+            List<Field> tracked = new ArrayList<Field>();
+            for (Field field : FieldCopier.forClass(c).getFields()) {
+                if (field.getDeclaringClass() == AbstractPojo.class) {
+                    continue;
+                }
+                if (!isBasicType(field.getType())) {
+                    tracked.clear();
+                    break;
+                }
+                tracked.add(field);
+            }
+            fields = tracked.toArray(new Field[tracked.size()]);
+            trackedFields.putIfAbsent(c, fields);
+        }
+        return fields;
+    }
+
+    /**
+     * Checks if the values of the given type can be compared to detect
+     * changes.
+     * 
+     * @param type
+     *            Type of the field
+     * @return true if the type is a basic type, otherwise false
+     */
+    private static boolean isBasicType(Class<?> type) {
+        return type.isPrimitive() || type.isEnum() || type == String.class
+                || type == Boolean.class || type == Character.class
+                || type == Byte.class || type == Short.class
+                || type == Integer.class || type == Long.class
+                || type == Float.class || type == Double.class
+                || type == BigInteger.class || type == BigDecimal.class
+                || Date.class.isAssignableFrom(type)
+                || Calendar.class.isAssignableFrom(type)
+                || type == byte[].class || type == char[].class;
+    }
+
+    /**
+     * Copies the mutable values, so that modifying them in place is detected.
+     * 
+     * @param value
+     *            Value of a field
+     * @return The value itself or a copy of it
+     */
+    private static Object copyValue(Object value) {
+        if (value instanceof Date) {
+            return ((Date) value).clone();
+        } else if (value instanceof Calendar) {
+            return ((Calendar) value).clone();
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        } else if (value instanceof char[]) {
+            return ((char[]) value).clone();
+        }
+        return value;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        if (a instanceof byte[] && b instanceof byte[]) {
+            return Arrays.equals((byte[]) a, (byte[]) b);
+        } else if (a instanceof char[] && b instanceof char[]) {
+            return Arrays.equals((char[]) a, (char[]) b);
+        }
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static Object getValue(Field field, Object pojo) {
+        try {
+            return field.get(pojo);
+        } catch (IllegalAccessException e) {
+            // FieldCopier has made the fields accessible
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
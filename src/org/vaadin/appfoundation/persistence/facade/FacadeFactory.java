@@ -1,14 +1,30 @@
 package org.vaadin.appfoundation.persistence.facade;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Factory class for creating and managing facades in the application.
  * 
+ * The facades are read on every persistence call from many request threads,
+ * so the registry is kept in immutable snapshots which are published through
+ * volatile fields. Reading a facade never blocks, while all modifications are
+ * serialized and replace the whole snapshot at once.
+ * 
+ * The units of work begun through the factory are tracked for each facade, so
+ * that removing a facade can wait for the requests which are using it to
+ * finish before the facade is killed. The time to wait is read from the
+ * persistence.drainTimeout system property, in milliseconds, and defaults to
+ * 30 seconds.
+ * 
  * @author Kim
  * 
  */
@@ -16,9 +32,90 @@ public class FacadeFactory implements Serializable {
 
     private static final long serialVersionUID = -7409448835737552324L;
 
-    private static Map<String, IFacade> facades = new HashMap<String, IFacade>();
+    // Lock for all modifications of the registry
+    private static final Object lock = new Object();
+
+    private static volatile Map<String, IFacade> facades = Collections
+            .emptyMap();
+
+    private static volatile Map<String, IAsyncFacade> asyncFacades = Collections
+            .emptyMap();
+
+    private static volatile IFacade defaultFacade;
 
-    private static IFacade defaultFacade;
+    private static final long DEFAULT_DRAIN_TIMEOUT = 30000L;
+
+    // The units of work in progress per facade
+    private static final ConcurrentMap<IFacade, UnitOfWorkCounter> counters = new ConcurrentHashMap<IFacade, UnitOfWorkCounter>();
+
+    // The facades whose unit of work the current thread has begun, one map
+    // per nested call of beginUnitOfWork()
+    private static final ThreadLocal<List<Map<IFacade, UnitOfWorkCounter>>> unitsOfWork = new ThreadLocal<List<Map<IFacade, UnitOfWorkCounter>>>() {
+        @Override
+        protected List<Map<IFacade, UnitOfWorkCounter>> initialValue() {
+            return new ArrayList<Map<IFacade, UnitOfWorkCounter>>();
+        }
+    };
+
+    /**
+     * Counts the units of work in progress in a facade. Once the facade is
+     * being removed, no new units of work are begun in it.
+     */
+    private static class UnitOfWorkCounter {
+
+        private int active = 0;
+
+        private boolean closed = false;
+
+        /**
+         * Registers a new unit of work.
+         * 
+         * @return true if the unit of work may begin, false if the facade is
+         *         being removed
+         */
+        public synchronized boolean enter() {
+            if (closed) {
+                return false;
+            }
+            active++;
+            return true;
+        }
+
+        /**
+         * Registers the end of a unit of work.
+         */
+        public synchronized void exit() {
+            if (--active <= 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Prevents new units of work and waits until the ones in progress,
+         * other than the given number of the calling thread's own, have
+         * ended.
+         * 
+         * @param own
+         *            The number of units of work the calling thread has
+         *            begun
+         * @param timeout
+         *            The maximum time to wait in milliseconds
+         */
+        public synchronized void close(int own, long timeout) {
+            closed = true;
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (active > own && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
 
     /**
      * Register a new JPAFacade to the application.
@@ -52,28 +149,194 @@ public class FacadeFactory implements Serializable {
     public static void registerFacade(Class<? extends IFacade> facade,
             String name, boolean isDefault) throws InstantiationException,
             IllegalAccessException {
+        synchronized (lock) {
+            checkNameAvailable(name);
+
+            // Create a new instance of the facade
+            IFacade facadeImpl = facade.newInstance();
+
+            // Initialize the facade
+            facadeImpl.init(name);
+
+            publishFacade(facadeImpl, name, isDefault);
+        }
+    }
+
+    /**
+     * Register an already initialized facade instance to the application. This
+     * is useful for facades which are composed of other facades, such as a
+     * {@link RoutingFacade}.
+     * 
+     * @param facade
+     *            An initialized facade instance
+     * @param name
+     *            Name of the facade
+     * @param isDefault
+     *            Should this facade be the default facade to be used in the
+     *            application.
+     */
+    public static void registerFacade(IFacade facade, String name,
+            boolean isDefault) {
+        if (facade == null) {
+            throw new IllegalArgumentException("Facade may not be null");
+        }
+
+        synchronized (lock) {
+            checkNameAvailable(name);
+            publishFacade(facade, name, isDefault);
+        }
+    }
+
+    /**
+     * Makes sure that no facade has been registered with the given name.
+     * Should only be called while holding the lock.
+     * 
+     * @param name
+     *            Name of the facade
+     */
+    private static void checkNameAvailable(String name) {
         // Check if there already exists a facade with this name.
         if (facades.containsKey(name)) {
             throw new IllegalArgumentException("A facade with the name '"
                     + name + "' exists already!");
         }
+    }
 
-        // Create a new instance of the facade
-        IFacade facadeImpl = facade.newInstance();
-
-        // Initialize the facade
-        facadeImpl.init(name);
-
-        // Put the facade in our static map
-        facades.put(name, facadeImpl);
+    /**
+     * Publishes a new snapshot of the registry containing the given facade.
+     * Should only be called while holding the lock.
+     * 
+     * @param facade
+     *            The facade instance
+     * @param name
+     *            Name of the facade
+     * @param isDefault
+     *            Should this facade be the default facade
+     */
+    private static void publishFacade(IFacade facade, String name,
+            boolean isDefault) {
+        Map<String, IFacade> newFacades = new HashMap<String, IFacade>(facades);
+        newFacades.put(name, facade);
+        facades = Collections.unmodifiableMap(newFacades);
 
         // Should this facade instance be used as the default facade in the
         // application?
         if (isDefault) {
-            defaultFacade = facadeImpl;
+            defaultFacade = facade;
         }
     }
 
+    /**
+     * Wraps an already registered facade in an {@link InstrumentedFacade},
+     * which records the latencies of the facade's calls, and publishes the
+     * recorded statistics over JMX. The instrumented facade replaces the
+     * original one in the factory. An asynchronous facade registered before
+     * instrumenting keeps using the original facade.
+     * 
+     * @param name
+     *            Name of the registered facade
+     * @return The instrumented facade
+     */
+    public static InstrumentedFacade instrumentFacade(String name) {
+        synchronized (lock) {
+            IFacade facade = getFacade(name);
+            if (facade == null) {
+                throw new IllegalArgumentException("Facade not found");
+            }
+
+            if (facade instanceof InstrumentedFacade) {
+                return (InstrumentedFacade) facade;
+            }
+
+            InstrumentedFacade instrumented = new InstrumentedFacade(facade);
+            instrumented.registerMBean(name);
+            publishFacade(instrumented, name, facade == defaultFacade);
+            return instrumented;
+        }
+    }
+
+    /**
+     * Wraps an already registered facade in a {@link WriteBehindFacade}, which
+     * buffers the stores of the classes given the
+     * {@link WriteDurability#WRITE_BEHIND} durability and writes them in
+     * batches. The write-behind facade replaces the original one in the
+     * factory. An asynchronous facade registered before wrapping keeps using
+     * the original facade.
+     * 
+     * @param name
+     *            Name of the registered facade
+     * @param flushInterval
+     *            The interval, in milliseconds, in which the buffer is flushed
+     * @param batchSize
+     *            The number of buffered entities which triggers a flush
+     * @param capacity
+     *            The maximum number of buffered entities
+     * @return The write-behind facade
+     */
+    public static WriteBehindFacade writeBehindFacade(String name,
+            long flushInterval, int batchSize, int capacity) {
+        synchronized (lock) {
+            IFacade facade = getFacade(name);
+            if (facade == null) {
+                throw new IllegalArgumentException("Facade not found");
+            }
+
+            if (facade instanceof WriteBehindFacade) {
+                return (WriteBehindFacade) facade;
+            }
+
+            WriteBehindFacade writeBehind = new WriteBehindFacade(facade,
+                    flushInterval, batchSize, capacity);
+            publishFacade(writeBehind, name, facade == defaultFacade);
+            return writeBehind;
+        }
+    }
+
+    /**
+     * Register an asynchronous facade for an already registered facade. The
+     * asynchronous facade executes its calls with the facade of the same name
+     * in a dedicated pool of threads.
+     * 
+     * @param name
+     *            Name of the registered facade
+     * @param poolSize
+     *            The number of threads executing the calls
+     * @param queueSize
+     *            The maximum number of calls waiting for a free thread
+     */
+    public static void registerAsyncFacade(String name, int poolSize,
+            int queueSize) {
+        synchronized (lock) {
+            IFacade facade = getFacade(name);
+            if (facade == null) {
+                throw new IllegalArgumentException("Facade not found");
+            }
+
+            if (asyncFacades.containsKey(name)) {
+                throw new IllegalArgumentException(
+                        "An async facade with the name '" + name
+                                + "' exists already!");
+            }
+
+            Map<String, IAsyncFacade> newAsyncFacades = new HashMap<String, IAsyncFacade>(
+                    asyncFacades);
+            newAsyncFacades.put(name, new AsyncFacade(facade, poolSize,
+                    queueSize));
+            asyncFacades = Collections.unmodifiableMap(newAsyncFacades);
+        }
+    }
+
+    /**
+     * Get the asynchronous facade for a specific configuration
+     * 
+     * @param name
+     *            Persistence-unit name (defined in the persistence.xml)
+     * @return The asynchronous facade instance for the given name
+     */
+    public static IAsyncFacade getAsyncFacade(String name) {
+        return asyncFacades.get(name);
+    }
+
     /**
      * Returns the default facade of the application.
      * 
@@ -106,36 +369,218 @@ public class FacadeFactory implements Serializable {
             throw new IllegalArgumentException("Name must be set!");
         }
 
-        // Get the facade
-        IFacade facade = getFacade(name);
+        synchronized (lock) {
+            // Get the facade
+            IFacade facade = getFacade(name);
 
-        // Throw an exception if the facade was not found
-        if (facade == null) {
-            throw new IllegalArgumentException("Facade not found");
-        }
+            // Throw an exception if the facade was not found
+            if (facade == null) {
+                throw new IllegalArgumentException("Facade not found");
+            }
 
-        // Everything is ok, change the default facade
-        defaultFacade = facade;
+            // Everything is ok, change the default facade
+            defaultFacade = facade;
+        }
     }
 
     /**
-     * Removes a facade from the factory
+     * Removes a facade from the factory. The facade is first removed from the
+     * registry, so that no new calls can obtain it. The removal then waits
+     * for the units of work begun in the facade through the factory, and for
+     * the calls already submitted to its asynchronous facade, to finish before
+     * the facade is killed.
      * 
      * @param name
      *            Persistence-unit name (defined in the persistence.xml)
      */
     public static void removeFacade(String name) {
-        if (facades.containsKey(name)) {
-            IFacade facade = facades.get(name);
+        IFacade facade;
+        IAsyncFacade asyncFacade;
+        synchronized (lock) {
+            facade = facades.get(name);
+            if (facade == null) {
+                return;
+            }
 
-            // If the facade is same instance as the default facade, then remove
-            // the default facade reference.
+            // If the facade is same instance as the default facade, then
+            // remove the default facade reference.
             if (facade == defaultFacade) {
                 defaultFacade = null;
             }
 
-            facade.kill();
-            facades.remove(name);
+            Map<String, IFacade> newFacades = new HashMap<String, IFacade>(
+                    facades);
+            newFacades.remove(name);
+            facades = Collections.unmodifiableMap(newFacades);
+
+            asyncFacade = asyncFacades.get(name);
+            if (asyncFacade != null) {
+                Map<String, IAsyncFacade> newAsyncFacades = new HashMap<String, IAsyncFacade>(
+                        asyncFacades);
+                newAsyncFacades.remove(name);
+                asyncFacades = Collections.unmodifiableMap(newAsyncFacades);
+            }
+        }
+
+        // The facade has been unpublished, shut it down outside the lock so
+        // that waiting for the in-flight calls doesn't block the registry.
+        // The asynchronous facade is shut down before the facade it uses.
+        long deadline = System.currentTimeMillis() + getDrainTimeout();
+        if (asyncFacade != null) {
+            asyncFacade.shutdown();
+            if (asyncFacade instanceof AsyncFacade) {
+                ((AsyncFacade) asyncFacade).awaitTermination(Math.max(0,
+                        deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+        UnitOfWorkCounter counter = getCounter(facade);
+        counter.close(countOwnUnitsOfWork(facade), Math.max(0, deadline
+                - System.currentTimeMillis()));
+        counters.remove(facade, counter);
+        facade.kill();
+    }
+
+    /**
+     * Returns the unit of work counter of the given facade, creating it if
+     * necessary.
+     * 
+     * @param facade
+     *            The facade
+     * @return The counter of the facade
+     */
+    private static UnitOfWorkCounter getCounter(IFacade facade) {
+        UnitOfWorkCounter counter = counters.get(facade);
+        if (counter == null) {
+            counter = new UnitOfWorkCounter();
+            UnitOfWorkCounter existing = counters.putIfAbsent(facade, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Counts the units of work the current thread has begun in the given
+     * facade through the factory.
+     * 
+     * @param facade
+     *            The facade
+     * @return The number of the current thread's units of work
+     */
+    private static int countOwnUnitsOfWork(IFacade facade) {
+        int own = 0;
+        for (Map<IFacade, UnitOfWorkCounter> begun : unitsOfWork.get()) {
+            if (begun.containsKey(facade)) {
+                own++;
+            }
+        }
+        return own;
+    }
+
+    /**
+     * Reads the time to wait for the units of work of a removed facade from
+     * the persistence.drainTimeout system property.
+     * 
+     * @return The timeout in milliseconds
+     */
+    private static long getDrainTimeout() {
+        String timeoutStr = System.getProperty("persistence.drainTimeout");
+        if (timeoutStr != null) {
+            try {
+                long timeout = Long.parseLong(timeoutStr.trim());
+                if (timeout >= 0) {
+                    return timeout;
+                }
+            } catch (NumberFormatException e) {
+                // Use the default timeout
+            }
+        }
+        return DEFAULT_DRAIN_TIMEOUT;
+    }
+
+    /**
+     * Begins a unit of work in all the registered facades for the current
+     * thread. The facades are remembered, so that the unit of work is ended
+     * in the same facades even if the registry changes in the meanwhile.
+     * 
+     * @see IFacade#beginUnitOfWork()
+     */
+    public static void beginUnitOfWork() {
+        Map<IFacade, UnitOfWorkCounter> begun = new LinkedHashMap<IFacade, UnitOfWorkCounter>();
+        try {
+            for (IFacade facade : facades.values()) {
+                if (begun.containsKey(facade)) {
+                    continue;
+                }
+                UnitOfWorkCounter counter = getCounter(facade);
+                if (!counter.enter()) {
+                    // The facade is being removed
+                    continue;
+                }
+                // A facade removed after the snapshot was read has been
+                // drained already, so it may not be used anymore
+                if (!facades.containsValue(facade)) {
+                    counter.exit();
+                    continue;
+                }
+                try {
+                    facade.beginUnitOfWork();
+                } catch (RuntimeException e) {
+                    counter.exit();
+                    throw e;
+                }
+                begun.put(facade, counter);
+            }
+        } catch (RuntimeException e) {
+            endUnitOfWork(begun);
+            throw e;
+        }
+        unitsOfWork.get().add(begun);
+    }
+
+    /**
+     * Ends the current thread's unit of work in the facades it was begun in.
+     * 
+     * @see IFacade#endUnitOfWork()
+     */
+    public static void endUnitOfWork() {
+        List<Map<IFacade, UnitOfWorkCounter>> stack = unitsOfWork.get();
+        if (stack.isEmpty()) {
+            return;
+        }
+        Map<IFacade, UnitOfWorkCounter> begun = stack
+                .remove(stack.size() - 1);
+        if (stack.isEmpty()) {
+            unitsOfWork.remove();
+        }
+        endUnitOfWork(begun);
+    }
+
+    /**
+     * Ends the unit of work in the given facades.
+     * 
+     * @param begun
+     *            The facades the unit of work was begun in and their
+     *            counters
+     */
+    private static void endUnitOfWork(Map<IFacade, UnitOfWorkCounter> begun) {
+        RuntimeException failure = null;
+        for (Map.Entry<IFacade, UnitOfWorkCounter> entry : begun.entrySet()) {
+            try {
+                entry.getKey().endUnitOfWork();
+            } catch (RuntimeException e) {
+                // End the unit of work in the other facades anyway
+                if (failure == null) {
+                    failure = e;
+                }
+            } finally {
+                entry.getValue().exit();
+            }
+        }
+        if (failure != null) {
+            throw failure;
         }
     }
 
@@ -143,10 +588,8 @@ public class FacadeFactory implements Serializable {
      * Removes all facade references from the factory.
      */
     public static void clear() {
-        // Store the names to a temporary set to avoid
-        // ConcurrentModificationException
-        Set<String> names = new HashSet<String>(facades.keySet());
-        for (String name : names) {
+        // The snapshot can't change while we iterate it
+        for (String name : facades.keySet()) {
             removeFacade(name);
         }
     }
@@ -0,0 +1,313 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Statistics of the calls made to a facade. The latencies are recorded for
+ * each facade method and for each query, and calls which take longer than the
+ * slow query threshold are logged. The statistics can be published over JMX
+ * with {@link #register(String)}.
+ * 
+ * @author Kim
+ * 
+ */
+public class FacadeStatistics implements FacadeStatisticsMBean {
+
+    private static final Logger log = Logger.getLogger(FacadeStatistics.class
+            .getName());
+
+    private static final long DEFAULT_SLOW_QUERY_THRESHOLD = 1000L;
+
+    // The maximum number of distinct queries to keep statistics for, so that
+    // dynamically built query strings can't exhaust the memory
+    private static final int MAX_QUERIES = 1000;
+
+    private final IFacade facade;
+
+    private final ConcurrentMap<String, LatencyHistogram> methods = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private final ConcurrentMap<String, LatencyHistogram> queries = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private final AtomicLong rows = new AtomicLong();
+
+    private final AtomicLong slowQueries = new AtomicLong();
+
+    private volatile long slowQueryThreshold;
+
+    private ObjectName objectName = null;
+
+    /**
+     * Constructor
+     * 
+     * @param facade
+     *            The facade whose calls are recorded. Used for reading the
+     *            transaction counters of a {@link JPAFacade}.
+     */
+    public FacadeStatistics(IFacade facade) {
+        this.facade = facade;
+        slowQueryThreshold = getDefaultSlowQueryThreshold();
+    }
+
+    /**
+     * Reads the default slow query threshold from the
+     * persistence.slowQueryThreshold system property.
+     * 
+     * @return The threshold in milliseconds
+     */
+    private static long getDefaultSlowQueryThreshold() {
+        String thresholdStr = System
+                .getProperty("persistence.slowQueryThreshold");
+        if (thresholdStr != null) {
+            try {
+                long threshold = Long.parseLong(thresholdStr.trim());
+                if (threshold >= 0) {
+                    return threshold;
+                }
+            } catch (NumberFormatException e) {
+                // Use the default threshold
+            }
+        }
+        return DEFAULT_SLOW_QUERY_THRESHOLD;
+    }
+
+    /**
+     * Records a facade call.
+     * 
+     * @param method
+     *            Name of the facade method
+     * @param query
+     *            The query executed by the call, or null if it is not known
+     * @param nanos
+     *            Duration of the call in nanoseconds
+     * @param rowCount
+     *            The number of rows returned, stored or removed by the call
+     */
+    public void record(String method, String query, long nanos, long rowCount) {
+        getHistogram(methods, method).record(nanos);
+        if (query != null
+                && (queries.size() < MAX_QUERIES || queries
+                        .containsKey(query))) {
+            getHistogram(queries, query).record(nanos);
+        }
+        rows.addAndGet(rowCount);
+
+        if (nanos >= slowQueryThreshold * 1000000L) {
+            slowQueries.incrementAndGet();
+            if (log.isLoggable(Level.WARNING)) {
+                log.warning("Slow facade call " + method + " took "
+                        + (nanos / 1000000L) + " ms"
+                        + (query != null ? ": " + query : ""));
+            }
+        }
+    }
+
+    private static LatencyHistogram getHistogram(
+            ConcurrentMap<String, LatencyHistogram> histograms, String key) {
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = histograms.putIfAbsent(key, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the latency histogram of the given facade method.
+     * 
+     * @param method
+     *            Name of the method
+     * @return The histogram or null if the method hasn't been called
+     */
+    public LatencyHistogram getMethodHistogram(String method) {
+        return methods.get(method);
+    }
+
+    /**
+     * Returns the latency histogram of the given query.
+     * 
+     * @param query
+     *            The query
+     * @return The histogram or null if the query hasn't been executed
+     */
+    public LatencyHistogram getQueryHistogram(String query) {
+        return queries.get(query);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCallCount() {
+        long calls = 0;
+        for (LatencyHistogram histogram : methods.values()) {
+            calls += histogram.getCount();
+        }
+        return calls;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getRowCount() {
+        return rows.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getSlowQueryCount() {
+        return slowQueries.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setSlowQueryThreshold(long threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException(
+                    "Threshold may not be negative");
+        }
+        slowQueryThreshold = threshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getEntityManagersCreated() {
+        if (facade instanceof JPAFacade) {
+            return ((JPAFacade) facade).getEntityManagersCreated();
+        }
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCommitCount() {
+        if (facade instanceof JPAFacade) {
+            return ((JPAFacade) facade).getCommitCount();
+        }
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getRollbackCount() {
+        if (facade instanceof JPAFacade) {
+            return ((JPAFacade) facade).getRollbackCount();
+        }
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] getMethodStatistics() {
+        return summarize(methods);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] getQueryStatistics() {
+        return summarize(queries);
+    }
+
+    private static String[] summarize(
+            Map<String, LatencyHistogram> histograms) {
+        List<String> lines = new ArrayList<String>();
+        for (Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue());
+        }
+        Collections.sort(lines);
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset() {
+        methods.clear();
+        queries.clear();
+        rows.set(0);
+        slowQueries.set(0);
+    }
+
+    /**
+     * Publishes the statistics in the platform MBean server.
+     * 
+     * @param name
+     *            Name of the facade, used in the object name of the MBean
+     */
+    public synchronized void register(String name) {
+        if (objectName != null) {
+            throw new IllegalStateException("Statistics already registered");
+        }
+
+        try {
+            ObjectName newName = new ObjectName(
+                    "org.vaadin.appfoundation:type=FacadeStatistics,name="
+                            + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    newName);
+            objectName = newName;
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Removes the statistics from the platform MBean server, if they have been
+     * registered.
+     */
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            log.log(Level.WARNING, "Could not unregister " + objectName, e);
+        } finally {
+            objectName = null;
+        }
+    }
+
+    /**
+     * Returns the name under which the statistics are registered.
+     * 
+     * @return The object name or null if the statistics are not registered
+     */
+    public synchronized ObjectName getObjectName() {
+        return objectName;
+    }
+
+}
@@ -0,0 +1,89 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+/**
+ * Management interface for the statistics of an {@link InstrumentedFacade}.
+ * 
+ * @author Kim
+ * 
+ */
+public interface FacadeStatisticsMBean {
+
+    /**
+     * Returns the total number of facade calls.
+     * 
+     * @return The number of calls
+     */
+    public long getCallCount();
+
+    /**
+     * Returns the total number of rows returned, stored or removed by the
+     * facade calls.
+     * 
+     * @return The number of rows
+     */
+    public long getRowCount();
+
+    /**
+     * Returns the number of calls which exceeded the slow query threshold.
+     * 
+     * @return The number of slow calls
+     */
+    public long getSlowQueryCount();
+
+    /**
+     * Returns the threshold after which a call is logged as slow.
+     * 
+     * @return The threshold in milliseconds
+     */
+    public long getSlowQueryThreshold();
+
+    /**
+     * Sets the threshold after which a call is logged as slow.
+     * 
+     * @param threshold
+     *            The threshold in milliseconds
+     */
+    public void setSlowQueryThreshold(long threshold);
+
+    /**
+     * Returns the number of EntityManagers created by the facade.
+     * 
+     * @return The number of EntityManagers or -1 if the facade doesn't use
+     *         EntityManagers
+     */
+    public long getEntityManagersCreated();
+
+    /**
+     * Returns the number of transactions committed by the facade.
+     * 
+     * @return The number of commits or -1 if it is not known
+     */
+    public long getCommitCount();
+
+    /**
+     * Returns the number of transactions rolled back by the facade.
+     * 
+     * @return The number of rollbacks or -1 if it is not known
+     */
+    public long getRollbackCount();
+
+    /**
+     * Returns a summary of the latencies of each facade method.
+     * 
+     * @return One line for each method
+     */
+    public String[] getMethodStatistics();
+
+    /**
+     * Returns a summary of the latencies of each query.
+     * 
+     * @return One line for each query
+     */
+    public String[] getQueryStatistics();
+
+    /**
+     * Clears all the statistics.
+     */
+    public void reset();
+
+}
@@ -0,0 +1,39 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads for the executors of the facades, so that the
+ * pools won't prevent the JVM from shutting down.
+ * 
+ * @author Kim
+ * 
+ */
+class FacadeThreadFactory implements ThreadFactory {
+
+    private static final AtomicInteger poolNumber = new AtomicInteger();
+
+    private final int pool = poolNumber.incrementAndGet();
+
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    private final String prefix;
+
+    /**
+     * Constructor
+     * 
+     * @param prefix
+     *            Prefix of the thread names
+     */
+    public FacadeThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, prefix + "-" + pool + "-"
+                + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,245 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.persistence.Transient;
+
+/**
+ * Copies the persistent state of entity objects. The persistent fields of a
+ * class, including the fields of its superclasses, are resolved only once per
+ * class and the resulting copy plan is cached, so that copying an entity is a
+ * flat loop over already accessible fields.
+ * 
+ * @author Kim
+ * 
+ */
+public class FieldCopier {
+
+    // Cache of copy plans, one for each processed class
+    private static final ConcurrentMap<Class<?>, FieldCopier> copiers = new ConcurrentHashMap<Class<?>, FieldCopier>();
+
+    private final Field[] fields;
+
+    /**
+     * Creates the copy plan for the given class.
+     * 
+     * @param c
+     *            The class for which the plan is created
+     */
+    private FieldCopier(Class<?> c) {
+        List<Field> persistentFields = new ArrayList<Field>();
+        // getDeclaredFields() only returns the fields declared in the class
+        // itself, so we need to walk through all the superclasses too.
+        for (Class<?> current = c; current != null; current = current
+                .getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                // If the field is transient, static or final, then we do not
+                // want to copy its value
+                if (!field.isAnnotationPresent(Transient.class)
+                        && !Modifier.isStatic(field.getModifiers())
+                        && !Modifier.isFinal(field.getModifiers())) {
+                    // The field might be inaccessible, so let's force it to be
+                    // accessible.
+                    field.setAccessible(true);
+                    persistentFields.add(field);
+                }
+            }
+        }
+        fields = persistentFields.toArray(new Field[persistentFields.size()]);
+    }
+
+    /**
+     * Returns the copy plan for the given class.
+     * 
+     * @param c
+     *            The class of the objects to copy
+     * @return A FieldCopier for the given class
+     */
+    public static FieldCopier forClass(Class<?> c) {
+        if (c == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        FieldCopier copier = copiers.get(c);
+        if (copier == null) {
+            copier = new FieldCopier(c);
+            FieldCopier existing = copiers.putIfAbsent(c, copier);
+            if (existing != null) {
+                copier = existing;
+            }
+        }
+        return copier;
+    }
+
+    /**
+     * Copies all the persistent field values from one object to another.
+     * 
+     * @param from
+     *            The object from which we are copying
+     * @param to
+     *            The object to which we are copying
+     */
+    public void copy(Object from, Object to) {
+        try {
+            for (Field field : fields) {
+                field.set(to, field.get(from));
+            }
+        } catch (IllegalAccessException e) {
+            // All fields were made accessible when the plan was created
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates a copy of the given entity.
+     * 
+     * @param pojo
+     *            The entity to copy
+     * @return A new instance with the same persistent state, or null if the
+     *         entity is null
+     */
+    @SuppressWarnings("unchecked")
+    public static <A> A copyOf(A pojo) {
+        if (pojo == null) {
+            return null;
+        }
+
+        A copy;
+        try {
+            copy = (A) pojo.getClass().getConstructor().newInstance();
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException(
+                    "The default constructor of the entity failed", e
+                            .getCause());
+        } catch (Exception e) {
+            throw new IllegalArgumentException(
+                    "Entity classes must have a public default constructor", e);
+        }
+        forClass(pojo.getClass()).copy(pojo, copy);
+        return copy;
+    }
+
+    /**
+     * Returns the value of the named persistent field of the given object.
+     * 
+     * @param pojo
+     *            The object whose field value is returned
+     * @param fieldName
+     *            Name of the field
+     * @return Value of the field
+     */
+    public Object getValue(Object pojo, String fieldName) {
+        for (Field field : fields) {
+            if (field.getName().equals(fieldName)) {
+                try {
+                    return field.get(pojo);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        throw new IllegalArgumentException("Field '" + fieldName
+                + "' not found");
+    }
+
+    /**
+     * Sets the value of the named persistent field of the given object. Numbers
+     * are converted to the type of the field and strings to enum constants.
+     * 
+     * @param pojo
+     *            The object whose field value is set
+     * @param fieldName
+     *            Name of the field
+     * @param value
+     *            The new value
+     */
+    public void setValue(Object pojo, String fieldName, Object value) {
+        for (Field field : fields) {
+            if (field.getName().equals(fieldName)) {
+                try {
+                    field.set(pojo, convert(value, field.getType()));
+                    return;
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        throw new IllegalArgumentException("Field '" + fieldName
+                + "' not found");
+    }
+
+    /**
+     * Converts a value to the given type.
+     * 
+     * @param value
+     *            The value
+     * @param type
+     *            Type of a field
+     * @return The converted value
+     */
+    @SuppressWarnings( { "unchecked", "rawtypes" })
+    private static Object convert(Object value, Class<?> type) {
+        if (value == null) {
+            if (type.isPrimitive()) {
+                throw new IllegalArgumentException(
+                        "Null can't be assigned to a primitive field");
+            }
+            return null;
+        }
+
+        if (type.isEnum() && value instanceof String) {
+            return Enum.valueOf((Class<Enum>) type, (String) value);
+        }
+
+        if (value instanceof Number) {
+            Number number = (Number) value;
+            if (type == int.class || type == Integer.class) {
+                return number.intValue();
+            } else if (type == long.class || type == Long.class) {
+                return number.longValue();
+            } else if (type == short.class || type == Short.class) {
+                return number.shortValue();
+            } else if (type == byte.class || type == Byte.class) {
+                return number.byteValue();
+            } else if (type == double.class || type == Double.class) {
+                return number.doubleValue();
+            } else if (type == float.class || type == Float.class) {
+                return number.floatValue();
+            }
+        }
+        // Field.set() rejects the values of incompatible types
+        return value;
+    }
+
+    /**
+     * Checks if the class has a persistent field with the given name.
+     * 
+     * @param fieldName
+     *            Name of the field
+     * @return true if the field exists, otherwise false
+     */
+    public boolean hasField(String fieldName) {
+        for (Field field : fields) {
+            if (field.getName().equals(fieldName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the persistent fields of the class in the order they are copied.
+     * 
+     * @return Array of persistent fields
+     */
+    public Field[] getFields() {
+        return fields.clone();
+    }
+
+}
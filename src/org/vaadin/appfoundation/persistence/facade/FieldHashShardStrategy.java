@@ -0,0 +1,82 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Shard strategy which selects the shard by the hash of a field's value, for
+ * example the username of a user or the tenant of an entity. Entity classes
+ * which do not have the field are not sharded and are always stored in the
+ * first shard.
+ * 
+ * @author Kim
+ * 
+ */
+public class FieldHashShardStrategy implements ShardStrategy {
+
+    private final String field;
+
+    /**
+     * Constructor
+     * 
+     * @param field
+     *            Name of the field whose value selects the shard
+     */
+    public FieldHashShardStrategy(String field) {
+        if (field == null || field.isEmpty()) {
+            throw new IllegalArgumentException("Field must be set");
+        }
+
+        this.field = field;
+    }
+
+    /**
+     * Returns the name of the field whose value selects the shard.
+     * 
+     * @return Name of the field
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getShard(AbstractPojo pojo, int shardCount) {
+        if (pojo == null) {
+            throw new IllegalArgumentException("Pojo may not be null");
+        }
+
+        FieldCopier copier = FieldCopier.forClass(pojo.getClass());
+        if (!copier.hasField(field)) {
+            return 0;
+        }
+        return getShardForValue(copier.getValue(pojo, field), shardCount);
+    }
+
+    /**
+     * Selects the shard for the given field value. This can be used for
+     * querying the correct shard directly when the value is known, see
+     * {@link ShardedFacade#getShard(int)}.
+     * 
+     * @param value
+     *            Value of the field
+     * @param shardCount
+     *            The number of shards
+     * @return Index of the shard
+     */
+    public int getShardForValue(Object value, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException(
+                    "Shard count must be positive");
+        }
+
+        if (value == null) {
+            return 0;
+        }
+
+        // The hash of the string representation is the same in every JVM,
+        // unlike for example the hash code of an enum.
+        return (value.toString().hashCode() & Integer.MAX_VALUE) % shardCount;
+    }
+
+}
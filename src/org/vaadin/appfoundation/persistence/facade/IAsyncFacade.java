@@ -0,0 +1,169 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Interface which defines an asynchronous database facade. The methods
+ * correspond to the ones in {@link IFacade}, but instead of blocking the
+ * calling thread they return immediately with a {@link Future} for the result.
+ * This allows the caller to run several independent queries in parallel and
+ * wait for all of them at once.
+ * 
+ * @author Kim
+ * 
+ */
+public interface IAsyncFacade {
+
+    /**
+     * Fetch a specific entity object from the database
+     * 
+     * @param clazz
+     *            The class of the entity
+     * @param id
+     *            The primary key of the entity object to be fetched
+     * @return Future for the entity
+     */
+    public <A extends AbstractPojo> Future<A> find(Class<A> clazz, Long id);
+
+    /**
+     * Fetch a specific entity object from the database for the given query
+     * 
+     * @param queryStr
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @return Future for the entity
+     */
+    public <A extends AbstractPojo> Future<A> find(String queryStr,
+            Map<String, Object> parameters);
+
+    /**
+     * Fetches all entities in the database of the given entity type
+     * 
+     * @param clazz
+     *            Entity class
+     * @return Future for the list of A entities
+     */
+    public <A extends AbstractPojo> Future<List<A>> list(Class<A> clazz);
+
+    /**
+     * Fetches all entities in the database of the given entity type
+     * 
+     * @param clazz
+     *            Entity class
+     * @param startIndex
+     *            Index from which we should start selecting entities
+     * @param amount
+     *            The maximum amount of entities returned
+     * @return Future for the list of A entities
+     */
+    public <A extends AbstractPojo> Future<List<A>> list(Class<A> clazz,
+            int startIndex, int amount);
+
+    /**
+     * Fetches all entities in the database for the given query
+     * 
+     * @param queryStr
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @return Future for the list of A entities
+     */
+    public <A extends AbstractPojo> Future<List<A>> list(String queryStr,
+            Map<String, Object> parameters);
+
+    /**
+     * Fetches all entities in the database for the given query
+     * 
+     * @param queryStr
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @param startIndex
+     *            Index from which we should start selecting entities
+     * @param amount
+     *            The maximum amount of entities returned
+     * @return Future for the list of A entities
+     */
+    public <A extends AbstractPojo> Future<List<A>> list(String queryStr,
+            Map<String, Object> parameters, int startIndex, int amount);
+
+    /**
+     * Store an entity to the database
+     * 
+     * @param pojo
+     *            An instance of the entity to be stored
+     * @return Future which is done once the entity has been stored
+     */
+    public Future<Void> store(AbstractPojo pojo);
+
+    /**
+     * Store a set of entities within the same transaction
+     * 
+     * @param pojos
+     *            Set of entities which are to be stored
+     * @return Future which is done once the entities have been stored
+     */
+    public <A extends AbstractPojo> Future<Void> storeAll(Collection<A> pojos);
+
+    /**
+     * Remove an entity from the database
+     * 
+     * @param pojo
+     *            The entity to be removed
+     * @return Future which is done once the entity has been removed
+     */
+    public Future<Void> delete(AbstractPojo pojo);
+
+    /**
+     * Remove a set of entites from the database within the same transaction
+     * 
+     * @param pojos
+     *            Set of entities which are to be removed
+     * @return Future which is done once the entities have been removed
+     */
+    public <A extends AbstractPojo> Future<Void> deleteAll(Collection<A> pojos);
+
+    /**
+     * Gives the total number of records for the given entity type.
+     * 
+     * @param c
+     *            Class object of the entity
+     * @return Future for the total number of records
+     */
+    public Future<Long> count(Class<? extends AbstractPojo> c);
+
+    /**
+     * Gives the total number of records for the given entity type which
+     * fulfills the where clause.
+     * 
+     * @param c
+     *            Class object of the entity
+     * @param whereClause
+     *            The query's WHERE clause with desired restraints.
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @return Future for the total number of records
+     */
+    public Future<Long> count(Class<? extends AbstractPojo> c,
+            String whereClause, Map<String, Object> parameters);
+
+    /**
+     * Returns the facade which executes the calls.
+     * 
+     * @return The synchronous facade
+     */
+    public IFacade getFacade();
+
+    /**
+     * Stops accepting new calls. Calls which have already been submitted are
+     * still executed.
+     */
+    public void shutdown();
+
+}
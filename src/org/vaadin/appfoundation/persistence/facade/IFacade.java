@@ -1,6 +1,7 @@
 package org.vaadin.appfoundation.persistence.facade;
 
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -34,6 +35,21 @@ public interface IFacade {
      */
     public <A extends AbstractPojo> A find(Class<A> clazz, Long id);
 
+    /**
+     * Fetch several entity objects from the database by their primary keys.
+     * The entities are fetched with as few queries as possible.
+     * 
+     * @param clazz
+     *            The class of the entities
+     * @param ids
+     *            The primary keys of the entity objects to be fetched
+     * @return List of A entities in the same order as the primary keys. If no
+     *         entity was found for a primary key, the list contains null in
+     *         its place.
+     */
+    public <A extends AbstractPojo> List<A> findAll(Class<A> clazz,
+            Collection<Long> ids);
+
     /**
      * Fetches all entities in the database of the given entity type
      * 
@@ -85,6 +101,73 @@ public interface IFacade {
     public <A extends AbstractPojo> List<A> list(String queryStr,
             Map<String, Object> parameters, int startIndex, int amount);
 
+    /**
+     * Fetches a page of entities of the given entity type ordered by their
+     * primary key. Instead of an offset, the page is located with the
+     * continuation token of the previous page, so fetching a deep page is as
+     * fast as fetching the first one.
+     * 
+     * @param clazz
+     *            Entity class
+     * @param token
+     *            Continuation token of the previous page, or null for the first
+     *            page
+     * @param amount
+     *            The maximum amount of entities on the page
+     * @return A page of A entities
+     */
+    public <A extends AbstractPojo> Page<A> page(Class<A> clazz,
+            PageToken token, int amount);
+
+    /**
+     * Fetches a page of entities of the given entity type ordered by the given
+     * field. Entities with an equal value in the field are ordered by their
+     * primary key. The entities whose field is null come first.
+     * 
+     * @param clazz
+     *            Entity class
+     * @param orderField
+     *            Name of the field by which the entities are ordered
+     * @param token
+     *            Continuation token of the previous page, or null for the first
+     *            page
+     * @param amount
+     *            The maximum amount of entities on the page
+     * @return A page of A entities
+     */
+    public <A extends AbstractPojo> Page<A> page(Class<A> clazz,
+            String orderField, PageToken token, int amount);
+
+    /**
+     * Iterates through all entities in the database of the given entity type.
+     * The entities are fetched in chunks, so that only a bounded amount of
+     * entities is held in memory regardless of the size of the table.
+     * 
+     * @param clazz
+     *            Entity class
+     * @param chunkSize
+     *            The maximum amount of entities fetched at a time
+     * @return Iterator over the A entities
+     */
+    public <A extends AbstractPojo> Iterator<A> iterate(Class<A> clazz,
+            int chunkSize);
+
+    /**
+     * Iterates through all entities in the database for the given query. The
+     * entities are fetched in chunks, so the query should define an ORDER BY
+     * clause to guarantee a stable order between the chunks.
+     * 
+     * @param queryStr
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @param chunkSize
+     *            The maximum amount of entities fetched at a time
+     * @return Iterator over the A entities
+     */
+    public <A extends AbstractPojo> Iterator<A> iterate(String queryStr,
+            Map<String, Object> parameters, int chunkSize);
+
     /**
      * Fetch a specific entity object from the database for the given query
      * 
@@ -131,6 +214,41 @@ public interface IFacade {
      */
     public <A extends AbstractPojo> void deleteAll(Collection<A> pojos);
 
+    /**
+     * Updates all the entities of the given type which fulfill the where
+     * clause with a single statement in the database. The entities are not
+     * loaded into memory. The consistency version of the updated entities is
+     * incremented, so that stale copies of them can't be stored anymore.
+     * 
+     * @param c
+     *            Class object of the entity
+     * @param setClause
+     *            The statement's SET clause, such as p.foo = :foo
+     * @param whereClause
+     *            The statement's WHERE clause, or null to update all entities
+     * @param parameters
+     *            A map of parameters and parameter values used in the clauses
+     * @return The number of updated entities
+     */
+    public int update(Class<? extends AbstractPojo> c, String setClause,
+            String whereClause, Map<String, Object> parameters);
+
+    /**
+     * Removes all the entities of the given type which fulfill the where
+     * clause with a single statement in the database. The entities are not
+     * loaded into memory.
+     * 
+     * @param c
+     *            Class object of the entity
+     * @param whereClause
+     *            The statement's WHERE clause, or null to remove all entities
+     * @param parameters
+     *            A map of parameters and parameter values used in the clause
+     * @return The number of removed entities
+     */
+    public int delete(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters);
+
     /**
      * Update all the fields in the entity to the most up-to-date version of
      * data found in the database. Any changes made to the entity object before
@@ -138,9 +256,83 @@ public interface IFacade {
      * 
      * @param pojo
      *            The entity object you wish to refresh
+     * @throws javax.persistence.EntityNotFoundException
+     *             If the entity has been removed from the database
      */
     public <A extends AbstractPojo> void refresh(A pojo);
 
+    /**
+     * Begins a unit of work for the current thread. All the calls made to the
+     * facade from the current thread share the same connection and persistence
+     * context until {@link #endUnitOfWork()} is called. Units of work may be
+     * nested, in which case only the outermost unit of work is effective.
+     */
+    public void beginUnitOfWork();
+
+    /**
+     * Ends the current thread's unit of work which was started with
+     * {@link #beginUnitOfWork()}. Ending the outermost unit of work releases
+     * the connection and the persistence context.
+     */
+    public void endUnitOfWork();
+
+    /**
+     * Begins a transaction for the current thread. All the writes made to the
+     * facade from the current thread are committed together when
+     * {@link #commitTransaction()} is called, instead of each write committing
+     * its own transaction. A transaction also begins a unit of work, so the
+     * reads made inside the transaction see its uncommitted writes.
+     * 
+     * Transactions may be nested, in which case the nested transactions join
+     * the outermost transaction and only committing the outermost transaction
+     * commits the writes.
+     */
+    public void beginTransaction();
+
+    /**
+     * Commits the current thread's transaction which was begun with
+     * {@link #beginTransaction()}. Committing a nested transaction does
+     * nothing but end it.
+     * 
+     * @throws IllegalStateException
+     *             If no transaction is active
+     * @throws javax.persistence.RollbackException
+     *             If the transaction was rolled back instead, because a nested
+     *             transaction was rolled back or the commit failed
+     */
+    public void commitTransaction();
+
+    /**
+     * Rolls back the current thread's transaction. Rolling back a nested
+     * transaction ends it and marks the outermost transaction for rollback.
+     * Entities stored in the transaction keep the ids and versions they were
+     * given, even though the writes are discarded.
+     * 
+     * @throws IllegalStateException
+     *             If no transaction is active
+     */
+    public void rollbackTransaction();
+
+    /**
+     * Checks if the current thread has begun a transaction with
+     * {@link #beginTransaction()} which hasn't ended yet.
+     * 
+     * @return true if a transaction is active, otherwise false
+     */
+    public boolean isTransactionActive();
+
+    /**
+     * Executes the given callback in a transaction. The transaction is
+     * committed if the callback returns normally and rolled back if it throws
+     * an exception. If a transaction is already active, the callback joins
+     * it.
+     * 
+     * @param callback
+     *            The work to execute
+     * @return The value returned by the callback
+     */
+    public <T> T runInTransaction(TransactionCallback<T> callback);
+
     /**
      * Close the facade. Closes the connection.
      */
@@ -191,4 +383,46 @@ public interface IFacade {
      */
     public List<?> getFieldValues(Class<? extends AbstractPojo> c,
             String field, String whereConditions, Map<String, Object> parameters);
+
+    /**
+     * Fetches the values of several fields for all entities which match the
+     * set criteria. Only the values are selected from the database, no entity
+     * objects are created.
+     * 
+     * @param c
+     *            Entity class
+     * @param fields
+     *            Fields whose values are returned
+     * @param whereConditions
+     *            Where conditions
+     * @param parameters
+     *            Parameter values for the where conditions
+     * @return A list of tuples, each containing the values of the fields in
+     *         the given order
+     */
+    public List<Object[]> project(Class<? extends AbstractPojo> c,
+            String[] fields, String whereConditions,
+            Map<String, Object> parameters);
+
+    /**
+     * Fetches the values of several fields for all entities which match the
+     * set criteria into data transfer objects. The objects are created with
+     * the constructor of the given class which takes the values of the fields
+     * as parameters in the given order. No entity objects are created.
+     * 
+     * @param c
+     *            Entity class
+     * @param resultClass
+     *            Class of the created objects
+     * @param fields
+     *            Fields whose values are passed to the constructor
+     * @param whereConditions
+     *            Where conditions
+     * @param parameters
+     *            Parameter values for the where conditions
+     * @return A list of T objects
+     */
+    public <T> List<T> project(Class<? extends AbstractPojo> c,
+            Class<T> resultClass, String[] fields, String whereConditions,
+            Map<String, Object> parameters);
 }
@@ -0,0 +1,888 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.Entity;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.NonUniqueResultException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.RollbackException;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * An implementation of the IFacade interface which keeps the entities in
+ * memory instead of a database. It can be used in tests and load tests, or as
+ * a local stand-in for the database, with the same code which normally uses a
+ * {@link JPAFacade}.
+ * 
+ * The entities of each class are kept in a concurrent map ordered by their
+ * ids. Ids are generated from a single sequence and the consistency version
+ * is checked and incremented on every store, just like with JPA. The facade
+ * always hands out and stores copies of the entities, so modifying an entity
+ * has no effect until it is stored. The queries are evaluated in memory and
+ * support a subset of JPQL, see {@link InMemoryQuery}.
+ * 
+ * Transactions are supported, but they are not isolated: the writes made in
+ * a transaction are visible to other threads before the transaction has been
+ * committed. Rolling back a transaction restores the entities it wrote.
+ * 
+ * @author Kim
+ * 
+ */
+public class InMemoryFacade implements IFacade {
+
+    // The maximum number of parsed queries kept for reuse
+    private static final int MAX_CACHED_QUERIES = 1000;
+
+    private final ConcurrentMap<Class<?>, ConcurrentNavigableMap<Long, AbstractPojo>> tables = new ConcurrentHashMap<Class<?>, ConcurrentNavigableMap<Long, AbstractPojo>>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final ConcurrentMap<String, InMemoryQuery> queries = new ConcurrentHashMap<String, InMemoryQuery>();
+
+    private final ThreadLocal<TransactionState> transaction = new ThreadLocal<TransactionState>();
+
+    /**
+     * State of a transaction begun with beginTransaction().
+     */
+    private static class TransactionState {
+
+        private int depth = 1;
+
+        private boolean rollbackOnly = false;
+
+        // The state of each written entity before the transaction. A null
+        // value means that the entity didn't exist.
+        private final Map<Class<?>, Map<Long, AbstractPojo>> previous = new HashMap<Class<?>, Map<Long, AbstractPojo>>();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The in-memory facade needs no configuration, so the name is ignored.
+     */
+    public void init(String name) {
+    }
+
+    /**
+     * Returns the map holding the entities of the given class.
+     * 
+     * @param c
+     *            Entity class
+     * @return Map of entities by their ids
+     */
+    private ConcurrentNavigableMap<Long, AbstractPojo> getTable(Class<?> c) {
+        ConcurrentNavigableMap<Long, AbstractPojo> table = tables.get(c);
+        if (table == null) {
+            table = new ConcurrentSkipListMap<Long, AbstractPojo>();
+            ConcurrentNavigableMap<Long, AbstractPojo> existing = tables
+                    .putIfAbsent(c, table);
+            if (existing != null) {
+                table = existing;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Finds the entity class with the given entity name.
+     * 
+     * @param entityName
+     *            Name of the entity, as used in the queries
+     * @return The entity class, or null if no entities of it have been stored
+     */
+    private Class<?> getEntityClass(String entityName) {
+        for (Class<?> c : tables.keySet()) {
+            Entity entity = c.getAnnotation(Entity.class);
+            String name = entity != null && entity.name().length() > 0 ? entity
+                    .name()
+                    : c.getSimpleName();
+            if (name.equals(entityName)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the parsed form of a SELECT query.
+     * 
+     * @param queryStr
+     *            The query
+     * @return The parsed query
+     */
+    private InMemoryQuery getQuery(String queryStr) {
+        InMemoryQuery query = queries.get(queryStr);
+        if (query == null) {
+            query = InMemoryQuery.parseSelect(queryStr);
+            cacheQuery(queryStr, query);
+        }
+        return query;
+    }
+
+    /**
+     * Returns the parsed form of a WHERE clause.
+     * 
+     * @param whereClause
+     *            The conditions, or null
+     * @return The parsed conditions
+     */
+    private InMemoryQuery getCondition(String whereClause) {
+        String key = "WHERE " + whereClause;
+        InMemoryQuery query = queries.get(key);
+        if (query == null) {
+            query = InMemoryQuery.parseWhere(whereClause);
+            cacheQuery(key, query);
+        }
+        return query;
+    }
+
+    private void cacheQuery(String key, InMemoryQuery query) {
+        if (queries.size() >= MAX_CACHED_QUERIES) {
+            queries.clear();
+        }
+        queries.put(key, query);
+    }
+
+    /**
+     * Returns copies of the stored entities of the given class which match
+     * the conditions, ordered by their ids.
+     * 
+     * @param c
+     *            Entity class, or null if it is unknown
+     * @param query
+     *            The conditions
+     * @param parameters
+     *            Values of the named parameters
+     * @return List of entities
+     */
+    @SuppressWarnings("unchecked")
+    private <A extends AbstractPojo> List<A> select(Class<?> c,
+            InMemoryQuery query, Map<String, Object> parameters) {
+        List<A> result = new ArrayList<A>();
+        if (c == null) {
+            return result;
+        }
+
+        for (AbstractPojo pojo : getTable(c).values()) {
+            if (query.matches(pojo, parameters)) {
+                result.add((A) FieldCopier.copyOf(pojo));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the given range of a list.
+     */
+    private static <A> List<A> range(List<A> list, int startIndex, int amount) {
+        if (startIndex < 0 || amount < 0) {
+            throw new IllegalArgumentException(
+                    "Start index and amount may not be negative");
+        }
+        int from = Math.min(startIndex, list.size());
+        int to = (int) Math.min((long) from + amount, list.size());
+        return new ArrayList<A>(list.subList(from, to));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends AbstractPojo> A find(Class<A> clazz, Long id) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        if (id == null) {
+            throw new IllegalArgumentException("Id may not be null");
+        }
+        return (A) FieldCopier.copyOf(getTable(clazz).get(id));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> findAll(Class<A> clazz,
+            Collection<Long> ids) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        if (ids == null) {
+            throw new IllegalArgumentException("Ids may not be null");
+        }
+
+        List<A> result = new ArrayList<A>(ids.size());
+        for (Long id : ids) {
+            result.add(id == null ? null : find(clazz, id));
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(Class<A> clazz) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+        return select(clazz, InMemoryQuery.parseWhere(null), null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(Class<A> clazz,
+            int startIndex, int amount) {
+        return range(list(clazz), startIndex, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(String queryStr,
+            Map<String, Object> parameters) {
+        InMemoryQuery query = getQuery(queryStr);
+        List<A> result = select(getEntityClass(query.getEntityName()), query,
+                parameters);
+        query.sort(result, parameters);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(String queryStr,
+            Map<String, Object> parameters, int startIndex, int amount) {
+        List<A> result = list(queryStr, parameters);
+        return range(result, startIndex, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Page<A> page(Class<A> clazz,
+            PageToken token, int amount) {
+        return page(clazz, "id", token, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Page<A> page(Class<A> clazz,
+            final String orderField, PageToken token, int amount) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        if (orderField == null) {
+            throw new IllegalArgumentException("Order field may not be null");
+        }
+
+        if (amount < 1) {
+            throw new IllegalArgumentException("Amount must be positive");
+        }
+
+        final FieldCopier copier = FieldCopier.forClass(clazz);
+        if (!copier.hasField(orderField)) {
+            throw new IllegalArgumentException("Unknown field " + orderField);
+        }
+
+        // Order the entities by the order field and the id
+        List<A> pojos = list(clazz);
+        Collections.sort(pojos, new Comparator<A>() {
+            public int compare(A a, A b) {
+                int result = InMemoryQuery.compareNullsFirst(copier.getValue(
+                        a, orderField), copier.getValue(b, orderField));
+                return result != 0 ? result : a.getId().compareTo(b.getId());
+            }
+        });
+
+        List<A> items = new ArrayList<A>(amount);
+        Iterator<A> iterator = pojos.iterator();
+        while (iterator.hasNext() && items.size() <= amount) {
+            A pojo = iterator.next();
+            // Skip the entities up to and including the end of the previous
+            // page
+            if (token != null) {
+                int result = InMemoryQuery.compareNullsFirst(copier.getValue(
+                        pojo, orderField), token.getKey());
+                if (result < 0 || result == 0
+                        && pojo.getId() <= token.getId()) {
+                    continue;
+                }
+            }
+            items.add(pojo);
+        }
+
+        if (items.size() <= amount) {
+            return new Page<A>(items, null);
+        }
+
+        // Copied, as the sub list view isn't serializable
+        items = new ArrayList<A>(items.subList(0, amount));
+        A last = items.get(amount - 1);
+        return new Page<A>(items, new PageToken(copier.getValue(last,
+                orderField), last.getId()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Iterator<A> iterate(final Class<A> clazz,
+            int chunkSize) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        return new ChunkedIterator<A>(chunkSize) {
+            @SuppressWarnings("unchecked")
+            @Override
+            protected List<A> fetchChunk(int startIndex, A lastElement,
+                    int amount) {
+                // Continue after the last fetched id, so that concurrent
+                // modifications don't make the iterator skip entities
+                ConcurrentNavigableMap<Long, AbstractPojo> table = getTable(clazz);
+                if (lastElement != null) {
+                    table = table.tailMap(lastElement.getId(), false);
+                }
+                List<A> chunk = new ArrayList<A>(amount);
+                for (AbstractPojo pojo : table.values()) {
+                    if (chunk.size() == amount) {
+                        break;
+                    }
+                    chunk.add((A) FieldCopier.copyOf(pojo));
+                }
+                return chunk;
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Iterator<A> iterate(final String queryStr,
+            final Map<String, Object> parameters, int chunkSize) {
+        return new ChunkedIterator<A>(chunkSize) {
+            @Override
+            protected List<A> fetchChunk(int startIndex, A lastElement,
+                    int amount) {
+                return list(queryStr, parameters, startIndex, amount);
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(String queryStr,
+            Map<String, Object> parameters) {
+        List<A> result = list(queryStr, parameters);
+        if (result.isEmpty()) {
+            return null;
+        }
+
+        if (result.size() > 1) {
+            throw new NonUniqueResultException(
+                    "The query returned more than one result: " + queryStr);
+        }
+        return result.get(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(AbstractPojo pojo) {
+        if (pojo == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+
+        ConcurrentNavigableMap<Long, AbstractPojo> table = getTable(pojo
+                .getClass());
+        if (pojo.getId() == null) {
+            Long id = sequence.incrementAndGet();
+            AbstractPojo copy = FieldCopier.copyOf(pojo);
+            copy.setId(id);
+            copy.setConsistencyVersion(1L);
+            written(pojo.getClass(), id, null);
+            table.put(id, copy);
+            pojo.setId(id);
+            pojo.setConsistencyVersion(1L);
+            return;
+        }
+
+        while (true) {
+            AbstractPojo current = table.get(pojo.getId());
+            long version = 1L;
+            if (current != null) {
+                // Somebody else has stored the entity since it was read
+                if (current.getConsistencyVersion() == null
+                        || !current.getConsistencyVersion().equals(
+                                pojo.getConsistencyVersion())) {
+                    throw new OptimisticLockException(pojo);
+                }
+                version = current.getConsistencyVersion() + 1;
+            }
+
+            AbstractPojo copy = FieldCopier.copyOf(pojo);
+            copy.setConsistencyVersion(version);
+            written(pojo.getClass(), pojo.getId(), current);
+            boolean stored = current == null ? table.putIfAbsent(pojo.getId(),
+                    copy) == null : table.replace(pojo.getId(), current, copy);
+            if (stored) {
+                reserveId(pojo.getId());
+                pojo.setConsistencyVersion(version);
+                return;
+            }
+            // Another thread won the race, check the version again
+        }
+    }
+
+    /**
+     * Makes sure that the sequence never generates the given id, which has
+     * been assigned to an entity outside this facade.
+     * 
+     * @param id
+     *            The id in use
+     */
+    private void reserveId(long id) {
+        long next = sequence.get();
+        while (next < id && !sequence.compareAndSet(next, id)) {
+            next = sequence.get();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The entities are stored one by one. If storing one of them fails, the
+     * entities stored before it are not restored unless the call is made in a
+     * transaction.
+     */
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos) {
+        if (pojos == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+
+        for (A pojo : pojos) {
+            store(pojo);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete(AbstractPojo pojo) {
+        if (pojo == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+
+        // If it isn't stored, it can't be removed
+        if (pojo.getId() == null) {
+            return;
+        }
+
+        ConcurrentNavigableMap<Long, AbstractPojo> table = getTable(pojo
+                .getClass());
+        AbstractPojo current = table.get(pojo.getId());
+        if (current != null) {
+            written(pojo.getClass(), pojo.getId(), current);
+            table.remove(pojo.getId());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void deleteAll(Collection<A> pojos) {
+        if (pojos == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+
+        for (A pojo : pojos) {
+            delete(pojo);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int update(Class<? extends AbstractPojo> c, String setClause,
+            String whereClause, Map<String, Object> parameters) {
+        if (c == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        if (setClause == null || setClause.length() == 0) {
+            throw new IllegalArgumentException("Set clause must be set");
+        }
+
+        InMemoryQuery query = InMemoryQuery
+                .parseUpdate(setClause, whereClause);
+        ConcurrentNavigableMap<Long, AbstractPojo> table = getTable(c);
+        int affected = 0;
+        for (Long id : table.keySet()) {
+            while (true) {
+                AbstractPojo current = table.get(id);
+                if (current == null || !query.matches(current, parameters)) {
+                    break;
+                }
+
+                AbstractPojo updated = FieldCopier.copyOf(current);
+                query.apply(updated, parameters);
+                updated.setId(id);
+                updated.setConsistencyVersion(current.getConsistencyVersion()
+                        + 1);
+                written(c, id, current);
+                if (table.replace(id, current, updated)) {
+                    affected++;
+                    break;
+                }
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int delete(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters) {
+        if (c == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        InMemoryQuery query = getCondition(whereClause);
+        ConcurrentNavigableMap<Long, AbstractPojo> table = getTable(c);
+        int affected = 0;
+        for (Entry<Long, AbstractPojo> entry : table.entrySet()) {
+            AbstractPojo current = entry.getValue();
+            if (query.matches(current, parameters)) {
+                written(c, entry.getKey(), current);
+                if (table.remove(entry.getKey(), current)) {
+                    affected++;
+                }
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void refresh(A pojo) {
+        AbstractPojo current = getTable(pojo.getClass()).get(pojo.getId());
+        if (current == null) {
+            throw new EntityNotFoundException("The entity has been removed");
+        }
+        FieldCopier.forClass(pojo.getClass()).copy(current, pojo);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The in-memory facade has no connections, so units of work have no
+     * effect. Every call sees the latest state of the entities.
+     */
+    public void beginUnitOfWork() {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void endUnitOfWork() {
+    }
+
+    /**
+     * Records the state of an entity before it is written in the current
+     * thread's transaction, so that it can be restored if the transaction is
+     * rolled back. Only the state before the first write is recorded.
+     * 
+     * @param c
+     *            Entity class
+     * @param id
+     *            Id of the entity
+     * @param current
+     *            The current state of the entity, or null if it doesn't exist
+     */
+    private void written(Class<?> c, Long id, AbstractPojo current) {
+        TransactionState state = transaction.get();
+        if (state == null) {
+            return;
+        }
+
+        Map<Long, AbstractPojo> previous = state.previous.get(c);
+        if (previous == null) {
+            previous = new HashMap<Long, AbstractPojo>();
+            state.previous.put(c, previous);
+        }
+        if (!previous.containsKey(id)) {
+            previous.put(id, current);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beginTransaction() {
+        TransactionState state = transaction.get();
+        if (state != null) {
+            state.depth++;
+        } else {
+            transaction.set(new TransactionState());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void commitTransaction() {
+        TransactionState state = getTransactionState();
+        if (--state.depth > 0) {
+            return;
+        }
+
+        transaction.remove();
+        if (state.rollbackOnly) {
+            restore(state);
+            throw new RollbackException(
+                    "The transaction was marked for rollback");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void rollbackTransaction() {
+        TransactionState state = getTransactionState();
+        state.rollbackOnly = true;
+        if (--state.depth > 0) {
+            return;
+        }
+
+        transaction.remove();
+        restore(state);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isTransactionActive() {
+        return transaction.get() != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> T runInTransaction(TransactionCallback<T> callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback may not be null");
+        }
+
+        beginTransaction();
+        boolean success = false;
+        try {
+            T result = callback.execute(this);
+            success = true;
+            return result;
+        } finally {
+            if (success) {
+                commitTransaction();
+            } else {
+                rollbackTransaction();
+            }
+        }
+    }
+
+    private TransactionState getTransactionState() {
+        TransactionState state = transaction.get();
+        if (state == null) {
+            throw new IllegalStateException("No transaction is active");
+        }
+        return state;
+    }
+
+    /**
+     * Restores the entities written in a rolled back transaction.
+     * 
+     * @param state
+     *            State of the transaction
+     */
+    private void restore(TransactionState state) {
+        for (Entry<Class<?>, Map<Long, AbstractPojo>> entry : state.previous
+                .entrySet()) {
+            ConcurrentNavigableMap<Long, AbstractPojo> table = getTable(entry
+                    .getKey());
+            for (Entry<Long, AbstractPojo> previous : entry.getValue()
+                    .entrySet()) {
+                if (previous.getValue() == null) {
+                    table.remove(previous.getKey());
+                } else {
+                    table.put(previous.getKey(), previous.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() {
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * All the stored entities are discarded.
+     */
+    public void kill() {
+        tables.clear();
+        queries.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(Class<? extends AbstractPojo> c) {
+        if (c == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+        return (long) getTable(c).size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters) {
+        if (c == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        if (whereClause == null) {
+            throw new IllegalArgumentException("Where clause may not be null");
+        }
+
+        InMemoryQuery query = getCondition(whereClause);
+        long count = 0;
+        for (AbstractPojo pojo : getTable(c).values()) {
+            if (query.matches(pojo, parameters)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<?> getFieldValues(Class<? extends AbstractPojo> c,
+            String field, String whereConditions, Map<String, Object> parameters) {
+        List<Object[]> tuples = project(c, new String[] { field },
+                whereConditions, parameters);
+        List<Object> values = new ArrayList<Object>(tuples.size());
+        for (Object[] tuple : tuples) {
+            values.add(tuple[0]);
+        }
+        return values;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> project(Class<? extends AbstractPojo> c,
+            String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        if (c == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        if (fields == null || fields.length == 0) {
+            throw new IllegalArgumentException("At least one field is needed");
+        }
+
+        InMemoryQuery query = getCondition(whereConditions);
+        FieldCopier copier = FieldCopier.forClass(c);
+        List<Object[]> tuples = new ArrayList<Object[]>();
+        for (AbstractPojo pojo : getTable(c).values()) {
+            if (query.matches(pojo, parameters)) {
+                Object[] tuple = new Object[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    tuple[i] = copier.getValue(pojo, fields[i]);
+                }
+                tuples.add(tuple);
+            }
+        }
+        return tuples;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> List<T> project(Class<? extends AbstractPojo> c,
+            Class<T> resultClass, String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        if (resultClass == null) {
+            throw new IllegalArgumentException("Result class may not be null");
+        }
+
+        List<Object[]> tuples = project(c, fields, whereConditions,
+                parameters);
+        List<T> result = new ArrayList<T>(tuples.size());
+        for (Object[] tuple : tuples) {
+            result.add(newInstance(resultClass, tuple));
+        }
+        return result;
+    }
+
+    /**
+     * Creates an instance of the given class with the constructor which
+     * accepts the given arguments.
+     * 
+     * @param c
+     *            The class
+     * @param arguments
+     *            Arguments of the constructor
+     * @return The created instance
+     */
+    private static <T> T newInstance(Class<T> c, Object[] arguments) {
+        for (Constructor<?> constructor : c.getConstructors()) {
+            Class<?>[] types = constructor.getParameterTypes();
+            if (types.length != arguments.length) {
+                continue;
+            }
+
+            try {
+                return c.cast(constructor.newInstance(arguments));
+            } catch (IllegalArgumentException e) {
+                // The argument types don't match, try the next constructor
+            } catch (InstantiationException e) {
+                throw new IllegalArgumentException(e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException(e);
+            } catch (InvocationTargetException e) {
+                throw new IllegalArgumentException(e.getCause());
+            }
+        }
+        throw new IllegalArgumentException("No matching constructor found in "
+                + c.getName());
+    }
+
+}
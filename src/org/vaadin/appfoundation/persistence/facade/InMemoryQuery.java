@@ -0,0 +1,927 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
+
+/**
+ * A parsed JPQL query evaluated against entity objects in memory. Used by the
+ * {@link InMemoryFacade}.
+ * 
+ * Only a subset of JPQL is supported: queries of the form
+ * <code>SELECT p FROM Entity p WHERE ... ORDER BY p.field DESC</code>, where
+ * the conditions may use the basic fields of the entity, named parameters,
+ * string, numeric and boolean literals, arithmetic, LOWER and UPPER, the
+ * comparison operators, LIKE with an optional ESCAPE, IN, BETWEEN, IS NULL,
+ * AND, OR, NOT and parentheses. The update
+ * statements may assign any such expression to a field.
+ * 
+ * @author Kim
+ * 
+ */
+final class InMemoryQuery {
+
+    /**
+     * A node of a parsed expression.
+     */
+    private interface Expression {
+
+        /**
+         * Evaluates the expression for the given entity. Conditions evaluate
+         * to true, false or null if the result is unknown, as in SQL.
+         * 
+         * @param pojo
+         *            The entity
+         * @param parameters
+         *            Values of the named parameters
+         * @return Value of the expression
+         */
+        public Object evaluate(Object pojo, Map<String, Object> parameters);
+    }
+
+    private final String entityName;
+
+    private final Expression condition;
+
+    private final List<Expression> orderBy = new ArrayList<Expression>();
+
+    private final List<Boolean> descending = new ArrayList<Boolean>();
+
+    private final Map<String, Expression> assignments = new LinkedHashMap<String, Expression>();
+
+    private InMemoryQuery(String entityName, Expression condition) {
+        this.entityName = entityName;
+        this.condition = condition;
+    }
+
+    /**
+     * Parses a SELECT query which returns entities.
+     * 
+     * @param queryStr
+     *            The query
+     * @return The parsed query
+     * @throws IllegalArgumentException
+     *             If the query is not supported
+     */
+    public static InMemoryQuery parseSelect(String queryStr) {
+        Parser parser = new Parser(queryStr);
+        parser.expectKeyword("SELECT");
+        String selection = parser.expectIdentifier();
+        parser.expectKeyword("FROM");
+        String entityName = parser.expectIdentifier();
+        parser.acceptKeyword("AS");
+        String alias = parser.expectIdentifier();
+        if (!alias.equals(selection)) {
+            throw new IllegalArgumentException(
+                    "Only queries selecting entities are supported: "
+                            + queryStr);
+        }
+
+        Expression condition = null;
+        if (parser.acceptKeyword("WHERE")) {
+            condition = parser.parseCondition();
+        }
+
+        InMemoryQuery query = new InMemoryQuery(entityName, condition);
+        if (parser.acceptKeyword("ORDER")) {
+            parser.expectKeyword("BY");
+            do {
+                query.orderBy.add(parser.parseAdditive());
+                boolean desc = parser.acceptKeyword("DESC");
+                if (!desc) {
+                    parser.acceptKeyword("ASC");
+                }
+                query.descending.add(desc);
+            } while (parser.acceptSymbol(","));
+        }
+        parser.expectEnd();
+        return query;
+    }
+
+    /**
+     * Parses the conditions of a WHERE clause.
+     * 
+     * @param whereClause
+     *            The conditions, or null to match all entities
+     * @return The parsed query
+     */
+    public static InMemoryQuery parseWhere(String whereClause) {
+        if (whereClause == null || whereClause.trim().length() == 0) {
+            return new InMemoryQuery(null, null);
+        }
+
+        Parser parser = new Parser(whereClause);
+        Expression condition = parser.parseCondition();
+        parser.expectEnd();
+        return new InMemoryQuery(null, condition);
+    }
+
+    /**
+     * Parses the SET and WHERE clauses of an UPDATE statement.
+     * 
+     * @param setClause
+     *            The assignments, such as <code>p.foo = :foo</code>
+     * @param whereClause
+     *            The conditions, or null to update all entities
+     * @return The parsed statement
+     */
+    public static InMemoryQuery parseUpdate(String setClause,
+            String whereClause) {
+        InMemoryQuery query = parseWhere(whereClause);
+        Parser parser = new Parser(setClause);
+        do {
+            String field = toFieldName(parser.expectIdentifier());
+            parser.expectSymbol("=");
+            query.assignments.put(field, parser.parseAdditive());
+        } while (parser.acceptSymbol(","));
+        parser.expectEnd();
+        return query;
+    }
+
+    /**
+     * Returns the name of the queried entity.
+     * 
+     * @return The entity name, or null if the query consists of conditions
+     *         only
+     */
+    public String getEntityName() {
+        return entityName;
+    }
+
+    /**
+     * Checks if the given entity matches the conditions of the query.
+     * 
+     * @param pojo
+     *            The entity
+     * @param parameters
+     *            Values of the named parameters
+     * @return true if the entity matches, otherwise false
+     */
+    public boolean matches(Object pojo, Map<String, Object> parameters) {
+        return condition == null
+                || Boolean.TRUE.equals(condition.evaluate(pojo, parameters));
+    }
+
+    /**
+     * Sorts the given entities according to the ORDER BY clause. The order of
+     * the entities is left as it is if there is no ORDER BY clause.
+     * 
+     * @param pojos
+     *            The entities
+     * @param parameters
+     *            Values of the named parameters
+     */
+    public <A> void sort(List<A> pojos, final Map<String, Object> parameters) {
+        if (orderBy.isEmpty()) {
+            return;
+        }
+
+        Collections.sort(pojos, new Comparator<A>() {
+            public int compare(A a, A b) {
+                for (int i = 0; i < orderBy.size(); i++) {
+                    int result = compareNullsFirst(orderBy.get(i).evaluate(a,
+                            parameters), orderBy.get(i).evaluate(b,
+                            parameters));
+                    if (result != 0) {
+                        return descending.get(i) ? -result : result;
+                    }
+                }
+                return 0;
+            }
+        });
+    }
+
+    /**
+     * Applies the assignments of an UPDATE statement to the given entity.
+     * 
+     * @param pojo
+     *            The entity
+     * @param parameters
+     *            Values of the named parameters
+     */
+    public void apply(Object pojo, Map<String, Object> parameters) {
+        // Evaluate all the values before assigning any of them
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        for (Entry<String, Expression> entry : assignments.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().evaluate(pojo,
+                    parameters));
+        }
+
+        FieldCopier copier = FieldCopier.forClass(pojo.getClass());
+        for (Entry<String, Object> entry : values.entrySet()) {
+            copier.setValue(pojo, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Compares two values. Null values are ordered before any other values.
+     * 
+     * @param a
+     *            The first value
+     * @param b
+     *            The second value
+     * @return A negative integer, zero or a positive integer if a is less
+     *         than, equal to or greater than b
+     */
+    public static int compareNullsFirst(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        return compare(a, b);
+    }
+
+    /**
+     * Compares two non-null values. Numbers of different types are compared
+     * by their values and enums can be compared to their names.
+     */
+    @SuppressWarnings("unchecked")
+    private static int compare(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            if (isDecimal(a) || isDecimal(b)) {
+                return Double.compare(((Number) a).doubleValue(), ((Number) b)
+                        .doubleValue());
+            }
+            return new BigDecimal(a.toString()).compareTo(new BigDecimal(b
+                    .toString()));
+        }
+
+        if (a instanceof Enum<?> && b instanceof String) {
+            a = ((Enum<?>) a).name();
+        } else if (b instanceof Enum<?> && a instanceof String) {
+            b = ((Enum<?>) b).name();
+        }
+
+        if (a instanceof Comparable<?>) {
+            try {
+                return ((Comparable<Object>) a).compareTo(b);
+            } catch (ClassCastException e) {
+                // Fall through
+            }
+        }
+        throw new IllegalArgumentException("Can't compare " + a + " to " + b);
+    }
+
+    private static boolean isDecimal(Object number) {
+        return number instanceof Double || number instanceof Float;
+    }
+
+    /**
+     * Converts a path such as p.foo to the name of the field.
+     * 
+     * @param path
+     *            The path
+     * @return Name of the field
+     */
+    private static String toFieldName(String path) {
+        int dot = path.indexOf('.');
+        String field = dot == -1 ? path : path.substring(dot + 1);
+        if (field.indexOf('.') != -1) {
+            throw new IllegalArgumentException(
+                    "Only the fields of the entity itself are supported: "
+                            + path);
+        }
+        return field;
+    }
+
+    /**
+     * A field of the entity.
+     */
+    private static class FieldPath implements Expression {
+
+        private final String field;
+
+        public FieldPath(String path) {
+            field = toFieldName(path);
+        }
+
+        public Object evaluate(Object pojo, Map<String, Object> parameters) {
+            return FieldCopier.forClass(pojo.getClass()).getValue(pojo, field);
+        }
+    }
+
+    /**
+     * The LOWER or UPPER function.
+     */
+    private static class CaseFunction implements Expression {
+
+        private final Expression value;
+
+        private final boolean upper;
+
+        public CaseFunction(Expression value, boolean upper) {
+            this.value = value;
+            this.upper = upper;
+        }
+
+        public Object evaluate(Object pojo, Map<String, Object> parameters) {
+            Object a = value.evaluate(pojo, parameters);
+            if (a == null) {
+                return null;
+            }
+            return upper ? a.toString().toUpperCase() : a.toString()
+                    .toLowerCase();
+        }
+    }
+
+    /**
+     * A named parameter.
+     */
+    private static class Parameter implements Expression {
+
+        private final String name;
+
+        public Parameter(String name) {
+            this.name = name;
+        }
+
+        public Object evaluate(Object pojo, Map<String, Object> parameters) {
+            if (parameters == null || !parameters.containsKey(name)) {
+                throw new IllegalArgumentException("Parameter '" + name
+                        + "' has not been set");
+            }
+            return parameters.get(name);
+        }
+    }
+
+    /**
+     * A literal value.
+     */
+    private static class Literal implements Expression {
+
+        private final Object value;
+
+        public Literal(Object value) {
+            this.value = value;
+        }
+
+        public Object evaluate(Object pojo, Map<String, Object> parameters) {
+            return value;
+        }
+    }
+
+    /**
+     * An arithmetic operation.
+     */
+    private static class Arithmetic implements Expression {
+
+        private final Expression left;
+
+        private final char operator;
+
+        private final Expression right;
+
+        public Arithmetic(Expression left, char operator, Expression right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        public Object evaluate(Object pojo, Map<String, Object> parameters) {
+            Object a = left.evaluate(pojo, parameters);
+            Object b = right.evaluate(pojo, parameters);
+            if (a == null || b == null) {
+                return null;
+            }
+
+            if (!(a instanceof Number) || !(b instanceof Number)) {
+                throw new IllegalArgumentException("Arithmetic on non-numbers");
+            }
+
+            if (isDecimal(a) || isDecimal(b)) {
+                double x = ((Number) a).doubleValue();
+                double y = ((Number) b).doubleValue();
+                switch (operator) {
+                case '+':
+                    return x + y;
+                case '-':
+                    return x - y;
+                case '*':
+                    return x * y;
+                default:
+                    return x / y;
+                }
+            }
+
+            long x = ((Number) a).longValue();
+            long y = ((Number) b).longValue();
+            switch (operator) {
+            case '+':
+                return x + y;
+            case '-':
+                return x - y;
+            case '*':
+                return x * y;
+            default:
+                return x / y;
+            }
+        }
+    }
+
+    /**
+     * A comparison of two values.
+     */
+    private static class Comparison implements Expression {
+
+        private final Expression left;
+
+        private final String operator;
+
+        private final Expression right;
+
+        public Comparison(Expression left, String operator, Expression right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        public Object evaluate(Object pojo, Map<String, Object> parameters) {
+            Object a = left.evaluate(pojo, parameters);
+            Object b = right.evaluate(pojo, parameters);
+            if (a == null || b == null) {
+                return null;
+            }
+
+            if ("=".equals(operator)) {
+                return isEqual(a, b);
+            } else if ("<>".equals(operator)) {
+                return !isEqual(a, b);
+            }
+
+            int result = compare(a, b);
+            if ("<".equals(operator)) {
+                return result < 0;
+            } else if ("<=".equals(operator)) {
+                return result <= 0;
+            } else if (">".equals(operator)) {
+                return result > 0;
+            }
+            return result >= 0;
+        }
+    }
+
+    private static boolean isEqual(Object a, Object b) {
+        if (a.equals(b)) {
+            return true;
+        }
+        if (a instanceof Number && b instanceof Number
+                || a instanceof Enum<?> && b instanceof String
+                || a instanceof String && b instanceof Enum<?>) {
+            return compare(a, b) == 0;
+        }
+        return false;
+    }
+
+    /**
+     * A LIKE condition.
+     */
+    private static class Like implements Expression {
+
+        private final Expression value;
+
+        private final Expression pattern;
+
+        // The escape character, or null
+        private final Expression escape;
+
+        public Like(Expression value, Expression pattern, Expression escape) {
+            this.value = value;
+            this.pattern = pattern;
+            this.escape = escape;
+        }
+
+        public Object evaluate(Object pojo, Map<String, Object> parameters) {
+            Object a = value.evaluate(pojo, parameters);
+            Object p = pattern.evaluate(pojo, parameters);
+            if (a == null || p == null) {
+                return null;
+            }
+
+            char escapeChar = 0;
+            if (escape != null) {
+                Object e = escape.evaluate(pojo, parameters);
+                if (e == null || e.toString().length() != 1) {
+                    throw new IllegalArgumentException(
+                            "Escape must be a single character");
+                }
+                escapeChar = e.toString().charAt(0);
+            }
+            return toRegex(p.toString(), escapeChar).matcher(a.toString())
+                    .matches();
+        }
+
+        private static Pattern toRegex(String pattern, char escapeChar) {
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            boolean escaped = false;
+            for (char c : pattern.toCharArray()) {
+                if (escaped) {
+                    literal.append(c);
+                    escaped = false;
+                } else if (escapeChar != 0 && c == escapeChar) {
+                    escaped = true;
+                } else if (c == '%' || c == '_') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '%' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+            return Pattern.compile(regex.toString(), Pattern.DOTALL);
+        }
+    }
+
+    /**
+     * An IN condition. A single parameter may hold a collection of values.
+     */
+    private static class In implements Expression {
+
+        private final Expression value;
+
+        private final List<Expression> values;
+
+        public In(Expression value, List<Expression> values) {
+            this.value = value;
+            this.values = values;
+        }
+
+        public Object evaluate(Object pojo, Map<String, Object> parameters) {
+            Object a = value.evaluate(pojo, parameters);
+            if (a == null) {
+                return null;
+            }
+
+            for (Expression expression : values) {
+                Object b = expression.evaluate(pojo, parameters);
+                Collection<?> candidates = b instanceof Collection<?> ? (Collection<?>) b
+                        : Collections.singletonList(b);
+                for (Object candidate : candidates) {
+                    if (candidate != null && isEqual(a, candidate)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * An IS NULL condition.
+     */
+    private static class IsNull implements Expression {
+
+        private final Expression value;
+
+        public IsNull(Expression value) {
+            this.value = value;
+        }
+
+        public Object evaluate(Object pojo, Map<String, Object> parameters) {
+            return value.evaluate(pojo, parameters) == null;
+        }
+    }
+
+    /**
+     * A NOT condition.
+     */
+    private static class Not implements Expression {
+
+        private final Expression condition;
+
+        public Not(Expression condition) {
+            this.condition = condition;
+        }
+
+        public Object evaluate(Object pojo, Map<String, Object> parameters) {
+            Object result = condition.evaluate(pojo, parameters);
+            return result == null ? null : !((Boolean) result);
+        }
+    }
+
+    /**
+     * AND and OR conditions.
+     */
+    private static class Logical implements Expression {
+
+        private final Expression left;
+
+        private final boolean and;
+
+        private final Expression right;
+
+        public Logical(Expression left, boolean and, Expression right) {
+            this.left = left;
+            this.and = and;
+            this.right = right;
+        }
+
+        public Object evaluate(Object pojo, Map<String, Object> parameters) {
+            // The result is decided by the first operand equal to the
+            // short-circuit value: false for AND and true for OR
+            Boolean decisive = !and;
+            Object a = left.evaluate(pojo, parameters);
+            if (decisive.equals(a)) {
+                return decisive;
+            }
+            Object b = right.evaluate(pojo, parameters);
+            if (decisive.equals(b)) {
+                return decisive;
+            }
+            return a == null || b == null ? null : !decisive;
+        }
+    }
+
+    /**
+     * Splits a query into tokens.
+     */
+    private static class Tokenizer {
+
+        private static final String SYMBOLS = "(),=<>+-*/";
+
+        public static List<String> tokenize(String queryStr) {
+            List<String> tokens = new ArrayList<String>();
+            int i = 0;
+            int length = queryStr.length();
+            while (i < length) {
+                char c = queryStr.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '\'') {
+                    // String literal, quotes are escaped by doubling them
+                    int start = i++;
+                    while (true) {
+                        if (i >= length) {
+                            throw new IllegalArgumentException(
+                                    "Unterminated string: " + queryStr);
+                        }
+                        if (queryStr.charAt(i) == '\'') {
+                            if (i + 1 < length
+                                    && queryStr.charAt(i + 1) == '\'') {
+                                i += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        i++;
+                    }
+                    tokens.add(queryStr.substring(start, ++i));
+                } else if (c == '<' && i + 1 < length
+                        && (queryStr.charAt(i + 1) == '='
+                                || queryStr.charAt(i + 1) == '>')
+                        || c == '>' && i + 1 < length
+                        && queryStr.charAt(i + 1) == '=') {
+                    tokens.add(queryStr.substring(i, i + 2));
+                    i += 2;
+                } else if (SYMBOLS.indexOf(c) != -1) {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else {
+                    int start = i;
+                    while (i < length
+                            && !Character.isWhitespace(queryStr.charAt(i))
+                            && SYMBOLS.indexOf(queryStr.charAt(i)) == -1
+                            && queryStr.charAt(i) != '\'') {
+                        i++;
+                    }
+                    tokens.add(queryStr.substring(start, i));
+                }
+            }
+            return tokens;
+        }
+    }
+
+    /**
+     * Recursive descent parser for the supported subset of JPQL.
+     */
+    private static class Parser {
+
+        private final String queryStr;
+
+        private final List<String> tokens;
+
+        private int position = 0;
+
+        public Parser(String queryStr) {
+            if (queryStr == null) {
+                throw new IllegalArgumentException("Query may not be null");
+            }
+            this.queryStr = queryStr;
+            tokens = Tokenizer.tokenize(queryStr);
+        }
+
+        private String peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        private boolean isKeyword(String token, String keyword) {
+            return token != null && token.equalsIgnoreCase(keyword);
+        }
+
+        public boolean acceptKeyword(String keyword) {
+            if (isKeyword(peek(), keyword)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        public void expectKeyword(String keyword) {
+            if (!acceptKeyword(keyword)) {
+                throw error("Expected " + keyword);
+            }
+        }
+
+        public boolean acceptSymbol(String symbol) {
+            if (symbol.equals(peek())) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        public void expectSymbol(String symbol) {
+            if (!acceptSymbol(symbol)) {
+                throw error("Expected " + symbol);
+            }
+        }
+
+        public String expectIdentifier() {
+            String token = peek();
+            if (token == null || !Character.isJavaIdentifierStart(token
+                    .charAt(0))) {
+                throw error("Expected an identifier");
+            }
+            position++;
+            return token;
+        }
+
+        public void expectEnd() {
+            if (peek() != null) {
+                throw error("Unexpected " + peek());
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at token "
+                    + (position + 1) + " in query: " + queryStr);
+        }
+
+        public Expression parseCondition() {
+            Expression condition = parseConjunction();
+            while (acceptKeyword("OR")) {
+                condition = new Logical(condition, false, parseConjunction());
+            }
+            return condition;
+        }
+
+        private Expression parseConjunction() {
+            Expression condition = parseNegation();
+            while (acceptKeyword("AND")) {
+                condition = new Logical(condition, true, parseNegation());
+            }
+            return condition;
+        }
+
+        private Expression parseNegation() {
+            if (acceptKeyword("NOT")) {
+                return new Not(parseNegation());
+            }
+            if (acceptSymbol("(")) {
+                Expression condition = parseCondition();
+                expectSymbol(")");
+                return condition;
+            }
+            return parsePredicate();
+        }
+
+        private Expression parsePredicate() {
+            Expression left = parseAdditive();
+            if (acceptKeyword("IS")) {
+                boolean not = acceptKeyword("NOT");
+                expectKeyword("NULL");
+                Expression isNull = new IsNull(left);
+                return not ? new Not(isNull) : isNull;
+            }
+
+            boolean not = acceptKeyword("NOT");
+            Expression predicate;
+            if (acceptKeyword("LIKE")) {
+                Expression pattern = parseAdditive();
+                predicate = new Like(left, pattern,
+                        acceptKeyword("ESCAPE") ? parsePrimary() : null);
+            } else if (acceptKeyword("IN")) {
+                List<Expression> values = new ArrayList<Expression>();
+                if (acceptSymbol("(")) {
+                    do {
+                        values.add(parseAdditive());
+                    } while (acceptSymbol(","));
+                    expectSymbol(")");
+                } else {
+                    values.add(parsePrimary());
+                }
+                predicate = new In(left, values);
+            } else if (acceptKeyword("BETWEEN")) {
+                Expression low = parseAdditive();
+                expectKeyword("AND");
+                Expression high = parseAdditive();
+                predicate = new Logical(new Comparison(left, ">=", low), true,
+                        new Comparison(left, "<=", high));
+            } else if (!not) {
+                String operator = peek();
+                if (!"=".equals(operator) && !"<>".equals(operator)
+                        && !"<".equals(operator) && !"<=".equals(operator)
+                        && !">".equals(operator) && !">=".equals(operator)) {
+                    throw error("Expected a comparison");
+                }
+                position++;
+                return new Comparison(left, operator, parseAdditive());
+            } else {
+                throw error("Expected LIKE, IN or BETWEEN");
+            }
+            return not ? new Not(predicate) : predicate;
+        }
+
+        public Expression parseAdditive() {
+            Expression expression = parseMultiplicative();
+            while ("+".equals(peek()) || "-".equals(peek())) {
+                char operator = tokens.get(position++).charAt(0);
+                expression = new Arithmetic(expression, operator,
+                        parseMultiplicative());
+            }
+            return expression;
+        }
+
+        private Expression parseMultiplicative() {
+            Expression expression = parsePrimary();
+            while ("*".equals(peek()) || "/".equals(peek())) {
+                char operator = tokens.get(position++).charAt(0);
+                expression = new Arithmetic(expression, operator,
+                        parsePrimary());
+            }
+            return expression;
+        }
+
+        private Expression parsePrimary() {
+            String token = peek();
+            if (token == null) {
+                throw error("Unexpected end");
+            }
+
+            if (acceptSymbol("(")) {
+                Expression expression = parseAdditive();
+                expectSymbol(")");
+                return expression;
+            }
+
+            if (acceptSymbol("-")) {
+                return new Arithmetic(new Literal(0L), '-', parsePrimary());
+            }
+
+            position++;
+            char first = token.charAt(0);
+            if (first == ':') {
+                return new Parameter(token.substring(1));
+            } else if (first == '\'') {
+                return new Literal(token.substring(1, token.length() - 1)
+                        .replace("''", "'"));
+            } else if (Character.isDigit(first)) {
+                try {
+                    if (token.indexOf('.') != -1) {
+                        return new Literal(Double.valueOf(token));
+                    }
+                    return new Literal(Long.valueOf(token));
+                } catch (NumberFormatException e) {
+                    position--;
+                    throw error("Invalid number");
+                }
+            } else if (isKeyword(token, "TRUE") || isKeyword(token, "FALSE")) {
+                return new Literal(Boolean.valueOf(token));
+            } else if (isKeyword(token, "NULL")) {
+                return new Literal(null);
+            } else if ((isKeyword(token, "LOWER") || isKeyword(token, "UPPER"))
+                    && "(".equals(peek())) {
+                expectSymbol("(");
+                Expression value = parseAdditive();
+                expectSymbol(")");
+                return new CaseFunction(value, isKeyword(token, "UPPER"));
+            } else if (Character.isJavaIdentifierStart(first)) {
+                return new FieldPath(token);
+            }
+            position--;
+            throw error("Unexpected " + token);
+        }
+    }
+
+}
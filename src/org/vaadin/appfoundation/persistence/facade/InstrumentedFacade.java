@@ -0,0 +1,520 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Facade which records the latencies and row counts of the calls made to
+ * another facade. The recorded {@link FacadeStatistics} can be read directly
+ * or published over JMX with {@link #registerMBean(String)}.
+ * 
+ * @author Kim
+ * 
+ */
+public class InstrumentedFacade implements IFacade {
+
+    private final IFacade facade;
+
+    private final FacadeStatistics statistics;
+
+    /**
+     * Constructor
+     * 
+     * @param facade
+     *            The facade whose calls are recorded
+     */
+    public InstrumentedFacade(IFacade facade) {
+        if (facade == null) {
+            throw new IllegalArgumentException("Facade may not be null");
+        }
+
+        this.facade = facade;
+        statistics = new FacadeStatistics(facade);
+    }
+
+    /**
+     * Returns the facade whose calls are recorded.
+     * 
+     * @return The instrumented facade
+     */
+    public IFacade getFacade() {
+        return facade;
+    }
+
+    /**
+     * Returns the statistics recorded for the calls.
+     * 
+     * @return The statistics
+     */
+    public FacadeStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Publishes the statistics in the platform MBean server. The MBean is
+     * removed when the facade is killed.
+     * 
+     * @param name
+     *            Name of the facade
+     */
+    public void registerMBean(String name) {
+        statistics.register(name);
+    }
+
+    private void record(String method, String query, long start, long rows) {
+        statistics.record(method, query, System.nanoTime() - start, rows);
+    }
+
+    private static String getName(Class<?> c) {
+        return c == null ? "null" : c.getSimpleName();
+    }
+
+    private static long size(Collection<?> collection) {
+        return collection == null ? 0 : collection.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init(String name) {
+        facade.init(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(Class<A> clazz, Long id) {
+        long start = System.nanoTime();
+        A result = null;
+        try {
+            result = facade.find(clazz, id);
+            return result;
+        } finally {
+            record("find", "find " + getName(clazz), start, result == null ? 0
+                    : 1);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(Class<A> clazz) {
+        long start = System.nanoTime();
+        List<A> result = null;
+        try {
+            result = facade.list(clazz);
+            return result;
+        } finally {
+            record("list", "list " + getName(clazz), start, size(result));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(Class<A> clazz,
+            int startIndex, int amount) {
+        long start = System.nanoTime();
+        List<A> result = null;
+        try {
+            result = facade.list(clazz, startIndex, amount);
+            return result;
+        } finally {
+            record("list", "list " + getName(clazz), start, size(result));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(String queryStr,
+            Map<String, Object> parameters) {
+        long start = System.nanoTime();
+        List<A> result = null;
+        try {
+            result = facade.list(queryStr, parameters);
+            return result;
+        } finally {
+            record("list", queryStr, start, size(result));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(String queryStr,
+            Map<String, Object> parameters, int startIndex, int amount) {
+        long start = System.nanoTime();
+        List<A> result = null;
+        try {
+            result = facade.list(queryStr, parameters, startIndex, amount);
+            return result;
+        } finally {
+            record("list", queryStr, start, size(result));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Page<A> page(Class<A> clazz,
+            PageToken token, int amount) {
+        long start = System.nanoTime();
+        Page<A> result = null;
+        try {
+            result = facade.page(clazz, token, amount);
+            return result;
+        } finally {
+            record("page", "page " + getName(clazz), start,
+                    result == null ? 0 : result.getItems().size());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Page<A> page(Class<A> clazz,
+            String orderField, PageToken token, int amount) {
+        long start = System.nanoTime();
+        Page<A> result = null;
+        try {
+            result = facade.page(clazz, orderField, token, amount);
+            return result;
+        } finally {
+            record("page", "page " + getName(clazz) + " by " + orderField,
+                    start, result == null ? 0 : result.getItems().size());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Only creating the iterator is recorded, the chunks fetched during the
+     * iteration are not.
+     */
+    public <A extends AbstractPojo> Iterator<A> iterate(Class<A> clazz,
+            int chunkSize) {
+        long start = System.nanoTime();
+        try {
+            return facade.iterate(clazz, chunkSize);
+        } finally {
+            record("iterate", "iterate " + getName(clazz), start, 0);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Only creating the iterator is recorded, the chunks fetched during the
+     * iteration are not.
+     */
+    public <A extends AbstractPojo> Iterator<A> iterate(String queryStr,
+            Map<String, Object> parameters, int chunkSize) {
+        long start = System.nanoTime();
+        try {
+            return facade.iterate(queryStr, parameters, chunkSize);
+        } finally {
+            record("iterate", queryStr, start, 0);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(String queryStr,
+            Map<String, Object> parameters) {
+        long start = System.nanoTime();
+        A result = null;
+        try {
+            result = facade.<A> find(queryStr, parameters);
+            return result;
+        } finally {
+            record("find", queryStr, start, result == null ? 0 : 1);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(AbstractPojo pojo) {
+        long start = System.nanoTime();
+        try {
+            facade.store(pojo);
+        } finally {
+            record("store", null, start, 1);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos) {
+        long start = System.nanoTime();
+        try {
+            facade.storeAll(pojos);
+        } finally {
+            record("storeAll", null, start, size(pojos));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete(AbstractPojo pojo) {
+        long start = System.nanoTime();
+        try {
+            facade.delete(pojo);
+        } finally {
+            record("delete", null, start, 1);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void deleteAll(Collection<A> pojos) {
+        long start = System.nanoTime();
+        try {
+            facade.deleteAll(pojos);
+        } finally {
+            record("deleteAll", null, start, size(pojos));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void refresh(A pojo) {
+        long start = System.nanoTime();
+        try {
+            facade.refresh(pojo);
+        } finally {
+            record("refresh", null, start, 1);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beginUnitOfWork() {
+        facade.beginUnitOfWork();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void endUnitOfWork() {
+        facade.endUnitOfWork();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beginTransaction() {
+        facade.beginTransaction();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void commitTransaction() {
+        long start = System.nanoTime();
+        try {
+            facade.commitTransaction();
+        } finally {
+            record("commitTransaction", null, start, 0);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void rollbackTransaction() {
+        long start = System.nanoTime();
+        try {
+            facade.rollbackTransaction();
+        } finally {
+            record("rollbackTransaction", null, start, 0);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isTransactionActive() {
+        return facade.isTransactionActive();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The calls made by the callback are recorded.
+     */
+    public <T> T runInTransaction(TransactionCallback<T> callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback may not be null");
+        }
+
+        beginTransaction();
+        boolean success = false;
+        try {
+            T result = callback.execute(this);
+            success = true;
+            return result;
+        } finally {
+            if (success) {
+                commitTransaction();
+            } else {
+                rollbackTransaction();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() {
+        facade.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Also removes the statistics MBean, if it has been registered.
+     */
+    public void kill() {
+        statistics.unregister();
+        facade.kill();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(Class<? extends AbstractPojo> c) {
+        long start = System.nanoTime();
+        try {
+            return facade.count(c);
+        } finally {
+            record("count", "count " + getName(c), start, 1);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters) {
+        long start = System.nanoTime();
+        try {
+            return facade.count(c, whereClause, parameters);
+        } finally {
+            record("count", "count " + getName(c) + " WHERE " + whereClause,
+                    start, 1);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<?> getFieldValues(Class<? extends AbstractPojo> c,
+            String field, String whereConditions, Map<String, Object> parameters) {
+        long start = System.nanoTime();
+        List<?> result = null;
+        try {
+            result = facade.getFieldValues(c, field, whereConditions,
+                    parameters);
+            return result;
+        } finally {
+            record("getFieldValues", "getFieldValues " + getName(c) + "."
+                    + field + " WHERE " + whereConditions, start, size(result));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> project(Class<? extends AbstractPojo> c,
+            String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        long start = System.nanoTime();
+        List<Object[]> result = null;
+        try {
+            result = facade.project(c, fields, whereConditions, parameters);
+            return result;
+        } finally {
+            record("project", "project " + getName(c) + " WHERE "
+                    + whereConditions, start, size(result));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> List<T> project(Class<? extends AbstractPojo> c,
+            Class<T> resultClass, String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        long start = System.nanoTime();
+        List<T> result = null;
+        try {
+            result = facade.project(c, resultClass, fields, whereConditions,
+                    parameters);
+            return result;
+        } finally {
+            record("project", "project " + getName(c) + " WHERE "
+                    + whereConditions, start, size(result));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int update(Class<? extends AbstractPojo> c, String setClause,
+            String whereClause, Map<String, Object> parameters) {
+        long start = System.nanoTime();
+        int affected = 0;
+        try {
+            affected = facade.update(c, setClause, whereClause, parameters);
+            return affected;
+        } finally {
+            record("update", "update " + getName(c) + " SET " + setClause
+                    + " WHERE " + whereClause, start, affected);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int delete(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters) {
+        long start = System.nanoTime();
+        int affected = 0;
+        try {
+            affected = facade.delete(c, whereClause, parameters);
+            return affected;
+        } finally {
+            record("delete", "delete " + getName(c) + " WHERE " + whereClause,
+                    start, affected);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> findAll(Class<A> clazz,
+            Collection<Long> ids) {
+        long start = System.nanoTime();
+        List<A> result = null;
+        try {
+            result = facade.findAll(clazz, ids);
+            return result;
+        } finally {
+            record("findAll", "findAll " + getName(clazz), start,
+                    size(result));
+        }
+    }
+
+}
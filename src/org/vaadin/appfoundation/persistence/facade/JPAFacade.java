@@ -2,22 +2,33 @@ package org.vaadin.appfoundation.persistence.facade;
 
 import java.io.Serializable;
 import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityNotFoundException;
 import javax.persistence.NoResultException;
+import javax.persistence.OptimisticLockException;
 import javax.persistence.Persistence;
 import javax.persistence.Query;
-import javax.persistence.Transient;
+import javax.persistence.RollbackException;
 
 import org.eclipse.persistence.expressions.ExpressionBuilder;
 import org.eclipse.persistence.jpa.JpaEntityManager;
 import org.eclipse.persistence.jpa.JpaHelper;
+import org.vaadin.appfoundation.persistence.cache.EntityCache;
+import org.vaadin.appfoundation.persistence.cache.QueryResultCache;
 import org.vaadin.appfoundation.persistence.data.AbstractPojo;
 
 /**
@@ -39,6 +50,63 @@ public class JPAFacade implements IFacade, Serializable {
     // problems
     protected ThreadLocal<EntityManager> em = new ThreadLocal<EntityManager>();
 
+    // The nesting depth of the current thread's unit of work. While the depth
+    // is greater than zero, the EntityManager is kept open between calls.
+    protected ThreadLocal<Integer> unitOfWorkDepth = new ThreadLocal<Integer>();
+
+    // The current thread's transaction begun with beginTransaction(), or null
+    private final ThreadLocal<TransactionState> transaction = new ThreadLocal<TransactionState>();
+
+    private boolean refreshAfterStore = false;
+
+    // The number of entity managers which are currently open in any thread
+    private final AtomicInteger openEntityManagers = new AtomicInteger();
+
+    // The maximum time kill() waits for the open entity managers to close
+    private static final long DRAIN_TIMEOUT = 5000L;
+
+    private static final int DEFAULT_BATCH_SIZE = 50;
+
+    // The maximum number of ids in a single IN-list. Some databases, such as
+    // Oracle, limit the length of the list.
+    private static final int MAX_IN_LIST_SIZE = 500;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private static final int DEFAULT_QUERY_CACHE_SIZE = 1000;
+
+    private EntityCache entityCache = null;
+
+    private QueryResultCache queryResultCache = null;
+
+    private DirtyTracker dirtyTracker = null;
+
+    private final QueryCache queryCache = new QueryCache(
+            DEFAULT_QUERY_CACHE_SIZE);
+
+    // Counters for monitoring the facade
+    private final AtomicLong entityManagersCreated = new AtomicLong();
+
+    private final AtomicLong commits = new AtomicLong();
+
+    private final AtomicLong rollbacks = new AtomicLong();
+
+    /**
+     * State of a transaction begun with beginTransaction().
+     */
+    private static class TransactionState {
+
+        // The nesting depth of the transaction
+        private int depth = 1;
+
+        // Set when a nested transaction has been rolled back
+        private boolean rollbackOnly = false;
+
+        // The entity classes written in the transaction. Their cached entities
+        // and query results are invalidated when the transaction ends.
+        private final Set<Class<? extends AbstractPojo>> writtenClasses = new HashSet<Class<? extends AbstractPojo>>();
+    }
+
     /**
      * Default constructor which does nothing. Make sure to call init() if
      * you've used this constructor.
@@ -66,21 +134,189 @@ public class JPAFacade implements IFacade, Serializable {
      *            Persistence-unit name (defined in the persistence.xml)
      */
     public void init(String name) {
-        emf = Persistence.createEntityManagerFactory(name);
+        batchSize = getDefaultBatchSize();
+        Map<String, String> properties = new HashMap<String, String>();
+        if (batchSize > 1) {
+            // Let the JPA provider group the inserts and updates into JDBC
+            // batches
+            properties.put("eclipselink.jdbc.batch-writing", "JDBC");
+            properties.put("eclipselink.jdbc.batch-writing.size", Integer
+                    .toString(batchSize));
+        }
+        emf = Persistence.createEntityManagerFactory(name, properties);
+        setDirtyChecking(Boolean.getBoolean("persistence.dirtyChecking"));
+    }
+
+    /**
+     * Returns the batch size defined by the persistence.batch.size system
+     * property, or the default batch size if it hasn't been defined.
+     * 
+     * @return Default batch size
+     */
+    private static int getDefaultBatchSize() {
+        String batchSizeStr = System.getProperty("persistence.batch.size");
+        if (batchSizeStr == null) {
+            return DEFAULT_BATCH_SIZE;
+        }
+
+        int batchSize;
+        try {
+            batchSize = Integer.valueOf(batchSizeStr);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    "persistence.batch.size must be an integer");
+        }
+
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "persistence.batch.size must be positive");
+        }
+        return batchSize;
+    }
+
+    /**
+     * Set the number of entities written by storeAll() before the persistence
+     * context is flushed and cleared. The size of the JDBC batches is defined
+     * by the persistence.batch.size system property when the facade is
+     * initialized.
+     * 
+     * @param batchSize
+     *            Number of entities per batch
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Get the number of entities written by storeAll() before the persistence
+     * context is flushed and cleared.
+     * 
+     * @return Number of entities per batch
+     */
+    public int getBatchSize() {
+        return batchSize;
     }
 
     /**
      * {@inheritDoc}
      */
     public <A extends AbstractPojo> A find(Class<A> clazz, Long id) {
+        // Check the second-level cache first, if one is in use
+        EntityCache cache = getActiveEntityCache();
+        long stamp = 0;
+        if (cache != null) {
+            A cached = cache.get(clazz, id);
+            if (cached != null) {
+                return track(cached);
+            }
+            // Taken before the read, so that a concurrent eviction keeps the
+            // possibly stale entity out of the cache
+            stamp = cache.getStamp(clazz);
+        }
+
         // Get the EntityManager and use its find() method to fetch the object.
         EntityManager em = getEntityManager();
         try {
-            return em.find(clazz, id);
+            A pojo = em.find(clazz, id);
+            if (cache != null) {
+                cache.put(pojo, stamp);
+            }
+            return track(pojo);
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            closeEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends AbstractPojo> List<A> findAll(Class<A> clazz,
+            Collection<Long> ids) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        if (ids == null) {
+            throw new IllegalArgumentException("Ids may not be null");
+        }
+
+        // Resolve the entities found in the second-level cache and collect
+        // the distinct ids which need to be fetched from the database
+        EntityCache cache = getActiveEntityCache();
+        Map<Long, A> found = new HashMap<Long, A>();
+        List<Long> missing = new ArrayList<Long>();
+        Set<Long> seen = new HashSet<Long>();
+        for (Long id : ids) {
+            if (id == null || !seen.add(id)) {
+                continue;
+            }
+            A cached = cache != null ? cache.get(clazz, id) : null;
+            if (cached != null) {
+                found.put(id, cached);
+            } else {
+                missing.add(id);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            long stamp = cache != null ? cache.getStamp(clazz) : 0;
+            EntityManager em = getEntityManager();
+            try {
+                for (int i = 0; i < missing.size(); i += MAX_IN_LIST_SIZE) {
+                    List<Long> chunk = padInList(missing.subList(i, Math.min(
+                            missing.size(), i + MAX_IN_LIST_SIZE)));
+                    Map<String, Object> parameters = new HashMap<String, Object>();
+                    String queryStr = "SELECT p FROM "
+                            + clazz.getSimpleName() + " p WHERE "
+                            + createInCondition("p.id", chunk, parameters);
+                    for (A pojo : (List<A>) generateQuery(queryStr,
+                            parameters, em).getResultList()) {
+                        found.put(pojo.getId(), pojo);
+                        if (cache != null) {
+                            cache.put(pojo, stamp);
+                        }
+                    }
+                }
+            } finally {
+                closeEntityManager(em);
+            }
+        }
+
+        List<A> result = new ArrayList<A>(ids.size());
+        for (Long id : ids) {
+            result.add(id == null ? null : found.get(id));
+        }
+        return track(result);
+    }
+
+    /**
+     * Pads the given IN-list to the next power of two by repeating its last
+     * value. This way queries with only a few distinct IN-list lengths are
+     * created, so the compiled queries can be reused from the query cache.
+     * 
+     * @param values
+     *            Values of the IN-list
+     * @return The padded list of values
+     */
+    private static List<Long> padInList(List<Long> values) {
+        int size = 1;
+        while (size < values.size()) {
+            size <<= 1;
+        }
+        size = Math.min(size, MAX_IN_LIST_SIZE);
+
+        List<Long> padded = new ArrayList<Long>(size);
+        padded.addAll(values);
+        Long last = values.get(values.size() - 1);
+        while (padded.size() < size) {
+            padded.add(last);
         }
+        return padded;
     }
 
     /**
@@ -93,10 +329,10 @@ public class JPAFacade implements IFacade, Serializable {
             // Initialize the query
             Query query = generateQuery(clazz, em);
             // Execute the query and return the result
-            return query.getResultList();
+            return track(query.getResultList());
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            closeEntityManager(em);
         }
     }
 
@@ -131,10 +367,213 @@ public class JPAFacade implements IFacade, Serializable {
             // Generate a query instance for the given query and parameters
             Query query = generateQuery(queryStr, parameters, em);
             // Execute query and return results
-            return query.getResultList();
+            return track(query.getResultList());
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            closeEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Page<A> page(Class<A> clazz,
+            PageToken token, int amount) {
+        return page(clazz, "id", token, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Page<A> page(Class<A> clazz,
+            String orderField, PageToken token, int amount) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        if (orderField == null) {
+            throw new IllegalArgumentException("Order field may not be null");
+        }
+
+        if (amount < 1) {
+            throw new IllegalArgumentException("Amount must be positive");
+        }
+
+        // The field is concatenated into the query, so only persistent fields
+        // of the class are accepted
+        FieldCopier copier = FieldCopier.forClass(clazz);
+        if (!copier.hasField(orderField)) {
+            throw new IllegalArgumentException("Unknown field " + orderField);
+        }
+
+        boolean orderById = "id".equals(orderField);
+        String field = "p." + orderField;
+        EntityManager em = getEntityManager();
+        try {
+            // Fetch one extra entity to find out if there is a next page
+            List<A> items;
+            if (orderById) {
+                Map<String, Object> parameters = new HashMap<String, Object>();
+                String conditions = null;
+                if (token != null) {
+                    // Seek directly past the last entity of the previous page
+                    conditions = "p.id > :lastId";
+                    parameters.put("lastId", token.getId());
+                }
+                items = fetchPage(em, clazz, conditions, "p.id", parameters,
+                        amount + 1);
+            } else {
+                // A null can't be compared with the last key and the
+                // databases sort the nulls differently, so the entities
+                // whose field is null are paged first with a query of their
+                // own.
+                items = new ArrayList<A>();
+                if (token == null || token.getKey() == null) {
+                    Map<String, Object> parameters = new HashMap<String, Object>();
+                    String conditions = field + " IS NULL";
+                    if (token != null) {
+                        conditions += " AND p.id > :lastId";
+                        parameters.put("lastId", token.getId());
+                    }
+                    items.addAll(fetchPage(em, clazz, conditions, "p.id",
+                            parameters, amount + 1));
+                }
+
+                if (items.size() <= amount) {
+                    Map<String, Object> parameters = new HashMap<String, Object>();
+                    String conditions = field + " IS NOT NULL";
+                    if (token != null && token.getKey() != null) {
+                        conditions += " AND (" + field + " > :lastKey OR ("
+                                + field + " = :lastKey AND p.id > :lastId))";
+                        parameters.put("lastKey", token.getKey());
+                        parameters.put("lastId", token.getId());
+                    }
+                    items.addAll(fetchPage(em, clazz, conditions, field
+                            + ", p.id", parameters, amount + 1 - items.size()));
+                }
+            }
+
+            if (items.size() <= amount) {
+                return new Page<A>(items, null);
+            }
+
+            // Copied, as the sub list view isn't serializable
+            items = new ArrayList<A>(items.subList(0, amount));
+            A last = items.get(amount - 1);
+            Object key = orderById ? last.getId() : copier.getValue(last,
+                    orderField);
+            return new Page<A>(items, new PageToken(key, last.getId()));
+        } finally {
+            closeEntityManager(em);
+        }
+    }
+
+    /**
+     * Fetches the entities of a page which match the given conditions.
+     * 
+     * @param em
+     *            The EntityManager
+     * @param clazz
+     *            Entity class
+     * @param conditions
+     *            The conditions, or null to fetch all the entities
+     * @param orderBy
+     *            The ORDER BY clause
+     * @param parameters
+     *            Values of the named parameters in the conditions
+     * @param amount
+     *            The maximum amount of entities
+     * @return List of entities
+     */
+    @SuppressWarnings("unchecked")
+    private <A extends AbstractPojo> List<A> fetchPage(EntityManager em,
+            Class<A> clazz, String conditions, String orderBy,
+            Map<String, Object> parameters, int amount) {
+        StringBuilder queryStr = new StringBuilder("SELECT p FROM ").append(
+                clazz.getSimpleName()).append(" p");
+        if (conditions != null) {
+            queryStr.append(" WHERE ").append(conditions);
+        }
+        queryStr.append(" ORDER BY ").append(orderBy);
+
+        Query query = generateQuery(queryStr.toString(), parameters, em);
+        query.setMaxResults(amount);
+        return track((List<A>) query.getResultList());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Iterator<A> iterate(final Class<A> clazz,
+            int chunkSize) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        return new ChunkedIterator<A>(chunkSize) {
+            @Override
+            protected List<A> fetchChunk(int startIndex, A lastElement,
+                    int amount) {
+                // Seek past the last fetched id instead of using an offset,
+                // so that fetching a chunk doesn't get slower the further we
+                // are in the table.
+                String queryStr = "SELECT p FROM " + clazz.getSimpleName()
+                        + " p";
+                Map<String, Object> parameters = new HashMap<String, Object>();
+                if (lastElement != null) {
+                    queryStr += " WHERE p.id > :lastId";
+                    parameters.put("lastId", lastElement.getId());
+                }
+                queryStr += " ORDER BY p.id";
+                return listChunk(queryStr, parameters, 0, amount);
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Iterator<A> iterate(final String queryStr,
+            final Map<String, Object> parameters, int chunkSize) {
+        return new ChunkedIterator<A>(chunkSize) {
+            @Override
+            protected List<A> fetchChunk(int startIndex, A lastElement,
+                    int amount) {
+                return listChunk(queryStr, parameters, startIndex, amount);
+            }
+        };
+    }
+
+    /**
+     * Fetches one chunk of entities for an iterator. If a unit of work is
+     * active, its persistence context is cleared after the chunk has been
+     * fetched, so that the entities of previous chunks can be garbage
+     * collected.
+     * 
+     * @param queryStr
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @param startIndex
+     *            Index from which we should start selecting entities
+     * @param amount
+     *            The maximum amount of entities returned
+     * @return List of A entities
+     */
+    @SuppressWarnings("unchecked")
+    private <A extends AbstractPojo> List<A> listChunk(String queryStr,
+            Map<String, Object> parameters, int startIndex, int amount) {
+        EntityManager em = getEntityManager();
+        try {
+            Query query = generateQuery(queryStr, parameters, em);
+            query.setFirstResult(startIndex).setMaxResults(amount);
+            List<A> chunk = track(query.getResultList());
+            if (isUnitOfWorkActive()) {
+                em.clear();
+            }
+            return chunk;
+        } finally {
+            closeEntityManager(em);
         }
     }
 
@@ -153,8 +592,9 @@ public class JPAFacade implements IFacade, Serializable {
     private Query generateQuery(String queryStr,
             Map<String, Object> parameters, EntityManager em) {
         // Create a query object from the query string given as the
-        // parameter
-        Query query = em.createQuery(queryStr);
+        // parameter. The compiled query is reused if the same query string
+        // has been used before.
+        Query query = queryCache.createQuery(em, queryStr);
         // Check if we have some parameters defined
         if (parameters != null) {
             for (Entry<String, Object> entry : parameters.entrySet()) {
@@ -173,26 +613,18 @@ public class JPAFacade implements IFacade, Serializable {
             Map<String, Object> parameters) {
         EntityManager em = getEntityManager();
         try {
-            // Create a query object from the query string given as the
-            // parameter
-            Query query = em.createQuery(queryStr);
-            // Check if we have some parameters defined
-            if (parameters != null) {
-                for (Entry<String, Object> entry : parameters.entrySet()) {
-                    // Inject the parameter to the query
-                    query.setParameter(entry.getKey(), entry.getValue());
-                }
-            }
+            // Generate a query instance for the given query and parameters
+            Query query = generateQuery(queryStr, parameters, em);
 
             // Execute query and return result
-            return (A) query.getSingleResult();
+            return track((A) query.getSingleResult());
         } catch (NoResultException e) {
             // This exception will occur if no results were found with the given
             // query. If this occurs, return null.
             return null;
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            closeEntityManager(em);
         }
     }
 
@@ -200,35 +632,49 @@ public class JPAFacade implements IFacade, Serializable {
      * {@inheritDoc}
      */
     public void store(AbstractPojo pojo) {
+        try {
+            if (storeChanges(pojo)) {
+                return;
+            }
+            storeMerged(pojo);
+        } catch (RuntimeException e) {
+            if (entityCache != null
+                    && OptimisticLockRetrier.isOptimisticLockFailure(e)) {
+                // The cached entity is older than the one in the database
+                entityCache.evict(pojo.getClass(), pojo.getId());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stores the given entity by merging or persisting it.
+     * 
+     * @param pojo
+     *            The entity to store
+     */
+    private void storeMerged(AbstractPojo pojo) {
         EntityManager em = getEntityManager();
         try {
             // Check if we have an open transaction
             if (!em.getTransaction().isActive()) {
                 // If not, open a new transaction
-                em.getTransaction().begin();
+                beginWrite(em);
             }
             // Check if the entity has an id (primary key). If it has a primary
             // key, then there is an existing instance of this object in the
             // database and we only need to update its state.
-            if (pojo.getId() != null) {
-                em.merge(pojo);
-            } else {
-                // An id didn't exist, so we have a new entity in our hands,
-                // hence we need to persist it and not merge.
-                em.persist(pojo);
-            }
+            AbstractPojo managed = write(em, pojo);
             // Commit the transaction
-            em.getTransaction().commit();
+            endWrite(em);
 
-            // The concurrency version id has now been incremented for pojo,
-            // hence we need to refresh the pojo at this point to avoid
-            // exceptions caused by the optimistic locking. This refresh won't
-            // cause an extra database query, since the object is cached in the
-            // JPA providers memory.
-            refresh(pojo);
+            // The concurrency version id has now been incremented for the
+            // managed instance, hence we need to copy its state back to pojo
+            // to avoid exceptions caused by the optimistic locking.
+            updateFromManaged(pojo, managed);
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            closeEntityManager(em);
         }
     }
 
@@ -236,132 +682,1004 @@ public class JPAFacade implements IFacade, Serializable {
      * {@inheritDoc}
      */
     public <A extends AbstractPojo> void storeAll(Collection<A> pojos) {
+        DirtyTracker tracker = getActiveDirtyTracker();
+        if (tracker != null) {
+            // Leave out the entities which haven't been modified
+            List<A> modified = new ArrayList<A>(pojos.size());
+            for (A pojo : pojos) {
+                List<Field> dirty = tracker.getDirtyFields(pojo);
+                if (dirty == null || !dirty.isEmpty()) {
+                    modified.add(pojo);
+                }
+            }
+            if (modified.isEmpty()) {
+                return;
+            }
+            pojos = modified;
+        }
+
         // This method follows the same principles as the store() method. Read
         // store()'s comments for more detailed explanations.
         EntityManager em = getEntityManager();
+        // Clearing the persistence context would detach the entities the
+        // caller has loaded in its unit of work or transaction too
+        boolean clear = !isUnitOfWorkActive() && !isTransactionActive();
         try {
-            em.getTransaction().begin();
-            // Loop through all entities
+            beginWrite(em);
+            // Loop through all entities and merge or persist the objects
+            // depending on if they already exist in the database.
+            List<AbstractPojo> managed = new ArrayList<AbstractPojo>(pojos
+                    .size());
             for (AbstractPojo pojo : pojos) {
-                // Merge or persist the objects depending on if they already
-                // exist in the database.
-                if (pojo.getId() != null) {
-                    em.merge(pojo);
-                } else {
-                    em.persist(pojo);
+                managed.add(write(em, pojo));
+                // Write the current batch to the database and release the
+                // written entities from the persistence context, so that the
+                // memory used stays constant regardless of the amount of
+                // entities.
+                if (managed.size() % batchSize == 0) {
+                    em.flush();
+                    if (clear) {
+                        em.clear();
+                    }
                 }
             }
             // Commit the transaction.
-            em.getTransaction().commit();
+            endWrite(em);
 
-            // Refresh all the pojos.
+            // Update all the pojos.
+            int i = 0;
             for (AbstractPojo pojo : pojos) {
-                refresh(pojo);
+                updateFromManaged(pojo, managed.get(i++));
             }
+        } catch (RuntimeException e) {
+            if (entityCache != null
+                    && OptimisticLockRetrier.isOptimisticLockFailure(e)) {
+                // It is unknown which of the cached entities are stale
+                for (AbstractPojo pojo : pojos) {
+                    entityCache.evict(pojo.getClass(), pojo.getId());
+                }
+            }
+            throw e;
         } finally {
-            em.close();
+            closeEntityManager(em);
         }
     }
 
     /**
-     * {@inheritDoc}
+     * Stores the given entity by updating only the fields modified since it
+     * was loaded or last stored, if dirty checking is enabled and the state of
+     * the entity is known. If nothing has been modified, nothing is written.
+     * 
+     * @param pojo
+     *            The entity to store
+     * @return true if the entity was handled, false if it needs to be merged
      */
-    public void delete(AbstractPojo pojo) {
-        if (pojo == null) {
-            throw new IllegalArgumentException("Null values are not accepted");
+    private boolean storeChanges(AbstractPojo pojo) {
+        DirtyTracker tracker = getActiveDirtyTracker();
+        if (tracker == null) {
+            return false;
         }
 
-        // If it isn't stored, it can't be removed
-        if (pojo.getId() == null) {
-            return;
+        List<Field> dirty = tracker.getDirtyFields(pojo);
+        if (dirty == null || pojo.getConsistencyVersion() == null) {
+            return false;
         }
 
-        EntityManager em = getEntityManager();
-        try {
-            // Begin the transaction
-            em.getTransaction().begin();
-            // We need to merge this object to the database session, so that it
-            // can be deleted. We do this by actually fetching the object first.
-            Object entity = em.find(pojo.getClass(), pojo.getId());
-            // Now when we have a fresh instance of the entity which is attached
-            // to the JPA provider's session, we can remove the entity.
-            em.remove(entity);
-            // Commit transaction.
-            em.getTransaction().commit();
-        } finally {
-            em.close();
+        if (dirty.isEmpty()) {
+            return true;
         }
-    }
 
-    /**
-     * {@inheritDoc}
-     */
-    public <A extends AbstractPojo> void deleteAll(Collection<A> pojos) {
-        if (pojos == null) {
-            throw new IllegalArgumentException("Null values are not accepted");
+        // Update the modified fields, provided that nobody else has modified
+        // the entity in the meanwhile
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        StringBuilder queryStr = new StringBuilder("UPDATE ").append(
+                pojo.getClass().getSimpleName()).append(" p SET ");
+        FieldCopier copier = FieldCopier.forClass(pojo.getClass());
+        for (int i = 0; i < dirty.size(); i++) {
+            String field = dirty.get(i).getName();
+            queryStr.append("p.").append(field).append(" = :value").append(i)
+                    .append(", ");
+            parameters.put("value" + i, copier.getValue(pojo, field));
         }
-        // This method follows the same principles as the delete() method. Read
-        // delete()'s comments for more detailed explanations.
+        queryStr.append("p.consistencyVersion = p.consistencyVersion + 1")
+                .append(" WHERE p.id = :id")
+                .append(" AND p.consistencyVersion = :version");
+        parameters.put("id", pojo.getId());
+        parameters.put("version", pojo.getConsistencyVersion());
 
         EntityManager em = getEntityManager();
         try {
-            em.getTransaction().begin();
-            for (A pojo : pojos) {
-                // If it isn't stored, it can't be removed
-                if (pojo.getId() == null) {
-                    continue;
-                }
-                // Fetch the entity merged to the session
-                Object entity = em.find(pojo.getClass(), pojo.getId());
-                if (entity != null) {
-                    // Remove the entity
-                    em.remove(entity);
-                }
+            beginWrite(em);
+            int affected = generateQuery(queryStr.toString(), parameters, em)
+                    .executeUpdate();
+            if (affected == 0) {
+                rollback(em);
+                throw new OptimisticLockException(pojo);
+            }
+            commit(em);
+            if (isUnitOfWorkActive()) {
+                // The update bypassed the persistence context
+                em.clear();
             }
-            // Commit transaction
-            em.getTransaction().commit();
         } finally {
-            em.close();
+            closeEntityManager(em);
         }
+
+        pojo.setConsistencyVersion(pojo.getConsistencyVersion() + 1);
+        updateFromManaged(pojo, pojo);
+        return true;
     }
 
     /**
-     * Returns an instance of the EntityManager which is open for use
+     * Merges or persists the given entity depending on if it already exists in
+     * the database.
      * 
-     * @return
+     * @param em
+     *            EntityManager instance
+     * @param pojo
+     *            The entity to write
+     * @return The managed instance which holds the entity's state
      */
-    protected EntityManager getEntityManager() {
-        // Check if em is null or if the em has been closed.
-        if ((em.get() == null || !em.get().isOpen()) && emf != null) {
-            // create a new em if we didn't have a usable one available.
-            em.set(emf.createEntityManager());
+    private AbstractPojo write(EntityManager em, AbstractPojo pojo) {
+        // Every stored entity has a consistency version. An entity with an
+        // assigned id but without a version is new, and merging it would
+        // overwrite an existing row with the same id instead of failing.
+        if (pojo.getId() != null && pojo.getConsistencyVersion() != null) {
+            return em.merge(pojo);
         }
-
-        return em.get();
+        // We have a new entity in our hands, hence we need to persist it and
+        // not merge. The entity itself becomes managed.
+        em.persist(pojo);
+        return pojo;
     }
 
     /**
-     * Closes the entity manager.
+     * Brings the given entity up-to-date after its transaction was committed.
+     * The state of the managed instance returned by the merge, including the
+     * generated id and the incremented consistency version, is copied to pojo
+     * without querying the database. If refreshing after store is enabled, the
+     * entity is refreshed from the database instead.
+     * 
+     * @param pojo
+     *            The entity which was stored
+     * @param managed
+     *            The managed instance of the entity
      */
-    public void close() {
-        // Close the entity manager
-        if (em.get() != null && em.get().isOpen()) {
-            em.get().clear();
-            em.get().close();
-            em.set(null);
+    private void updateFromManaged(AbstractPojo pojo, AbstractPojo managed) {
+        if (refreshAfterStore) {
+            refresh(pojo);
+        } else if (managed != pojo) {
+            FieldCopier.forClass(pojo.getClass()).copy(managed, pojo);
+        }
+
+        if (writtenInTransaction(pojo.getClass())) {
+            // The state is unknown until the transaction has been committed
+            if (dirtyTracker != null) {
+                dirtyTracker.forget(pojo);
+            }
+            return;
+        }
+
+        if (dirtyTracker != null) {
+            dirtyTracker.snapshot(pojo);
+        }
+
+        // Replace the cached entity with the stored version
+        if (entityCache != null) {
+            entityCache.put(pojo);
+        }
+        if (queryResultCache != null) {
+            queryResultCache.invalidate(pojo.getClass());
         }
     }
 
     /**
-     * Closes the entity manager and the entity manager factory.
+     * Set the second-level cache used by find(Class, Long). The cache is kept
+     * up-to-date by the write operations of this facade, but changes made to
+     * the database by other means are only visible once the cached entities
+     * have expired. By default no cache is used.
+     * 
+     * @param entityCache
+     *            The entity cache, or null to disable caching
      */
-    public void kill() {
+    public void setEntityCache(EntityCache entityCache) {
+        this.entityCache = entityCache;
+    }
+
+    /**
+     * Set the cache used for the results of count() and getFieldValues(). The
+     * cached results of an entity class are invalidated by the write
+     * operations of this facade. Changes made to the database by other means
+     * are only visible once the cached results have expired. By default no
+     * cache is used.
+     * 
+     * @param queryResultCache
+     *            The query result cache, or null to disable caching
+     */
+    public void setQueryResultCache(QueryResultCache queryResultCache) {
+        this.queryResultCache = queryResultCache;
+    }
+
+    /**
+     * Get the cache used for the results of count() and getFieldValues().
+     * 
+     * @return The query result cache or null if caching is disabled
+     */
+    public QueryResultCache getQueryResultCache() {
+        return queryResultCache;
+    }
+
+    /**
+     * Get the second-level cache used by find(Class, Long).
+     * 
+     * @return The entity cache or null if caching is disabled
+     */
+    public EntityCache getEntityCache() {
+        return entityCache;
+    }
+
+    /**
+     * Defines if stored entities should be refreshed from the database after
+     * the transaction has been committed. By default the state is copied from
+     * the managed instance, which doesn't require an extra query. Enable this
+     * only if the database modifies the stored rows, for example with
+     * triggers.
+     * 
+     * @param refreshAfterStore
+     *            true if entities should be refreshed after store
+     */
+    public void setRefreshAfterStore(boolean refreshAfterStore) {
+        this.refreshAfterStore = refreshAfterStore;
+    }
+
+    /**
+     * Checks if stored entities are refreshed from the database after the
+     * transaction has been committed.
+     * 
+     * @return true if entities are refreshed after store
+     */
+    public boolean isRefreshAfterStore() {
+        return refreshAfterStore;
+    }
+
+    /**
+     * Enables or disables dirty checking. When dirty checking is enabled, the
+     * facade keeps a snapshot of the state of each entity it loads or stores.
+     * Storing an entity whose state is known only updates the fields which
+     * have been modified, and storing an unmodified entity writes nothing at
+     * all. The entities whose state is unknown, such as new entities, entities
+     * with relationships and the entities written in a transaction, are
+     * merged as usual. By default dirty checking is enabled only if the
+     * persistence.dirtyChecking system property is true.
+     * 
+     * @param dirtyChecking
+     *            true if only the modified fields should be written
+     * @see DirtyTracker
+     */
+    public void setDirtyChecking(boolean dirtyChecking) {
+        if (!dirtyChecking) {
+            dirtyTracker = null;
+        } else if (dirtyTracker == null) {
+            dirtyTracker = new DirtyTracker();
+        }
+    }
+
+    /**
+     * Checks if dirty checking is enabled.
+     * 
+     * @return true if only the modified fields are written
+     */
+    public boolean isDirtyChecking() {
+        return dirtyTracker != null;
+    }
+
+    /**
+     * Records the state of the given loaded entity or list of entities, if
+     * dirty checking is enabled. The entities loaded in a transaction are not
+     * recorded, as their state may change if the transaction is rolled back.
+     * 
+     * @param result
+     *            An entity or a list of entities
+     * @return The given result
+     */
+    private <T> T track(T result) {
+        DirtyTracker tracker = getActiveDirtyTracker();
+        if (tracker == null) {
+            return result;
+        }
+
+        if (result instanceof AbstractPojo) {
+            tracker.snapshot((AbstractPojo) result);
+        } else if (result instanceof List<?>) {
+            for (Object element : (List<?>) result) {
+                if (element instanceof AbstractPojo) {
+                    tracker.snapshot((AbstractPojo) element);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete(AbstractPojo pojo) {
+        if (pojo == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+
+        // If it isn't stored, it can't be removed
+        if (pojo.getId() == null) {
+            return;
+        }
+
+        EntityManager em = getEntityManager();
+        try {
+            // Begin the transaction
+            beginWrite(em);
+            // We need to merge this object to the database session, so that it
+            // can be deleted. We do this by actually fetching the object first.
+            Object entity = em.find(pojo.getClass(), pojo.getId());
+            // Now when we have a fresh instance of the entity which is attached
+            // to the JPA provider's session, we can remove the entity.
+            em.remove(entity);
+            // Commit transaction.
+            endWrite(em);
+
+            if (dirtyTracker != null) {
+                dirtyTracker.forget(pojo);
+            }
+            if (writtenInTransaction(pojo.getClass())) {
+                return;
+            }
+            if (entityCache != null) {
+                entityCache.evict(pojo.getClass(), pojo.getId());
+            }
+            if (queryResultCache != null) {
+                queryResultCache.invalidate(pojo.getClass());
+            }
+        } finally {
+            closeEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The entities are removed with bulk DELETE statements, so unlike
+     * {@link #delete(AbstractPojo)}, their consistency versions are not
+     * checked and the removal is not cascaded to the related entities. Null
+     * elements are ignored.
+     */
+    public <A extends AbstractPojo> void deleteAll(Collection<A> pojos) {
+        if (pojos == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+        // Group the ids by the entity class, so that we can remove all
+        // entities of a class with bulk delete statements without fetching
+        // them first.
+        Map<Class<?>, List<Long>> idsByClass = new LinkedHashMap<Class<?>, List<Long>>();
+        List<A> removed = new ArrayList<A>(pojos.size());
+        for (A pojo : pojos) {
+            // If it isn't stored, it can't be removed
+            if (pojo == null || pojo.getId() == null) {
+                continue;
+            }
+            removed.add(pojo);
+            List<Long> ids = idsByClass.get(pojo.getClass());
+            if (ids == null) {
+                ids = new ArrayList<Long>();
+                idsByClass.put(pojo.getClass(), ids);
+            }
+            ids.add(pojo.getId());
+        }
+
+        if (idsByClass.isEmpty()) {
+            return;
+        }
+
+        EntityManager em = getEntityManager();
+        try {
+            beginWrite(em);
+            for (Entry<Class<?>, List<Long>> entry : idsByClass.entrySet()) {
+                List<Long> ids = entry.getValue();
+                // Split the ids to chunks which fit in one IN-list
+                for (int i = 0; i < ids.size(); i += MAX_IN_LIST_SIZE) {
+                    List<Long> chunk = ids.subList(i, Math.min(ids.size(), i
+                            + MAX_IN_LIST_SIZE));
+                    Map<String, Object> parameters = new HashMap<String, Object>();
+                    String queryStr = "DELETE FROM "
+                            + entry.getKey().getSimpleName() + " p WHERE "
+                            + createInCondition("p.id", chunk, parameters);
+                    generateQuery(queryStr, parameters, em).executeUpdate();
+                }
+            }
+            // Commit transaction
+            endWrite(em);
+
+            if (dirtyTracker != null) {
+                for (A pojo : removed) {
+                    dirtyTracker.forget(pojo);
+                }
+            }
+            TransactionState state = transaction.get();
+            if (state != null) {
+                for (A pojo : removed) {
+                    state.writtenClasses.add(pojo.getClass());
+                }
+                return;
+            }
+            if (entityCache != null) {
+                for (A pojo : removed) {
+                    entityCache.evict(pojo.getClass(), pojo.getId());
+                }
+            }
+            if (queryResultCache != null) {
+                for (Class<?> c : idsByClass.keySet()) {
+                    queryResultCache.invalidate(c);
+                }
+            }
+        } finally {
+            closeEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int update(Class<? extends AbstractPojo> c, String setClause,
+            String whereClause, Map<String, Object> parameters) {
+        if (c == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        if (setClause == null || setClause.isEmpty()) {
+            throw new IllegalArgumentException("Set clause must be set");
+        }
+
+        // Bulk updates bypass the optimistic locking, so increment the
+        // version explicitly
+        String queryStr = "UPDATE " + c.getSimpleName() + " p SET "
+                + setClause
+                + ", p.consistencyVersion = p.consistencyVersion + 1";
+        return executeBulk(c, queryStr, whereClause, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int delete(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters) {
+        if (c == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        String queryStr = "DELETE FROM " + c.getSimpleName() + " p";
+        return executeBulk(c, queryStr, whereClause, parameters);
+    }
+
+    /**
+     * Executes a bulk update or delete statement in its own transaction, or in
+     * the current thread's transaction, and invalidates the cached entities
+     * and query results of the entity class.
+     * 
+     * @param c
+     *            Class object of the entity
+     * @param queryStr
+     *            The statement without the WHERE clause
+     * @param whereClause
+     *            The statement's WHERE clause, or null
+     * @param parameters
+     *            A map of parameters and parameter values used in the
+     *            statement
+     * @return The number of affected entities
+     */
+    private int executeBulk(Class<? extends AbstractPojo> c, String queryStr,
+            String whereClause, Map<String, Object> parameters) {
+        if (whereClause != null) {
+            queryStr += " WHERE " + whereClause;
+        }
+
+        EntityManager em = getEntityManager();
+        try {
+            beginWrite(em);
+            int affected = generateQuery(queryStr, parameters, em)
+                    .executeUpdate();
+            endWrite(em);
+
+            if (writtenInTransaction(c)) {
+                return affected;
+            }
+            if (entityCache != null) {
+                entityCache.evictAll(c);
+            }
+            if (queryResultCache != null) {
+                queryResultCache.invalidate(c);
+            }
+            return affected;
+        } finally {
+            closeEntityManager(em);
+        }
+    }
+
+    /**
+     * Creates an IN condition for the given field and values. The values are
+     * added to the parameters map as named parameters.
+     * 
+     * @param field
+     *            The field to which the condition applies, such as p.id
+     * @param values
+     *            Values of the IN-list
+     * @param parameters
+     *            Map to which the parameter values are added
+     * @return The condition, such as p.id IN (:in0, :in1)
+     */
+    private String createInCondition(String field, List<?> values,
+            Map<String, Object> parameters) {
+        StringBuilder condition = new StringBuilder(field).append(" IN (");
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                condition.append(", ");
+            }
+            condition.append(":in").append(i);
+            parameters.put("in" + i, values.get(i));
+        }
+        return condition.append(")").toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beginUnitOfWork() {
+        unitOfWorkDepth.set(getUnitOfWorkDepth() + 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void endUnitOfWork() {
+        int depth = getUnitOfWorkDepth();
+        // Ignore calls which don't have a matching beginUnitOfWork(), this can
+        // happen if the facade was registered in the middle of a request.
+        if (depth == 0) {
+            return;
+        }
+
+        if (depth > 1) {
+            unitOfWorkDepth.set(depth - 1);
+            return;
+        }
+
+        // The outermost unit of work ended, release the shared EntityManager
+        unitOfWorkDepth.remove();
+        if (em.get() != null && em.get().isOpen()
+                && em.get().getTransaction().isActive()) {
+            // Never leave a dangling transaction behind
+            rollback(em.get());
+        }
+        close();
+    }
+
+    /**
+     * Checks if the current thread is inside a unit of work.
+     * 
+     * @return true if a unit of work is active, otherwise false
+     */
+    protected boolean isUnitOfWorkActive() {
+        return getUnitOfWorkDepth() > 0;
+    }
+
+    /**
+     * Returns the nesting depth of the current thread's unit of work.
+     * 
+     * @return Nesting depth, zero if no unit of work is active
+     */
+    private int getUnitOfWorkDepth() {
+        Integer depth = unitOfWorkDepth.get();
+        return depth == null ? 0 : depth;
+    }
+
+    /**
+     * Releases the given EntityManager after a facade call. If the call failed
+     * before it could commit its own transaction, the transaction is rolled
+     * back. The EntityManager is closed unless it is shared by an active unit
+     * of work.
+     * 
+     * @param em
+     *            EntityManager instance
+     */
+    protected void closeEntityManager(EntityManager em) {
+        if (!em.isOpen()) {
+            return;
+        }
+
+        // A transaction begun with beginTransaction() is left for the caller
+        // to commit or roll back
+        if (!isTransactionActive() && em.getTransaction().isActive()) {
+            // The call failed before it could commit its transaction. Roll it
+            // back even if the EntityManager is shared, so that the next write
+            // in the unit of work can begin a transaction of its own.
+            rollback(em);
+        }
+
+        if (!isUnitOfWorkActive()) {
+            em.close();
+            entityManagerClosed();
+        }
+    }
+
+    /**
+     * Begins the transaction of a write operation in the given EntityManager.
+     * If the current thread has begun a transaction, the write joins it
+     * instead.
+     * 
+     * @param em
+     *            EntityManager instance
+     */
+    private void beginWrite(EntityManager em) {
+        if (isTransactionActive()) {
+            return;
+        }
+
+        if (isUnitOfWorkActive()) {
+            // The persistence context is shared by the whole unit of work.
+            // Detach everything before writing, so that changes made to
+            // entities which were never passed to the facade won't be flushed
+            // by this transaction.
+            em.clear();
+        }
+        em.getTransaction().begin();
+    }
+
+    /**
+     * Completes a write operation. The write's own transaction is committed.
+     * If the write joined the current thread's transaction, the changes are
+     * only flushed, so that the generated ids and incremented versions are
+     * available and conflicts are detected immediately.
+     * 
+     * @param em
+     *            EntityManager instance
+     */
+    private void endWrite(EntityManager em) {
+        if (isTransactionActive()) {
+            em.flush();
+        } else {
+            commit(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beginTransaction() {
+        TransactionState state = transaction.get();
+        if (state != null) {
+            // Join the outer transaction
+            state.depth++;
+            return;
+        }
+
+        // The transaction keeps the EntityManager open until it ends
+        beginUnitOfWork();
+        try {
+            EntityManager em = getEntityManager();
+            // Changes made to entities loaded earlier in the unit of work must
+            // not be flushed by this transaction
+            em.clear();
+            em.getTransaction().begin();
+        } catch (RuntimeException e) {
+            endUnitOfWork();
+            throw e;
+        }
+        transaction.set(new TransactionState());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void commitTransaction() {
+        TransactionState state = getTransactionState();
+        if (--state.depth > 0) {
+            return;
+        }
+
+        try {
+            EntityManager em = getEntityManager();
+            if (state.rollbackOnly || em.getTransaction().getRollbackOnly()) {
+                rollback(em);
+                throw new RollbackException(
+                        "The transaction was marked for rollback");
+            }
+            commit(em);
+        } finally {
+            endTransaction(state);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void rollbackTransaction() {
+        TransactionState state = getTransactionState();
+        state.rollbackOnly = true;
+        if (--state.depth > 0) {
+            return;
+        }
+
+        // The transaction is rolled back when it ends
+        endTransaction(state);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> T runInTransaction(TransactionCallback<T> callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback may not be null");
+        }
+
+        beginTransaction();
+        boolean success = false;
+        try {
+            T result = callback.execute(this);
+            success = true;
+            return result;
+        } finally {
+            if (success) {
+                commitTransaction();
+            } else {
+                rollbackTransaction();
+            }
+        }
+    }
+
+    /**
+     * Ends the current thread's outermost transaction. The transaction is
+     * rolled back if it is still active, the caches are brought up-to-date
+     * with the written entity classes and the unit of work begun with the
+     * transaction is ended.
+     * 
+     * @param state
+     *            State of the transaction
+     */
+    private void endTransaction(TransactionState state) {
+        transaction.remove();
+        try {
+            if (em.get() != null && em.get().isOpen()
+                    && em.get().getTransaction().isActive()) {
+                rollback(em.get());
+            }
+        } finally {
+            // Other threads may have cached the state preceding the
+            // transaction while it was running
+            for (Class<? extends AbstractPojo> c : state.writtenClasses) {
+                if (entityCache != null) {
+                    entityCache.evictAll(c);
+                }
+                if (queryResultCache != null) {
+                    queryResultCache.invalidate(c);
+                }
+            }
+            endUnitOfWork();
+        }
+    }
+
+    /**
+     * Returns the state of the current thread's transaction.
+     * 
+     * @return State of the transaction
+     * @throws IllegalStateException
+     *             If no transaction is active
+     */
+    private TransactionState getTransactionState() {
+        TransactionState state = transaction.get();
+        if (state == null) {
+            throw new IllegalStateException("No transaction is active");
+        }
+        return state;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isTransactionActive() {
+        return transaction.get() != null;
+    }
+
+    /**
+     * Records that entities of the given class were written in the current
+     * thread's transaction, if one is active. The caches are not updated
+     * until the transaction ends, so that no other thread sees the
+     * uncommitted changes.
+     * 
+     * @param c
+     *            Class of the written entities
+     * @return true if a transaction is active, otherwise false
+     */
+    private boolean writtenInTransaction(Class<? extends AbstractPojo> c) {
+        TransactionState state = transaction.get();
+        if (state == null) {
+            return false;
+        }
+        state.writtenClasses.add(c);
+        return true;
+    }
+
+    /**
+     * Returns the entity cache to use for reads. Inside a transaction the
+     * cache is bypassed, as it may hold entities older than the ones written
+     * in the transaction, and the uncommitted entities must not be cached.
+     * 
+     * @return The entity cache, or null if it shouldn't be used
+     */
+    private EntityCache getActiveEntityCache() {
+        return isTransactionActive() ? null : entityCache;
+    }
+
+    /**
+     * Returns the query result cache to use for reads. Inside a transaction
+     * the cache is bypassed for the same reasons as the entity cache.
+     * 
+     * @return The query result cache, or null if it shouldn't be used
+     */
+    private QueryResultCache getActiveQueryResultCache() {
+        return isTransactionActive() ? null : queryResultCache;
+    }
+
+    /**
+     * Returns the dirty tracker to use for loads and stores. Inside a
+     * transaction the entities are always merged.
+     * 
+     * @return The dirty tracker, or null if it shouldn't be used
+     */
+    private DirtyTracker getActiveDirtyTracker() {
+        return isTransactionActive() ? null : dirtyTracker;
+    }
+
+    /**
+     * Commits the active transaction of the given EntityManager.
+     * 
+     * @param em
+     *            EntityManager instance
+     */
+    private void commit(EntityManager em) {
+        try {
+            em.getTransaction().commit();
+        } catch (RuntimeException e) {
+            // A failed commit rolls back the transaction. If it is still
+            // active, it is rolled back when the EntityManager is released.
+            if (!em.getTransaction().isActive()) {
+                rollbacks.incrementAndGet();
+            }
+            throw e;
+        }
+        commits.incrementAndGet();
+    }
+
+    /**
+     * Rolls back the active transaction of the given EntityManager.
+     * 
+     * @param em
+     *            EntityManager instance
+     */
+    private void rollback(EntityManager em) {
+        em.getTransaction().rollback();
+        rollbacks.incrementAndGet();
+    }
+
+    /**
+     * Returns an instance of the EntityManager which is open for use
+     * 
+     * @return
+     */
+    protected EntityManager getEntityManager() {
+        // Check if em is null or if the em has been closed.
+        if ((em.get() == null || !em.get().isOpen()) && emf != null) {
+            // create a new em if we didn't have a usable one available.
+            em.set(emf.createEntityManager());
+            openEntityManagers.incrementAndGet();
+            entityManagersCreated.incrementAndGet();
+        }
+
+        return em.get();
+    }
+
+    /**
+     * Returns the number of EntityManagers this facade has created.
+     * 
+     * @return The number of created EntityManagers
+     */
+    public long getEntityManagersCreated() {
+        return entityManagersCreated.get();
+    }
+
+    /**
+     * Returns the number of transactions this facade has committed.
+     * 
+     * @return The number of committed transactions
+     */
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    /**
+     * Returns the number of transactions this facade has rolled back.
+     * 
+     * @return The number of rolled back transactions
+     */
+    public long getRollbackCount() {
+        return rollbacks.get();
+    }
+
+    /**
+     * Returns the cache of compiled queries used by this facade.
+     * 
+     * @return The query cache
+     */
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Closes the entity manager.
+     */
+    public void close() {
+        // Close the entity manager
         if (em.get() != null && em.get().isOpen()) {
+            em.get().clear();
             em.get().close();
+            em.set(null);
+            entityManagerClosed();
+        }
+    }
+
+    /**
+     * Keeps count of the open entity managers and wakes up a thread waiting in
+     * kill() once all of them have been closed.
+     */
+    private void entityManagerClosed() {
+        if (openEntityManagers.decrementAndGet() <= 0) {
+            synchronized (openEntityManagers) {
+                openEntityManagers.notifyAll();
+            }
         }
+    }
+
+    /**
+     * Closes the entity manager and the entity manager factory. Before the
+     * factory is closed, the entity managers which other threads are still
+     * using are given a moment to finish their work.
+     */
+    public void kill() {
+        close();
+        drain(DRAIN_TIMEOUT);
         if (emf != null) {
             emf.close();
         }
+        queryCache.clear();
+    }
+
+    /**
+     * Waits until all the entity managers created by this facade have been
+     * closed, or until the timeout expires.
+     * 
+     * @param timeout
+     *            The maximum time to wait in milliseconds
+     */
+    private void drain(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (openEntityManagers) {
+            long remaining = timeout;
+            while (openEntityManagers.get() > 0 && remaining > 0) {
+                try {
+                    openEntityManagers.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
     }
 
     /**
@@ -386,11 +1704,18 @@ public class JPAFacade implements IFacade, Serializable {
 
         // Get a fresh instance of the object.
         A pojo2 = (A) em.find(pojo.getClass(), pojo.getId());
+        if (pojo2 == null) {
+            if (closeEm) {
+                close();
+            }
+            throw new EntityNotFoundException("The entity has been removed");
+        }
         // Make sure its state is up-to-date
         em.refresh(pojo2);
 
         // Now copy all fields' values from pojo2 back to pojo
-        copyFieldsRecursively(pojo, pojo2, pojo.getClass());
+        FieldCopier.forClass(pojo.getClass()).copy(pojo2, pojo);
+        track(pojo);
 
         // Close the em if necessary
         if (closeEm) {
@@ -406,24 +1731,9 @@ public class JPAFacade implements IFacade, Serializable {
             throw new IllegalArgumentException("Class may not be null");
         }
 
-        EntityManager em = getEntityManager();
-        try {
-            String queryStr = "SELECT COUNT(p.id) FROM " + c.getSimpleName()
-                    + " p";
-            // Create a query object from the query string given as the
-            // parameter
-            Query query = em.createQuery(queryStr);
-
-            // Execute query and return result
-            return (Long) query.getSingleResult();
-        } catch (NoResultException e) {
-            // This exception will occur if no results were found with the given
-            // query. If this occurs, return null.
-            return -1L;
-        } finally {
-            // Once we've done the query, close the EntityManager
-            em.close();
-        }
+        String queryStr = "SELECT COUNT(p.id) FROM " + c.getSimpleName()
+                + " p";
+        return executeCount(c, queryStr, null);
     }
 
     /**
@@ -439,72 +1749,53 @@ public class JPAFacade implements IFacade, Serializable {
             throw new IllegalArgumentException("Where clause may not be null");
         }
 
+        String queryStr = "SELECT COUNT(p.id) FROM " + c.getSimpleName()
+                + " p WHERE " + whereClause;
+        return executeCount(c, queryStr, parameters);
+    }
+
+    /**
+     * Executes the given count query. The result is fetched from the query
+     * result cache if one is in use.
+     * 
+     * @param c
+     *            Class object of the entity
+     * @param queryStr
+     *            The count query
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @return Total number of records or -1 if an exception occurred.
+     */
+    private Long executeCount(Class<? extends AbstractPojo> c,
+            String queryStr, Map<String, Object> parameters) {
+        QueryResultCache cache = getActiveQueryResultCache();
+        long stamp = 0;
+        if (cache != null) {
+            Long cached = (Long) cache.get(c, queryStr, parameters);
+            if (cached != null) {
+                return cached;
+            }
+            // Taken before the query, so that a concurrent invalidation keeps
+            // the possibly stale result out of the cache
+            stamp = cache.getStamp(c);
+        }
+
         EntityManager em = getEntityManager();
         try {
-            String queryStr = "SELECT COUNT(p.id) FROM " + c.getSimpleName()
-                    + " p WHERE " + whereClause;
-
             Query query = generateQuery(queryStr, parameters, em);
             // Execute query and return result
-            return (Long) query.getSingleResult();
+            Long count = (Long) query.getSingleResult();
+            if (cache != null) {
+                cache.put(c, queryStr, parameters, count, stamp);
+            }
+            return count;
         } catch (NoResultException e) {
             // This exception will occur if no results were found with the given
             // query. If this occurs, return null.
             return -1L;
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
-        }
-    }
-
-    /**
-     * Copies all field values recursively from pojo2 to pojo
-     * 
-     * @param pojo
-     *            The object to which we are copying
-     * @param pojo2
-     *            The object from which we are copying
-     * @param c
-     *            The class we are currently processing
-     */
-    private <A extends AbstractPojo> void copyFieldsRecursively(A pojo,
-            A pojo2, Class<?> c) {
-        // if class is null, then there is nothing left to copy
-        if (c != null) {
-            // Get all the fields in this class. NOTE! getDeclaredFields() will
-            // return all fields whether they are private or not. However,
-            // getDeclaredFields() will only return the fields defined in
-            // Class<?> c, and not the fields in its superclass(es). Hence, we
-            // need to perform this method recursively to be able to get the
-            // superclasses' field values too.
-            Field[] fields = c.getDeclaredFields();
-
-            // Loop through all fields
-            for (Field field : fields) {
-                // If the field is transient, static or final, then we do not
-                // want to copy its value
-                if (!field.isAnnotationPresent(Transient.class)
-                        && !Modifier.isStatic(field.getModifiers())
-                        && !Modifier.isFinal(field.getModifiers())) {
-
-                    // The field might be inaccessible, so let's force it to be
-                    // accessible.
-                    field.setAccessible(true);
-                    try {
-                        // Copy the value from pojo2 to pojo
-                        field.set(pojo, field.get(pojo2));
-                    } catch (IllegalArgumentException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    } catch (IllegalAccessException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                }
-            }
-            // Now perform the same copying of fields to this class's
-            // superclass.
-            copyFieldsRecursively(pojo, pojo2, c.getSuperclass());
+            closeEntityManager(em);
         }
     }
 
@@ -520,10 +1811,10 @@ public class JPAFacade implements IFacade, Serializable {
             Query query = generateQuery(clazz, em);
             query.setFirstResult(startIndex).setMaxResults(amount);
             // Execute the query and return the result
-            return query.getResultList();
+            return track(query.getResultList());
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            closeEntityManager(em);
         }
     }
 
@@ -542,10 +1833,10 @@ public class JPAFacade implements IFacade, Serializable {
             query.setFirstResult(startIndex).setMaxResults(amount);
 
             // Execute query and return results
-            return query.getResultList();
+            return track(query.getResultList());
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            closeEntityManager(em);
         }
     }
 
@@ -555,30 +1846,154 @@ public class JPAFacade implements IFacade, Serializable {
     public List<?> getFieldValues(Class<? extends AbstractPojo> c,
             String field, String whereConditions, Map<String, Object> parameters) {
 
-        String queryStr = createSelectFieldQuery(c, field, whereConditions);
+        String queryStr = createSelectFieldQuery(c, "p." + field,
+                whereConditions);
+        QueryResultCache cache = getActiveQueryResultCache();
+        long stamp = 0;
+        if (cache != null) {
+            List<?> cached = (List<?>) cache.get(c, queryStr, parameters);
+            if (cached != null) {
+                // Never hand out the cached list itself
+                return new ArrayList<Object>(cached);
+            }
+            stamp = cache.getStamp(c);
+        }
+
         EntityManager em = getEntityManager();
         Query query = generateQuery(queryStr, parameters, em);
 
         try {
             // Execute query and return results
-            return query.getResultList();
+            List<?> values = query.getResultList();
+            if (cache != null) {
+                cache.put(c, queryStr, parameters,
+                        new ArrayList<Object>(values), stamp);
+            }
+            return values;
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            closeEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> project(Class<? extends AbstractPojo> c,
+            String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        String queryStr = createSelectFieldQuery(c,
+                createFieldList(fields), whereConditions);
+        // The same query string is cached by getFieldValues() with the values
+        // as they are, so the tuples need a key of their own
+        String cacheKey = "tuple:" + queryStr;
+        QueryResultCache cache = getActiveQueryResultCache();
+        long stamp = 0;
+        if (cache != null) {
+            List<?> cached = (List<?>) cache.get(c, cacheKey, parameters);
+            if (cached != null) {
+                return copyTuples(cached);
+            }
+            stamp = cache.getStamp(c);
+        }
+
+        EntityManager em = getEntityManager();
+        try {
+            Query query = generateQuery(queryStr, parameters, em);
+            List<?> rows = query.getResultList();
+            List<Object[]> tuples = new ArrayList<Object[]>(rows.size());
+            for (Object row : rows) {
+                // A query selecting a single field returns the values as they
+                // are instead of arrays
+                tuples.add(fields.length == 1 ? new Object[] { row }
+                        : (Object[]) row);
+            }
+            if (cache != null) {
+                cache.put(c, cacheKey, parameters, copyTuples(tuples), stamp);
+            }
+            return tuples;
+        } finally {
+            closeEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> project(Class<? extends AbstractPojo> c,
+            Class<T> resultClass, String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        if (resultClass == null) {
+            throw new IllegalArgumentException("Result class may not be null");
+        }
+
+        // The constructor expression requires the fully qualified class name
+        String queryStr = createSelectFieldQuery(c, "NEW "
+                + resultClass.getName() + "(" + createFieldList(fields) + ")",
+                whereConditions);
+
+        EntityManager em = getEntityManager();
+        try {
+            Query query = generateQuery(queryStr, parameters, em);
+            return query.getResultList();
+        } finally {
+            closeEntityManager(em);
         }
     }
 
     /**
-     * Creates the query for selecting a specific field's value from entities.
+     * Creates a comma separated list of the given fields of the entity p.
+     * 
+     * @param fields
+     *            Names of the fields
+     * @return List of the fields, such as p.foo, p.bar
+     */
+    private String createFieldList(String[] fields) {
+        if (fields == null || fields.length == 0) {
+            throw new IllegalArgumentException("At least one field is needed");
+        }
+
+        StringBuilder fieldList = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                fieldList.append(", ");
+            }
+            fieldList.append("p.").append(fields[i]);
+        }
+        return fieldList.toString();
+    }
+
+    /**
+     * Copies the given list of tuples, so that the cached tuples can't be
+     * modified through the returned ones.
+     * 
+     * @param tuples
+     *            List of tuples
+     * @return Copy of the list and the tuples
+     */
+    private List<Object[]> copyTuples(List<?> tuples) {
+        List<Object[]> copy = new ArrayList<Object[]>(tuples.size());
+        for (Object tuple : tuples) {
+            copy.add(((Object[]) tuple).clone());
+        }
+        return copy;
+    }
+
+    /**
+     * Creates the query for selecting specific fields' values from entities.
      * 
      * @param c
-     * @param field
+     *            Entity class
+     * @param selection
+     *            The selected fields of the entity p, such as p.foo
      * @param whereConditions
-     * @return
+     *            Where conditions, or null
+     * @return The query string
      */
     private String createSelectFieldQuery(Class<? extends AbstractPojo> c,
-            String field, String whereConditions) {
-        String queryStr = "SELECT p." + field + " FROM " + c.getSimpleName()
+            String selection, String whereConditions) {
+        String queryStr = "SELECT " + selection + " FROM " + c.getSimpleName()
                 + " p";
 
         if (whereConditions != null) {
@@ -0,0 +1,152 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Serializable;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of call latencies. The latencies are counted in fixed buckets
+ * which grow exponentially from 100 microseconds to 10 seconds, so recording a
+ * latency takes constant time and memory and never blocks. The percentiles are
+ * approximated by the upper bounds of the buckets.
+ * 
+ * @author Kim
+ * 
+ */
+public class LatencyHistogram implements Serializable {
+
+    private static final long serialVersionUID = -3581734315920632279L;
+
+    // Upper bounds of the buckets in microseconds. The last bucket contains
+    // all the latencies which exceed the last bound.
+    private static final long[] BOUNDS = { 100, 250, 500, 1000, 2500, 5000,
+            10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000,
+            5000000, 10000000 };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(
+            BOUNDS.length + 1);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong totalTime = new AtomicLong();
+
+    private final AtomicLong maxTime = new AtomicLong();
+
+    /**
+     * Records a latency.
+     * 
+     * @param nanos
+     *            The latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 0;
+        while (bucket < BOUNDS.length && micros > BOUNDS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalTime.addAndGet(nanos);
+
+        long max = maxTime.get();
+        while (nanos > max && !maxTime.compareAndSet(max, nanos)) {
+            max = maxTime.get();
+        }
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     * 
+     * @return The number of latencies
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the sum of all the recorded latencies.
+     * 
+     * @return Total time in milliseconds
+     */
+    public double getTotalTime() {
+        return totalTime.get() / 1000000.0;
+    }
+
+    /**
+     * Returns the mean of the recorded latencies.
+     * 
+     * @return Mean latency in milliseconds or zero if nothing was recorded
+     */
+    public double getMeanTime() {
+        long calls = count.get();
+        return calls == 0 ? 0 : getTotalTime() / calls;
+    }
+
+    /**
+     * Returns the highest recorded latency.
+     * 
+     * @return The highest latency in milliseconds
+     */
+    public double getMaxTime() {
+        return maxTime.get() / 1000000.0;
+    }
+
+    /**
+     * Returns an approximation of the given percentile of the recorded
+     * latencies. The value is the upper bound of the bucket containing the
+     * percentile, or the highest recorded latency if it is lower.
+     * 
+     * @param percentile
+     *            The percentile, between 0 and 100
+     * @return The percentile in milliseconds or zero if nothing was recorded
+     */
+    public double getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(
+                    "Percentile must be between 0 and 100");
+        }
+
+        long total = 0;
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(BOUNDS[i] / 1000.0, getMaxTime());
+            }
+        }
+        return getMaxTime();
+    }
+
+    /**
+     * Clears all the recorded latencies.
+     */
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalTime.set(0);
+        maxTime.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH,
+                "count=%d, mean=%.3fms, p50=%.3fms, p95=%.3fms, p99=%.3fms, "
+                        + "max=%.3fms", getCount(), getMeanTime(),
+                getPercentile(50), getPercentile(95), getPercentile(99),
+                getMaxTime());
+    }
+
+}
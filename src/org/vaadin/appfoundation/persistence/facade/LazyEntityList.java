@@ -0,0 +1,273 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * A read-only list of entities which holds only the primary keys of the
+ * entities until they are accessed. The entities are fetched from the facade
+ * in chunks with {@link IFacade#findAll(Class, java.util.Collection)} when an
+ * element of a chunk is first accessed, so that showing a window of rows from
+ * a large result only loads the visible rows.
+ * 
+ * The list is a snapshot of the matching primary keys. Entities which have
+ * been removed after the list was created are returned as null. Fetched
+ * entities are kept in the list, and the list is not thread-safe.
+ * 
+ * @author Kim
+ * 
+ */
+public class LazyEntityList<A extends AbstractPojo> extends AbstractList<A>
+        implements RandomAccess {
+
+    private final IFacade facade;
+
+    private final Class<A> clazz;
+
+    private final long[] ids;
+
+    private final int chunkSize;
+
+    private final Object[] entities;
+
+    private final BitSet loadedChunks = new BitSet();
+
+    /**
+     * Constructor
+     * 
+     * @param facade
+     *            The facade from which the entities are fetched
+     * @param clazz
+     *            The class of the entities
+     * @param ids
+     *            The primary keys of the entities in the order of the list
+     * @param chunkSize
+     *            The number of entities fetched at a time
+     */
+    public LazyEntityList(IFacade facade, Class<A> clazz, List<Long> ids,
+            int chunkSize) {
+        if (facade == null) {
+            throw new IllegalArgumentException("Facade may not be null");
+        }
+
+        if (clazz == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        if (ids == null) {
+            throw new IllegalArgumentException("Ids may not be null");
+        }
+
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+
+        this.facade = facade;
+        this.clazz = clazz;
+        this.chunkSize = chunkSize;
+        this.ids = new long[ids.size()];
+        for (int i = 0; i < this.ids.length; i++) {
+            Long id = ids.get(i);
+            if (id == null) {
+                throw new IllegalArgumentException("Ids may not be null");
+            }
+            this.ids[i] = id;
+        }
+        entities = new Object[this.ids.length];
+    }
+
+    /**
+     * Creates a lazy list of the entities which match the given conditions.
+     * Only the primary keys, and the values of the order field, are fetched
+     * when the list is created.
+     * 
+     * The entities are sorted in memory, as the projection queries have no
+     * ORDER BY clause. The values of the order field are compared by their
+     * natural order, null values first, and entities with equal values by
+     * their primary keys. This may differ from the order of
+     * {@link IFacade#list(String, Map)} with an ORDER BY clause, which follows
+     * the collation and the null ordering of the database. For instance,
+     * strings are compared case-sensitively here even if the database
+     * collation isn't, and some databases sort nulls last. If the list must
+     * match the database order, fetch the primary keys in that order and use
+     * the constructor instead.
+     * 
+     * @param facade
+     *            The facade from which the entities are fetched
+     * @param clazz
+     *            The class of the entities
+     * @param whereConditions
+     *            The conditions, or null to list all the entities of the class
+     * @param parameters
+     *            Values of the named parameters in the conditions
+     * @param orderField
+     *            The field by which the entities are ordered, or null to order
+     *            them by their primary keys
+     * @param chunkSize
+     *            The number of entities fetched at a time
+     * @return The lazy list
+     */
+    public static <A extends AbstractPojo> LazyEntityList<A> create(
+            IFacade facade, Class<A> clazz, String whereConditions,
+            Map<String, Object> parameters, String orderField, int chunkSize) {
+        if (facade == null) {
+            throw new IllegalArgumentException("Facade may not be null");
+        }
+
+        List<Long> ids = new ArrayList<Long>();
+        if (orderField == null) {
+            for (Object id : facade.getFieldValues(clazz, "id",
+                    whereConditions, parameters)) {
+                ids.add((Long) id);
+            }
+            Collections.sort(ids);
+        } else {
+            List<Object[]> tuples = facade.project(clazz, new String[] { "id",
+                    orderField }, whereConditions, parameters);
+            // The tuples are sorted here, as the conditions can't contain an
+            // ORDER BY clause. The order is the one of InMemoryQuery, not
+            // necessarily the database's.
+            Collections.sort(tuples, new Comparator<Object[]>() {
+                public int compare(Object[] a, Object[] b) {
+                    int result = InMemoryQuery.compareNullsFirst(a[1], b[1]);
+                    return result != 0 ? result : ((Long) a[0])
+                            .compareTo((Long) b[0]);
+                }
+            });
+            for (Object[] tuple : tuples) {
+                ids.add((Long) tuple[0]);
+            }
+        }
+        return new LazyEntityList<A>(facade, clazz, ids, chunkSize);
+    }
+
+    /**
+     * Creates a lazy list of all the entities of the given class, ordered by
+     * their primary keys.
+     * 
+     * @param facade
+     *            The facade from which the entities are fetched
+     * @param clazz
+     *            The class of the entities
+     * @param chunkSize
+     *            The number of entities fetched at a time
+     * @return The lazy list
+     */
+    public static <A extends AbstractPojo> LazyEntityList<A> create(
+            IFacade facade, Class<A> clazz, int chunkSize) {
+        return create(facade, clazz, null, null, null, chunkSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public A get(int index) {
+        if (index < 0 || index >= ids.length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+                    + ids.length);
+        }
+
+        int chunk = index / chunkSize;
+        if (!loadedChunks.get(chunk)) {
+            loadChunk(chunk);
+        }
+        return (A) entities[index];
+    }
+
+    /**
+     * Fetches the entities of the given chunk.
+     * 
+     * @param chunk
+     *            Index of the chunk
+     */
+    private void loadChunk(int chunk) {
+        int from = chunk * chunkSize;
+        int to = Math.min(from + chunkSize, ids.length);
+        List<Long> chunkIds = new ArrayList<Long>(to - from);
+        for (int i = from; i < to; i++) {
+            chunkIds.add(ids[i]);
+        }
+
+        List<A> pojos = facade.findAll(clazz, chunkIds);
+        for (int i = from; i < to; i++) {
+            entities[i] = pojos.get(i - from);
+        }
+        loadedChunks.set(chunk);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Returns the primary key of the entity at the given index without
+     * fetching the entity.
+     * 
+     * @param index
+     *            Index of the entity
+     * @return The primary key
+     */
+    public Long getId(int index) {
+        if (index < 0 || index >= ids.length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+                    + ids.length);
+        }
+        return ids[index];
+    }
+
+    /**
+     * Returns the index of the entity with the given primary key without
+     * fetching any entities.
+     * 
+     * @param id
+     *            The primary key
+     * @return Index of the entity, or -1 if the list doesn't contain it
+     */
+    public int indexOfId(Long id) {
+        if (id != null) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == id) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks if the entity at the given index has been fetched.
+     * 
+     * @param index
+     *            Index of the entity
+     * @return true if the entity has been fetched
+     */
+    public boolean isLoaded(int index) {
+        return loadedChunks.get(index / chunkSize);
+    }
+
+    /**
+     * Discards the fetched entities, so that they are fetched again when they
+     * are next accessed.
+     */
+    public void clearLoaded() {
+        loadedChunks.clear();
+        for (int i = 0; i < entities.length; i++) {
+            entities[i] = null;
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * A change made to an entity before it is stored. A mutation may be applied
+ * several times, each time to the most recent state of the entity, so it
+ * should only depend on the state of the entity it is given.
+ * 
+ * @author Kim
+ * 
+ * @param <A>
+ *            Type of the entity
+ */
+public interface Mutation<A extends AbstractPojo> {
+
+    /**
+     * Applies the change to the given entity.
+     * 
+     * @param pojo
+     *            The entity to change
+     */
+    public void apply(A pojo);
+
+}
@@ -0,0 +1,229 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.OptimisticLockException;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Stores changes to entities which may be modified concurrently. If storing an
+ * entity fails because another thread has modified it in the meanwhile, the
+ * entity is reloaded from the database, the change is applied again to the
+ * fresh state and the entity is stored again. Between the attempts the
+ * retrier waits for a random delay which grows exponentially with the number
+ * of attempts, so that the conflicting threads won't collide again.
+ * 
+ * @author Kim
+ * 
+ */
+public class OptimisticLockRetrier {
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    private static final long DEFAULT_BASE_DELAY = 10L;
+
+    private static final long DEFAULT_MAX_DELAY = 500L;
+
+    private final int maxAttempts;
+
+    private final long baseDelay;
+
+    private final long maxDelay;
+
+    private final Random random = new Random();
+
+    private final AtomicLong writes = new AtomicLong();
+
+    private final AtomicLong conflicts = new AtomicLong();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Creates a retrier which makes at most five attempts and waits from 10 to
+     * 500 milliseconds between them.
+     */
+    public OptimisticLockRetrier() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param maxAttempts
+     *            The maximum number of attempts to store an entity
+     * @param baseDelay
+     *            The maximum delay before the first retry in milliseconds. The
+     *            maximum delay is doubled for each following retry.
+     * @param maxDelay
+     *            The upper limit of the delay in milliseconds
+     */
+    public OptimisticLockRetrier(int maxAttempts, long baseDelay,
+            long maxDelay) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException(
+                    "At least one attempt is needed");
+        }
+
+        if (baseDelay < 0 || maxDelay < baseDelay) {
+            throw new IllegalArgumentException("Invalid delays");
+        }
+
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Applies the mutation to the entity and stores it with the given facade.
+     * If another thread has modified the entity in the meanwhile, the state of
+     * the entity is replaced with its current state in the database and the
+     * mutation is applied again.
+     * 
+     * @param facade
+     *            The facade used for storing the entity
+     * @param pojo
+     *            The entity to store
+     * @param mutation
+     *            The change to make to the entity
+     * @throws RuntimeException
+     *             The exception thrown by the last attempt, if the entity
+     *             couldn't be stored within the maximum number of attempts,
+     *             if it failed for any other reason than a conflict or if it
+     *             conflicted inside the current thread's transaction
+     */
+    public <A extends AbstractPojo> void store(IFacade facade, A pojo,
+            Mutation<A> mutation) {
+        if (facade == null || pojo == null || mutation == null) {
+            throw new IllegalArgumentException(
+                    "Facade, pojo and mutation must be set");
+        }
+
+        writes.incrementAndGet();
+        for (int attempt = 1;; attempt++) {
+            mutation.apply(pojo);
+            try {
+                facade.store(pojo);
+                return;
+            } catch (RuntimeException e) {
+                if (!isOptimisticLockFailure(e) || pojo.getId() == null) {
+                    throw e;
+                }
+
+                conflicts.incrementAndGet();
+                // A failed write marks the caller's transaction for rollback,
+                // so storing again inside it can't succeed
+                if (attempt >= maxAttempts || facade.isTransactionActive()) {
+                    failures.incrementAndGet();
+                    throw e;
+                }
+
+                backoff(attempt, e);
+
+                // Continue from the state stored by the other thread. The
+                // state is read from the database, because a cached copy may
+                // be just as stale as the entity itself.
+                try {
+                    facade.refresh(pojo);
+                } catch (EntityNotFoundException removed) {
+                    failures.incrementAndGet();
+                    throw e;
+                }
+                retries.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Waits for a random time before the next attempt.
+     * 
+     * @param attempt
+     *            The number of the failed attempt
+     * @param cause
+     *            The failure, rethrown if the thread is interrupted
+     */
+    private void backoff(int attempt, RuntimeException cause) {
+        long limit = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+        if (limit <= 0) {
+            return;
+        }
+
+        long delay;
+        synchronized (random) {
+            delay = (long) (random.nextDouble() * limit);
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.incrementAndGet();
+            throw cause;
+        }
+    }
+
+    /**
+     * Checks if the given exception was caused by a failed optimistic lock
+     * check. JPA providers usually wrap the failure in other exceptions, so
+     * the whole cause chain is checked.
+     * 
+     * @param e
+     *            The exception
+     * @return true if an optimistic lock check failed, otherwise false
+     */
+    public static boolean isOptimisticLockFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            // Also recognize the providers' own exception types
+            if (cause instanceof OptimisticLockException
+                    || cause.getClass().getSimpleName().equals(
+                            "OptimisticLockException")) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of entities stored with this retrier.
+     * 
+     * @return The number of writes
+     */
+    public long getWriteCount() {
+        return writes.get();
+    }
+
+    /**
+     * Returns the number of attempts which failed because of a conflict.
+     * 
+     * @return The number of conflicts
+     */
+    public long getConflictCount() {
+        return conflicts.get();
+    }
+
+    /**
+     * Returns the number of times an entity was reloaded and stored again.
+     * 
+     * @return The number of retries
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * Returns the number of entities which couldn't be stored because of
+     * conflicts.
+     * 
+     * @return The number of failed writes
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+}
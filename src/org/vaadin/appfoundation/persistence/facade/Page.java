@@ -0,0 +1,66 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of entities fetched with keyset pagination.
+ * 
+ * @author Kim
+ * 
+ * @param <A>
+ *            Type of the entities on the page
+ */
+public class Page<A> implements Serializable {
+
+    private static final long serialVersionUID = 5210942011870566417L;
+
+    private final List<A> items;
+
+    private final PageToken nextPageToken;
+
+    /**
+     * Constructor
+     * 
+     * @param items
+     *            The entities on this page
+     * @param nextPageToken
+     *            Token for fetching the next page, or null if this is the last
+     *            page
+     */
+    public Page(List<A> items, PageToken nextPageToken) {
+        if (items == null) {
+            throw new IllegalArgumentException("Items may not be null");
+        }
+        this.items = items;
+        this.nextPageToken = nextPageToken;
+    }
+
+    /**
+     * Get the entities on this page.
+     * 
+     * @return List of entities
+     */
+    public List<A> getItems() {
+        return items;
+    }
+
+    /**
+     * Get the token for fetching the page following this one.
+     * 
+     * @return Continuation token or null if this is the last page
+     */
+    public PageToken getNextPageToken() {
+        return nextPageToken;
+    }
+
+    /**
+     * Checks if there are more pages after this one.
+     * 
+     * @return true if there is a next page
+     */
+    public boolean hasNextPage() {
+        return nextPageToken != null;
+    }
+
+}
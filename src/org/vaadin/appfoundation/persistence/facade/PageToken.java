@@ -0,0 +1,56 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Serializable;
+
+/**
+ * A continuation token for keyset pagination. The token identifies the last
+ * entity of a page by the value of the ordering field and the entity's
+ * primary key, so that the next page can be fetched by seeking directly past
+ * that entity instead of skipping an offset of rows.
+ * 
+ * @author Kim
+ * 
+ */
+public class PageToken implements Serializable {
+
+    private static final long serialVersionUID = -3349101657208393744L;
+
+    private final Object key;
+
+    private final Long id;
+
+    /**
+     * Constructor
+     * 
+     * @param key
+     *            Value of the ordering field of the last entity on the page
+     * @param id
+     *            Primary key of the last entity on the page
+     */
+    public PageToken(Object key, Long id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Id may not be null");
+        }
+        this.key = key;
+        this.id = id;
+    }
+
+    /**
+     * Get the value of the ordering field of the last entity on the page.
+     * 
+     * @return Value of the ordering field
+     */
+    public Object getKey() {
+        return key;
+    }
+
+    /**
+     * Get the primary key of the last entity on the page.
+     * 
+     * @return Primary key
+     */
+    public Long getId() {
+        return id;
+    }
+
+}
@@ -0,0 +1,135 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.queries.DatabaseQuery;
+
+/**
+ * A cache of compiled JPQL queries. Each distinct query string is parsed only
+ * once, after which new Query instances are created for any EntityManager from
+ * a copy of the already compiled query. When the cache is full, the least
+ * recently used query is evicted.
+ * 
+ * @author Kim
+ * 
+ */
+public class QueryCache implements Serializable {
+
+    private static final long serialVersionUID = -1360563357416002471L;
+
+    // Access ordered, guarded by itself
+    private final Map<String, DatabaseQuery> queries;
+
+    private final int maxSize;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor
+     * 
+     * @param maxSize
+     *            The maximum number of distinct queries kept in the cache, or
+     *            zero to disable the cache
+     */
+    public QueryCache(final int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Size may not be negative");
+        }
+        this.maxSize = maxSize;
+        queries = new LinkedHashMap<String, DatabaseQuery>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 5306870405786226735L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, DatabaseQuery> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Creates a Query object for the given query string in the given
+     * EntityManager. The query string is only parsed if it isn't found in the
+     * cache.
+     * 
+     * @param em
+     *            EntityManager instance
+     * @param queryStr
+     *            Database query string
+     * @return An instance of the Query object for the given query string
+     */
+    public Query createQuery(EntityManager em, String queryStr) {
+        DatabaseQuery compiled;
+        synchronized (queries) {
+            compiled = queries.get(queryStr);
+        }
+        if (compiled != null) {
+            hits.incrementAndGet();
+            // The cached query is shared between threads, so each Query gets
+            // its own copy to which the parameters are bound.
+            return JpaHelper.createQuery((DatabaseQuery) compiled.clone(), em);
+        }
+
+        misses.incrementAndGet();
+        Query query = em.createQuery(queryStr);
+        if (maxSize > 0) {
+            DatabaseQuery copy = (DatabaseQuery) JpaHelper.getDatabaseQuery(
+                    query).clone();
+            synchronized (queries) {
+                queries.put(queryStr, copy);
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Get the number of queries which were found in the cache.
+     * 
+     * @return Number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of queries which had to be parsed.
+     * 
+     * @return Number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of compiled queries in the cache.
+     * 
+     * @return Number of cached queries
+     */
+    public int size() {
+        synchronized (queries) {
+            return queries.size();
+        }
+    }
+
+    /**
+     * Removes all the compiled queries from the cache and resets the counters.
+     */
+    public void clear() {
+        synchronized (queries) {
+            queries.clear();
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+}
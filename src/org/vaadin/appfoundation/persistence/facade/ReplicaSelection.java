@@ -0,0 +1,14 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+/**
+ * Strategies for selecting the replica which executes a read in a
+ * {@link RoutingFacade}.
+ * 
+ * @author Kim
+ * 
+ */
+public enum ReplicaSelection {
+    ROUND_ROBIN,
+    LEAST_LOADED
+    ;
+}
@@ -0,0 +1,633 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Facade which routes the calls between a primary database and a pool of read
+ * replicas. All writes (store, storeAll, delete and deleteAll) and refreshes
+ * are sent to the primary facade while the rest of the reads are spread among
+ * the replica facades.
+ * 
+ * Replicas may lag behind the primary. To let a request see its own writes,
+ * all the reads made by a thread after a write are sent to the primary until
+ * the thread's unit of work ends. Outside a unit of work writes are not
+ * tracked and reads always go to the replicas.
+ * 
+ * When registered with
+ * {@link FacadeFactory#registerFacade(Class, String, boolean)}, the given name
+ * is used as the primary persistence-unit and the replica persistence-units are
+ * read from the comma separated system property
+ * <code>persistence.replicas.&lt;name&gt;</code>. The replica selection
+ * strategy is read from the system property
+ * <code>persistence.replicas.selection</code>.
+ * 
+ * @author Kim
+ * 
+ */
+public class RoutingFacade implements IFacade {
+
+    private IFacade primary;
+
+    private List<IFacade> replicas;
+
+    private ReplicaSelection selection;
+
+    // Number of reads currently executed by each replica
+    private AtomicInteger[] inFlight;
+
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    private final ThreadLocal<Integer> unitOfWorkDepth = new ThreadLocal<Integer>();
+
+    // Has the current thread written to the primary in its unit of work
+    private final ThreadLocal<Boolean> sticky = new ThreadLocal<Boolean>();
+
+    public RoutingFacade() {
+
+    }
+
+    /**
+     * Creates a routing facade for already initialized facades.
+     * 
+     * @param primary
+     *            The facade to which all writes are sent
+     * @param replicas
+     *            The facades among which reads are spread. If empty, reads are
+     *            sent to the primary facade.
+     * @param selection
+     *            The strategy for selecting the replica for a read
+     */
+    public RoutingFacade(IFacade primary, List<IFacade> replicas,
+            ReplicaSelection selection) {
+        if (primary == null) {
+            throw new IllegalArgumentException("Primary facade must be set");
+        }
+
+        if (replicas == null) {
+            throw new IllegalArgumentException("Replicas may not be null");
+        }
+
+        if (selection == null) {
+            throw new IllegalArgumentException("Selection may not be null");
+        }
+
+        setFacades(primary, replicas, selection);
+    }
+
+    /**
+     * Initializes this facade. Creates a JPAFacade for the primary
+     * persistence-unit and for each of its replica persistence-units.
+     * 
+     * @param name
+     *            Persistence-unit name of the primary database (defined in the
+     *            persistence.xml)
+     * @throws IllegalArgumentException
+     *             If the replica selection strategy isn't a valid
+     *             {@link ReplicaSelection}
+     */
+    public void init(String name) {
+        // Validate the configuration before any database is connected
+        ReplicaSelection replicaSelection = ReplicaSelection.ROUND_ROBIN;
+        String selectionStr = System
+                .getProperty("persistence.replicas.selection");
+        if (selectionStr != null) {
+            try {
+                replicaSelection = ReplicaSelection.valueOf(selectionStr
+                        .trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                        "Invalid replica selection '" + selectionStr + "'", e);
+            }
+        }
+
+        List<IFacade> replicaFacades = new ArrayList<IFacade>();
+        String replicaNames = System.getProperty("persistence.replicas."
+                + name);
+        if (replicaNames != null) {
+            for (String replicaName : replicaNames.split(",")) {
+                if (!replicaName.trim().isEmpty()) {
+                    replicaFacades.add(new JPAFacade(replicaName.trim()));
+                }
+            }
+        }
+
+        setFacades(new JPAFacade(name), replicaFacades, replicaSelection);
+    }
+
+    private void setFacades(IFacade primary, List<IFacade> replicas,
+            ReplicaSelection selection) {
+        this.primary = primary;
+        this.replicas = Collections
+                .unmodifiableList(new ArrayList<IFacade>(replicas));
+        this.selection = selection;
+        inFlight = new AtomicInteger[replicas.size()];
+        for (int i = 0; i < inFlight.length; i++) {
+            inFlight[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Returns the facade to which all writes are sent.
+     * 
+     * @return The primary facade
+     */
+    public IFacade getPrimary() {
+        return primary;
+    }
+
+    /**
+     * Returns the facades among which the reads are spread.
+     * 
+     * @return An unmodifiable list of the replica facades
+     */
+    public List<IFacade> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Returns the strategy for selecting the replica for a read.
+     * 
+     * @return The replica selection strategy
+     */
+    public ReplicaSelection getReplicaSelection() {
+        return selection;
+    }
+
+    /**
+     * Selects the index of the replica which should execute the next read.
+     * 
+     * @return Index of the replica or -1 if the read should be sent to the
+     *         primary
+     */
+    private int selectReplica() {
+        if (replicas.isEmpty() || Boolean.TRUE.equals(sticky.get())) {
+            return -1;
+        }
+
+        // Keep the counter positive even after it overflows
+        int start = (nextReplica.getAndIncrement() & Integer.MAX_VALUE)
+                % replicas.size();
+        if (selection == ReplicaSelection.ROUND_ROBIN) {
+            return start;
+        }
+
+        // Pick the replica with the least reads in progress. Ties are broken
+        // in the round-robin order.
+        int selected = start;
+        int load = inFlight[start].get();
+        for (int i = 1; i < replicas.size() && load > 0; i++) {
+            int index = (start + i) % replicas.size();
+            int indexLoad = inFlight[index].get();
+            if (indexLoad < load) {
+                selected = index;
+                load = indexLoad;
+            }
+        }
+        return selected;
+    }
+
+    private IFacade getReplica(int index) {
+        return index == -1 ? primary : replicas.get(index);
+    }
+
+    private void readStarted(int index) {
+        if (index != -1) {
+            inFlight[index].incrementAndGet();
+        }
+    }
+
+    private void readFinished(int index) {
+        if (index != -1) {
+            inFlight[index].decrementAndGet();
+        }
+    }
+
+    /**
+     * Marks that the current thread has written to the primary, so that the
+     * rest of the reads in its unit of work should see the written data.
+     */
+    private void written() {
+        if (unitOfWorkDepth.get() != null) {
+            sticky.set(Boolean.TRUE);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(Class<A> clazz, Long id) {
+        int index = selectReplica();
+        readStarted(index);
+        try {
+            return getReplica(index).find(clazz, id);
+        } finally {
+            readFinished(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(Class<A> clazz) {
+        int index = selectReplica();
+        readStarted(index);
+        try {
+            return getReplica(index).list(clazz);
+        } finally {
+            readFinished(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(Class<A> clazz,
+            int startIndex, int amount) {
+        int index = selectReplica();
+        readStarted(index);
+        try {
+            return getReplica(index).list(clazz, startIndex, amount);
+        } finally {
+            readFinished(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(String queryStr,
+            Map<String, Object> parameters) {
+        int index = selectReplica();
+        readStarted(index);
+        try {
+            return getReplica(index).list(queryStr, parameters);
+        } finally {
+            readFinished(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(String queryStr,
+            Map<String, Object> parameters, int startIndex, int amount) {
+        int index = selectReplica();
+        readStarted(index);
+        try {
+            return getReplica(index).list(queryStr, parameters, startIndex,
+                    amount);
+        } finally {
+            readFinished(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Page<A> page(Class<A> clazz,
+            PageToken token, int amount) {
+        int index = selectReplica();
+        readStarted(index);
+        try {
+            return getReplica(index).page(clazz, token, amount);
+        } finally {
+            readFinished(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Page<A> page(Class<A> clazz,
+            String orderField, PageToken token, int amount) {
+        int index = selectReplica();
+        readStarted(index);
+        try {
+            return getReplica(index).page(clazz, orderField, token, amount);
+        } finally {
+            readFinished(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * All the chunks of the iteration are fetched from the same facade.
+     */
+    public <A extends AbstractPojo> Iterator<A> iterate(Class<A> clazz,
+            int chunkSize) {
+        return getReplica(selectReplica()).iterate(clazz, chunkSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * All the chunks of the iteration are fetched from the same facade.
+     */
+    public <A extends AbstractPojo> Iterator<A> iterate(String queryStr,
+            Map<String, Object> parameters, int chunkSize) {
+        return getReplica(selectReplica()).iterate(queryStr, parameters,
+                chunkSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(String queryStr,
+            Map<String, Object> parameters) {
+        int index = selectReplica();
+        readStarted(index);
+        try {
+            return getReplica(index).<A> find(queryStr, parameters);
+        } finally {
+            readFinished(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(AbstractPojo pojo) {
+        written();
+        primary.store(pojo);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos) {
+        written();
+        primary.storeAll(pojos);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete(AbstractPojo pojo) {
+        written();
+        primary.delete(pojo);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void deleteAll(Collection<A> pojos) {
+        written();
+        primary.deleteAll(pojos);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The entity is always refreshed from the primary database.
+     */
+    public <A extends AbstractPojo> void refresh(A pojo) {
+        primary.refresh(pojo);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The unit of work is begun in the primary and in all the replicas.
+     */
+    public void beginUnitOfWork() {
+        Integer depth = unitOfWorkDepth.get();
+        unitOfWorkDepth.set(depth == null ? 1 : depth + 1);
+
+        primary.beginUnitOfWork();
+        for (IFacade replica : replicas) {
+            replica.beginUnitOfWork();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Ending the outermost unit of work lets the thread's reads go to the
+     * replicas again.
+     */
+    public void endUnitOfWork() {
+        Integer depth = unitOfWorkDepth.get();
+        if (depth == null) {
+            // No unit of work has been begun
+            return;
+        }
+
+        if (depth > 1) {
+            unitOfWorkDepth.set(depth - 1);
+        } else {
+            unitOfWorkDepth.remove();
+            sticky.remove();
+        }
+
+        primary.endUnitOfWork();
+        for (IFacade replica : replicas) {
+            replica.endUnitOfWork();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The transaction is run in the primary. It also begins a unit of work in
+     * which all the reads are sent to the primary, so that they are made in
+     * the transaction and see its uncommitted changes.
+     */
+    public void beginTransaction() {
+        beginUnitOfWork();
+        try {
+            primary.beginTransaction();
+            sticky.set(Boolean.TRUE);
+        } catch (RuntimeException e) {
+            endUnitOfWork();
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void commitTransaction() {
+        try {
+            primary.commitTransaction();
+        } finally {
+            endUnitOfWork();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void rollbackTransaction() {
+        try {
+            primary.rollbackTransaction();
+        } finally {
+            endUnitOfWork();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isTransactionActive() {
+        return primary.isTransactionActive();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> T runInTransaction(TransactionCallback<T> callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback may not be null");
+        }
+
+        beginTransaction();
+        boolean success = false;
+        try {
+            T result = callback.execute(this);
+            success = true;
+            return result;
+        } finally {
+            if (success) {
+                commitTransaction();
+            } else {
+                rollbackTransaction();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() {
+        primary.close();
+        for (IFacade replica : replicas) {
+            replica.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void kill() {
+        primary.kill();
+        for (IFacade replica : replicas) {
+            replica.kill();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(Class<? extends AbstractPojo> c) {
+        int index = selectReplica();
+        readStarted(index);
+        try {
+            return getReplica(index).count(c);
+        } finally {
+            readFinished(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters) {
+        int index = selectReplica();
+        readStarted(index);
+        try {
+            return getReplica(index).count(c, whereClause, parameters);
+        } finally {
+            readFinished(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<?> getFieldValues(Class<? extends AbstractPojo> c,
+            String field, String whereConditions, Map<String, Object> parameters) {
+        int index = selectReplica();
+        readStarted(index);
+        try {
+            return getReplica(index).getFieldValues(c, field,
+                    whereConditions, parameters);
+        } finally {
+            readFinished(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> project(Class<? extends AbstractPojo> c,
+            String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        int index = selectReplica();
+        readStarted(index);
+        try {
+            return getReplica(index).project(c, fields, whereConditions,
+                    parameters);
+        } finally {
+            readFinished(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> List<T> project(Class<? extends AbstractPojo> c,
+            Class<T> resultClass, String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        int index = selectReplica();
+        readStarted(index);
+        try {
+            return getReplica(index).project(c, resultClass, fields,
+                    whereConditions, parameters);
+        } finally {
+            readFinished(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int update(Class<? extends AbstractPojo> c, String setClause,
+            String whereClause, Map<String, Object> parameters) {
+        written();
+        return primary.update(c, setClause, whereClause, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int delete(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters) {
+        written();
+        return primary.delete(c, whereClause, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> findAll(Class<A> clazz,
+            Collection<Long> ids) {
+        int index = selectReplica();
+        readStarted(index);
+        try {
+            return getReplica(index).findAll(clazz, ids);
+        } finally {
+            readFinished(index);
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * This entity class holds the primary key sequences of a shard of a
+ * {@link ShardedFacade}. Each shard has one row per sharded entity class,
+ * from which the facades reserve blocks of sequence values. The persistence
+ * unit of every shard must include this class.
+ * 
+ * @author Kim
+ * 
+ */
+@Entity
+public class ShardSequence extends AbstractPojo {
+
+    private static final long serialVersionUID = -2861702427735939853L;
+
+    @Column(nullable = false, unique = true)
+    private String name;
+
+    private long nextValue;
+
+    /**
+     * Default constructor.
+     */
+    public ShardSequence() {
+
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param name
+     *            Name of the sequence
+     * @param nextValue
+     *            The first value which hasn't been reserved
+     */
+    public ShardSequence(String name, long nextValue) {
+        this.name = name;
+        this.nextValue = nextValue;
+    }
+
+    /**
+     * Returns the name of the sequence, which is the name of the entity class
+     * whose primary keys it generates.
+     * 
+     * @return Name of the sequence
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the name of the sequence.
+     * 
+     * @param name
+     *            Name of the sequence
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the first sequence value which hasn't been reserved by any
+     * facade.
+     * 
+     * @return The next free value
+     */
+    public long getNextValue() {
+        return nextValue;
+    }
+
+    /**
+     * Sets the first sequence value which hasn't been reserved.
+     * 
+     * @param nextValue
+     *            The next free value
+     */
+    public void setNextValue(long nextValue) {
+        this.nextValue = nextValue;
+    }
+
+}
@@ -0,0 +1,27 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Strategy which maps entities to the shards of a {@link ShardedFacade}. The
+ * shard of an entity must not change during its lifetime, so the values used
+ * for selecting the shard should be immutable. The shard of a stored entity is
+ * resolved from its primary key, see {@link ShardedFacade#getShardOfId(long)}.
+ * 
+ * @author Kim
+ * 
+ */
+public interface ShardStrategy {
+
+    /**
+     * Selects the shard in which the given entity is stored.
+     * 
+     * @param pojo
+     *            The entity
+     * @param shardCount
+     *            The number of shards
+     * @return Index of the shard, between 0 and shardCount - 1
+     */
+    public int getShard(AbstractPojo pojo, int shardCount);
+
+}
@@ -0,0 +1,1252 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Facade which partitions the entities across several databases, the shards.
+ * A {@link ShardStrategy} selects the shard of each new entity, and the calls
+ * which concern a single entity (find, store, delete and refresh) are sent
+ * only to that shard. The queries are scattered to all the shards in parallel
+ * and their results are gathered into one result.
+ * 
+ * The shards are independent databases, so storing or deleting a batch of
+ * entities which are spread on several shards is not atomic.
+ * 
+ * The generated primary keys of the shards would overlap, so the facade
+ * assigns the primary keys of new entities itself. The index of the shard is
+ * stored in the lowest {@link #SHARD_BITS} bits of the key, which makes the
+ * keys unique across the shards and lets an entity be found by its key from
+ * its own shard. Once an entity has a key, it is always routed by its key.
+ * The rest of the key is taken from a sequence of the entity class kept in
+ * the shard itself, see {@link ShardSequence}. Each facade reserves blocks of
+ * {@link #ALLOCATION_SIZE} values from the sequence, so any number of facades
+ * and application nodes may create entities in the same shards. The entities
+ * must be created through a sharded facade.
+ * 
+ * A query scattered to the shards is executed in the calling thread only in
+ * the first shard. The other shards are queried by a pool of threads, outside
+ * the caller's unit of work and transaction, so they don't see the caller's
+ * uncommitted writes. Inside a transaction of this facade all the shards are
+ * therefore queried one after another in the calling thread. The pool has
+ * enough threads for the given number of concurrent queries; a shard which
+ * doesn't fit in the pool is queried by the calling thread too.
+ * 
+ * When registered with
+ * {@link FacadeFactory#registerFacade(Class, String, boolean)}, the
+ * persistence-units of the shards are read from the comma separated system
+ * property <code>persistence.shards.&lt;name&gt;</code> and the entities are
+ * sharded with a {@link FieldHashShardStrategy} by the field defined in the
+ * system property <code>persistence.shards.&lt;name&gt;.field</code>. The
+ * number of concurrent queries is read from the optional system property
+ * <code>persistence.shards.&lt;name&gt;.concurrency</code>.
+ * 
+ * @author Kim
+ * 
+ */
+public class ShardedFacade implements IFacade {
+
+    /**
+     * The number of the lowest bits of a primary key which hold the index of
+     * the shard.
+     */
+    public static final int SHARD_BITS = 10;
+
+    /**
+     * The maximum number of shards.
+     */
+    public static final int MAX_SHARDS = 1 << SHARD_BITS;
+
+    /**
+     * The number of sequence values a facade reserves from a shard at a time.
+     */
+    public static final int ALLOCATION_SIZE = 100;
+
+    private static final int DEFAULT_CONCURRENCY = 4;
+
+    private static final int MAX_ALLOCATION_ATTEMPTS = 10;
+
+    private List<IFacade> shards;
+
+    // The reserved sequence values of each entity class in each shard
+    private final ConcurrentMap<String, IdBlock> blocks = new ConcurrentHashMap<String, IdBlock>();
+
+    private ShardStrategy strategy;
+
+    // Queries all the shards but the first one, which is queried by the
+    // calling thread itself
+    private ThreadPoolExecutor executor;
+
+    // Reserves the sequence values in transactions of its own
+    private ThreadPoolExecutor allocator;
+
+    private final ThreadLocal<Integer> transactionDepth = new ThreadLocal<Integer>();
+
+    /**
+     * A block of reserved sequence values.
+     */
+    private static class IdBlock {
+
+        // The next value to assign
+        private long next = 0;
+
+        // The first value which isn't reserved
+        private long end = 0;
+    }
+
+    /**
+     * A call which is executed in each shard.
+     */
+    private interface ShardCall<T> {
+        public T call(IFacade shard, int index);
+    }
+
+    public ShardedFacade() {
+
+    }
+
+    /**
+     * Creates a sharded facade for already initialized facades.
+     * 
+     * @param shards
+     *            The facades of the shards
+     * @param strategy
+     *            The strategy which maps the entities to the shards
+     */
+    public ShardedFacade(List<IFacade> shards, ShardStrategy strategy) {
+        this(shards, strategy, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Creates a sharded facade for already initialized facades.
+     * 
+     * @param shards
+     *            The facades of the shards
+     * @param strategy
+     *            The strategy which maps the entities to the shards
+     * @param concurrency
+     *            The number of queries which are scattered to the shards in
+     *            parallel before the calling threads query the shards
+     *            themselves
+     */
+    public ShardedFacade(List<IFacade> shards, ShardStrategy strategy,
+            int concurrency) {
+        setShards(shards, strategy, concurrency);
+    }
+
+    /**
+     * Initializes this facade. Creates a JPAFacade for each of the shards.
+     * 
+     * @param name
+     *            Name of the sharded facade
+     */
+    public void init(String name) {
+        String shardNames = System.getProperty("persistence.shards." + name);
+        if (shardNames == null) {
+            throw new IllegalArgumentException(
+                    "Shards are not defined for the facade '" + name + "'");
+        }
+
+        String field = System.getProperty("persistence.shards." + name
+                + ".field");
+        if (field == null) {
+            throw new IllegalArgumentException(
+                    "Shard field is not defined for the facade '" + name
+                            + "'");
+        }
+
+        int concurrency = DEFAULT_CONCURRENCY;
+        String concurrencyStr = System.getProperty("persistence.shards."
+                + name + ".concurrency");
+        if (concurrencyStr != null) {
+            try {
+                concurrency = Integer.parseInt(concurrencyStr.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(
+                        "Invalid shard concurrency '" + concurrencyStr + "'",
+                        e);
+            }
+        }
+
+        List<IFacade> shardFacades = new ArrayList<IFacade>();
+        for (String shardName : shardNames.split(",")) {
+            if (!shardName.trim().isEmpty()) {
+                shardFacades.add(new JPAFacade(shardName.trim()));
+            }
+        }
+        setShards(shardFacades, new FieldHashShardStrategy(field.trim()),
+                concurrency);
+    }
+
+    private void setShards(List<IFacade> shards, ShardStrategy strategy,
+            int concurrency) {
+        if (shards == null || shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+
+        if (shards.size() > MAX_SHARDS) {
+            throw new IllegalArgumentException("At most " + MAX_SHARDS
+                    + " shards are supported");
+        }
+
+        if (strategy == null) {
+            throw new IllegalArgumentException("Strategy may not be null");
+        }
+
+        if (concurrency < 1) {
+            throw new IllegalArgumentException(
+                    "Concurrency must be positive");
+        }
+
+        this.shards = Collections.unmodifiableList(new ArrayList<IFacade>(
+                shards));
+        this.strategy = strategy;
+        if (shards.size() > 1) {
+            // Each scattered query needs a thread for every shard but the
+            // first one. The queue only evens out bursts, the calls which
+            // don't fit in it are executed by the calling thread.
+            int poolSize = (shards.size() - 1) * concurrency;
+            executor = new ThreadPoolExecutor(poolSize, poolSize, 60L,
+                    TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                            poolSize), new FacadeThreadFactory(
+                            "ShardedFacade"));
+            // Let the threads die when the facade isn't used
+            executor.allowCoreThreadTimeOut(true);
+        }
+        allocator = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new FacadeThreadFactory(
+                        "ShardedFacade-sequence"));
+        allocator.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the number of shards.
+     * 
+     * @return The number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Returns the facade of the given shard. This can be used for querying a
+     * single shard directly when the shard of the queried entities is known.
+     * 
+     * @param index
+     *            Index of the shard
+     * @return The facade of the shard
+     */
+    public IFacade getShard(int index) {
+        return shards.get(index);
+    }
+
+    /**
+     * Returns the strategy which maps the entities to the shards.
+     * 
+     * @return The shard strategy
+     */
+    public ShardStrategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Returns the index of the shard in which the given entity is stored. An
+     * entity which has a primary key is in the shard stored in its key, a new
+     * entity is stored in the shard selected by the strategy.
+     * 
+     * @param pojo
+     *            The entity
+     * @return Index of the shard
+     */
+    private int getShardIndex(AbstractPojo pojo) {
+        if (pojo == null) {
+            throw new IllegalArgumentException("Pojo may not be null");
+        }
+
+        int shard = pojo.getId() != null ? getShardOfId(pojo.getId())
+                : strategy.getShard(pojo, shards.size());
+        if (shard < 0 || shard >= shards.size()) {
+            throw new IllegalArgumentException("The entity "
+                    + pojo.getClass().getSimpleName() + " (id "
+                    + pojo.getId() + ") doesn't belong to any shard");
+        }
+        return shard;
+    }
+
+    /**
+     * Returns the facade of the shard in which the given entity is stored.
+     * 
+     * @param pojo
+     *            The entity
+     * @return The facade of the shard
+     */
+    private IFacade getShardFor(AbstractPojo pojo) {
+        return shards.get(getShardIndex(pojo));
+    }
+
+    /**
+     * Returns the index of the shard stored in the given primary key.
+     * 
+     * @param id
+     *            Primary key assigned by a sharded facade
+     * @return Index of the shard
+     */
+    public static int getShardOfId(long id) {
+        return (int) (id & (MAX_SHARDS - 1));
+    }
+
+    /**
+     * Returns the facade of the shard in which the entity with the given
+     * primary key is stored.
+     * 
+     * @param id
+     *            Primary key of the entity
+     * @return The facade of the shard, or null if there is no such shard
+     */
+    private IFacade getShardFor(Long id) {
+        int shard = getShardOfId(id);
+        return shard < shards.size() ? shards.get(shard) : null;
+    }
+
+    /**
+     * Assigns a primary key to the given entity, if it is a new entity.
+     * 
+     * @param pojo
+     *            The entity
+     * @param shard
+     *            Index of the shard in which the entity is stored
+     * @return true if the key was assigned
+     */
+    private boolean assignId(AbstractPojo pojo, int shard) {
+        if (pojo.getId() != null) {
+            return false;
+        }
+
+        pojo.setId(nextSequence(pojo.getClass(), shard) << SHARD_BITS | shard);
+        return true;
+    }
+
+    /**
+     * Returns the next sequence value for the primary keys of the given class
+     * in the given shard. A new block of values is reserved from the shard
+     * once the previous block has been used.
+     * 
+     * @param c
+     *            Entity class
+     * @param shard
+     *            Index of the shard
+     * @return The sequence value
+     */
+    private long nextSequence(Class<?> c, int shard) {
+        String key = c.getName() + "@" + shard;
+        IdBlock block = blocks.get(key);
+        if (block == null) {
+            block = new IdBlock();
+            IdBlock existing = blocks.putIfAbsent(key, block);
+            if (existing != null) {
+                block = existing;
+            }
+        }
+
+        synchronized (block) {
+            if (block.next >= block.end) {
+                block.next = allocate(c, shard);
+                block.end = block.next + ALLOCATION_SIZE;
+            }
+            return block.next++;
+        }
+    }
+
+    /**
+     * Reserves a block of sequence values from the given shard. The block is
+     * reserved by a thread of its own, so that the reservation is committed
+     * immediately even if the calling thread has a transaction in progress.
+     * 
+     * @param c
+     *            Entity class
+     * @param shard
+     *            Index of the shard
+     * @return The first value of the reserved block
+     */
+    private long allocate(final Class<?> c, final int shard) {
+        Future<Long> future = allocator.submit(new Callable<Long>() {
+            public Long call() {
+                return allocateInShard(c, shard);
+            }
+        });
+        return get(future);
+    }
+
+    /**
+     * Reserves a block of sequence values from the sequence row of the given
+     * class in the given shard. The row is created when the first block is
+     * reserved, starting from the largest key in the shard. If another facade
+     * reserves a block at the same time, the optimistic lock of the row fails
+     * and the reservation is retried.
+     * 
+     * @param c
+     *            Entity class
+     * @param shard
+     *            Index of the shard
+     * @return The first value of the reserved block
+     */
+    private long allocateInShard(Class<?> c, int shard) {
+        IFacade facade = shards.get(shard);
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("name", c.getName());
+        for (int attempt = 1;; attempt++) {
+            ShardSequence sequence = facade.find(
+                    "SELECT s FROM ShardSequence s WHERE s.name = :name",
+                    parameters);
+            boolean created = sequence == null;
+            if (created) {
+                sequence = new ShardSequence(c.getName(),
+                        getLargestSequence(facade, c) + 1);
+            }
+
+            long start = sequence.getNextValue();
+            sequence.setNextValue(start + ALLOCATION_SIZE);
+            try {
+                facade.store(sequence);
+                return start;
+            } catch (RuntimeException e) {
+                // Another facade created the row or reserved a block at the
+                // same time
+                if (attempt >= MAX_ALLOCATION_ATTEMPTS
+                        || !(created || OptimisticLockRetrier
+                                .isOptimisticLockFailure(e))) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the largest sequence value used in the primary keys of the given
+     * class in the given shard.
+     * 
+     * @param facade
+     *            The facade of the shard
+     * @param c
+     *            Entity class
+     * @return The largest sequence value, or zero if there are no entities
+     */
+    private static long getLargestSequence(IFacade facade, Class<?> c) {
+        List<AbstractPojo> pojos = facade.list("SELECT p FROM "
+                + c.getSimpleName() + " p ORDER BY p.id DESC", null, 0, 1);
+        if (pojos == null || pojos.isEmpty()) {
+            return 0;
+        }
+        return pojos.get(0).getId() >> SHARD_BITS;
+    }
+
+    /**
+     * Waits for the result of the given call.
+     * 
+     * @param future
+     *            Future of the call
+     * @return The result of the call
+     */
+    private static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Executes the given call in all the shards in parallel and gathers the
+     * results.
+     * 
+     * @param call
+     *            The call to execute
+     * @return The results of the shards in the order of the shards
+     */
+    private <T> List<T> scatter(final ShardCall<T> call) {
+        List<T> results = new ArrayList<T>(shards.size());
+        if (shards.size() == 1 || transactionDepth.get() != null) {
+            // The transaction's writes are only visible to this thread
+            for (int i = 0; i < shards.size(); i++) {
+                results.add(call.call(shards.get(i), i));
+            }
+            return results;
+        }
+
+        // A null future means that the pool is full and the shard is queried
+        // by the calling thread
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (int i = 1; i < shards.size(); i++) {
+            final IFacade shard = shards.get(i);
+            final int index = i;
+            try {
+                futures.add(executor.submit(new Callable<T>() {
+                    public T call() throws Exception {
+                        return call.call(shard, index);
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                futures.add(null);
+            }
+        }
+
+        try {
+            // Query the first shard while the others are running
+            results.add(call.call(shards.get(0), 0));
+            for (int i = 1; i < shards.size(); i++) {
+                Future<T> future = futures.get(i - 1);
+                results.add(future == null ? call.call(shards.get(i), i)
+                        : get(future));
+            }
+        } finally {
+            // Don't leave queries running if one of the shards failed
+            for (Future<T> future : futures) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Concatenates the given lists into one list.
+     * 
+     * @param lists
+     *            The lists to concatenate
+     * @return A list containing the elements of all the lists
+     */
+    private static <T> List<T> concat(List<? extends List<? extends T>> lists) {
+        List<T> result = new ArrayList<T>();
+        for (List<? extends T> list : lists) {
+            if (list != null) {
+                result.addAll(list);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the first element which is not null.
+     * 
+     * @param results
+     *            The results of the shards
+     * @return The first result which is not null or null if all are null
+     */
+    private static <T> T first(List<T> results) {
+        for (T result : results) {
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the given range of the list.
+     * 
+     * @param list
+     *            The list
+     * @param startIndex
+     *            Index of the first returned element
+     * @param amount
+     *            The maximum amount of returned elements
+     * @return The elements in the range
+     */
+    private static <T> List<T> range(List<T> list, int startIndex, int amount) {
+        if (startIndex >= list.size()) {
+            return new ArrayList<T>();
+        }
+        int endIndex = (int) Math.min(list.size(), (long) startIndex + amount);
+        return new ArrayList<T>(list.subList(startIndex, endIndex));
+    }
+
+    /**
+     * Returns the amount of entities to fetch from each shard for the given
+     * range of the gathered result.
+     */
+    private static int getFetchAmount(int startIndex, int amount) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) startIndex + amount);
+    }
+
+    /**
+     * Sums the given counts.
+     * 
+     * @param counts
+     *            The counts of the shards
+     * @return The sum of the counts or -1 if any of the counts failed
+     */
+    private static Long sum(List<Long> counts) {
+        long sum = 0;
+        for (Long count : counts) {
+            if (count == null || count < 0) {
+                return -1L;
+            }
+            sum += count;
+        }
+        return sum;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(Class<A> clazz, Long id) {
+        if (id == null) {
+            return null;
+        }
+
+        IFacade shard = getShardFor(id);
+        return shard == null ? null : shard.find(clazz, id);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The entities are ordered by their shard.
+     */
+    public <A extends AbstractPojo> List<A> list(final Class<A> clazz) {
+        return concat(scatter(new ShardCall<List<A>>() {
+            public List<A> call(IFacade facade, int index) {
+                return facade.list(clazz);
+            }
+        }));
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The entities are ordered by their shard, so each shard needs to fetch
+     * all the entities up to the end of the range. Use
+     * {@link #page(Class, PageToken, int)} for fetching deep pages.
+     */
+    public <A extends AbstractPojo> List<A> list(final Class<A> clazz,
+            int startIndex, int amount) {
+        final int fetchAmount = getFetchAmount(startIndex, amount);
+        return range(concat(scatter(new ShardCall<List<A>>() {
+            public List<A> call(IFacade facade, int index) {
+                return facade.list(clazz, 0, fetchAmount);
+            }
+        })), startIndex, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The query is executed in all the shards and the results are ordered by
+     * their shard.
+     */
+    public <A extends AbstractPojo> List<A> list(final String queryStr,
+            final Map<String, Object> parameters) {
+        return concat(scatter(new ShardCall<List<A>>() {
+            public List<A> call(IFacade facade, int index) {
+                return facade.list(queryStr, parameters);
+            }
+        }));
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The query is executed in all the shards and the results are ordered by
+     * their shard, so each shard needs to fetch all the entities up to the end
+     * of the range.
+     */
+    public <A extends AbstractPojo> List<A> list(final String queryStr,
+            final Map<String, Object> parameters, int startIndex, int amount) {
+        final int fetchAmount = getFetchAmount(startIndex, amount);
+        return range(concat(scatter(new ShardCall<List<A>>() {
+            public List<A> call(IFacade facade, int index) {
+                return facade.list(queryStr, parameters, 0, fetchAmount);
+            }
+        })), startIndex, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Page<A> page(Class<A> clazz,
+            PageToken token, int amount) {
+        return page(clazz, "id", token, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * A page is fetched from each shard and the pages are merged in the order
+     * of the field.
+     */
+    public <A extends AbstractPojo> Page<A> page(final Class<A> clazz,
+            final String orderField, final PageToken token, final int amount) {
+        if (orderField == null) {
+            throw new IllegalArgumentException("Order field may not be null");
+        }
+
+        List<Page<A>> pages = scatter(new ShardCall<Page<A>>() {
+            public Page<A> call(IFacade facade, int index) {
+                return facade.page(clazz, orderField, token, amount);
+            }
+        });
+
+        boolean hasMore = false;
+        List<A> items = new ArrayList<A>();
+        for (Page<A> page : pages) {
+            items.addAll(page.getItems());
+            hasMore |= page.hasNextPage();
+        }
+
+        final boolean orderById = "id".equals(orderField);
+        Collections.sort(items, new Comparator<A>() {
+            public int compare(A o1, A o2) {
+                if (!orderById) {
+                    // The shards page the null values first
+                    int result = InMemoryQuery.compareNullsFirst(getKey(o1,
+                            orderField), getKey(o2, orderField));
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+                return o1.getId().compareTo(o2.getId());
+            }
+        });
+
+        if (items.size() <= amount && !hasMore) {
+            return new Page<A>(items, null);
+        }
+
+        items = range(items, 0, amount);
+        A last = items.get(items.size() - 1);
+        Object key = orderById ? last.getId() : getKey(last, orderField);
+        return new Page<A>(items, new PageToken(key, last.getId()));
+    }
+
+    private static Object getKey(AbstractPojo pojo, String orderField) {
+        return FieldCopier.forClass(pojo.getClass()).getValue(pojo, orderField);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The shards are iterated one after another.
+     */
+    public <A extends AbstractPojo> Iterator<A> iterate(final Class<A> clazz,
+            final int chunkSize) {
+        return new ShardIterator<A>() {
+            @Override
+            protected Iterator<A> iterate(IFacade shard) {
+                return shard.iterate(clazz, chunkSize);
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The shards are iterated one after another.
+     */
+    public <A extends AbstractPojo> Iterator<A> iterate(final String queryStr,
+            final Map<String, Object> parameters, final int chunkSize) {
+        return new ShardIterator<A>() {
+            @Override
+            protected Iterator<A> iterate(IFacade shard) {
+                return shard.iterate(queryStr, parameters, chunkSize);
+            }
+        };
+    }
+
+    /**
+     * Iterator which iterates through the shards one after another. The
+     * iteration of a shard is started only once the previous shard has been
+     * iterated through.
+     */
+    private abstract class ShardIterator<A> implements Iterator<A> {
+
+        private int shard = 0;
+
+        private Iterator<A> current = null;
+
+        protected abstract Iterator<A> iterate(IFacade shard);
+
+        public boolean hasNext() {
+            while (current == null || !current.hasNext()) {
+                if (shard >= shards.size()) {
+                    return false;
+                }
+                current = iterate(shards.get(shard++));
+            }
+            return true;
+        }
+
+        public A next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The query is executed in all the shards and the first found entity is
+     * returned.
+     */
+    public <A extends AbstractPojo> A find(final String queryStr,
+            final Map<String, Object> parameters) {
+        return first(scatter(new ShardCall<A>() {
+            public A call(IFacade facade, int index) {
+                return facade.<A> find(queryStr, parameters);
+            }
+        }));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(AbstractPojo pojo) {
+        if (pojo == null) {
+            throw new IllegalArgumentException("Pojo may not be null");
+        }
+
+        int shard = getShardIndex(pojo);
+        boolean assigned = assignId(pojo, shard);
+        try {
+            shards.get(shard).store(pojo);
+        } catch (RuntimeException e) {
+            if (assigned) {
+                // The entity wasn't created
+                pojo.setId(null);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The entities are stored within the same transaction only if they are in
+     * the same shard.
+     */
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos) {
+        if (pojos == null) {
+            throw new IllegalArgumentException("Pojos may not be null");
+        }
+
+        List<List<A>> groups = groupByShard(pojos);
+        for (int i = 0; i < groups.size(); i++) {
+            List<A> group = groups.get(i);
+            if (group.isEmpty()) {
+                continue;
+            }
+
+            List<A> assigned = new ArrayList<A>();
+            for (A pojo : group) {
+                if (assignId(pojo, i)) {
+                    assigned.add(pojo);
+                }
+            }
+            try {
+                shards.get(i).storeAll(group);
+            } catch (RuntimeException e) {
+                // The new entities of the group weren't created
+                for (A pojo : assigned) {
+                    pojo.setId(null);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete(AbstractPojo pojo) {
+        getShardFor(pojo).delete(pojo);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The entities are removed within the same transaction only if they are
+     * in the same shard.
+     */
+    public <A extends AbstractPojo> void deleteAll(Collection<A> pojos) {
+        if (pojos == null) {
+            throw new IllegalArgumentException("Pojos may not be null");
+        }
+
+        List<List<A>> groups = groupByShard(pojos);
+        for (int i = 0; i < groups.size(); i++) {
+            if (!groups.get(i).isEmpty()) {
+                shards.get(i).deleteAll(groups.get(i));
+            }
+        }
+    }
+
+    /**
+     * Groups the given entities by their shard.
+     * 
+     * @param pojos
+     *            The entities
+     * @return A list of entities for each shard in the order of the shards
+     */
+    private <A extends AbstractPojo> List<List<A>> groupByShard(
+            Collection<A> pojos) {
+        List<List<A>> groups = new ArrayList<List<A>>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            groups.add(new ArrayList<A>());
+        }
+        for (A pojo : pojos) {
+            if (pojo == null) {
+                throw new IllegalArgumentException("Pojo may not be null");
+            }
+            groups.get(getShardIndex(pojo)).add(pojo);
+        }
+        return groups;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void refresh(A pojo) {
+        getShardFor(pojo).refresh(pojo);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The unit of work is begun in all the shards. Queries which are scattered
+     * to the shards use the unit of work only in the first shard, as the other
+     * shards are queried by other threads.
+     */
+    public void beginUnitOfWork() {
+        for (IFacade shard : shards) {
+            shard.beginUnitOfWork();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void endUnitOfWork() {
+        for (IFacade shard : shards) {
+            shard.endUnitOfWork();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * A transaction is begun in every shard. The shards' transactions are
+     * committed one after another, so the transaction is not atomic across
+     * the shards: if committing a shard fails, the following shards are rolled
+     * back, but the shards committed before it keep their changes.
+     */
+    public void beginTransaction() {
+        for (int i = 0; i < shards.size(); i++) {
+            try {
+                shards.get(i).beginTransaction();
+            } catch (RuntimeException e) {
+                rollbackShards(0, i);
+                throw e;
+            }
+        }
+        Integer depth = transactionDepth.get();
+        transactionDepth.set(depth == null ? 1 : depth + 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void commitTransaction() {
+        try {
+            for (int i = 0; i < shards.size(); i++) {
+                try {
+                    shards.get(i).commitTransaction();
+                } catch (RuntimeException e) {
+                    rollbackShards(i + 1, shards.size());
+                    throw e;
+                }
+            }
+        } finally {
+            transactionEnded();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void rollbackTransaction() {
+        try {
+            rollbackShards(0, shards.size());
+        } finally {
+            transactionEnded();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isTransactionActive() {
+        return transactionDepth.get() != null;
+    }
+
+    /**
+     * Decrements the current thread's transaction depth.
+     */
+    private void transactionEnded() {
+        Integer depth = transactionDepth.get();
+        if (depth == null || depth <= 1) {
+            transactionDepth.remove();
+        } else {
+            transactionDepth.set(depth - 1);
+        }
+    }
+
+    /**
+     * Rolls back the transactions of the given range of shards. All the
+     * shards are rolled back even if some of them fail.
+     * 
+     * @param from
+     *            Index of the first shard, inclusive
+     * @param to
+     *            Index of the last shard, exclusive
+     */
+    private void rollbackShards(int from, int to) {
+        RuntimeException failure = null;
+        for (int i = from; i < to; i++) {
+            try {
+                shards.get(i).rollbackTransaction();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> T runInTransaction(TransactionCallback<T> callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback may not be null");
+        }
+
+        beginTransaction();
+        boolean success = false;
+        try {
+            T result = callback.execute(this);
+            success = true;
+            return result;
+        } finally {
+            if (success) {
+                commitTransaction();
+            } else {
+                rollbackTransaction();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() {
+        for (IFacade shard : shards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void kill() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        allocator.shutdown();
+        for (IFacade shard : shards) {
+            shard.kill();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(final Class<? extends AbstractPojo> c) {
+        return sum(scatter(new ShardCall<Long>() {
+            public Long call(IFacade facade, int index) {
+                return facade.count(c);
+            }
+        }));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(final Class<? extends AbstractPojo> c,
+            final String whereClause, final Map<String, Object> parameters) {
+        return sum(scatter(new ShardCall<Long>() {
+            public Long call(IFacade facade, int index) {
+                return facade.count(c, whereClause, parameters);
+            }
+        }));
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The values are ordered by their shard.
+     */
+    public List<?> getFieldValues(final Class<? extends AbstractPojo> c,
+            final String field, final String whereConditions,
+            final Map<String, Object> parameters) {
+        return concat(scatter(new ShardCall<List<?>>() {
+            public List<?> call(IFacade facade, int index) {
+                return facade.getFieldValues(c, field, whereConditions,
+                        parameters);
+            }
+        }));
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The tuples are ordered by their shard.
+     */
+    public List<Object[]> project(final Class<? extends AbstractPojo> c,
+            final String[] fields, final String whereConditions,
+            final Map<String, Object> parameters) {
+        return concat(scatter(new ShardCall<List<Object[]>>() {
+            public List<Object[]> call(IFacade facade, int index) {
+                return facade.project(c, fields, whereConditions, parameters);
+            }
+        }));
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The objects are ordered by their shard.
+     */
+    public <T> List<T> project(final Class<? extends AbstractPojo> c,
+            final Class<T> resultClass, final String[] fields,
+            final String whereConditions,
+            final Map<String, Object> parameters) {
+        return concat(scatter(new ShardCall<List<T>>() {
+            public List<T> call(IFacade facade, int index) {
+                return facade.project(c, resultClass, fields,
+                        whereConditions, parameters);
+            }
+        }));
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The statement is executed in each shard in its own transaction.
+     */
+    public int update(Class<? extends AbstractPojo> c, String setClause,
+            String whereClause, Map<String, Object> parameters) {
+        int affected = 0;
+        for (IFacade shard : shards) {
+            affected += shard.update(c, setClause, whereClause, parameters);
+        }
+        return affected;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The statement is executed in each shard in its own transaction.
+     */
+    public int delete(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters) {
+        int affected = 0;
+        for (IFacade shard : shards) {
+            affected += shard.delete(c, whereClause, parameters);
+        }
+        return affected;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The ids are grouped by their shard and the shards are searched in
+     * parallel.
+     */
+    public <A extends AbstractPojo> List<A> findAll(final Class<A> clazz,
+            Collection<Long> ids) {
+        if (ids == null) {
+            throw new IllegalArgumentException("Ids may not be null");
+        }
+
+        final List<List<Long>> groups = new ArrayList<List<Long>>();
+        for (int i = 0; i < shards.size(); i++) {
+            groups.add(new ArrayList<Long>());
+        }
+        for (Long id : ids) {
+            if (id != null && getShardOfId(id) < shards.size()) {
+                groups.get(getShardOfId(id)).add(id);
+            }
+        }
+
+        List<List<A>> results = scatter(new ShardCall<List<A>>() {
+            public List<A> call(IFacade facade, int index) {
+                List<Long> group = groups.get(index);
+                return group.isEmpty() ? new ArrayList<A>() : facade.findAll(
+                        clazz, group);
+            }
+        });
+
+        Map<Long, A> found = new HashMap<Long, A>();
+        for (List<A> result : results) {
+            for (A pojo : result) {
+                if (pojo != null) {
+                    found.put(pojo.getId(), pojo);
+                }
+            }
+        }
+
+        List<A> pojos = new ArrayList<A>(ids.size());
+        for (Long id : ids) {
+            pojos.add(id == null ? null : found.get(id));
+        }
+        return pojos;
+    }
+
+}
@@ -0,0 +1,25 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+/**
+ * Work executed in a transaction with
+ * {@link IFacade#runInTransaction(TransactionCallback)}.
+ * 
+ * @author Kim
+ * 
+ * @param <T>
+ *            Type of the result
+ */
+public interface TransactionCallback<T> {
+
+    /**
+     * Executes the work. All the writes made through the given facade from
+     * the current thread are committed together once this method returns.
+     * Throwing an exception rolls back the transaction.
+     * 
+     * @param facade
+     *            The facade running the transaction
+     * @return The result of the work, returned by runInTransaction()
+     */
+    public T execute(IFacade facade);
+
+}
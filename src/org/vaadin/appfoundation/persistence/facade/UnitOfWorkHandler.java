@@ -0,0 +1,65 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import com.vaadin.Application;
+import com.vaadin.service.ApplicationContext.TransactionListener;
+
+/**
+ * Binds the units of work of the registered facades to the requests of a
+ * Vaadin application. A unit of work is started when a request begins and
+ * ended when the request ends, so that all the facade calls made during one
+ * request share the same connection and persistence context.
+ * 
+ * @author Kim
+ * 
+ */
+public class UnitOfWorkHandler implements TransactionListener {
+
+    private static final long serialVersionUID = 2553193617442741063L;
+
+    private final Application application;
+
+    /**
+     * Constructor
+     * 
+     * @param application
+     *            Current application instance
+     */
+    public UnitOfWorkHandler(Application application) {
+        this.application = application;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void transactionStart(Application application, Object transactionData) {
+        // Only handle the requests of the application this handler was
+        // created for
+        if (this.application == application) {
+            FacadeFactory.beginUnitOfWork();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void transactionEnd(Application application, Object transactionData) {
+        if (this.application == application) {
+            FacadeFactory.endUnitOfWork();
+        }
+    }
+
+    /**
+     * Initializes the {@link UnitOfWorkHandler} for the given
+     * {@link Application}
+     * 
+     * @param application
+     */
+    public static void initialize(Application application) {
+        if (application == null) {
+            throw new IllegalArgumentException("Application may not be null");
+        }
+        UnitOfWorkHandler handler = new UnitOfWorkHandler(application);
+        application.getContext().addTransactionListener(handler);
+    }
+
+}
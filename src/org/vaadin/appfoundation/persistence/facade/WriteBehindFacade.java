@@ -0,0 +1,944 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Facade which buffers the stores of frequently updated entities, such as
+ * counters and flags, in memory and writes them to another facade in batches.
+ * Storing the same entity several times before the buffer is flushed results
+ * in only one write. The buffer is flushed periodically, when it holds a batch
+ * worth of entities and when the facade is killed.
+ * 
+ * Only the classes whose durability has been set to
+ * {@link WriteDurability#WRITE_BEHIND} are buffered. New entities, and all
+ * the writes made in a transaction, are always written through, as are the
+ * writes made when the buffer is full.
+ * 
+ * The buffer holds copies of the stored entities, so the callers may keep
+ * modifying their instances. Finding an entity by its id, or by a query,
+ * returns a copy of the buffered state if the entity has not been flushed yet.
+ * The conditions of the queries, counts, pages and projections are evaluated
+ * against the flushed state, though. A buffered write which fails when it is
+ * flushed, for example because the entity was modified elsewhere, is logged
+ * and discarded.
+ * 
+ * As the flushes write the copies, the consistency versions of the callers'
+ * instances are not incremented by them. Instead, the facade remembers the
+ * versions given by the flushes to the most recently flushed entities and
+ * brings an instance up to date when it is stored or deleted again through
+ * this facade.
+ * 
+ * @author Kim
+ * 
+ */
+public class WriteBehindFacade implements IFacade {
+
+    private static final Logger log = Logger.getLogger(WriteBehindFacade.class
+            .getName());
+
+    private final IFacade facade;
+
+    private final int batchSize;
+
+    private final int capacity;
+
+    // The buffered entities in the order they were first stored. Guarded by
+    // itself.
+    private final Map<Key, AbstractPojo> pending = new LinkedHashMap<Key, AbstractPojo>();
+
+    // Makes sure that only one thread flushes at a time, so that the writes
+    // of an entity are never reordered
+    private final Object flushLock = new Object();
+
+    // The consistency versions of the most recently flushed entities, as
+    // {version before the flush, version after the flush}. Guarded by
+    // pending.
+    private final Map<Key, Long[]> flushedVersions;
+
+    // Has a flush been requested because a batch is full. Guarded by pending.
+    private boolean flushRequested = false;
+
+    private final ConcurrentMap<Class<?>, WriteDurability> durabilities = new ConcurrentHashMap<Class<?>, WriteDurability>();
+
+    private volatile WriteDurability defaultDurability = WriteDurability.WRITE_THROUGH;
+
+    private final ThreadLocal<Integer> transactionDepth = new ThreadLocal<Integer>();
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    // Set under the pending lock, so that no entity is buffered after the
+    // final flush
+    private volatile boolean killed = false;
+
+    private final AtomicLong buffered = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong flushed = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Identifies a buffered entity.
+     */
+    private static class Key {
+
+        private final Class<?> c;
+
+        private final Long id;
+
+        public Key(AbstractPojo pojo) {
+            this(pojo.getClass(), pojo.getId());
+        }
+
+        public Key(Class<?> c, Long id) {
+            this.c = c;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return c.equals(other.c) && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * c.hashCode() + id.hashCode();
+        }
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param facade
+     *            The facade to which the entities are written
+     * @param flushInterval
+     *            The interval, in milliseconds, in which the buffer is flushed
+     * @param batchSize
+     *            The number of buffered entities which triggers a flush
+     * @param capacity
+     *            The maximum number of buffered entities. When the buffer is
+     *            full, the entities are written through.
+     */
+    public WriteBehindFacade(IFacade facade, long flushInterval,
+            int batchSize, int capacity) {
+        if (facade == null) {
+            throw new IllegalArgumentException("Facade may not be null");
+        }
+
+        if (flushInterval < 1) {
+            throw new IllegalArgumentException(
+                    "Flush interval must be positive");
+        }
+
+        if (batchSize < 1 || capacity < batchSize) {
+            throw new IllegalArgumentException(
+                    "Batch size must be positive and capacity at least the batch size");
+        }
+
+        this.facade = facade;
+        this.batchSize = batchSize;
+        this.capacity = capacity;
+        flushedVersions = new LinkedHashMap<Key, Long[]>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = -3021958717946251731L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<Key, Long[]> eldest) {
+                return size() > WriteBehindFacade.this.capacity;
+            }
+        };
+        executor = new ScheduledThreadPoolExecutor(1, new FacadeThreadFactory(
+                "WriteBehindFacade"));
+        executor.scheduleWithFixedDelay(flushTask, flushInterval,
+                flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the facade to which the entities are written.
+     * 
+     * @return The underlying facade
+     */
+    public IFacade getFacade() {
+        return facade;
+    }
+
+    /**
+     * Sets the durability of the entities of the given class.
+     * 
+     * @param c
+     *            Entity class
+     * @param durability
+     *            The durability, or null to use the default durability
+     */
+    public void setDurability(Class<? extends AbstractPojo> c,
+            WriteDurability durability) {
+        if (c == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        if (durability == null) {
+            durabilities.remove(c);
+        } else {
+            durabilities.put(c, durability);
+        }
+    }
+
+    /**
+     * Returns the durability of the entities of the given class.
+     * 
+     * @param c
+     *            Entity class
+     * @return The durability
+     */
+    public WriteDurability getDurability(Class<? extends AbstractPojo> c) {
+        WriteDurability durability = durabilities.get(c);
+        return durability != null ? durability : defaultDurability;
+    }
+
+    /**
+     * Sets the durability of the classes which have no durability of their
+     * own. By default, the entities are written through.
+     * 
+     * @param durability
+     *            The default durability
+     */
+    public void setDefaultDurability(WriteDurability durability) {
+        if (durability == null) {
+            throw new IllegalArgumentException("Durability may not be null");
+        }
+        defaultDurability = durability;
+    }
+
+    /**
+     * Returns the number of buffered entities waiting to be flushed.
+     * 
+     * @return Number of pending writes
+     */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Returns the number of stores which have been buffered.
+     * 
+     * @return Number of buffered stores
+     */
+    public long getBufferedCount() {
+        return buffered.get();
+    }
+
+    /**
+     * Returns the number of buffered stores which replaced an earlier store of
+     * the same entity, and thus saved a write.
+     * 
+     * @return Number of coalesced stores
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the number of buffered entities which have been written.
+     * 
+     * @return Number of flushed entities
+     */
+    public long getFlushedCount() {
+        return flushed.get();
+    }
+
+    /**
+     * Returns the number of buffered entities which could not be written.
+     * 
+     * @return Number of failed writes
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Writes all the buffered entities to the underlying facade.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<AbstractPojo> pojos;
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                pojos = new ArrayList<AbstractPojo>(pending.values());
+                pending.clear();
+                flushRequested = false;
+            }
+
+            facade.beginUnitOfWork();
+            try {
+                for (int i = 0; i < pojos.size(); i += batchSize) {
+                    List<AbstractPojo> batch = pojos.subList(i, Math.min(i
+                            + batchSize, pojos.size()));
+                    Long[] versions = new Long[batch.size()];
+                    for (int j = 0; j < versions.length; j++) {
+                        versions[j] = batch.get(j).getConsistencyVersion();
+                    }
+                    write(batch, versions);
+                }
+            } finally {
+                facade.endUnitOfWork();
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered entities before a write which they must not
+     * overwrite later. If the current thread has an active transaction, the
+     * buffer is flushed by the flushing thread instead, and the current thread
+     * waits for it. Otherwise the buffered writes, many of them made by other
+     * threads, would join the transaction and be lost if it is rolled back.
+     */
+    private void flushBeforeWrite() {
+        if (!facade.isTransactionActive()) {
+            flush();
+            return;
+        }
+
+        Future<?> future;
+        try {
+            future = executor.submit(flushTask);
+        } catch (RejectedExecutionException e) {
+            throw new IllegalStateException("The facade has been killed");
+        }
+
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Writes a batch of buffered entities. If the batch can't be stored, the
+     * entities are stored one by one so that one failing entity doesn't cause
+     * the others to be lost.
+     * 
+     * @param batch
+     *            The entities to write
+     * @param versions
+     *            The consistency versions of the entities before the write
+     */
+    private void write(List<AbstractPojo> batch, Long[] versions) {
+        try {
+            facade.storeAll(batch);
+            flushed.addAndGet(batch.size());
+            for (int i = 0; i < versions.length; i++) {
+                written(batch.get(i), versions[i]);
+            }
+            return;
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                failed(batch.get(0), e);
+                return;
+            }
+        }
+
+        for (int i = 0; i < versions.length; i++) {
+            AbstractPojo pojo = batch.get(i);
+            // The failed batch may have modified the version
+            pojo.setConsistencyVersion(versions[i]);
+            try {
+                facade.store(pojo);
+                flushed.incrementAndGet();
+                written(pojo, versions[i]);
+            } catch (RuntimeException e) {
+                failed(pojo, e);
+            }
+        }
+    }
+
+    /**
+     * Remembers the consistency version given to a flushed entity. If the
+     * entity has been buffered again while it was being flushed, the buffered
+     * copy is given the new version too.
+     * 
+     * @param pojo
+     *            The flushed entity
+     * @param previous
+     *            The version of the entity before it was flushed
+     */
+    private void written(AbstractPojo pojo, Long previous) {
+        Long version = pojo.getConsistencyVersion();
+        if (previous == null || version == null || previous.equals(version)) {
+            return;
+        }
+
+        synchronized (pending) {
+            Key key = new Key(pojo);
+            flushedVersions.put(key, new Long[] { previous, version });
+            AbstractPojo buffered = pending.get(key);
+            if (buffered != null
+                    && previous.equals(buffered.getConsistencyVersion())) {
+                buffered.setConsistencyVersion(version);
+            }
+        }
+    }
+
+    /**
+     * Gives the given entity the consistency version it has been given by a
+     * flush, if it still has the version it had before the flush.
+     * 
+     * @param pojo
+     *            The caller's instance of the entity
+     */
+    private void updateVersion(AbstractPojo pojo) {
+        if (pojo == null || pojo.getId() == null) {
+            return;
+        }
+
+        synchronized (pending) {
+            Long[] versions = flushedVersions.get(new Key(pojo));
+            if (versions != null
+                    && versions[0].equals(pojo.getConsistencyVersion())) {
+                pojo.setConsistencyVersion(versions[1]);
+            }
+        }
+    }
+
+    private void failed(AbstractPojo pojo, RuntimeException e) {
+        failures.incrementAndGet();
+        log.log(Level.WARNING, "Could not write "
+                + pojo.getClass().getSimpleName() + " " + pojo.getId(), e);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isTransactionActive() {
+        return transactionDepth.get() != null;
+    }
+
+    /**
+     * Returns a copy of the buffered state of the given entity.
+     * 
+     * @param c
+     *            Entity class
+     * @param id
+     *            Id of the entity
+     * @return A copy of the buffered instance, or null if the entity isn't
+     *         buffered
+     */
+    private AbstractPojo getPending(Class<?> c, Long id) {
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return null;
+            }
+            return FieldCopier.copyOf(pending.get(new Key(c, id)));
+        }
+    }
+
+    /**
+     * Replaces the entities of the list which are buffered with copies of
+     * their buffered instances.
+     * 
+     * @param pojos
+     *            The entities, which are replaced in place
+     * @return The given list
+     */
+    @SuppressWarnings("unchecked")
+    private <A extends AbstractPojo> List<A> overlay(List<A> pojos) {
+        if (pojos == null) {
+            return null;
+        }
+
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return pojos;
+            }
+            for (int i = 0; i < pojos.size(); i++) {
+                A pojo = pojos.get(i);
+                if (pojo != null && pojo.getId() != null) {
+                    AbstractPojo buffered = pending.get(new Key(pojo));
+                    if (buffered != null) {
+                        pojos.set(i, (A) FieldCopier.copyOf(buffered));
+                    }
+                }
+            }
+        }
+        return pojos;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init(String name) {
+        facade.init(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends AbstractPojo> A find(Class<A> clazz, Long id) {
+        AbstractPojo buffered = getPending(clazz, id);
+        if (buffered != null) {
+            return (A) buffered;
+        }
+        return facade.find(clazz, id);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> findAll(Class<A> clazz,
+            Collection<Long> ids) {
+        return overlay(facade.findAll(clazz, ids));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(Class<A> clazz) {
+        return overlay(facade.list(clazz));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(Class<A> clazz,
+            int startIndex, int amount) {
+        return overlay(facade.list(clazz, startIndex, amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(String queryStr,
+            Map<String, Object> parameters) {
+        List<A> result = facade.list(queryStr, parameters);
+        return overlay(result);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(String queryStr,
+            Map<String, Object> parameters, int startIndex, int amount) {
+        List<A> result = facade.list(queryStr, parameters, startIndex, amount);
+        return overlay(result);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Page<A> page(Class<A> clazz,
+            PageToken token, int amount) {
+        return facade.page(clazz, token, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Page<A> page(Class<A> clazz,
+            String orderField, PageToken token, int amount) {
+        return facade.page(clazz, orderField, token, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Iterator<A> iterate(Class<A> clazz,
+            int chunkSize) {
+        return facade.iterate(clazz, chunkSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Iterator<A> iterate(String queryStr,
+            Map<String, Object> parameters, int chunkSize) {
+        return facade.iterate(queryStr, parameters, chunkSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends AbstractPojo> A find(String queryStr,
+            Map<String, Object> parameters) {
+        A pojo = facade.find(queryStr, parameters);
+        if (pojo != null && pojo.getId() != null) {
+            AbstractPojo buffered = getPending(pojo.getClass(), pojo.getId());
+            if (buffered != null) {
+                return (A) buffered;
+            }
+        }
+        return pojo;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The entity is buffered if its class has the write-behind durability and
+     * it has been stored before. Otherwise it is written through.
+     */
+    public void store(AbstractPojo pojo) {
+        if (pojo == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+
+        updateVersion(pojo);
+        if (!isBuffered(pojo)) {
+            facade.store(pojo);
+            return;
+        }
+
+        boolean writeThrough;
+        boolean flush = false;
+        synchronized (pending) {
+            Key key = new Key(pojo);
+            // The facade may have been killed, and the buffer flushed for the
+            // last time, after isBuffered() was checked
+            writeThrough = killed
+                    || (!pending.containsKey(key) && pending.size() >= capacity);
+            if (!writeThrough) {
+                if (pending.put(key, FieldCopier.copyOf(pojo)) != null) {
+                    coalesced.incrementAndGet();
+                }
+                buffered.incrementAndGet();
+                if (pending.size() >= batchSize && !flushRequested) {
+                    flushRequested = true;
+                    flush = true;
+                }
+            }
+        }
+
+        if (writeThrough) {
+            // The flushing can't keep up, so slow down the caller by writing
+            // through
+            facade.store(pojo);
+        } else if (flush) {
+            // A batch is full, flush it without blocking the caller
+            try {
+                executor.execute(flushTask);
+            } catch (RejectedExecutionException e) {
+                // The facade was killed concurrently
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Checks if the given entity should be buffered instead of written
+     * through.
+     * 
+     * @param pojo
+     *            The entity to store
+     * @return true if the entity is buffered
+     */
+    private boolean isBuffered(AbstractPojo pojo) {
+        return pojo != null && pojo.getId() != null && !killed
+                && !isTransactionActive()
+                && getDurability(pojo.getClass()) == WriteDurability.WRITE_BEHIND;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos) {
+        if (pojos == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+
+        List<A> writeThrough = new ArrayList<A>();
+        for (A pojo : pojos) {
+            if (isBuffered(pojo)) {
+                store(pojo);
+            } else {
+                updateVersion(pojo);
+                writeThrough.add(pojo);
+            }
+        }
+
+        if (!writeThrough.isEmpty()) {
+            facade.storeAll(writeThrough);
+        }
+    }
+
+    /**
+     * Removes the given entity from the buffer.
+     * 
+     * @param pojo
+     *            The entity
+     */
+    private void discard(AbstractPojo pojo) {
+        if (pojo != null && pojo.getId() != null) {
+            updateVersion(pojo);
+            synchronized (pending) {
+                Key key = new Key(pojo);
+                pending.remove(key);
+                flushedVersions.remove(key);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Waits for a flush in progress to finish, so that the flush can't write
+     * the entity back after it has been deleted.
+     */
+    public void delete(AbstractPojo pojo) {
+        synchronized (flushLock) {
+            discard(pojo);
+            facade.delete(pojo);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Waits for a flush in progress to finish, so that the flush can't write
+     * the entities back after they have been deleted.
+     */
+    public <A extends AbstractPojo> void deleteAll(Collection<A> pojos) {
+        synchronized (flushLock) {
+            if (pojos != null) {
+                for (A pojo : pojos) {
+                    discard(pojo);
+                }
+            }
+            facade.deleteAll(pojos);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The buffer is flushed first, so that the buffered entities won't later
+     * overwrite the updated values. Inside a transaction, the buffer is
+     * flushed outside the transaction.
+     */
+    public int update(Class<? extends AbstractPojo> c, String setClause,
+            String whereClause, Map<String, Object> parameters) {
+        flushBeforeWrite();
+        return facade.update(c, setClause, whereClause, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The buffer is flushed first, so that the buffered entities won't later
+     * be written back. Inside a transaction, the buffer is flushed outside the
+     * transaction.
+     */
+    public int delete(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters) {
+        flushBeforeWrite();
+        return facade.delete(c, whereClause, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * If the entity is buffered, the buffer is flushed first. Inside a
+     * transaction, the buffer is flushed outside the transaction.
+     */
+    public <A extends AbstractPojo> void refresh(A pojo) {
+        if (pojo != null && pojo.getId() != null
+                && getPending(pojo.getClass(), pojo.getId()) != null) {
+            flushBeforeWrite();
+        }
+        facade.refresh(pojo);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beginUnitOfWork() {
+        facade.beginUnitOfWork();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void endUnitOfWork() {
+        facade.endUnitOfWork();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The buffer is flushed before the transaction begins. The writes made in
+     * the transaction are written through.
+     */
+    public void beginTransaction() {
+        Integer depth = transactionDepth.get();
+        if (depth == null) {
+            flushBeforeWrite();
+        }
+        facade.beginTransaction();
+        transactionDepth.set(depth == null ? 1 : depth + 1);
+    }
+
+    /**
+     * Ends one level of the current thread's transaction.
+     */
+    private void endTransaction() {
+        Integer depth = transactionDepth.get();
+        if (depth == null) {
+            throw new IllegalStateException("No transaction is active");
+        }
+
+        if (depth > 1) {
+            transactionDepth.set(depth - 1);
+        } else {
+            transactionDepth.remove();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void commitTransaction() {
+        endTransaction();
+        facade.commitTransaction();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void rollbackTransaction() {
+        endTransaction();
+        facade.rollbackTransaction();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> T runInTransaction(TransactionCallback<T> callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback may not be null");
+        }
+
+        beginTransaction();
+        boolean success = false;
+        try {
+            T result = callback.execute(this);
+            success = true;
+            return result;
+        } finally {
+            if (success) {
+                commitTransaction();
+            } else {
+                rollbackTransaction();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() {
+        facade.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The buffered entities are flushed before the underlying facade is
+     * killed. Entities stored after this are written through.
+     */
+    public void kill() {
+        synchronized (pending) {
+            killed = true;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        facade.kill();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(Class<? extends AbstractPojo> c) {
+        return facade.count(c);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters) {
+        return facade.count(c, whereClause, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<?> getFieldValues(Class<? extends AbstractPojo> c,
+            String field, String whereConditions, Map<String, Object> parameters) {
+        return facade.getFieldValues(c, field, whereConditions, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> project(Class<? extends AbstractPojo> c,
+            String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        return facade.project(c, fields, whereConditions, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> List<T> project(Class<? extends AbstractPojo> c,
+            Class<T> resultClass, String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        return facade.project(c, resultClass, fields, whereConditions,
+                parameters);
+    }
+
+}
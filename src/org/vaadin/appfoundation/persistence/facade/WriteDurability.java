@@ -0,0 +1,21 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+/**
+ * Durability policies for storing the entities of a class in a
+ * {@link WriteBehindFacade}.
+ * 
+ * @author Kim
+ * 
+ */
+public enum WriteDurability {
+    /**
+     * The entity is stored before the store call returns.
+     */
+    WRITE_THROUGH,
+    /**
+     * The entity is buffered in memory and stored later with other buffered
+     * entities. Writes may be lost if the JVM dies before they are flushed.
+     */
+    WRITE_BEHIND
+    ;
+}
@@ -9,6 +9,7 @@ import org.vaadin.appfoundation.test.authentication.SessionHandlerTest;
 import org.vaadin.appfoundation.test.authentication.UserTest;
 import org.vaadin.appfoundation.test.authentication.UserUtilTest;
 import org.vaadin.appfoundation.test.authorization.PermissionsTest;
+import org.vaadin.appfoundation.test.authorization.jpa.InMemoryJPAPermissionManagerTest;
 import org.vaadin.appfoundation.test.authorization.jpa.JPAPermissionManagerTest;
 import org.vaadin.appfoundation.test.authorization.jpa.PermissionEntityTest;
 import org.vaadin.appfoundation.test.authorization.memory.MemoryPermissionManagerTest;
@@ -21,8 +22,25 @@ import org.vaadin.appfoundation.test.i18n.TmxSourceReaderTest;
 import org.vaadin.appfoundation.test.i18n.TranslationMessageTest;
 import org.vaadin.appfoundation.test.i18n.TranslationUtilTest;
 import org.vaadin.appfoundation.test.persistence.AbstractPojoTest;
+import org.vaadin.appfoundation.test.persistence.AsyncFacadeTest;
+import org.vaadin.appfoundation.test.persistence.ChunkedIteratorTest;
+import org.vaadin.appfoundation.test.persistence.DirtyTrackerTest;
 import org.vaadin.appfoundation.test.persistence.FacadeFactoryTest;
+import org.vaadin.appfoundation.test.persistence.FieldCopierTest;
+import org.vaadin.appfoundation.test.persistence.InMemoryFacadeTest;
+import org.vaadin.appfoundation.test.persistence.InstrumentedFacadeTest;
 import org.vaadin.appfoundation.test.persistence.JPAFacadeTest;
+import org.vaadin.appfoundation.test.persistence.LatencyHistogramTest;
+import org.vaadin.appfoundation.test.persistence.LazyEntityListTest;
+import org.vaadin.appfoundation.test.persistence.OptimisticLockRetrierTest;
+import org.vaadin.appfoundation.test.persistence.RoutingFacadeTest;
+import org.vaadin.appfoundation.test.persistence.ShardedFacadeTest;
+import org.vaadin.appfoundation.test.persistence.UnitOfWorkHandlerTest;
+import org.vaadin.appfoundation.test.persistence.WriteBehindFacadeTest;
+import org.vaadin.appfoundation.test.persistence.cache.EntityCacheTest;
+import org.vaadin.appfoundation.test.persistence.cache.LruCacheTest;
+import org.vaadin.appfoundation.test.persistence.cache.QueryResultCacheTest;
+import org.vaadin.appfoundation.test.persistence.container.EntityContainerTest;
 import org.vaadin.appfoundation.test.view.AbstractViewTest;
 import org.vaadin.appfoundation.test.view.DefaultViewFactoryTest;
 import org.vaadin.appfoundation.test.view.SimpleViewContainerTest;
@@ -40,7 +58,16 @@ import org.vaadin.appfoundation.test.view.ViewItemTest;
         MemoryPermissionManagerTest.class, JPAPermissionManagerTest.class,
         PermissionEntityTest.class, PermissionsTest.class,
         SimpleViewContainerTest.class, I18nFormTest.class,
-        TranslationMessageTest.class, TmxSourceReaderTest.class })
+        TranslationMessageTest.class, TmxSourceReaderTest.class,
+        UnitOfWorkHandlerTest.class, FieldCopierTest.class,
+        ChunkedIteratorTest.class, LruCacheTest.class,
+        EntityCacheTest.class, QueryResultCacheTest.class,
+        AsyncFacadeTest.class, RoutingFacadeTest.class,
+        ShardedFacadeTest.class, InstrumentedFacadeTest.class,
+        LatencyHistogramTest.class, OptimisticLockRetrierTest.class,
+        DirtyTrackerTest.class, InMemoryFacadeTest.class,
+        InMemoryJPAPermissionManagerTest.class, WriteBehindFacadeTest.class,
+        LazyEntityListTest.class, EntityContainerTest.class })
 public class TestSuite {
 
 }
@@ -0,0 +1,132 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.AsyncFacade;
+
+public class AsyncFacadeTest {
+
+    private AsyncFacade asyncFacade;
+
+    private ThreadRecordingFacade facade;
+
+    private static class ThreadRecordingFacade extends MockFacade {
+
+        private final CountDownLatch latch;
+
+        private volatile String threadName;
+
+        public ThreadRecordingFacade(int parties) {
+            latch = new CountDownLatch(parties);
+        }
+
+        @Override
+        public Long count(Class<? extends AbstractPojo> c) {
+            threadName = Thread.currentThread().getName();
+            latch.countDown();
+            try {
+                // Wait until all the parallel calls are running
+                return latch.await(5, TimeUnit.SECONDS) ? 1L : 0L;
+            } catch (InterruptedException e) {
+                return 0L;
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        facade = new ThreadRecordingFacade(3);
+        asyncFacade = new AsyncFacade(facade, 3, 10);
+    }
+
+    @After
+    public void tearDown() {
+        asyncFacade.shutdown();
+    }
+
+    @Test
+    public void callsRunInParallel() throws InterruptedException,
+            ExecutionException {
+        Future<Long> count1 = asyncFacade.count(MockPojo.class);
+        Future<Long> count2 = asyncFacade.count(MockPojo.class);
+        Future<Long> count3 = asyncFacade.count(MockPojo.class);
+
+        // Each call only returns 1 if all three were running at the same time
+        assertEquals(Long.valueOf(1L), count1.get());
+        assertEquals(Long.valueOf(1L), count2.get());
+        assertEquals(Long.valueOf(1L), count3.get());
+        assertTrue(facade.threadName.startsWith("AsyncFacade-"));
+    }
+
+    @Test
+    public void saturatedPoolRejectsCalls() throws InterruptedException,
+            ExecutionException {
+        ThreadRecordingFacade blocking = new ThreadRecordingFacade(2);
+        AsyncFacade saturated = new AsyncFacade(blocking, 1, 1);
+        try {
+            // The first call occupies the only thread and the second one the
+            // only slot in the queue
+            Future<Long> count1 = saturated.count(MockPojo.class);
+            Future<Long> count2 = saturated.count(MockPojo.class);
+            try {
+                saturated.count(MockPojo.class);
+                fail("The call should have been rejected");
+            } catch (RejectedExecutionException e) {
+                // Expected
+            }
+
+            // Release the first call
+            blocking.count(MockPojo.class);
+            assertEquals(Long.valueOf(1L), count1.get());
+            assertEquals(Long.valueOf(1L), count2.get());
+            assertTrue(blocking.threadName.startsWith("AsyncFacade-"));
+        } finally {
+            saturated.shutdown();
+        }
+    }
+
+    @Test
+    public void callsRunInUnitOfWork() throws InterruptedException,
+            ExecutionException {
+        Future<Void> store = asyncFacade.store(new MockPojo());
+        store.get();
+        assertEquals(0, facade.getUnitOfWorkDepth());
+    }
+
+    @Test
+    public void countWithWhereClause() throws InterruptedException,
+            ExecutionException {
+        assertEquals(Long.valueOf(0L), asyncFacade.count(MockPojo.class,
+                "p.foo = :foo", null).get());
+    }
+
+    @Test
+    public void getFacade() {
+        assertNotNull(asyncFacade.getFacade());
+        assertEquals(facade, asyncFacade.getFacade());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullFacade() {
+        new AsyncFacade(null, 1, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPoolSize() {
+        new AsyncFacade(new MockFacade(), 0, 1);
+    }
+
+}
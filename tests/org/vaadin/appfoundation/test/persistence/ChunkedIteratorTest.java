@@ -0,0 +1,104 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.facade.ChunkedIterator;
+
+public class ChunkedIteratorTest {
+
+    private static class NumberIterator extends ChunkedIterator<Integer> {
+
+        private final int total;
+
+        private final List<Integer> lastElements = new ArrayList<Integer>();
+
+        private int fetches = 0;
+
+        public NumberIterator(int total, int chunkSize) {
+            super(chunkSize);
+            this.total = total;
+        }
+
+        @Override
+        protected List<Integer> fetchChunk(int startIndex,
+                Integer lastElement, int amount) {
+            fetches++;
+            lastElements.add(lastElement);
+            List<Integer> chunk = new ArrayList<Integer>();
+            for (int i = startIndex; i < total && i < startIndex + amount; i++) {
+                chunk.add(i);
+            }
+            return chunk;
+        }
+    }
+
+    @Test
+    public void iterate() {
+        NumberIterator it = new NumberIterator(10, 3);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Integer.valueOf(i), it.next());
+        }
+        assertFalse(it.hasNext());
+        assertEquals(4, it.fetches);
+        assertNull(it.lastElements.get(0));
+        assertEquals(Integer.valueOf(2), it.lastElements.get(1));
+        assertEquals(Integer.valueOf(8), it.lastElements.get(3));
+    }
+
+    @Test
+    public void exactMultipleOfChunkSize() {
+        NumberIterator it = new NumberIterator(6, 3);
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        assertEquals(6, count);
+        // The last, empty, chunk is needed to detect the end
+        assertEquals(3, it.fetches);
+        assertFalse(it.hasNext());
+        assertEquals(3, it.fetches);
+    }
+
+    @Test
+    public void empty() {
+        NumberIterator it = new NumberIterator(0, 3);
+        assertFalse(it.hasNext());
+        assertEquals(1, it.fetches);
+    }
+
+    @Test
+    public void nullChunk() {
+        Iterator<Object> it = new ChunkedIterator<Object>(3) {
+            @Override
+            protected List<Object> fetchChunk(int startIndex,
+                    Object lastElement, int amount) {
+                return null;
+            }
+        };
+        assertFalse(it.hasNext());
+    }
+
+    @Test(expected = java.util.NoSuchElementException.class)
+    public void nextPastEnd() {
+        new NumberIterator(0, 3).next();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void remove() {
+        new NumberIterator(1, 3).remove();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidChunkSize() {
+        new NumberIterator(1, 0);
+    }
+
+}
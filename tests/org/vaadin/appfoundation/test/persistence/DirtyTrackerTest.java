@@ -0,0 +1,112 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.DirtyTracker;
+
+public class DirtyTrackerTest {
+
+    private DirtyTracker tracker;
+
+    public static class PojoWithList extends AbstractPojo {
+
+        private static final long serialVersionUID = 1L;
+
+        private List<String> values = new ArrayList<String>();
+
+        public List<String> getValues() {
+            return values;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        tracker = new DirtyTracker();
+    }
+
+    private MockPojo createPojo() {
+        MockPojo pojo = new MockPojo();
+        pojo.setId(1L);
+        pojo.setConsistencyVersion(1L);
+        pojo.setFoo("foo");
+        return pojo;
+    }
+
+    @Test
+    public void unmodified() {
+        MockPojo pojo = createPojo();
+        tracker.snapshot(pojo);
+        assertTrue(tracker.isTracked(pojo));
+        assertTrue(tracker.getDirtyFields(pojo).isEmpty());
+    }
+
+    @Test
+    public void modified() {
+        MockPojo pojo = createPojo();
+        tracker.snapshot(pojo);
+        pojo.setFoo("bar");
+        List<Field> dirty = tracker.getDirtyFields(pojo);
+        assertEquals(1, dirty.size());
+        assertEquals("foo", dirty.get(0).getName());
+
+        // Setting the original value back makes the entity clean again
+        pojo.setFoo("foo");
+        assertTrue(tracker.getDirtyFields(pojo).isEmpty());
+    }
+
+    @Test
+    public void untracked() {
+        MockPojo pojo = createPojo();
+        assertFalse(tracker.isTracked(pojo));
+        assertNull(tracker.getDirtyFields(pojo));
+
+        tracker.snapshot(pojo);
+        tracker.forget(pojo);
+        assertNull(tracker.getDirtyFields(pojo));
+    }
+
+    @Test
+    public void newEntitiesAreNotTracked() {
+        MockPojo pojo = new MockPojo();
+        tracker.snapshot(pojo);
+        assertFalse(tracker.isTracked(pojo));
+    }
+
+    @Test
+    public void changedVersionMakesStateUnknown() {
+        MockPojo pojo = createPojo();
+        tracker.snapshot(pojo);
+        pojo.setConsistencyVersion(2L);
+        assertNull(tracker.getDirtyFields(pojo));
+    }
+
+    @Test
+    public void relationshipsAreNotTracked() {
+        PojoWithList pojo = new PojoWithList();
+        pojo.setId(1L);
+        tracker.snapshot(pojo);
+        assertFalse(tracker.isTracked(pojo));
+    }
+
+    @Test
+    public void instancesAreTrackedSeparately() {
+        MockPojo pojo = createPojo();
+        MockPojo pojo2 = createPojo();
+        tracker.snapshot(pojo);
+        pojo2.setFoo("bar");
+        tracker.snapshot(pojo2);
+        assertTrue(tracker.getDirtyFields(pojo).isEmpty());
+        assertTrue(tracker.getDirtyFields(pojo2).isEmpty());
+    }
+
+}
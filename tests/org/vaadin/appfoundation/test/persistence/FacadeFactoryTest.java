@@ -1,13 +1,22 @@
 package org.vaadin.appfoundation.test.persistence;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.junit.After;
 import org.junit.Test;
 import org.vaadin.appfoundation.persistence.facade.FacadeFactory;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
 import org.vaadin.appfoundation.persistence.facade.JPAFacade;
 
 public class FacadeFactoryTest {
@@ -119,4 +128,215 @@ public class FacadeFactoryTest {
         FacadeFactory.setDefaultFacade("test");
     }
 
+    @Test
+    public void registerFacadeInstance() {
+        IFacade facade = new MockFacade();
+        FacadeFactory.registerFacade(facade, "test", true);
+
+        assertEquals(facade, FacadeFactory.getFacade());
+        assertEquals(facade, FacadeFactory.getFacade("test"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void registerNullFacadeInstance() {
+        FacadeFactory.registerFacade((IFacade) null, "test", true);
+    }
+
+    @Test
+    public void registerAsyncFacade() throws InstantiationException,
+            IllegalAccessException {
+        FacadeFactory.registerFacade(MockFacade.class, "test", false);
+        FacadeFactory.registerAsyncFacade("test", 2, 10);
+
+        assertNotNull(FacadeFactory.getAsyncFacade("test"));
+        assertEquals(FacadeFactory.getFacade("test"), FacadeFactory
+                .getAsyncFacade("test").getFacade());
+        assertNull(FacadeFactory.getAsyncFacade("test2"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void registerAsyncFacadeWithoutFacade() {
+        FacadeFactory.registerAsyncFacade("test", 2, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void registerAsyncFacadeTwice() throws InstantiationException,
+            IllegalAccessException {
+        FacadeFactory.registerFacade(MockFacade.class, "test", false);
+        FacadeFactory.registerAsyncFacade("test", 2, 10);
+        FacadeFactory.registerAsyncFacade("test", 2, 10);
+    }
+
+    @Test
+    public void removeFacadeRemovesAsyncFacade()
+            throws InstantiationException, IllegalAccessException {
+        FacadeFactory.registerFacade(MockFacade.class, "test", false);
+        FacadeFactory.registerAsyncFacade("test", 2, 10);
+        FacadeFactory.removeFacade("test");
+        assertNull(FacadeFactory.getAsyncFacade("test"));
+    }
+
+    @Test
+    public void removeFacadeWaitsForUnitOfWork() throws Exception {
+        FacadeFactory.registerFacade(MockFacade.class, "test", false);
+        MockFacade facade = (MockFacade) FacadeFactory.getFacade("test");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread request = new Thread() {
+            @Override
+            public void run() {
+                FacadeFactory.beginUnitOfWork();
+                try {
+                    started.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    // Ends the unit of work
+                } finally {
+                    FacadeFactory.endUnitOfWork();
+                }
+            }
+        };
+        request.start();
+        started.await();
+
+        Thread remover = new Thread() {
+            @Override
+            public void run() {
+                FacadeFactory.removeFacade("test");
+            }
+        };
+        remover.start();
+        remover.join(200);
+
+        // The facade is unpublished at once, but only killed once the
+        // unit of work using it has ended
+        assertNull(FacadeFactory.getFacade("test"));
+        assertTrue(remover.isAlive());
+        assertEquals(0, facade.getKillCount());
+
+        release.countDown();
+        remover.join(5000);
+        request.join(5000);
+        assertFalse(remover.isAlive());
+        assertEquals(1, facade.getKillCount());
+        assertEquals(0, facade.getUnitOfWorkDepth());
+    }
+
+    @Test
+    public void removeFacadeInOwnUnitOfWork() {
+        FacadeFactory.registerFacade(new MockFacade(), "test", false);
+        MockFacade facade = (MockFacade) FacadeFactory.getFacade("test");
+        FacadeFactory.beginUnitOfWork();
+        try {
+            // Doesn't wait for the calling thread's own unit of work
+            FacadeFactory.removeFacade("test");
+            assertEquals(1, facade.getKillCount());
+        } finally {
+            FacadeFactory.endUnitOfWork();
+        }
+        assertEquals(0, facade.getUnitOfWorkDepth());
+    }
+
+    @Test
+    public void unitOfWorkEndsInFacadesItBeganIn() {
+        MockFacade first = new MockFacade();
+        MockFacade second = new MockFacade();
+        FacadeFactory.registerFacade(first, "first", false);
+        FacadeFactory.beginUnitOfWork();
+        assertEquals(1, first.getUnitOfWorkDepth());
+
+        // A facade registered during the unit of work isn't part of it
+        FacadeFactory.registerFacade(second, "second", false);
+        FacadeFactory.endUnitOfWork();
+        assertEquals(0, first.getUnitOfWorkDepth());
+        assertEquals(0, second.getUnitOfWorkDepth());
+    }
+
+    @Test
+    public void concurrentRegistrationAndReads() throws Exception {
+        final int writers = 4;
+        final int readers = 8;
+        final int rounds = 500;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final List<MockFacade> removed = Collections
+                .synchronizedList(new ArrayList<MockFacade>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        FacadeFactory.registerFacade(MockFacade.class, "stable", true);
+
+        for (int i = 0; i < writers; i++) {
+            final String name = "facade" + i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int round = 0; round < rounds; round++) {
+                            FacadeFactory.registerFacade(MockFacade.class,
+                                    name, round % 2 == 0);
+                            MockFacade facade = (MockFacade) FacadeFactory
+                                    .getFacade(name);
+                            assertNotNull(facade);
+                            FacadeFactory.removeFacade(name);
+                            removed.add(facade);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+
+        for (int i = 0; i < readers; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (running.get()) {
+                            assertNotNull(FacadeFactory.getFacade("stable"));
+                            IFacade facade = FacadeFactory.getFacade();
+                            if (facade != null) {
+                                assertTrue(facade instanceof MockFacade);
+                            }
+                            FacadeFactory.beginUnitOfWork();
+                            FacadeFactory.endUnitOfWork();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (int i = 0; i < writers; i++) {
+            threads.get(i).join();
+        }
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // Every removed facade was killed exactly once and only the stable
+        // facade is left
+        assertEquals(writers * rounds, removed.size());
+        for (MockFacade facade : removed) {
+            assertEquals(1, facade.getKillCount());
+        }
+        for (int i = 0; i < writers; i++) {
+            assertNull(FacadeFactory.getFacade("facade" + i));
+        }
+        assertNotNull(FacadeFactory.getFacade("stable"));
+    }
+
 }
@@ -0,0 +1,93 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+
+import org.junit.Test;
+import org.vaadin.appfoundation.authentication.data.User;
+import org.vaadin.appfoundation.persistence.facade.FieldCopier;
+
+public class FieldCopierTest {
+
+    @Test
+    public void copy() {
+        MockPojo pojo1 = new MockPojo();
+        pojo1.setId(1L);
+        pojo1.setConsistencyVersion(2L);
+        pojo1.setFoo("foo");
+
+        MockPojo pojo2 = new MockPojo();
+        FieldCopier.forClass(MockPojo.class).copy(pojo1, pojo2);
+
+        assertEquals(Long.valueOf(1L), pojo2.getId());
+        assertEquals(Long.valueOf(2L), pojo2.getConsistencyVersion());
+        assertEquals("foo", pojo2.getFoo());
+    }
+
+    @Test
+    public void transientFieldsAreNotCopied() {
+        User user1 = new User();
+        user1.setUsername("test");
+        user1.incrementFailedLoginAttempts();
+        user1.incrementFailedPasswordChangeAttempts();
+
+        User user2 = new User();
+        FieldCopier.forClass(User.class).copy(user1, user2);
+
+        assertEquals("test", user2.getUsername());
+        assertEquals(1, user2.getFailedLoginAttempts());
+        assertEquals(0, user2.getFailedPasswordChangeAttemps());
+    }
+
+    @Test
+    public void fields() {
+        boolean hasId = false;
+        for (Field field : FieldCopier.forClass(User.class).getFields()) {
+            assertFalse("serialVersionUID".equals(field.getName()));
+            assertFalse("failedPasswordChanges".equals(field.getName()));
+            if ("id".equals(field.getName())) {
+                hasId = true;
+            }
+        }
+        assertTrue(hasId);
+    }
+
+    @Test
+    public void getValue() {
+        MockPojo pojo = new MockPojo();
+        pojo.setId(3L);
+        pojo.setFoo("foo");
+
+        FieldCopier copier = FieldCopier.forClass(MockPojo.class);
+        assertEquals("foo", copier.getValue(pojo, "foo"));
+        assertEquals(Long.valueOf(3L), copier.getValue(pojo, "id"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getValueOfUnknownField() {
+        FieldCopier.forClass(MockPojo.class).getValue(new MockPojo(), "bar");
+    }
+
+    @Test
+    public void planIsCached() {
+        assertTrue(FieldCopier.forClass(MockPojo.class) == FieldCopier
+                .forClass(MockPojo.class));
+    }
+
+    @Test
+    public void hasField() {
+        FieldCopier copier = FieldCopier.forClass(MockPojo.class);
+        assertTrue(copier.hasField("foo"));
+        assertTrue(copier.hasField("id"));
+        assertFalse(copier.hasField("bar"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullClass() {
+        FieldCopier.forClass(null);
+    }
+
+}
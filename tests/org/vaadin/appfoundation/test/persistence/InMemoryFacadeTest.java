@@ -0,0 +1,351 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.NonUniqueResultException;
+import javax.persistence.OptimisticLockException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
+import org.vaadin.appfoundation.persistence.facade.InMemoryFacade;
+import org.vaadin.appfoundation.persistence.facade.Page;
+import org.vaadin.appfoundation.persistence.facade.PageToken;
+import org.vaadin.appfoundation.persistence.facade.TransactionCallback;
+
+public class InMemoryFacadeTest {
+
+    private InMemoryFacade facade;
+
+    @Before
+    public void setUp() {
+        facade = new InMemoryFacade();
+        facade.init("memory");
+    }
+
+    @After
+    public void tearDown() {
+        facade.kill();
+    }
+
+    private MockPojo createPojo(String foo) {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo(foo);
+        facade.store(pojo);
+        return pojo;
+    }
+
+    @Test
+    public void store() {
+        MockPojo pojo = createPojo("test");
+        assertNotNull(pojo.getId());
+        assertEquals(1L, (long) pojo.getConsistencyVersion());
+
+        MockPojo found = facade.find(MockPojo.class, pojo.getId());
+        assertEquals("test", found.getFoo());
+        assertNotSame(pojo, found);
+
+        // Changes are not visible before the entity is stored
+        found.setFoo("changed");
+        assertEquals("test", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+
+        facade.store(found);
+        assertEquals(2L, (long) found.getConsistencyVersion());
+        assertEquals("changed", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test(expected = OptimisticLockException.class)
+    public void storeStaleEntity() {
+        MockPojo pojo = createPojo("test");
+        MockPojo other = facade.find(MockPojo.class, pojo.getId());
+        facade.store(other);
+        facade.store(pojo);
+    }
+
+    @Test
+    public void delete() {
+        MockPojo pojo = createPojo("test");
+        createPojo("test2");
+        facade.delete(pojo);
+        assertNull(facade.find(MockPojo.class, pojo.getId()));
+        assertEquals(1L, (long) facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void findAll() {
+        MockPojo pojo1 = createPojo("test1");
+        MockPojo pojo2 = createPojo("test2");
+
+        List<MockPojo> pojos = facade.findAll(MockPojo.class, Arrays.asList(
+                pojo2.getId(), -1L, pojo1.getId()));
+        assertEquals(3, pojos.size());
+        assertEquals("test2", pojos.get(0).getFoo());
+        assertNull(pojos.get(1));
+        assertEquals("test1", pojos.get(2).getFoo());
+    }
+
+    @Test
+    public void listQuery() {
+        createPojo("b");
+        createPojo("a");
+        createPojo("c");
+        createPojo(null);
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "b");
+        List<MockPojo> pojos = facade.list(
+                "SELECT p FROM MockPojo p WHERE p.foo <> :foo "
+                        + "AND p.foo IS NOT NULL ORDER BY p.foo DESC",
+                parameters);
+        assertEquals(2, pojos.size());
+        assertEquals("c", pojos.get(0).getFoo());
+        assertEquals("a", pojos.get(1).getFoo());
+
+        pojos = facade.list("SELECT p FROM MockPojo p ORDER BY p.foo", null,
+                1, 2);
+        assertEquals(2, pojos.size());
+        assertEquals("a", pojos.get(0).getFoo());
+        assertEquals("b", pojos.get(1).getFoo());
+
+        assertTrue(facade.list("SELECT p FROM Unknown p", null).isEmpty());
+    }
+
+    @Test
+    public void likeAndIn() {
+        createPojo("foobar");
+        createPojo("barfoo");
+        createPojo("bar");
+
+        List<MockPojo> pojos = facade.list(
+                "SELECT p FROM MockPojo p WHERE p.foo LIKE 'foo%'", null);
+        assertEquals(1, pojos.size());
+        assertEquals("foobar", pojos.get(0).getFoo());
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("values", Arrays.asList("bar", "barfoo"));
+        assertEquals(2L, (long) facade.count(MockPojo.class,
+                "p.foo IN :values", parameters));
+        assertEquals(1L, (long) facade.count(MockPojo.class,
+                "p.foo NOT IN ('foobar', 'barfoo')", null));
+    }
+
+    @Test
+    public void findQuery() {
+        createPojo("test1");
+        createPojo("test2");
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "test2");
+        MockPojo pojo = facade.find(
+                "SELECT p FROM MockPojo p WHERE p.foo = :foo", parameters);
+        assertEquals("test2", pojo.getFoo());
+
+        parameters.put("foo", "test3");
+        assertNull(facade.find("SELECT p FROM MockPojo p WHERE p.foo = :foo",
+                parameters));
+    }
+
+    @Test(expected = NonUniqueResultException.class)
+    public void findQueryNonUnique() {
+        createPojo("test");
+        createPojo("test");
+        facade.find("SELECT p FROM MockPojo p", null);
+    }
+
+    @Test
+    public void page() {
+        for (int i = 0; i < 5; i++) {
+            createPojo("test" + (4 - i));
+        }
+
+        List<String> values = new ArrayList<String>();
+        Page<MockPojo> page = facade.page(MockPojo.class, "foo", null, 2);
+        while (true) {
+            for (MockPojo pojo : page.getItems()) {
+                values.add(pojo.getFoo());
+            }
+            if (!page.hasNextPage()) {
+                break;
+            }
+            page = facade.page(MockPojo.class, "foo", page
+                    .getNextPageToken(), 2);
+        }
+        assertEquals(Arrays.asList("test0", "test1", "test2", "test3",
+                "test4"), values);
+    }
+
+    @Test
+    public void pageByFieldWithNulls() {
+        String[] values = new String[] { "b", null, "a", null, null };
+        for (String value : values) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(value);
+            facade.store(pojo);
+        }
+
+        List<String> paged = new ArrayList<String>();
+        PageToken token = null;
+        do {
+            Page<MockPojo> page = facade.page(MockPojo.class, "foo", token, 2);
+            for (MockPojo pojo : page.getItems()) {
+                paged.add(pojo.getFoo());
+            }
+            token = page.getNextPageToken();
+        } while (token != null);
+
+        // The nulls come first
+        assertEquals(Arrays.asList(null, null, null, "a", "b"), paged);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pageByUnknownField() {
+        facade.page(MockPojo.class, "foo FROM MockPojo", null, 2);
+    }
+
+    @Test
+    public void pageIsSerializable() throws IOException,
+            ClassNotFoundException {
+        for (int i = 0; i < 3; i++) {
+            createPojo("test" + i);
+        }
+
+        Page<MockPojo> page = facade.page(MockPojo.class, "foo", null, 2);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(page);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                bytes.toByteArray()));
+        Page<?> copy = (Page<?>) in.readObject();
+        assertEquals(2, copy.getItems().size());
+        assertTrue(copy.hasNextPage());
+    }
+
+    @Test
+    public void iterate() {
+        for (int i = 0; i < 5; i++) {
+            createPojo("test" + i);
+        }
+
+        Iterator<MockPojo> iterator = facade.iterate(MockPojo.class, 2);
+        int i = 0;
+        while (iterator.hasNext()) {
+            assertEquals("test" + i++, iterator.next().getFoo());
+        }
+        assertEquals(5, i);
+    }
+
+    @Test
+    public void updateAndDeleteByCriteria() {
+        MockPojo pojo = createPojo("a");
+        createPojo("b");
+        createPojo("b");
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "b");
+        parameters.put("value", "c");
+        assertEquals(2, facade.update(MockPojo.class, "p.foo = :value",
+                "p.foo = :foo", parameters));
+        assertEquals(2L, (long) facade.count(MockPojo.class, "p.foo = 'c'",
+                null));
+
+        // The updated entities got a new version
+        assertEquals(1L, (long) facade.find(MockPojo.class, pojo.getId())
+                .getConsistencyVersion());
+        parameters.clear();
+        parameters.put("foo", "c");
+        for (MockPojo updated : facade.<MockPojo> list(
+                "SELECT p FROM MockPojo p WHERE p.foo = :foo", parameters)) {
+            assertEquals(2L, (long) updated.getConsistencyVersion());
+        }
+
+        assertEquals(2, facade.delete(MockPojo.class, "p.foo = :foo",
+                parameters));
+        assertEquals(1L, (long) facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void project() {
+        MockPojo pojo = createPojo("test");
+
+        List<?> values = facade.getFieldValues(MockPojo.class, "foo", null,
+                null);
+        assertEquals(Arrays.asList("test"), values);
+
+        List<MockPojoSummary> summaries = facade.project(MockPojo.class,
+                MockPojoSummary.class, new String[] { "id", "foo" }, null,
+                null);
+        assertEquals(1, summaries.size());
+        assertEquals(pojo.getId(), summaries.get(0).getId());
+        assertEquals("test", summaries.get(0).getFoo());
+    }
+
+    @Test
+    public void transactionRollback() {
+        final MockPojo pojo = createPojo("test");
+
+        try {
+            facade.runInTransaction(new TransactionCallback<Void>() {
+                public Void execute(IFacade facade) {
+                    pojo.setFoo("changed");
+                    facade.store(pojo);
+                    MockPojo other = new MockPojo();
+                    facade.store(other);
+                    throw new IllegalStateException();
+                }
+            });
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        assertEquals("test", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+        assertEquals(1L, (long) facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void transactionCommit() {
+        facade.beginTransaction();
+        createPojo("test");
+        facade.beginTransaction();
+        createPojo("test");
+        facade.commitTransaction();
+        facade.commitTransaction();
+        assertEquals(2L, (long) facade.count(MockPojo.class));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void commitWithoutTransaction() {
+        facade.commitTransaction();
+    }
+
+    @Test
+    public void kill() {
+        createPojo("test");
+        facade.kill();
+        assertEquals(0L, (long) facade.count(MockPojo.class));
+        assertFalse(facade.iterate(MockPojo.class, 10).hasNext());
+    }
+
+}
@@ -0,0 +1,135 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.FacadeFactory;
+import org.vaadin.appfoundation.persistence.facade.FacadeStatistics;
+import org.vaadin.appfoundation.persistence.facade.InstrumentedFacade;
+
+public class InstrumentedFacadeTest {
+
+    private InstrumentedFacade facade;
+
+    private static class ListingFacade extends MockFacade {
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <A extends AbstractPojo> List<A> list(String queryStr,
+                Map<String, Object> parameters) {
+            List<A> pojos = new ArrayList<A>();
+            pojos.add((A) new MockPojo());
+            pojos.add((A) new MockPojo());
+            return pojos;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        facade = new InstrumentedFacade(new ListingFacade());
+    }
+
+    @After
+    public void tearDown() {
+        facade.kill();
+        FacadeFactory.clear();
+    }
+
+    @Test
+    public void recordMethods() {
+        facade.count(MockPojo.class);
+        facade.count(MockPojo.class);
+        facade.store(new MockPojo());
+
+        FacadeStatistics statistics = facade.getStatistics();
+        assertEquals(3, statistics.getCallCount());
+        assertEquals(2, statistics.getMethodHistogram("count").getCount());
+        assertEquals(1, statistics.getMethodHistogram("store").getCount());
+        assertNull(statistics.getMethodHistogram("delete"));
+    }
+
+    @Test
+    public void recordQueries() {
+        String query = "SELECT p FROM MockPojo p";
+        facade.list(query, null);
+        facade.list(query, null);
+
+        FacadeStatistics statistics = facade.getStatistics();
+        assertEquals(2, statistics.getQueryHistogram(query).getCount());
+        assertEquals(4, statistics.getRowCount());
+        assertEquals(1, statistics.getQueryStatistics().length);
+        assertTrue(statistics.getQueryStatistics()[0].startsWith(query));
+    }
+
+    @Test
+    public void slowQueries() {
+        FacadeStatistics statistics = facade.getStatistics();
+        statistics.setSlowQueryThreshold(0);
+        facade.count(MockPojo.class);
+        assertEquals(1, statistics.getSlowQueryCount());
+
+        statistics.setSlowQueryThreshold(60000);
+        facade.count(MockPojo.class);
+        assertEquals(1, statistics.getSlowQueryCount());
+    }
+
+    @Test
+    public void transactionCountersNotAvailable() {
+        assertEquals(-1, facade.getStatistics().getCommitCount());
+        assertEquals(-1, facade.getStatistics().getEntityManagersCreated());
+    }
+
+    @Test
+    public void reset() {
+        facade.count(MockPojo.class);
+        facade.getStatistics().reset();
+        assertEquals(0, facade.getStatistics().getCallCount());
+    }
+
+    @Test
+    public void registerMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        facade.registerMBean("test");
+        ObjectName name = facade.getStatistics().getObjectName();
+        assertNotNull(name);
+        assertTrue(server.isRegistered(name));
+
+        facade.count(MockPojo.class);
+        assertEquals(1L, server.getAttribute(name, "CallCount"));
+
+        facade.kill();
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void instrumentRegisteredFacade() throws InstantiationException,
+            IllegalAccessException {
+        FacadeFactory.registerFacade(MockFacade.class, "test", true);
+        InstrumentedFacade instrumented = FacadeFactory.instrumentFacade("test");
+
+        assertEquals(instrumented, FacadeFactory.getFacade());
+        assertEquals(instrumented, FacadeFactory.getFacade("test"));
+        assertTrue(instrumented.getFacade() instanceof MockFacade);
+        assertEquals(instrumented, FacadeFactory.instrumentFacade("test"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void instrumentMissingFacade() {
+        FacadeFactory.instrumentFacade("test");
+    }
+}
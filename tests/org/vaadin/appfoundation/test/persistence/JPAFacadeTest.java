@@ -1,20 +1,38 @@
 package org.vaadin.appfoundation.test.persistence;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.RollbackException;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.vaadin.appfoundation.persistence.cache.EntityCache;
+import org.vaadin.appfoundation.persistence.cache.QueryResultCache;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
 import org.vaadin.appfoundation.persistence.facade.JPAFacade;
+import org.vaadin.appfoundation.persistence.facade.Mutation;
+import org.vaadin.appfoundation.persistence.facade.OptimisticLockRetrier;
+import org.vaadin.appfoundation.persistence.facade.Page;
+import org.vaadin.appfoundation.persistence.facade.PageToken;
+import org.vaadin.appfoundation.persistence.facade.QueryCache;
+import org.vaadin.appfoundation.persistence.facade.TransactionCallback;
 
 public class JPAFacadeTest {
 
@@ -46,6 +64,41 @@ public class JPAFacadeTest {
                 .getFoo());
     }
 
+    @Test
+    public void storeWithRefresh() {
+        assertFalse(facade.isRefreshAfterStore());
+        facade.setRefreshAfterStore(true);
+        assertTrue(facade.isRefreshAfterStore());
+
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        assertNotNull(pojo.getId());
+        assertEquals(Long.valueOf(1L), pojo.getConsistencyVersion());
+        pojo.setFoo("foobar");
+        facade.store(pojo);
+        assertEquals(Long.valueOf(2L), pojo.getConsistencyVersion());
+    }
+
+    @Test
+    public void storeAllUpdatesVersions() {
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < 3; i++) {
+            MockPojo pojo = new MockPojo();
+            facade.store(pojo);
+            pojo.setFoo(Integer.toString(i));
+            pojos.add(pojo);
+        }
+        pojos.add(new MockPojo());
+
+        facade.storeAll(pojos);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Long.valueOf(2L), pojos.get(i).getConsistencyVersion());
+        }
+        assertNotNull(pojos.get(3).getId());
+        assertEquals(Long.valueOf(1L), pojos.get(3).getConsistencyVersion());
+    }
+
     @Test
     public void find() {
         MockPojo pojo1 = new MockPojo();
@@ -57,6 +110,31 @@ public class JPAFacadeTest {
         assertEquals(pojo1.getFoo(), pojo2.getFoo());
     }
 
+    @Test
+    public void findWithEntityCache() {
+        EntityCache cache = new EntityCache(100, 0);
+        facade.setEntityCache(cache);
+        assertEquals(cache, facade.getEntityCache());
+
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+
+        // Storing puts the entity in the cache
+        assertEquals("foo", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+        assertEquals(1L, cache.getHits());
+
+        pojo.setFoo("bar");
+        facade.store(pojo);
+        MockPojo cached = facade.find(MockPojo.class, pojo.getId());
+        assertEquals("bar", cached.getFoo());
+        assertEquals(Long.valueOf(2L), cached.getConsistencyVersion());
+
+        facade.delete(pojo);
+        assertNull(facade.find(MockPojo.class, pojo.getId()));
+    }
+
     @Test
     public void findQuery() {
         MockPojo pojo1 = new MockPojo();
@@ -72,6 +150,88 @@ public class JPAFacadeTest {
         assertEquals(pojo1.getId(), pojo2.getId());
     }
 
+    @Test
+    public void queryCache() {
+        MockPojo pojo1 = new MockPojo();
+        pojo1.setFoo("foo");
+        facade.store(pojo1);
+
+        QueryCache cache = facade.getQueryCache();
+        cache.clear();
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "foo");
+        String query = "SELECT p FROM MockPojo p WHERE p.foo = :foo";
+        assertEquals(pojo1.getId(), facade.<MockPojo> find(query, parameters)
+                .getId());
+        assertEquals(0L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+
+        // The same query with different parameter values uses the compiled
+        // query
+        parameters.put("foo", "bar");
+        assertNull(facade.find(query, parameters));
+        parameters.put("foo", "foo");
+        assertEquals(pojo1.getId(), facade.<MockPojo> find(query, parameters)
+                .getId());
+        assertEquals(2L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+        assertEquals(1, cache.size());
+
+        facade.count(MockPojo.class);
+        facade.count(MockPojo.class);
+        assertEquals(3L, cache.getHits());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void queryCacheEvictsLeastRecentlyUsed() {
+        EntityManagerFactory emf = Persistence
+                .createEntityManagerFactory("default");
+        EntityManager em = emf.createEntityManager();
+        try {
+            QueryCache cache = new QueryCache(2);
+            String query1 = "SELECT p FROM MockPojo p";
+            String query2 = "SELECT COUNT(p.id) FROM MockPojo p";
+            String query3 = "SELECT p FROM MockPojo p WHERE p.foo = :foo";
+            cache.createQuery(em, query1);
+            cache.createQuery(em, query2);
+            cache.createQuery(em, query1);
+            // The cache is full, so the least recently used query2 is evicted
+            cache.createQuery(em, query3);
+            assertEquals(2, cache.size());
+            assertEquals(1L, cache.getHits());
+            assertEquals(3L, cache.getMisses());
+
+            cache.createQuery(em, query1);
+            cache.createQuery(em, query3);
+            assertEquals(3L, cache.getHits());
+            cache.createQuery(em, query2);
+            assertEquals(4L, cache.getMisses());
+        } finally {
+            em.close();
+            emf.close();
+        }
+    }
+
+    @Test
+    public void queryCacheDisabled() {
+        EntityManagerFactory emf = Persistence
+                .createEntityManagerFactory("default");
+        EntityManager em = emf.createEntityManager();
+        try {
+            QueryCache cache = new QueryCache(0);
+            cache.createQuery(em, "SELECT p FROM MockPojo p");
+            cache.createQuery(em, "SELECT p FROM MockPojo p");
+            assertEquals(0, cache.size());
+            assertEquals(0L, cache.getHits());
+            assertEquals(2L, cache.getMisses());
+        } finally {
+            em.close();
+            emf.close();
+        }
+    }
+
     @Test
     public void findNoResult() {
         MockPojo pojo1 = new MockPojo();
@@ -97,6 +257,28 @@ public class JPAFacadeTest {
         assertEquals(Long.valueOf(7L), facade.count(MockPojo.class));
     }
 
+    @Test
+    public void countWithQueryResultCache() {
+        QueryResultCache cache = new QueryResultCache(100, 0);
+        facade.setQueryResultCache(cache);
+        assertEquals(cache, facade.getQueryResultCache());
+
+        for (int i = 0; i < 3; i++) {
+            facade.store(new MockPojo());
+        }
+
+        assertEquals(Long.valueOf(3L), facade.count(MockPojo.class));
+        assertEquals(Long.valueOf(3L), facade.count(MockPojo.class));
+        assertEquals(1L, cache.getHits());
+
+        // Writes through the facade invalidate the cached counts
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        assertEquals(Long.valueOf(4L), facade.count(MockPojo.class));
+        facade.delete(pojo);
+        assertEquals(Long.valueOf(3L), facade.count(MockPojo.class));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void countGetException() {
         facade.count(null);
@@ -202,6 +384,152 @@ public class JPAFacadeTest {
         assertEquals(uuids.get(6), pojos.get(2).getFoo());
     }
 
+    @Test
+    public void page() {
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 7; i++) {
+            MockPojo pojo = new MockPojo();
+            facade.store(pojo);
+            ids.add(pojo.getId());
+        }
+
+        Page<MockPojo> page = facade.page(MockPojo.class, null, 3);
+        assertEquals(3, page.getItems().size());
+        assertTrue(page.hasNextPage());
+        assertEquals(ids.get(0), page.getItems().get(0).getId());
+
+        page = facade.page(MockPojo.class, page.getNextPageToken(), 3);
+        assertEquals(3, page.getItems().size());
+        assertEquals(ids.get(3), page.getItems().get(0).getId());
+
+        page = facade.page(MockPojo.class, page.getNextPageToken(), 3);
+        assertEquals(1, page.getItems().size());
+        assertEquals(ids.get(6), page.getItems().get(0).getId());
+        assertFalse(page.hasNextPage());
+    }
+
+    @Test
+    public void pageByField() {
+        // Duplicate values are ordered by the id
+        String[] values = new String[] { "c", "a", "b", "a", "c", "b" };
+        for (String value : values) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(value);
+            facade.store(pojo);
+        }
+
+        List<String> paged = new ArrayList<String>();
+        List<Long> pagedIds = new ArrayList<Long>();
+        PageToken token = null;
+        do {
+            Page<MockPojo> page = facade.page(MockPojo.class, "foo", token, 4);
+            for (MockPojo pojo : page.getItems()) {
+                paged.add(pojo.getFoo());
+                pagedIds.add(pojo.getId());
+            }
+            token = page.getNextPageToken();
+        } while (token != null);
+
+        assertEquals(6, paged.size());
+        assertEquals("a", paged.get(0));
+        assertEquals("a", paged.get(1));
+        assertTrue(pagedIds.get(0) < pagedIds.get(1));
+        assertEquals("b", paged.get(2));
+        assertEquals("c", paged.get(5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pageWithInvalidAmount() {
+        facade.page(MockPojo.class, null, 0);
+    }
+
+    @Test
+    public void pageByFieldWithNulls() {
+        String[] values = new String[] { "b", null, "a", null, null };
+        for (String value : values) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(value);
+            facade.store(pojo);
+        }
+
+        List<String> paged = new ArrayList<String>();
+        PageToken token = null;
+        do {
+            Page<MockPojo> page = facade.page(MockPojo.class, "foo", token, 2);
+            for (MockPojo pojo : page.getItems()) {
+                paged.add(pojo.getFoo());
+            }
+            token = page.getNextPageToken();
+        } while (token != null);
+
+        // The nulls come first
+        assertEquals(Arrays.asList(null, null, null, "a", "b"), paged);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pageByUnknownField() {
+        facade.page(MockPojo.class, "foo FROM MockPojo", null, 2);
+    }
+
+    @Test
+    public void iterate() {
+        List<String> values = new ArrayList<String>();
+        for (int i = 0; i < 11; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(Integer.toString(i));
+            values.add(pojo.getFoo());
+            facade.store(pojo);
+        }
+
+        Iterator<MockPojo> it = facade.iterate(MockPojo.class, 4);
+        List<String> iterated = new ArrayList<String>();
+        while (it.hasNext()) {
+            iterated.add(it.next().getFoo());
+        }
+        assertEquals(values, iterated);
+    }
+
+    @Test
+    public void iterateInUnitOfWork() {
+        for (int i = 0; i < 5; i++) {
+            facade.store(new MockPojo());
+        }
+
+        facade.beginUnitOfWork();
+        try {
+            int count = 0;
+            Iterator<MockPojo> it = facade.iterate(MockPojo.class, 2);
+            while (it.hasNext()) {
+                assertNotNull(it.next().getId());
+                count++;
+            }
+            assertEquals(5, count);
+        } finally {
+            facade.endUnitOfWork();
+        }
+    }
+
+    @Test
+    public void iterateQuery() {
+        for (int i = 0; i < 14; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo((i % 2 == 0 ? "foo" : "bar") + i);
+            facade.store(pojo);
+        }
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "foo%");
+        Iterator<MockPojo> it = facade.iterate(
+                "SELECT p FROM MockPojo p WHERE p.foo LIKE :foo ORDER BY p.id",
+                parameters, 3);
+        int count = 0;
+        while (it.hasNext()) {
+            assertTrue(it.next().getFoo().startsWith("foo"));
+            count++;
+        }
+        assertEquals(7, count);
+    }
+
     @Test
     public void storeAll() {
         List<String> uuids = new ArrayList<String>();
@@ -272,6 +600,7 @@ public class JPAFacadeTest {
         }
 
         pojos.add(new MockPojo());
+        pojos.add(null);
         facade.deleteAll(pojos);
 
         pojos = facade.list(MockPojo.class);
@@ -283,6 +612,76 @@ public class JPAFacadeTest {
         }
     }
 
+    @Test
+    public void storeAllInBatches() {
+        facade.setBatchSize(3);
+        assertEquals(3, facade.getBatchSize());
+
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < 10; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(Integer.toString(i));
+            pojos.add(pojo);
+        }
+        facade.storeAll(pojos);
+
+        for (MockPojo pojo : pojos) {
+            assertNotNull(pojo.getId());
+            assertEquals(Long.valueOf(1L), pojo.getConsistencyVersion());
+        }
+        assertEquals(Long.valueOf(10L), facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void storeAllInTransactionKeepsEntitiesManaged() {
+        final MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        facade.setBatchSize(1);
+
+        facade.runInTransaction(new TransactionCallback<Void>() {
+            public Void execute(IFacade facade) {
+                MockPojo managed = facade.find(MockPojo.class, pojo.getId());
+                List<MockPojo> pojos = new ArrayList<MockPojo>();
+                pojos.add(new MockPojo());
+                pojos.add(new MockPojo());
+                facade.storeAll(pojos);
+                // Still managed, so the change is written on commit
+                managed.setFoo("changed");
+                return null;
+            }
+        });
+        assertEquals("changed", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setInvalidBatchSize() {
+        facade.setBatchSize(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidDefaultBatchSize() {
+        System.setProperty("persistence.batch.size", "0");
+        try {
+            new JPAFacade("default");
+        } finally {
+            System.clearProperty("persistence.batch.size");
+        }
+    }
+
+    @Test
+    public void deleteAllLargeAmount() {
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < 1200; i++) {
+            pojos.add(new MockPojo());
+        }
+        facade.storeAll(pojos);
+        assertEquals(Long.valueOf(1200L), facade.count(MockPojo.class));
+
+        facade.deleteAll(pojos.subList(0, 1100));
+        assertEquals(Long.valueOf(100L), facade.count(MockPojo.class));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void deleteAllWithNull() {
         facade.deleteAll(null);
@@ -342,4 +741,520 @@ public class JPAFacadeTest {
         }
     }
 
+    @Test
+    public void project() {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+        MockPojo pojo2 = new MockPojo();
+        pojo2.setFoo("bar");
+        facade.store(pojo2);
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("id", pojo.getId());
+        List<Object[]> tuples = facade.project(MockPojo.class, new String[] {
+                "id", "foo" }, "p.id = :id", parameters);
+        assertEquals(1, tuples.size());
+        assertEquals(pojo.getId(), tuples.get(0)[0]);
+        assertEquals("foo", tuples.get(0)[1]);
+
+        // A single field is also returned as a tuple
+        tuples = facade.project(MockPojo.class, new String[] { "foo" }, null,
+                null);
+        assertEquals(2, tuples.size());
+        assertEquals(1, tuples.get(0).length);
+    }
+
+    @Test
+    public void projectWithQueryResultCache() {
+        facade.setQueryResultCache(new QueryResultCache(100, 0));
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+
+        // The values and the tuples of the same field are cached separately
+        List<?> values = facade.getFieldValues(MockPojo.class, "foo", null,
+                null);
+        assertEquals("foo", values.get(0));
+        List<Object[]> tuples = facade.project(MockPojo.class,
+                new String[] { "foo" }, null, null);
+        assertEquals("foo", tuples.get(0)[0]);
+        values = facade.getFieldValues(MockPojo.class, "foo", null, null);
+        assertEquals("foo", values.get(0));
+    }
+
+    @Test
+    public void projectToObjects() {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+
+        List<MockPojoSummary> summaries = facade.project(MockPojo.class,
+                MockPojoSummary.class, new String[] { "id", "foo" }, null,
+                null);
+        assertEquals(1, summaries.size());
+        assertEquals(pojo.getId(), summaries.get(0).getId());
+        assertEquals("foo", summaries.get(0).getFoo());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void projectWithoutFields() {
+        facade.project(MockPojo.class, new String[0], null, null);
+    }
+
+    @Test
+    public void bulkUpdate() {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+        MockPojo pojo2 = new MockPojo();
+        pojo2.setFoo("bar");
+        facade.store(pojo2);
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("newFoo", "updated");
+        parameters.put("foo", "foo");
+        assertEquals(1, facade.update(MockPojo.class, "p.foo = :newFoo",
+                "p.foo = :foo", parameters));
+
+        MockPojo updated = facade.find(MockPojo.class, pojo.getId());
+        assertEquals("updated", updated.getFoo());
+        // The version is incremented to detect stale copies
+        assertEquals(Long.valueOf(2L), updated.getConsistencyVersion());
+        assertEquals("bar", facade.find(MockPojo.class, pojo2.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void bulkUpdateInvalidatesCaches() {
+        facade.setEntityCache(new EntityCache(100, 0));
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+        facade.find(MockPojo.class, pojo.getId());
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("newFoo", "updated");
+        facade.update(MockPojo.class, "p.foo = :newFoo", null, parameters);
+        assertEquals("updated", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void bulkDelete() {
+        for (int i = 0; i < 10; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(i % 2 == 0 ? "even" : "odd");
+            facade.store(pojo);
+        }
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "even");
+        assertEquals(5, facade.delete(MockPojo.class, "p.foo = :foo",
+                parameters));
+        assertEquals((Long) 5L, facade.count(MockPojo.class));
+        assertEquals(5, facade.delete(MockPojo.class, null, null));
+        assertEquals((Long) 0L, facade.count(MockPojo.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bulkUpdateWithoutSetClause() {
+        facade.update(MockPojo.class, null, null, null);
+    }
+
+    @Test
+    public void findAll() {
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 600; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo("foo" + i);
+            facade.store(pojo);
+            ids.add(pojo.getId());
+        }
+
+        // Request the entities in reverse order with a missing id in between
+        List<Long> requested = new ArrayList<Long>();
+        for (int i = ids.size() - 1; i >= 0; i--) {
+            requested.add(ids.get(i));
+        }
+        requested.add(1, -1L);
+
+        List<MockPojo> pojos = facade.findAll(MockPojo.class, requested);
+        assertEquals(601, pojos.size());
+        assertEquals("foo599", pojos.get(0).getFoo());
+        assertNull(pojos.get(1));
+        assertEquals("foo598", pojos.get(2).getFoo());
+        assertEquals("foo0", pojos.get(600).getFoo());
+    }
+
+    @Test
+    public void findAllWithEntityCache() {
+        EntityCache cache = new EntityCache(100, 0);
+        facade.setEntityCache(cache);
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        MockPojo pojo2 = new MockPojo();
+        facade.store(pojo2);
+        cache.clear();
+
+        facade.find(MockPojo.class, pojo.getId());
+        long hits = cache.getHits();
+        List<Long> ids = new ArrayList<Long>();
+        ids.add(pojo.getId());
+        ids.add(pojo2.getId());
+        ids.add(pojo.getId());
+        List<MockPojo> pojos = facade.findAll(MockPojo.class, ids);
+        assertEquals(3, pojos.size());
+        assertEquals(pojo.getId(), pojos.get(2).getId());
+        assertEquals(hits + 1, cache.getHits());
+    }
+
+    @Test
+    public void unitOfWork() {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+
+        facade.beginUnitOfWork();
+        try {
+            // Both finds share the same persistence context
+            MockPojo pojo1 = facade.find(MockPojo.class, pojo.getId());
+            MockPojo pojo2 = facade.find(MockPojo.class, pojo.getId());
+            assertTrue(pojo1 == pojo2);
+
+            pojo1.setFoo("bar");
+            facade.store(pojo1);
+            assertEquals(Long.valueOf(2L), pojo1.getConsistencyVersion());
+        } finally {
+            facade.endUnitOfWork();
+        }
+
+        assertEquals("bar", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void nestedUnitOfWork() {
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+
+        facade.beginUnitOfWork();
+        facade.beginUnitOfWork();
+        MockPojo pojo1 = facade.find(MockPojo.class, pojo.getId());
+        facade.endUnitOfWork();
+        // The outer unit of work is still active
+        assertTrue(pojo1 == facade.find(MockPojo.class, pojo.getId()));
+        facade.endUnitOfWork();
+
+        assertTrue(pojo1 != facade.find(MockPojo.class, pojo.getId()));
+    }
+
+    @Test
+    public void failedWriteInUnitOfWork() {
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        MockPojo removed = facade.find(MockPojo.class, pojo.getId());
+        facade.delete(pojo);
+
+        facade.beginUnitOfWork();
+        try {
+            try {
+                // The entity is already gone, so the removal fails
+                facade.delete(removed);
+            } catch (RuntimeException e) {
+                // Expected
+            }
+
+            // The failed write's transaction must not be left active
+            MockPojo other = new MockPojo();
+            other.setFoo("foo");
+            facade.store(other);
+            assertNotNull(other.getId());
+        } finally {
+            facade.endUnitOfWork();
+        }
+    }
+
+    @Test
+    public void endUnitOfWorkWithoutBegin() {
+        // Should be silently ignored
+        facade.endUnitOfWork();
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        assertNotNull(facade.find(MockPojo.class, pojo.getId()));
+    }
+
+    @Test
+    public void monitoringCounters() {
+        long created = facade.getEntityManagersCreated();
+        long commits = facade.getCommitCount();
+
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        facade.find(MockPojo.class, pojo.getId());
+        assertEquals(created + 2, facade.getEntityManagersCreated());
+        assertEquals(commits + 1, facade.getCommitCount());
+
+        // A failing store rolls back its transaction
+        long rollbacks = facade.getRollbackCount();
+        MockPojo stale = new MockPojo();
+        stale.setId(pojo.getId());
+        stale.setConsistencyVersion(0L);
+        try {
+            facade.store(stale);
+        } catch (RuntimeException e) {
+            // Expected
+        }
+        assertEquals(rollbacks + 1, facade.getRollbackCount());
+    }
+
+    @Test
+    public void transaction() {
+        long commits = facade.getCommitCount();
+        facade.beginTransaction();
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+        // The id and version are available before the commit
+        assertNotNull(pojo.getId());
+        assertEquals(Long.valueOf(1L), pojo.getConsistencyVersion());
+        pojo.setFoo("bar");
+        facade.store(pojo);
+        MockPojo pojo2 = new MockPojo();
+        facade.store(pojo2);
+        // The transaction sees its own writes
+        assertEquals("bar", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+        facade.commitTransaction();
+
+        assertEquals(commits + 1, facade.getCommitCount());
+        assertEquals("bar", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+        assertNotNull(facade.find(MockPojo.class, pojo2.getId()));
+    }
+
+    @Test
+    public void transactionRollback() {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+
+        facade.beginTransaction();
+        pojo.setFoo("bar");
+        facade.store(pojo);
+        MockPojo pojo2 = new MockPojo();
+        facade.store(pojo2);
+        facade.rollbackTransaction();
+
+        assertEquals("foo", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+        assertNull(facade.find(MockPojo.class, pojo2.getId()));
+    }
+
+    @Test
+    public void nestedTransaction() {
+        long commits = facade.getCommitCount();
+        facade.beginTransaction();
+        facade.store(new MockPojo());
+        facade.beginTransaction();
+        facade.store(new MockPojo());
+        facade.commitTransaction();
+        // Committing the nested transaction doesn't commit anything
+        assertEquals(commits, facade.getCommitCount());
+        facade.commitTransaction();
+        assertEquals(commits + 1, facade.getCommitCount());
+    }
+
+    @Test
+    public void nestedTransactionRollback() {
+        facade.beginTransaction();
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        facade.beginTransaction();
+        facade.rollbackTransaction();
+        try {
+            facade.commitTransaction();
+            fail("The outer transaction should have been rolled back");
+        } catch (RollbackException e) {
+            // Expected
+        }
+        assertNull(facade.find(MockPojo.class, pojo.getId()));
+    }
+
+    @Test
+    public void runInTransaction() {
+        long commits = facade.getCommitCount();
+        final MockPojo pojo = new MockPojo();
+        Long id = facade.runInTransaction(new TransactionCallback<Long>() {
+            public Long execute(IFacade facade) {
+                facade.store(pojo);
+                facade.store(new MockPojo());
+                return pojo.getId();
+            }
+        });
+        assertEquals(pojo.getId(), id);
+        assertEquals(commits + 1, facade.getCommitCount());
+    }
+
+    @Test
+    public void runInTransactionRollsBackOnException() {
+        final MockPojo pojo = new MockPojo();
+        try {
+            facade.runInTransaction(new TransactionCallback<Void>() {
+                public Void execute(IFacade facade) {
+                    facade.store(pojo);
+                    throw new IllegalStateException();
+                }
+            });
+            fail("The exception should have been rethrown");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertNull(facade.find(MockPojo.class, pojo.getId()));
+    }
+
+    @Test
+    public void transactionInvalidatesCachesOnCommit() {
+        facade.setEntityCache(new EntityCache(100, 0));
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+        facade.find(MockPojo.class, pojo.getId());
+
+        facade.beginTransaction();
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("newFoo", "updated");
+        facade.update(MockPojo.class, "p.foo = :newFoo", null, parameters);
+        facade.commitTransaction();
+
+        assertEquals("updated", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void commitWithoutTransaction() {
+        facade.commitTransaction();
+    }
+
+    @Test
+    public void dirtyChecking() {
+        assertFalse(facade.isDirtyChecking());
+        facade.setDirtyChecking(true);
+        assertTrue(facade.isDirtyChecking());
+
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+
+        // Storing an unmodified entity writes nothing
+        long commits = facade.getCommitCount();
+        facade.store(pojo);
+        assertEquals(commits, facade.getCommitCount());
+        assertEquals(Long.valueOf(1L), pojo.getConsistencyVersion());
+
+        // Only the modified fields are updated
+        MockPojo loaded = facade.find(MockPojo.class, pojo.getId());
+        loaded.setFoo("bar");
+        facade.store(loaded);
+        assertEquals(commits + 1, facade.getCommitCount());
+        assertEquals(Long.valueOf(2L), loaded.getConsistencyVersion());
+        assertEquals("bar", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void dirtyCheckingDetectsConflicts() {
+        facade.setDirtyChecking(true);
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        MockPojo other = facade.find(MockPojo.class, pojo.getId());
+        other.setFoo("other");
+        facade.store(other);
+
+        pojo.setFoo("stale");
+        try {
+            facade.store(pojo);
+            fail("The stale entity should not have been stored");
+        } catch (RuntimeException e) {
+            assertTrue(OptimisticLockRetrier.isOptimisticLockFailure(e));
+        }
+        assertEquals("other", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void storeConflictEvictsCachedEntity() {
+        EntityCache cache = new EntityCache(100, 0);
+        facade.setEntityCache(cache);
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+
+        // Modify the entity behind the cache's back
+        facade.setEntityCache(null);
+        MockPojo other = facade.find(MockPojo.class, pojo.getId());
+        other.setFoo("other");
+        facade.store(other);
+        facade.setEntityCache(cache);
+
+        MockPojo stale = facade.find(MockPojo.class, pojo.getId());
+        assertEquals("foo", stale.getFoo());
+        stale.setFoo("stale");
+        try {
+            facade.store(stale);
+            fail("The stale entity should not have been stored");
+        } catch (RuntimeException e) {
+            assertTrue(OptimisticLockRetrier.isOptimisticLockFailure(e));
+        }
+        assertEquals("other", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void retrierReloadsPastEntityCache() {
+        facade.setEntityCache(new EntityCache(100, 0));
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+        MockPojo stale = facade.find(MockPojo.class, pojo.getId());
+
+        // Modify the entity behind the cache's back
+        EntityCache cache = facade.getEntityCache();
+        facade.setEntityCache(null);
+        MockPojo other = facade.find(MockPojo.class, pojo.getId());
+        other.setFoo("other");
+        facade.store(other);
+        facade.setEntityCache(cache);
+
+        OptimisticLockRetrier retrier = new OptimisticLockRetrier(2, 0, 0);
+        retrier.store(facade, stale, new Mutation<MockPojo>() {
+            public void apply(MockPojo pojo) {
+                pojo.setFoo(pojo.getFoo() + "!");
+            }
+        });
+        assertEquals(1, retrier.getRetryCount());
+        assertEquals("other!", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void dirtyCheckingStoreAllSkipsUnmodified() {
+        facade.setDirtyChecking(true);
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < 3; i++) {
+            pojos.add(new MockPojo());
+        }
+        facade.storeAll(pojos);
+
+        long commits = facade.getCommitCount();
+        facade.storeAll(pojos);
+        assertEquals(commits, facade.getCommitCount());
+
+        pojos.get(1).setFoo("modified");
+        facade.storeAll(pojos);
+        assertEquals(commits + 1, facade.getCommitCount());
+        assertEquals(Long.valueOf(1L), pojos.get(0).getConsistencyVersion());
+        assertEquals(Long.valueOf(2L), pojos.get(1).getConsistencyVersion());
+    }
+
 }
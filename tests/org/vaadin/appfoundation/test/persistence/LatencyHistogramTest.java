@@ -0,0 +1,67 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.facade.LatencyHistogram;
+
+public class LatencyHistogramTest {
+
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    public void empty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanTime(), 0);
+        assertEquals(0, histogram.getPercentile(99), 0);
+    }
+
+    @Test
+    public void record() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1 * MILLIS);
+        histogram.record(3 * MILLIS);
+        assertEquals(2, histogram.getCount());
+        assertEquals(4, histogram.getTotalTime(), 0.001);
+        assertEquals(2, histogram.getMeanTime(), 0.001);
+        assertEquals(3, histogram.getMaxTime(), 0.001);
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(MILLIS / 2);
+        }
+        histogram.record(200 * MILLIS);
+
+        assertEquals(0.5, histogram.getPercentile(50), 0.001);
+        assertEquals(0.5, histogram.getPercentile(99), 0.001);
+        // The slowest call is in the bucket which ends at 250 ms, but the
+        // percentile never exceeds the maximum
+        assertEquals(200, histogram.getPercentile(100), 0.001);
+    }
+
+    @Test
+    public void reset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(MILLIS);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxTime(), 0);
+    }
+
+    @Test
+    public void summary() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(MILLIS);
+        assertTrue(histogram.toString().startsWith("count=1, mean=1.000ms"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPercentile() {
+        new LatencyHistogram().getPercentile(101);
+    }
+}
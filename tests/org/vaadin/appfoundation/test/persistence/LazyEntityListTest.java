@@ -0,0 +1,116 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.InMemoryFacade;
+import org.vaadin.appfoundation.persistence.facade.LazyEntityList;
+
+public class LazyEntityListTest {
+
+    private CountingFacade facade;
+
+    private List<MockPojo> pojos;
+
+    private static class CountingFacade extends InMemoryFacade {
+
+        private final List<Collection<Long>> fetches = new ArrayList<Collection<Long>>();
+
+        @Override
+        public <A extends AbstractPojo> List<A> findAll(Class<A> clazz,
+                Collection<Long> ids) {
+            fetches.add(ids);
+            return super.findAll(clazz, ids);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        facade = new CountingFacade();
+        pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < 10; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo("foo" + (9 - i));
+            facade.store(pojo);
+            pojos.add(pojo);
+        }
+    }
+
+    @Test
+    public void entitiesAreFetchedInChunks() {
+        LazyEntityList<MockPojo> list = LazyEntityList.create(facade,
+                MockPojo.class, 3);
+        assertEquals(10, list.size());
+        assertTrue(facade.fetches.isEmpty());
+        assertEquals(pojos.get(4).getId(), list.getId(4));
+        assertTrue(facade.fetches.isEmpty());
+
+        assertEquals("foo5", list.get(4).getFoo());
+        assertEquals(1, facade.fetches.size());
+        assertEquals(3, facade.fetches.get(0).size());
+        assertTrue(list.isLoaded(3));
+        assertTrue(list.isLoaded(5));
+        assertFalse(list.isLoaded(6));
+
+        // The rest of the chunk is already loaded
+        assertEquals("foo6", list.get(3).getFoo());
+        assertEquals(1, facade.fetches.size());
+
+        // The last chunk is shorter
+        assertEquals("foo0", list.get(9).getFoo());
+        assertEquals(2, facade.fetches.size());
+        assertEquals(1, facade.fetches.get(1).size());
+    }
+
+    @Test
+    public void orderAndConditions() {
+        LazyEntityList<MockPojo> list = LazyEntityList.create(facade,
+                MockPojo.class, "p.foo <> 'foo3'", null, "foo", 4);
+        assertEquals(9, list.size());
+        assertEquals("foo0", list.get(0).getFoo());
+        assertEquals("foo4", list.get(3).getFoo());
+        assertEquals("foo9", list.get(8).getFoo());
+        assertEquals(-1, list.indexOfId(pojos.get(6).getId()));
+        assertEquals(8, list.indexOfId(pojos.get(0).getId()));
+    }
+
+    @Test
+    public void removedEntitiesAreNull() {
+        LazyEntityList<MockPojo> list = LazyEntityList.create(facade,
+                MockPojo.class, 5);
+        facade.delete(pojos.get(1));
+        assertNull(list.get(1));
+        assertEquals("foo9", list.get(0).getFoo());
+    }
+
+    @Test
+    public void clearLoaded() {
+        LazyEntityList<MockPojo> list = LazyEntityList.create(facade,
+                MockPojo.class, 5);
+        list.get(0);
+        list.clearLoaded();
+        assertFalse(list.isLoaded(0));
+        list.get(0);
+        assertEquals(2, facade.fetches.size());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void indexOutOfBounds() {
+        LazyEntityList.create(facade, MockPojo.class, 5).get(10);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void readOnly() {
+        LazyEntityList.create(facade, MockPojo.class, 5).add(new MockPojo());
+    }
+
+}
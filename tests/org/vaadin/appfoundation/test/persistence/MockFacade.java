@@ -1,14 +1,31 @@
 package org.vaadin.appfoundation.test.persistence;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.ChunkedIterator;
 import org.vaadin.appfoundation.persistence.facade.IFacade;
+import org.vaadin.appfoundation.persistence.facade.Page;
+import org.vaadin.appfoundation.persistence.facade.PageToken;
+import org.vaadin.appfoundation.persistence.facade.TransactionCallback;
 
 public class MockFacade implements IFacade {
 
+    private int unitOfWorkDepth = 0;
+
+    private final AtomicInteger kills = new AtomicInteger();
+
+    private int transactionDepth = 0;
+
+    private int commits = 0;
+
+    private int rollbacks = 0;
+
     public void close() {
 
     }
@@ -34,7 +51,77 @@ public class MockFacade implements IFacade {
     }
 
     public void kill() {
+        kills.incrementAndGet();
+    }
+
+    public int getKillCount() {
+        return kills.get();
+    }
+
+    public void beginUnitOfWork() {
+        unitOfWorkDepth++;
+    }
+
+    public void endUnitOfWork() {
+        unitOfWorkDepth--;
+    }
+
+    public int getUnitOfWorkDepth() {
+        return unitOfWorkDepth;
+    }
+
+    public void beginTransaction() {
+        transactionDepth++;
+    }
+
+    public void commitTransaction() {
+        if (transactionDepth == 0) {
+            throw new IllegalStateException();
+        }
+        if (--transactionDepth == 0) {
+            commits++;
+        }
+    }
+
+    public void rollbackTransaction() {
+        if (transactionDepth == 0) {
+            throw new IllegalStateException();
+        }
+        if (--transactionDepth == 0) {
+            rollbacks++;
+        }
+    }
+
+    public boolean isTransactionActive() {
+        return transactionDepth > 0;
+    }
+
+    public <T> T runInTransaction(TransactionCallback<T> callback) {
+        beginTransaction();
+        boolean success = false;
+        try {
+            T result = callback.execute(this);
+            success = true;
+            return result;
+        } finally {
+            if (success) {
+                commitTransaction();
+            } else {
+                rollbackTransaction();
+            }
+        }
+    }
+
+    public int getTransactionDepth() {
+        return transactionDepth;
+    }
 
+    public int getCommitCount() {
+        return commits;
+    }
+
+    public int getRollbackCount() {
+        return rollbacks;
     }
 
     public <A extends AbstractPojo> List<A> list(Class<A> clazz) {
@@ -77,10 +164,73 @@ public class MockFacade implements IFacade {
         return null;
     }
 
+    public <A extends AbstractPojo> Page<A> page(Class<A> clazz,
+            PageToken token, int amount) {
+        return new Page<A>(new ArrayList<A>(), null);
+    }
+
+    public <A extends AbstractPojo> Page<A> page(Class<A> clazz,
+            String orderField, PageToken token, int amount) {
+        return new Page<A>(new ArrayList<A>(), null);
+    }
+
+    public <A extends AbstractPojo> Iterator<A> iterate(final Class<A> clazz,
+            int chunkSize) {
+        return new ChunkedIterator<A>(chunkSize) {
+            @Override
+            protected List<A> fetchChunk(int startIndex, A lastElement,
+                    int amount) {
+                return list(clazz, startIndex, amount);
+            }
+        };
+    }
+
+    public <A extends AbstractPojo> Iterator<A> iterate(final String queryStr,
+            final Map<String, Object> parameters, int chunkSize) {
+        return new ChunkedIterator<A>(chunkSize) {
+            @Override
+            protected List<A> fetchChunk(int startIndex, A lastElement,
+                    int amount) {
+                return list(queryStr, parameters, startIndex, amount);
+            }
+        };
+    }
+
     public List<?> getFieldValues(Class<? extends AbstractPojo> c,
             String field, String whereConditions, Map<String, Object> parameters) {
         // TODO Auto-generated method stub
         return null;
     }
 
+    public List<Object[]> project(Class<? extends AbstractPojo> c,
+            String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        return null;
+    }
+
+    public <T> List<T> project(Class<? extends AbstractPojo> c,
+            Class<T> resultClass, String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        return null;
+    }
+
+    public int update(Class<? extends AbstractPojo> c, String setClause,
+            String whereClause, Map<String, Object> parameters) {
+        return 0;
+    }
+
+    public int delete(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters) {
+        return 0;
+    }
+
+    public <A extends AbstractPojo> List<A> findAll(Class<A> clazz,
+            Collection<Long> ids) {
+        List<A> pojos = new ArrayList<A>();
+        for (Long id : ids) {
+            pojos.add(find(clazz, id));
+        }
+        return pojos;
+    }
+
 }
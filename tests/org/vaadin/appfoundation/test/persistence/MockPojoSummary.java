@@ -0,0 +1,22 @@
+package org.vaadin.appfoundation.test.persistence;
+
+public class MockPojoSummary {
+
+    private final Long id;
+
+    private final String foo;
+
+    public MockPojoSummary(Long id, String foo) {
+        this.id = id;
+        this.foo = foo;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getFoo() {
+        return foo;
+    }
+
+}
@@ -0,0 +1,188 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.OptimisticLockException;
+
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.Mutation;
+import org.vaadin.appfoundation.persistence.facade.OptimisticLockRetrier;
+
+public class OptimisticLockRetrierTest {
+
+    /**
+     * Facade which simulates another thread modifying the stored entity
+     * before each of the first conflicting stores.
+     */
+    private static class ConflictingFacade extends MockFacade {
+
+        private final MockPojo stored;
+
+        private int conflicts;
+
+        private int stores = 0;
+
+        public ConflictingFacade(MockPojo stored, int conflicts) {
+            this.stored = stored;
+            this.conflicts = conflicts;
+        }
+
+        @Override
+        public <A extends AbstractPojo> void refresh(A pojo) {
+            ((MockPojo) pojo).setFoo(stored.getFoo());
+        }
+
+        @Override
+        public void store(AbstractPojo pojo) {
+            stores++;
+            if (conflicts > 0) {
+                conflicts--;
+                stored.setFoo(stored.getFoo() + "x");
+                // Providers wrap the exception
+                throw new RuntimeException(new OptimisticLockException());
+            }
+            stored.setFoo(((MockPojo) pojo).getFoo());
+        }
+    }
+
+    private static final Mutation<MockPojo> APPEND = new Mutation<MockPojo>() {
+        public void apply(MockPojo pojo) {
+            pojo.setFoo(pojo.getFoo() + "y");
+        }
+    };
+
+    private MockPojo createPojo() {
+        MockPojo pojo = new MockPojo();
+        pojo.setId(1L);
+        pojo.setFoo("");
+        return pojo;
+    }
+
+    @Test
+    public void storeWithoutConflicts() {
+        MockPojo stored = createPojo();
+        ConflictingFacade facade = new ConflictingFacade(stored, 0);
+        OptimisticLockRetrier retrier = new OptimisticLockRetrier(3, 0, 0);
+
+        MockPojo pojo = createPojo();
+        retrier.store(facade, pojo, APPEND);
+        assertEquals("y", stored.getFoo());
+        assertEquals(1, facade.stores);
+        assertEquals(1, retrier.getWriteCount());
+        assertEquals(0, retrier.getConflictCount());
+        assertEquals(0, retrier.getRetryCount());
+    }
+
+    @Test
+    public void mutationIsReappliedToCurrentState() {
+        MockPojo stored = createPojo();
+        ConflictingFacade facade = new ConflictingFacade(stored, 2);
+        OptimisticLockRetrier retrier = new OptimisticLockRetrier(3, 1, 2);
+
+        MockPojo pojo = createPojo();
+        retrier.store(facade, pojo, APPEND);
+        // Both concurrent modifications are preserved
+        assertEquals("xxy", stored.getFoo());
+        assertEquals("xxy", pojo.getFoo());
+        assertEquals(3, facade.stores);
+        assertEquals(2, retrier.getConflictCount());
+        assertEquals(2, retrier.getRetryCount());
+        assertEquals(0, retrier.getFailureCount());
+    }
+
+    @Test
+    public void giveUpAfterMaxAttempts() {
+        MockPojo stored = createPojo();
+        ConflictingFacade facade = new ConflictingFacade(stored, 5);
+        OptimisticLockRetrier retrier = new OptimisticLockRetrier(3, 0, 0);
+
+        try {
+            retrier.store(facade, createPojo(), APPEND);
+            fail("Conflict should have been rethrown");
+        } catch (RuntimeException e) {
+            assertTrue(OptimisticLockRetrier.isOptimisticLockFailure(e));
+        }
+        assertEquals(3, facade.stores);
+        assertEquals(3, retrier.getConflictCount());
+        assertEquals(2, retrier.getRetryCount());
+        assertEquals(1, retrier.getFailureCount());
+    }
+
+    @Test
+    public void conflictInTransactionIsNotRetried() {
+        MockPojo stored = createPojo();
+        ConflictingFacade facade = new ConflictingFacade(stored, 1);
+        OptimisticLockRetrier retrier = new OptimisticLockRetrier(3, 0, 0);
+
+        facade.beginTransaction();
+        try {
+            retrier.store(facade, createPojo(), APPEND);
+            fail("Conflict should have been rethrown");
+        } catch (RuntimeException e) {
+            assertTrue(OptimisticLockRetrier.isOptimisticLockFailure(e));
+        }
+        facade.rollbackTransaction();
+        assertEquals(1, facade.stores);
+        assertEquals(0, retrier.getRetryCount());
+        assertEquals(1, retrier.getFailureCount());
+    }
+
+    @Test
+    public void removedEntityIsNotRetried() {
+        MockPojo stored = createPojo();
+        ConflictingFacade facade = new ConflictingFacade(stored, 1) {
+            @Override
+            public <A extends AbstractPojo> void refresh(A pojo) {
+                throw new EntityNotFoundException();
+            }
+        };
+        OptimisticLockRetrier retrier = new OptimisticLockRetrier(3, 0, 0);
+
+        try {
+            retrier.store(facade, createPojo(), APPEND);
+            fail("Conflict should have been rethrown");
+        } catch (RuntimeException e) {
+            assertTrue(OptimisticLockRetrier.isOptimisticLockFailure(e));
+        }
+        assertEquals(1, retrier.getFailureCount());
+    }
+
+    @Test
+    public void otherFailuresAreNotRetried() {
+        MockFacade facade = new MockFacade() {
+            @Override
+            public void store(AbstractPojo pojo) {
+                throw new IllegalStateException();
+            }
+        };
+        OptimisticLockRetrier retrier = new OptimisticLockRetrier();
+
+        try {
+            retrier.store(facade, createPojo(), APPEND);
+            fail("Exception should have been rethrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(0, retrier.getConflictCount());
+    }
+
+    @Test
+    public void isOptimisticLockFailure() {
+        assertTrue(OptimisticLockRetrier
+                .isOptimisticLockFailure(new OptimisticLockException()));
+        assertFalse(OptimisticLockRetrier
+                .isOptimisticLockFailure(new RuntimeException(
+                        new IllegalStateException())));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noAttempts() {
+        new OptimisticLockRetrier(0, 10, 100);
+    }
+
+}
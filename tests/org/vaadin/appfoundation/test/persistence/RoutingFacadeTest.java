@@ -0,0 +1,309 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
+import org.vaadin.appfoundation.persistence.facade.JPAFacade;
+import org.vaadin.appfoundation.persistence.facade.ReplicaSelection;
+import org.vaadin.appfoundation.persistence.facade.RoutingFacade;
+import org.vaadin.appfoundation.persistence.facade.TransactionCallback;
+
+public class RoutingFacadeTest {
+
+    private RoutingFacade facade;
+
+    private static class CountingFacade extends MockFacade {
+
+        private int reads = 0;
+
+        private int writes = 0;
+
+        @Override
+        public Long count(Class<? extends AbstractPojo> c) {
+            reads++;
+            return 0L;
+        }
+
+        @Override
+        public void store(AbstractPojo pojo) {
+            writes++;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (facade != null) {
+            facade.kill();
+        }
+    }
+
+    private RoutingFacade createFacade(CountingFacade primary,
+            ReplicaSelection selection, CountingFacade... replicas) {
+        List<IFacade> replicaList = new ArrayList<IFacade>();
+        for (CountingFacade replica : replicas) {
+            replicaList.add(replica);
+        }
+        return new RoutingFacade(primary, replicaList, selection);
+    }
+
+    @Test
+    public void writesGoToPrimary() {
+        CountingFacade primary = new CountingFacade();
+        CountingFacade replica = new CountingFacade();
+        facade = createFacade(primary, ReplicaSelection.ROUND_ROBIN, replica);
+
+        facade.store(new MockPojo());
+        assertEquals(1, primary.writes);
+        assertEquals(0, replica.writes);
+    }
+
+    @Test
+    public void readsGoToReplicas() {
+        CountingFacade primary = new CountingFacade();
+        CountingFacade replica1 = new CountingFacade();
+        CountingFacade replica2 = new CountingFacade();
+        facade = createFacade(primary, ReplicaSelection.ROUND_ROBIN, replica1,
+                replica2);
+
+        for (int i = 0; i < 10; i++) {
+            facade.count(MockPojo.class);
+        }
+        assertEquals(0, primary.reads);
+        assertEquals(5, replica1.reads);
+        assertEquals(5, replica2.reads);
+    }
+
+    @Test
+    public void readsGoToPrimaryWithoutReplicas() {
+        CountingFacade primary = new CountingFacade();
+        facade = createFacade(primary, ReplicaSelection.ROUND_ROBIN);
+
+        facade.count(MockPojo.class);
+        assertEquals(1, primary.reads);
+    }
+
+    @Test
+    public void readYourWritesInUnitOfWork() {
+        CountingFacade primary = new CountingFacade();
+        CountingFacade replica = new CountingFacade();
+        facade = createFacade(primary, ReplicaSelection.ROUND_ROBIN, replica);
+
+        facade.beginUnitOfWork();
+        facade.count(MockPojo.class);
+        facade.store(new MockPojo());
+        facade.count(MockPojo.class);
+        facade.endUnitOfWork();
+        assertEquals(1, primary.reads);
+        assertEquals(1, replica.reads);
+
+        // The stickiness ends with the unit of work
+        facade.count(MockPojo.class);
+        assertEquals(1, primary.reads);
+        assertEquals(2, replica.reads);
+    }
+
+    @Test
+    public void writesOutsideUnitOfWorkAreNotSticky() {
+        CountingFacade primary = new CountingFacade();
+        CountingFacade replica = new CountingFacade();
+        facade = createFacade(primary, ReplicaSelection.ROUND_ROBIN, replica);
+
+        facade.store(new MockPojo());
+        facade.count(MockPojo.class);
+        assertEquals(0, primary.reads);
+        assertEquals(1, replica.reads);
+    }
+
+    @Test
+    public void unitOfWorkIsPropagated() {
+        CountingFacade primary = new CountingFacade();
+        CountingFacade replica = new CountingFacade();
+        facade = createFacade(primary, ReplicaSelection.ROUND_ROBIN, replica);
+
+        facade.beginUnitOfWork();
+        assertEquals(1, primary.getUnitOfWorkDepth());
+        assertEquals(1, replica.getUnitOfWorkDepth());
+        facade.endUnitOfWork();
+        assertEquals(0, primary.getUnitOfWorkDepth());
+        assertEquals(0, replica.getUnitOfWorkDepth());
+    }
+
+    @Test
+    public void transactionRunsInPrimary() {
+        CountingFacade primary = new CountingFacade();
+        CountingFacade replica = new CountingFacade();
+        facade = createFacade(primary, ReplicaSelection.ROUND_ROBIN, replica);
+
+        facade.beginTransaction();
+        assertEquals(1, primary.getTransactionDepth());
+        assertEquals(0, replica.getTransactionDepth());
+        facade.store(new MockPojo());
+        // The transaction's reads see its writes
+        facade.count(MockPojo.class);
+        assertEquals(1, primary.reads);
+        facade.commitTransaction();
+        assertEquals(1, primary.getCommitCount());
+        assertEquals(0, primary.getUnitOfWorkDepth());
+
+        facade.count(MockPojo.class);
+        assertEquals(1, replica.reads);
+    }
+
+    @Test
+    public void readsBeforeWritesInTransactionUsePrimary() {
+        CountingFacade primary = new CountingFacade();
+        CountingFacade replica = new CountingFacade();
+        facade = createFacade(primary, ReplicaSelection.ROUND_ROBIN, replica);
+
+        facade.runInTransaction(new TransactionCallback<Void>() {
+            public Void execute(IFacade facade) {
+                facade.count(MockPojo.class);
+                facade.store(new MockPojo());
+                return null;
+            }
+        });
+        assertEquals(1, primary.reads);
+        assertEquals(0, replica.reads);
+    }
+
+    @Test
+    public void killKillsAllFacades() {
+        CountingFacade primary = new CountingFacade();
+        CountingFacade replica = new CountingFacade();
+        facade = createFacade(primary, ReplicaSelection.ROUND_ROBIN, replica);
+
+        facade.kill();
+        facade = null;
+        assertEquals(1, primary.getKillCount());
+        assertEquals(1, replica.getKillCount());
+    }
+
+    @Test
+    public void leastLoadedAvoidsBusyReplica() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        CountingFacade busy = new CountingFacade() {
+            @Override
+            public Long count(Class<? extends AbstractPojo> c) {
+                super.count(c);
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                return 0L;
+            }
+        };
+        CountingFacade idle = new CountingFacade();
+        facade = createFacade(new CountingFacade(),
+                ReplicaSelection.LEAST_LOADED, busy, idle);
+
+        // The first read goes to the first replica and blocks there
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                facade.count(MockPojo.class);
+            }
+        };
+        thread.start();
+        started.await(5, TimeUnit.SECONDS);
+
+        for (int i = 0; i < 4; i++) {
+            facade.count(MockPojo.class);
+        }
+        release.countDown();
+        thread.join();
+
+        assertEquals(1, busy.reads);
+        assertEquals(4, idle.reads);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void primaryIsRequired() {
+        new RoutingFacade(null, new ArrayList<IFacade>(),
+                ReplicaSelection.ROUND_ROBIN);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidReplicaSelection() {
+        System.setProperty("persistence.replicas.selection", "fastest");
+        try {
+            new RoutingFacade().init("default");
+        } finally {
+            System.clearProperty("persistence.replicas.selection");
+        }
+    }
+
+    @Test
+    public void selectReplicasBetweenDatabases() {
+        System.setProperty("persistence.replicas.default", "second, third");
+        System.setProperty("persistence.replicas.selection", "least_loaded");
+        RoutingFacade routing = new RoutingFacade();
+        try {
+            routing.init("default");
+            facade = routing;
+        } finally {
+            System.clearProperty("persistence.replicas.default");
+            System.clearProperty("persistence.replicas.selection");
+        }
+        assertEquals(ReplicaSelection.LEAST_LOADED, facade
+                .getReplicaSelection());
+        assertEquals(2, facade.getReplicas().size());
+
+        // Give each replica database a different number of entities
+        facade.getReplicas().get(0).store(new MockPojo());
+        facade.getReplicas().get(1).store(new MockPojo());
+        facade.getReplicas().get(1).store(new MockPojo());
+
+        // Without reads in progress, the least loaded selection falls back
+        // to the round-robin order, so both replicas are read in turn
+        Set<Long> counts = new HashSet<Long>();
+        for (int i = 0; i < 4; i++) {
+            counts.add(facade.count(MockPojo.class));
+        }
+        assertEquals(2, counts.size());
+        assertTrue(counts.contains(1L));
+        assertTrue(counts.contains(2L));
+    }
+
+    @Test
+    public void routeBetweenDatabases() {
+        JPAFacade primary = new JPAFacade("default");
+        JPAFacade replica = new JPAFacade("second");
+        List<IFacade> replicas = new ArrayList<IFacade>();
+        replicas.add(replica);
+        facade = new RoutingFacade(primary, replicas,
+                ReplicaSelection.ROUND_ROBIN);
+
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("test");
+        facade.store(pojo);
+        assertNotNull(primary.find(MockPojo.class, pojo.getId()));
+
+        // The replica database doesn't contain the stored entity
+        assertNull(facade.find(MockPojo.class, pojo.getId()));
+        assertEquals((Long) 0L, facade.count(MockPojo.class));
+
+        // Within a unit of work, the reads see the writes
+        facade.beginUnitOfWork();
+        MockPojo pojo2 = new MockPojo();
+        facade.store(pojo2);
+        assertNotNull(facade.find(MockPojo.class, pojo2.getId()));
+        assertEquals((Long) 2L, facade.count(MockPojo.class));
+        facade.endUnitOfWork();
+    }
+}
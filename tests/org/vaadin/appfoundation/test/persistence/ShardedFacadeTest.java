@@ -0,0 +1,455 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.FieldHashShardStrategy;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
+import org.vaadin.appfoundation.persistence.facade.InMemoryFacade;
+import org.vaadin.appfoundation.persistence.facade.JPAFacade;
+import org.vaadin.appfoundation.persistence.facade.Page;
+import org.vaadin.appfoundation.persistence.facade.ShardSequence;
+import org.vaadin.appfoundation.persistence.facade.ShardedFacade;
+
+public class ShardedFacadeTest {
+
+    private ShardedFacade facade;
+
+    private List<IFacade> shards;
+
+    private FieldHashShardStrategy strategy;
+
+    /**
+     * Records the thread which counts the entities.
+     */
+    private static class ThreadRecordingFacade extends MockFacade {
+
+        private volatile Thread thread;
+
+        @Override
+        public Long count(Class<? extends AbstractPojo> c) {
+            thread = Thread.currentThread();
+            return 0L;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        shards = new ArrayList<IFacade>();
+        for (int i = 0; i < 3; i++) {
+            // Each shard is a database of its own
+            shards.add(new InMemoryFacade());
+        }
+        strategy = new FieldHashShardStrategy("foo");
+        facade = new ShardedFacade(shards, strategy);
+    }
+
+    @After
+    public void tearDown() {
+        facade.kill();
+    }
+
+    private MockPojo createPojo(String foo) {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo(foo);
+        return pojo;
+    }
+
+    private List<IFacade> createMockShards(MockFacade... mocks) {
+        List<IFacade> shardFacades = new ArrayList<IFacade>();
+        for (MockFacade mock : mocks) {
+            shardFacades.add(mock);
+        }
+        return shardFacades;
+    }
+
+    @Test
+    public void storeToShard() {
+        for (int i = 0; i < 30; i++) {
+            MockPojo pojo = createPojo("foo" + i);
+            facade.store(pojo);
+
+            int shard = strategy.getShardForValue("foo" + i, 3);
+            assertEquals("foo" + i, shards.get(shard).find(MockPojo.class,
+                    pojo.getId()).getFoo());
+        }
+    }
+
+    @Test
+    public void storeAllToShards() {
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < 30; i++) {
+            pojos.add(createPojo("foo" + i));
+        }
+        facade.storeAll(pojos);
+
+        for (MockPojo pojo : pojos) {
+            int shard = strategy.getShardForValue(pojo.getFoo(), 3);
+            assertNotNull(shards.get(shard).find(MockPojo.class, pojo
+                    .getId()));
+        }
+        assertEquals((Long) 30L, facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void findFromShardOfId() {
+        Set<Long> ids = new HashSet<Long>();
+        for (int i = 0; i < 30; i++) {
+            MockPojo pojo = createPojo("foo" + i);
+            facade.store(pojo);
+            int shard = strategy.getShardForValue(pojo.getFoo(), 3);
+            assertEquals(shard, ShardedFacade.getShardOfId(pojo.getId()));
+            assertTrue(ids.add(pojo.getId()));
+            assertEquals(pojo.getFoo(), facade.find(MockPojo.class,
+                    pojo.getId()).getFoo());
+        }
+
+        assertNull(facade.find(MockPojo.class, -1L));
+        assertNull(facade.find(MockPojo.class, null));
+    }
+
+    @Test
+    public void sequenceContinuesFromShards() {
+        int shard = strategy.getShardForValue("test", 3);
+        MockPojo existing = createPojo("test");
+        existing.setId(5L << ShardedFacade.SHARD_BITS | shard);
+        shards.get(shard).store(existing);
+
+        MockPojo pojo = createPojo("test");
+        facade.store(pojo);
+        assertEquals(6L, pojo.getId() >> ShardedFacade.SHARD_BITS);
+
+        // The shard keeps track of the reserved values
+        List<ShardSequence> sequences = shards.get(shard).list(
+                ShardSequence.class);
+        assertEquals(1, sequences.size());
+        assertEquals(MockPojo.class.getName(), sequences.get(0).getName());
+        assertEquals(6L + ShardedFacade.ALLOCATION_SIZE, sequences.get(0)
+                .getNextValue());
+    }
+
+    @Test
+    public void facadesSharingShardsDoNotCollide() {
+        ShardedFacade other = new ShardedFacade(shards, strategy);
+        try {
+            Set<Long> ids = new HashSet<Long>();
+            int stored = 0;
+            for (int i = 0; i < 3 * ShardedFacade.ALLOCATION_SIZE; i++) {
+                MockPojo pojo = createPojo("foo" + (i % 10));
+                (i % 2 == 0 ? facade : other).store(pojo);
+                assertTrue(ids.add(pojo.getId()));
+                stored++;
+            }
+            assertEquals(Long.valueOf(stored), facade.count(MockPojo.class));
+        } finally {
+            other.kill();
+        }
+    }
+
+    @Test
+    public void sequenceIsReservedOutsideTransaction() {
+        facade.beginTransaction();
+        MockPojo pojo = createPojo("test");
+        facade.store(pojo);
+        long sequence = pojo.getId() >> ShardedFacade.SHARD_BITS;
+        facade.rollbackTransaction();
+
+        // The reservation survives the rollback, so another facade doesn't
+        // hand out the same values
+        ShardedFacade other = new ShardedFacade(shards, strategy);
+        try {
+            MockPojo pojo2 = createPojo("test");
+            other.store(pojo2);
+            assertTrue(pojo2.getId() >> ShardedFacade.SHARD_BITS >= sequence
+                    + ShardedFacade.ALLOCATION_SIZE);
+        } finally {
+            other.kill();
+        }
+    }
+
+    @Test
+    public void storedEntityIsRoutedById() {
+        MockPojo pojo = createPojo("foo0");
+        facade.store(pojo);
+        int shard = ShardedFacade.getShardOfId(pojo.getId());
+
+        // Changing the sharded field doesn't move the entity
+        for (int i = 1; strategy.getShard(pojo, 3) == shard; i++) {
+            pojo.setFoo("foo" + i);
+        }
+        facade.store(pojo);
+        assertEquals(pojo.getFoo(), shards.get(shard).find(MockPojo.class,
+                pojo.getId()).getFoo());
+        assertEquals((Long) 1L, facade.count(MockPojo.class));
+
+        facade.refresh(pojo);
+        facade.delete(pojo);
+        assertEquals((Long) 0L, facade.count(MockPojo.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void idOutsideShards() {
+        MockPojo pojo = createPojo("test");
+        pojo.setId(5L << ShardedFacade.SHARD_BITS | 7);
+        facade.delete(pojo);
+    }
+
+    @Test
+    public void failedStoreClearsId() {
+        InMemoryFacade failing = new InMemoryFacade() {
+            @Override
+            public void store(AbstractPojo pojo) {
+                if (pojo instanceof MockPojo) {
+                    throw new IllegalStateException();
+                }
+                super.store(pojo);
+            }
+        };
+        List<IFacade> shardFacades = new ArrayList<IFacade>();
+        shardFacades.add(failing);
+        ShardedFacade sharded = new ShardedFacade(shardFacades, strategy);
+
+        MockPojo pojo = createPojo("test");
+        try {
+            sharded.store(pojo);
+        } catch (IllegalStateException e) {
+            // Expected
+        } finally {
+            sharded.kill();
+        }
+        assertNull(pojo.getId());
+    }
+
+    @Test
+    public void findAllFromShards() {
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 10; i++) {
+            MockPojo pojo = createPojo("foo" + i);
+            facade.store(pojo);
+            ids.add(0, pojo.getId());
+        }
+        ids.add(-1L);
+
+        List<MockPojo> pojos = facade.findAll(MockPojo.class, ids);
+        assertEquals(11, pojos.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(ids.get(i), pojos.get(i).getId());
+        }
+        assertNull(pojos.get(10));
+    }
+
+    @Test
+    public void deleteFromShard() {
+        MockPojo pojo = createPojo("test");
+        facade.store(pojo);
+        facade.delete(pojo);
+
+        assertNull(facade.find(MockPojo.class, pojo.getId()));
+    }
+
+    @Test
+    public void listFromAllShards() {
+        for (int i = 0; i < 30; i++) {
+            facade.store(createPojo("foo" + i));
+        }
+
+        assertEquals(30, facade.list(MockPojo.class).size());
+        assertEquals(5, facade.list(MockPojo.class, 25, 10).size());
+        assertEquals(10, facade.list(MockPojo.class, 5, 10).size());
+    }
+
+    @Test
+    public void pageMergesShards() {
+        for (int i = 0; i < 30; i++) {
+            facade.store(createPojo("foo" + i));
+        }
+
+        List<MockPojo> all = new ArrayList<MockPojo>();
+        Page<MockPojo> page = facade.page(MockPojo.class, null, 7);
+        all.addAll(page.getItems());
+        while (page.hasNextPage()) {
+            page = facade.page(MockPojo.class, page.getNextPageToken(), 7);
+            assertTrue(page.getItems().size() <= 7);
+            all.addAll(page.getItems());
+        }
+
+        assertEquals(30, all.size());
+        for (int i = 1; i < all.size(); i++) {
+            assertTrue(all.get(i - 1).getId() < all.get(i).getId());
+        }
+    }
+
+    @Test
+    public void iterateAllShards() {
+        for (int i = 0; i < 30; i++) {
+            facade.store(createPojo("foo" + i));
+        }
+
+        Iterator<MockPojo> iterator = facade.iterate(MockPojo.class, 5);
+        int count = 0;
+        while (iterator.hasNext()) {
+            assertNotNull(iterator.next());
+            count++;
+        }
+        assertEquals(30, count);
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void unshardedClassGoesToFirstShard() {
+        ShardlessPojo pojo = new ShardlessPojo();
+        assertEquals(0, strategy.getShard(pojo, 3));
+        facade.store(pojo);
+        assertEquals(0, ShardedFacade.getShardOfId(pojo.getId()));
+        assertNotNull(shards.get(0).find(ShardlessPojo.class, pojo.getId()));
+    }
+
+    public static class ShardlessPojo extends AbstractPojo {
+        private static final long serialVersionUID = 1L;
+    }
+
+    @Test
+    public void unitOfWorkIsPropagated() {
+        MockFacade shard1 = new MockFacade();
+        MockFacade shard2 = new MockFacade();
+        ShardedFacade sharded = new ShardedFacade(createMockShards(shard1,
+                shard2), strategy);
+        sharded.beginUnitOfWork();
+        assertEquals(1, shard1.getUnitOfWorkDepth());
+        assertEquals(1, shard2.getUnitOfWorkDepth());
+        sharded.endUnitOfWork();
+        assertEquals(0, shard1.getUnitOfWorkDepth());
+        assertEquals(0, shard2.getUnitOfWorkDepth());
+        sharded.kill();
+    }
+
+    @Test
+    public void transactionIsPropagated() {
+        MockFacade shard1 = new MockFacade();
+        MockFacade shard2 = new MockFacade();
+        ShardedFacade sharded = new ShardedFacade(createMockShards(shard1,
+                shard2), strategy);
+        sharded.beginTransaction();
+        assertEquals(1, shard1.getTransactionDepth());
+        assertEquals(1, shard2.getTransactionDepth());
+        sharded.commitTransaction();
+        assertEquals(0, shard1.getTransactionDepth());
+        assertEquals(1, shard1.getCommitCount());
+        assertEquals(0, shard2.getTransactionDepth());
+        assertEquals(1, shard2.getCommitCount());
+        sharded.kill();
+    }
+
+    @Test
+    public void scatterInTransactionRunsInCallingThread() {
+        ThreadRecordingFacade shard1 = new ThreadRecordingFacade();
+        ThreadRecordingFacade shard2 = new ThreadRecordingFacade();
+        ShardedFacade sharded = new ShardedFacade(createMockShards(shard1,
+                shard2), strategy);
+        try {
+            sharded.count(MockPojo.class);
+            assertEquals(Thread.currentThread(), shard1.thread);
+            assertFalse(Thread.currentThread().equals(shard2.thread));
+
+            // The shards' transactions belong to the calling thread
+            sharded.beginTransaction();
+            sharded.count(MockPojo.class);
+            assertEquals(Thread.currentThread(), shard2.thread);
+            sharded.commitTransaction();
+        } finally {
+            sharded.kill();
+        }
+    }
+
+    @Test
+    public void failedCommitRollsBackRemainingShards() {
+        MockFacade first = new MockFacade();
+        MockFacade failing = new MockFacade() {
+            @Override
+            public void commitTransaction() {
+                rollbackTransaction();
+                throw new IllegalStateException();
+            }
+        };
+        MockFacade last = new MockFacade();
+        ShardedFacade sharded = new ShardedFacade(createMockShards(first,
+                failing, last), strategy);
+
+        sharded.beginTransaction();
+        try {
+            sharded.commitTransaction();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(1, first.getCommitCount());
+        assertEquals(1, failing.getRollbackCount());
+        assertEquals(1, last.getRollbackCount());
+        sharded.kill();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shardsAreRequired() {
+        new ShardedFacade(new ArrayList<IFacade>(), strategy);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void concurrencyMustBePositive() {
+        new ShardedFacade(shards, strategy, 0);
+    }
+
+    @Test
+    public void shardBetweenDatabases() {
+        facade.kill();
+        List<IFacade> shardFacades = new ArrayList<IFacade>();
+        shardFacades.add(new JPAFacade("default"));
+        shardFacades.add(new JPAFacade("second"));
+        shardFacades.add(new JPAFacade("third"));
+        facade = new ShardedFacade(shardFacades, strategy);
+
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 30; i++) {
+            MockPojo pojo = createPojo("foo" + i);
+            facade.store(pojo);
+            pojos.add(pojo);
+            ids.add(pojo.getId());
+        }
+
+        // The ids are unique across the databases and resolve the shard
+        assertEquals(30, new HashSet<Long>(ids).size());
+        for (MockPojo pojo : pojos) {
+            assertEquals(pojo.getFoo(), facade.find(MockPojo.class,
+                    pojo.getId()).getFoo());
+        }
+        List<MockPojo> found = facade.findAll(MockPojo.class, ids);
+        for (int i = 0; i < pojos.size(); i++) {
+            assertEquals(pojos.get(i).getFoo(), found.get(i).getFoo());
+        }
+
+        // Each database contains only its own entities
+        long total = 0;
+        for (int i = 0; i < 3; i++) {
+            IFacade shard = facade.getShard(i);
+            for (MockPojo pojo : shard.list(MockPojo.class)) {
+                assertEquals(i, strategy.getShardForValue(pojo.getFoo(), 3));
+            }
+            total += shard.count(MockPojo.class);
+        }
+        assertEquals(30L, total);
+        assertEquals((Long) 30L, facade.count(MockPojo.class));
+        assertEquals(30, facade.list(MockPojo.class).size());
+    }
+}
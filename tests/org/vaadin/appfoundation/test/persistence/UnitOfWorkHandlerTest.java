@@ -0,0 +1,62 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.facade.FacadeFactory;
+import org.vaadin.appfoundation.persistence.facade.UnitOfWorkHandler;
+import org.vaadin.appfoundation.test.MockApplication;
+import org.vaadin.appfoundation.test.MockApplication.MockContext;
+
+public class UnitOfWorkHandlerTest {
+
+    private MockApplication application;
+
+    private MockFacade facade;
+
+    @Before
+    public void setUp() throws InstantiationException, IllegalAccessException {
+        application = new MockApplication();
+        FacadeFactory.registerFacade(MockFacade.class, "default", true);
+        facade = (MockFacade) FacadeFactory.getFacade();
+    }
+
+    @After
+    public void tearDown() {
+        FacadeFactory.clear();
+    }
+
+    @Test
+    public void transaction() {
+        UnitOfWorkHandler handler = new UnitOfWorkHandler(application);
+        handler.transactionStart(application, null);
+        assertEquals(1, facade.getUnitOfWorkDepth());
+        handler.transactionEnd(application, null);
+        assertEquals(0, facade.getUnitOfWorkDepth());
+    }
+
+    @Test
+    public void transactionForOtherApplication() {
+        UnitOfWorkHandler handler = new UnitOfWorkHandler(application);
+        handler.transactionStart(new MockApplication(), null);
+        assertEquals(0, facade.getUnitOfWorkDepth());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initializeWithNullApplication() {
+        UnitOfWorkHandler.initialize(null);
+    }
+
+    @Test
+    public void initialize() {
+        MockContext context = (MockContext) application.getContext();
+        assertEquals(0, context.getListeners().size());
+        UnitOfWorkHandler.initialize(application);
+        assertEquals(1, context.getListeners().size());
+        assertEquals(UnitOfWorkHandler.class, context.getListeners().get(0)
+                .getClass());
+    }
+
+}
@@ -0,0 +1,346 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
+import org.vaadin.appfoundation.persistence.facade.InMemoryFacade;
+import org.vaadin.appfoundation.persistence.facade.TransactionCallback;
+import org.vaadin.appfoundation.persistence.facade.WriteBehindFacade;
+import org.vaadin.appfoundation.persistence.facade.WriteDurability;
+
+public class WriteBehindFacadeTest {
+
+    private InMemoryFacade store;
+
+    private WriteBehindFacade facade;
+
+    @Before
+    public void setUp() {
+        store = new InMemoryFacade() {
+            @Override
+            public void kill() {
+                // Keep the entities for checking what was flushed on kill
+            }
+        };
+        // Flush only when explicitly asked to, unless the test says otherwise
+        facade = new WriteBehindFacade(store, 60000L, 100, 1000);
+        facade.setDurability(MockPojo.class, WriteDurability.WRITE_BEHIND);
+    }
+
+    @After
+    public void tearDown() {
+        facade.kill();
+    }
+
+    private MockPojo createPojo(String foo) {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo(foo);
+        facade.store(pojo);
+        return pojo;
+    }
+
+    private String getStoredFoo(MockPojo pojo) {
+        return store.find(MockPojo.class, pojo.getId()).getFoo();
+    }
+
+    private void waitForFlush() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (facade.getPendingCount() > 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void newEntitiesAreWrittenThrough() {
+        MockPojo pojo = createPojo("test");
+        assertEquals("test", getStoredFoo(pojo));
+        assertEquals(0, facade.getPendingCount());
+    }
+
+    @Test
+    public void storesAreCoalesced() {
+        MockPojo pojo = createPojo("test");
+        for (int i = 0; i < 3; i++) {
+            pojo.setFoo("test" + i);
+            facade.store(pojo);
+        }
+
+        assertEquals(1, facade.getPendingCount());
+        assertEquals(3, facade.getBufferedCount());
+        assertEquals(2, facade.getCoalescedCount());
+        assertEquals("test", getStoredFoo(pojo));
+        // Reads see copies of the buffered state
+        MockPojo found = facade.find(MockPojo.class, pojo.getId());
+        assertNotSame(pojo, found);
+        assertEquals("test2", found.getFoo());
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "test");
+        found = facade.find("SELECT p FROM MockPojo p WHERE p.foo = :foo",
+                parameters);
+        assertNotSame(pojo, found);
+        assertEquals("test2", found.getFoo());
+
+        facade.flush();
+        assertEquals(0, facade.getPendingCount());
+        assertEquals(1, facade.getFlushedCount());
+        assertEquals("test2", getStoredFoo(pojo));
+        assertEquals(2L, (long) store.find(MockPojo.class, pojo.getId())
+                .getConsistencyVersion());
+    }
+
+    @Test
+    public void bufferIsIsolatedFromInstances() {
+        MockPojo pojo = createPojo("test");
+        pojo.setFoo("buffered");
+        facade.store(pojo);
+
+        // Modifying the stored or the found instance doesn't change the buffer
+        pojo.setFoo("modified");
+        facade.find(MockPojo.class, pojo.getId()).setFoo("modified");
+        assertEquals("buffered", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+        facade.flush();
+        assertEquals("buffered", getStoredFoo(pojo));
+    }
+
+    @Test
+    public void instanceCanBeStoredAgainAfterFlush() {
+        MockPojo pojo = createPojo("test");
+        for (int i = 0; i < 3; i++) {
+            pojo.setFoo("test" + i);
+            facade.store(pojo);
+            facade.flush();
+        }
+        assertEquals(0, facade.getFailureCount());
+        assertEquals("test2", getStoredFoo(pojo));
+        assertEquals(4L, (long) store.find(MockPojo.class, pojo.getId())
+                .getConsistencyVersion());
+
+        // The version is brought up to date for writes through too
+        facade.setDurability(MockPojo.class, WriteDurability.WRITE_THROUGH);
+        pojo.setFoo("changed");
+        facade.store(pojo);
+        assertEquals("changed", getStoredFoo(pojo));
+    }
+
+    @Test
+    public void writeThroughDurability() {
+        facade.setDurability(MockPojo.class, WriteDurability.WRITE_THROUGH);
+        MockPojo pojo = createPojo("test");
+        pojo.setFoo("changed");
+        facade.store(pojo);
+        assertEquals(0, facade.getPendingCount());
+        assertEquals("changed", getStoredFoo(pojo));
+    }
+
+    @Test
+    public void fullBatchIsFlushed() throws InterruptedException {
+        facade.kill();
+        facade = new WriteBehindFacade(store, 60000L, 2, 10);
+        facade.setDefaultDurability(WriteDurability.WRITE_BEHIND);
+
+        MockPojo pojo1 = createPojo("test");
+        MockPojo pojo2 = createPojo("test");
+        pojo1.setFoo("changed");
+        facade.store(pojo1);
+        pojo2.setFoo("changed");
+        facade.store(pojo2);
+
+        waitForFlush();
+        assertEquals("changed", getStoredFoo(pojo1));
+        assertEquals("changed", getStoredFoo(pojo2));
+    }
+
+    @Test
+    public void bufferIsFlushedPeriodically() throws InterruptedException {
+        facade.kill();
+        facade = new WriteBehindFacade(store, 10L, 100, 1000);
+        facade.setDurability(MockPojo.class, WriteDurability.WRITE_BEHIND);
+
+        MockPojo pojo = createPojo("test");
+        pojo.setFoo("changed");
+        facade.store(pojo);
+
+        waitForFlush();
+        assertEquals("changed", getStoredFoo(pojo));
+    }
+
+    @Test
+    public void killFlushes() {
+        MockPojo pojo = createPojo("test");
+        pojo.setFoo("changed");
+        facade.store(pojo);
+
+        assertEquals(1, facade.getPendingCount());
+        facade.kill();
+        assertEquals("changed", getStoredFoo(pojo));
+    }
+
+    @Test
+    public void deleteDiscardsBufferedStore() {
+        MockPojo pojo = createPojo("test");
+        pojo.setFoo("changed");
+        facade.store(pojo);
+        facade.delete(pojo);
+        assertEquals(0, facade.getPendingCount());
+        facade.flush();
+        assertNull(store.find(MockPojo.class, pojo.getId()));
+    }
+
+    @Test
+    public void deleteWaitsForFlush() throws InterruptedException {
+        final CountDownLatch flushing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        facade.kill();
+        store = new InMemoryFacade() {
+            @Override
+            public <A extends AbstractPojo> void storeAll(Collection<A> pojos) {
+                flushing.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                super.storeAll(pojos);
+            }
+        };
+        facade = new WriteBehindFacade(store, 60000L, 100, 1000);
+        facade.setDurability(MockPojo.class, WriteDurability.WRITE_BEHIND);
+
+        final MockPojo pojo = createPojo("test");
+        pojo.setFoo("changed");
+        facade.store(pojo);
+        Thread flusher = new Thread() {
+            @Override
+            public void run() {
+                facade.flush();
+            }
+        };
+        flusher.start();
+        flushing.await(5, TimeUnit.SECONDS);
+
+        Thread deleter = new Thread() {
+            @Override
+            public void run() {
+                facade.delete(pojo);
+            }
+        };
+        deleter.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (deleter.getState() != Thread.State.BLOCKED
+                && deleter.isAlive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        flusher.join(5000);
+        deleter.join(5000);
+        assertNull(store.find(MockPojo.class, pojo.getId()));
+    }
+
+    @Test
+    public void bulkUpdateFlushesFirst() {
+        MockPojo pojo = createPojo("test");
+        pojo.setFoo("changed");
+        facade.store(pojo);
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "changed");
+        assertEquals(1, facade.update(MockPojo.class, "p.foo = 'updated'",
+                "p.foo = :foo", parameters));
+        assertEquals("updated", getStoredFoo(pojo));
+    }
+
+    @Test
+    public void transactionsWriteThrough() {
+        final MockPojo pojo = createPojo("test");
+        pojo.setFoo("buffered");
+        facade.store(pojo);
+
+        facade.runInTransaction(new TransactionCallback<Void>() {
+            public Void execute(IFacade facade) {
+                // The buffer was flushed when the transaction began
+                assertEquals("buffered", getStoredFoo(pojo));
+                pojo.setFoo("changed");
+                facade.store(pojo);
+                assertEquals("changed", getStoredFoo(pojo));
+                return null;
+            }
+        });
+        assertEquals(0, facade.getPendingCount());
+    }
+
+    @Test
+    public void bulkUpdateInTransactionFlushesOutsideTransaction()
+            throws InterruptedException {
+        final MockPojo pojo = createPojo("test");
+        facade.beginTransaction();
+
+        // Another thread buffers a store while the transaction is active
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                pojo.setFoo("buffered");
+                facade.store(pojo);
+            }
+        };
+        writer.start();
+        writer.join(5000);
+        assertEquals(1, facade.getPendingCount());
+
+        facade.update(MockPojo.class, "p.foo = 'updated'", "p.foo = 'none'",
+                null);
+        facade.rollbackTransaction();
+        // The flushed write wasn't rolled back with the transaction
+        assertEquals(0, facade.getPendingCount());
+        assertEquals("buffered", getStoredFoo(pojo));
+    }
+
+    @Test
+    public void storeDuringKillIsWrittenThrough() {
+        final MockPojo pojo = createPojo("test");
+        final WriteBehindFacade killing = new WriteBehindFacade(store,
+                60000L, 100, 1000) {
+            @Override
+            public WriteDurability getDurability(
+                    Class<? extends AbstractPojo> c) {
+                // Kill the facade after the store has checked that it is
+                // alive
+                kill();
+                return WriteDurability.WRITE_BEHIND;
+            }
+        };
+
+        pojo.setFoo("changed");
+        killing.store(pojo);
+        assertEquals(0, killing.getPendingCount());
+        assertEquals("changed", getStoredFoo(pojo));
+    }
+
+    @Test
+    public void failedWritesAreCounted() {
+        MockPojo pojo = createPojo("test");
+        MockPojo stale = store.find(MockPojo.class, pojo.getId());
+        pojo.setFoo("changed");
+        store.store(pojo);
+
+        stale.setFoo("stale");
+        facade.store(stale);
+        facade.flush();
+        assertEquals(1, facade.getFailureCount());
+        assertEquals("changed", getStoredFoo(pojo));
+    }
+
+}
@@ -0,0 +1,439 @@
+package org.vaadin.appfoundation.test.persistence.benchmark;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import javax.persistence.Transient;
+
+import org.vaadin.appfoundation.authentication.data.User;
+import org.vaadin.appfoundation.authorization.jpa.PermissionEntity;
+import org.vaadin.appfoundation.authorization.jpa.PermissionType;
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.FieldCopier;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
+import org.vaadin.appfoundation.persistence.facade.JPAFacade;
+import org.vaadin.appfoundation.test.persistence.MockPojo;
+
+/**
+ * Throughput benchmarks for the persistence facade. The benchmarks run against
+ * the in-memory HSQLDB persistence-unit "default" defined in
+ * tests/META-INF/persistence.xml.
+ * 
+ * Each benchmark is first run for a number of warmup iterations, so that the
+ * JIT compiler and the caches of the JPA provider have settled, and then for a
+ * number of measured iterations. An iteration executes a fixed number of
+ * operations, and the preparations of an iteration, such as storing the
+ * entities which the delete benchmark removes, are not measured. The result is
+ * the mean throughput and its 99.9% confidence interval.
+ * 
+ * Run all the benchmarks with the compiled classes, the tests directory and
+ * the libraries (including EclipseLink and HSQLDB) on the classpath:
+ * 
+ * <pre>
+ * java -cp &lt;classpath&gt; org.vaadin.appfoundation.test.persistence.benchmark.FacadeBenchmark
+ * </pre>
+ * 
+ * The optional arguments are the number of warmup iterations (-w), the number
+ * of measured iterations (-i) and a part of the name of the benchmarks to run,
+ * for example <code>-w 5 -i 10 storeAll</code>.
+ * 
+ * The copy benchmarks compare copying the state of an entity with the cached
+ * copy plan of {@link FieldCopier} to the reflective copy which resolved the
+ * fields of the class hierarchy on every copy.
+ * 
+ * @author Kim
+ * 
+ */
+public class FacadeBenchmark {
+
+    // The number of entities in the database for the read benchmarks
+    private static final int ENTITIES = 10000;
+
+    private static final int PAGE_SIZE = 50;
+
+    private IFacade facade;
+
+    private final Random random = new Random(42);
+
+    private final List<Long> ids = new ArrayList<Long>();
+
+    /**
+     * A single benchmark.
+     */
+    private abstract class Benchmark {
+
+        private final String name;
+
+        private final int operations;
+
+        private final int entitiesPerOperation;
+
+        /**
+         * Constructor
+         * 
+         * @param name
+         *            Name of the benchmark
+         * @param operations
+         *            The number of operations in one iteration
+         * @param entitiesPerOperation
+         *            The number of entities one operation handles
+         */
+        public Benchmark(String name, int operations,
+                int entitiesPerOperation) {
+            this.name = name;
+            this.operations = operations;
+            this.entitiesPerOperation = entitiesPerOperation;
+        }
+
+        /**
+         * Prepares an iteration. Not included in the measured time.
+         */
+        protected void prepare() {
+        }
+
+        /**
+         * Executes one operation.
+         * 
+         * @param index
+         *            Index of the operation in the iteration
+         */
+        protected abstract void run(int index);
+    }
+
+    private List<Benchmark> createBenchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new Benchmark("find", 5000, 1) {
+            @Override
+            protected void run(int index) {
+                facade.find(MockPojo.class, randomId());
+            }
+        });
+        benchmarks.add(new Benchmark("listPaged", 1000, PAGE_SIZE) {
+            @Override
+            protected void run(int index) {
+                facade.list(MockPojo.class, random.nextInt(ENTITIES
+                        - PAGE_SIZE), PAGE_SIZE);
+            }
+        });
+        benchmarks.add(new Benchmark("count", 5000, 1) {
+            @Override
+            protected void run(int index) {
+                facade.count(MockPojo.class);
+            }
+        });
+        benchmarks.add(new Benchmark("store", 2000, 1) {
+            @Override
+            protected void run(int index) {
+                facade.store(createPojo(index));
+            }
+        });
+        benchmarks.add(new StoreAllBenchmark("storeAll1k", 10, 1000));
+        benchmarks.add(new StoreAllBenchmark("storeAll10k", 1, 10000));
+        benchmarks.add(new Benchmark("delete", 1000, 1) {
+
+            private final List<MockPojo> pojos = new ArrayList<MockPojo>();
+
+            @Override
+            protected void prepare() {
+                pojos.clear();
+                for (int i = 0; i < 1000; i++) {
+                    pojos.add(createPojo(i));
+                }
+                facade.storeAll(pojos);
+            }
+
+            @Override
+            protected void run(int index) {
+                facade.delete(pojos.get(index));
+            }
+        });
+        User user = new User();
+        user.setId(1L);
+        user.setUsername("username");
+        user.setPassword("password");
+        user.setName("Name");
+        user.setEmail("name@example.com");
+        user.setReasonForLockedAccount("reason");
+        benchmarks.add(new CopyBenchmark("copyUserReflective", user, false));
+        benchmarks.add(new CopyBenchmark("copyUserCached", user, true));
+
+        PermissionEntity permission = new PermissionEntity(
+                PermissionType.ALLOW);
+        permission.setId(1L);
+        permission.setRole("role");
+        permission.setResource("resource");
+        permission.setAction("action");
+        benchmarks.add(new CopyBenchmark("copyPermissionReflective",
+                permission, false));
+        benchmarks.add(new CopyBenchmark("copyPermissionCached", permission,
+                true));
+        benchmarks.add(new Benchmark("refresh", 5000, 1) {
+
+            private final List<MockPojo> pojos = new ArrayList<MockPojo>();
+
+            @Override
+            protected void prepare() {
+                pojos.clear();
+                for (int i = 0; i < 100; i++) {
+                    pojos.add(facade.find(MockPojo.class, randomId()));
+                }
+            }
+
+            @Override
+            protected void run(int index) {
+                facade.refresh(pojos.get(index % pojos.size()));
+            }
+        });
+        benchmarks.add(new QueryBenchmark("queryCached", true));
+        benchmarks.add(new QueryBenchmark("queryUncached", false));
+        return benchmarks;
+    }
+
+    /**
+     * Finds an entity with a JPQL query, with or without the compiled queries
+     * from the query cache of the facade.
+     */
+    private class QueryBenchmark extends Benchmark {
+
+        private final boolean cached;
+
+        public QueryBenchmark(String name, boolean cached) {
+            super(name, 5000, 1);
+            this.cached = cached;
+        }
+
+        @Override
+        protected void run(int index) {
+            if (!cached) {
+                // Forces the query to be parsed again
+                ((JPAFacade) facade).getQueryCache().clear();
+            }
+            Map<String, Object> parameters = new HashMap<String, Object>();
+            parameters.put("id", randomId());
+            facade.find("SELECT p FROM MockPojo p WHERE p.id = :id",
+                    parameters);
+        }
+    }
+
+    /**
+     * Stores a batch of new entities in one operation.
+     */
+    private class StoreAllBenchmark extends Benchmark {
+
+        private final int batchSize;
+
+        private final List<List<MockPojo>> batches = new ArrayList<List<MockPojo>>();
+
+        public StoreAllBenchmark(String name, int operations, int batchSize) {
+            super(name, operations, batchSize);
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        protected void prepare() {
+            batches.clear();
+            for (int i = 0; i < super.operations; i++) {
+                List<MockPojo> batch = new ArrayList<MockPojo>(batchSize);
+                for (int j = 0; j < batchSize; j++) {
+                    batch.add(createPojo(j));
+                }
+                batches.add(batch);
+            }
+        }
+
+        @Override
+        protected void run(int index) {
+            facade.storeAll(batches.get(index));
+        }
+    }
+
+    /**
+     * Copies the state of an entity to another instance of its class.
+     */
+    private class CopyBenchmark extends Benchmark {
+
+        private final AbstractPojo source;
+
+        private final AbstractPojo target;
+
+        private final boolean cached;
+
+        public CopyBenchmark(String name, AbstractPojo source, boolean cached) {
+            super(name, 100000, 1);
+            this.source = source;
+            this.cached = cached;
+            try {
+                target = source.getClass().newInstance();
+            } catch (Exception e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        @Override
+        protected void run(int index) {
+            if (cached) {
+                FieldCopier.forClass(source.getClass()).copy(source, target);
+            } else {
+                copyFieldsRecursively(target, source, source.getClass());
+            }
+        }
+    }
+
+    /**
+     * The reflective copy which was used before the copy plans were cached.
+     * Copies all field values recursively from pojo2 to pojo.
+     * 
+     * @param pojo
+     *            The object to which we are copying
+     * @param pojo2
+     *            The object from which we are copying
+     * @param c
+     *            The class we are currently processing
+     */
+    private static void copyFieldsRecursively(Object pojo, Object pojo2,
+            Class<?> c) {
+        if (c != null) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!field.isAnnotationPresent(Transient.class)
+                        && !Modifier.isStatic(field.getModifiers())
+                        && !Modifier.isFinal(field.getModifiers())) {
+                    field.setAccessible(true);
+                    try {
+                        field.set(pojo, field.get(pojo2));
+                    } catch (IllegalAccessException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+            copyFieldsRecursively(pojo, pojo2, c.getSuperclass());
+        }
+    }
+
+    private MockPojo createPojo(int index) {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo" + index);
+        return pojo;
+    }
+
+    private Long randomId() {
+        return ids.get(random.nextInt(ids.size()));
+    }
+
+    /**
+     * Initializes the facade and fills the database for the read benchmarks.
+     */
+    private void setUp() {
+        facade = new JPAFacade("default");
+        List<MockPojo> pojos = new ArrayList<MockPojo>(ENTITIES);
+        for (int i = 0; i < ENTITIES; i++) {
+            pojos.add(createPojo(i));
+        }
+        facade.storeAll(pojos);
+        for (MockPojo pojo : pojos) {
+            ids.add(pojo.getId());
+        }
+    }
+
+    private void tearDown() {
+        facade.kill();
+    }
+
+    /**
+     * Runs one iteration of the benchmark.
+     * 
+     * @return Throughput of the iteration in operations per second
+     */
+    private double runIteration(Benchmark benchmark) {
+        benchmark.prepare();
+        long start = System.nanoTime();
+        for (int i = 0; i < benchmark.operations; i++) {
+            benchmark.run(i);
+        }
+        long elapsed = System.nanoTime() - start;
+        return benchmark.operations / (elapsed / 1000000000.0);
+    }
+
+    private void run(int warmupIterations, int iterations, String filter) {
+        setUp();
+        try {
+            System.out.println(String.format(Locale.ENGLISH,
+                    "%-24s %5s %14s %12s %14s", "Benchmark", "Cnt", "Score",
+                    "Error", "Units"));
+            for (Benchmark benchmark : createBenchmarks()) {
+                if (filter != null && !benchmark.name.contains(filter)) {
+                    continue;
+                }
+
+                for (int i = 0; i < warmupIterations; i++) {
+                    runIteration(benchmark);
+                }
+
+                double[] results = new double[iterations];
+                for (int i = 0; i < iterations; i++) {
+                    results[i] = runIteration(benchmark);
+                }
+                report(benchmark, results);
+            }
+        } finally {
+            tearDown();
+        }
+    }
+
+    private void report(Benchmark benchmark, double[] results) {
+        double sum = 0;
+        for (double result : results) {
+            sum += result;
+        }
+        double mean = sum / results.length;
+
+        double error = 0;
+        if (results.length > 1) {
+            double squares = 0;
+            for (double result : results) {
+                squares += (result - mean) * (result - mean);
+            }
+            double deviation = Math.sqrt(squares / (results.length - 1));
+            // Normal approximation of the 99.9% confidence interval
+            error = 3.291 * deviation / Math.sqrt(results.length);
+        }
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "%-24s %5d %14.3f %3s %8.3f %14s", benchmark.name,
+                results.length, mean, "+-", error, "ops/s"));
+        if (benchmark.entitiesPerOperation > 1) {
+            System.out.println(String.format(Locale.ENGLISH,
+                    "%-24s %5d %14.3f %3s %8.3f %14s", "", results.length,
+                    mean * benchmark.entitiesPerOperation, "+-", error
+                            * benchmark.entitiesPerOperation, "entities/s"));
+        }
+    }
+
+    public static void main(String[] args) {
+        int warmupIterations = 5;
+        int iterations = 10;
+        String filter = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("-w".equals(args[i]) && i + 1 < args.length) {
+                warmupIterations = Integer.parseInt(args[++i]);
+            } else if ("-i".equals(args[i]) && i + 1 < args.length) {
+                iterations = Integer.parseInt(args[++i]);
+            } else {
+                filter = args[i];
+            }
+        }
+
+        if (warmupIterations < 0 || iterations < 1) {
+            throw new IllegalArgumentException(
+                    "At least one measured iteration is needed");
+        }
+
+        new FacadeBenchmark().run(warmupIterations, iterations, filter);
+    }
+
+}
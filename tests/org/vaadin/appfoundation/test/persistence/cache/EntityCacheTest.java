@@ -0,0 +1,116 @@
+package org.vaadin.appfoundation.test.persistence.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.vaadin.appfoundation.authentication.data.User;
+import org.vaadin.appfoundation.persistence.cache.EntityCache;
+import org.vaadin.appfoundation.test.persistence.MockPojo;
+
+public class EntityCacheTest {
+
+    private MockPojo createPojo(Long id, Long version, String foo) {
+        MockPojo pojo = new MockPojo();
+        pojo.setId(id);
+        pojo.setConsistencyVersion(version);
+        pojo.setFoo(foo);
+        return pojo;
+    }
+
+    @Test
+    public void putAndGet() {
+        EntityCache cache = new EntityCache(10, 0);
+        MockPojo pojo = createPojo(1L, 1L, "foo");
+        cache.put(pojo);
+
+        MockPojo cached = cache.get(MockPojo.class, 1L);
+        assertNotNull(cached);
+        assertEquals("foo", cached.getFoo());
+        assertNull(cache.get(MockPojo.class, 2L));
+        assertEquals(1L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+    }
+
+    @Test
+    public void entitiesAreCopied() {
+        EntityCache cache = new EntityCache(10, 0);
+        MockPojo pojo = createPojo(1L, 1L, "foo");
+        cache.put(pojo);
+        pojo.setFoo("bar");
+
+        MockPojo cached = cache.get(MockPojo.class, 1L);
+        assertEquals("foo", cached.getFoo());
+        assertTrue(cached != pojo);
+
+        cached.setFoo("bar");
+        assertEquals("foo", cache.get(MockPojo.class, 1L).getFoo());
+    }
+
+    @Test
+    public void olderVersionDoesNotReplace() {
+        EntityCache cache = new EntityCache(10, 0);
+        cache.put(createPojo(1L, 2L, "new"));
+        cache.put(createPojo(1L, 1L, "old"));
+        assertEquals("new", cache.get(MockPojo.class, 1L).getFoo());
+
+        cache.put(createPojo(1L, 3L, "newer"));
+        assertEquals("newer", cache.get(MockPojo.class, 1L).getFoo());
+    }
+
+    @Test
+    public void classesAreSeparated() {
+        EntityCache cache = new EntityCache(10, 0);
+        cache.put(createPojo(1L, 1L, "foo"));
+        assertNull(cache.get(User.class, 1L));
+    }
+
+    @Test
+    public void evict() {
+        EntityCache cache = new EntityCache(10, 0);
+        cache.put(createPojo(1L, 1L, "foo"));
+        cache.put(createPojo(2L, 1L, "bar"));
+        cache.evict(MockPojo.class, 1L);
+        assertNull(cache.get(MockPojo.class, 1L));
+        assertNotNull(cache.get(MockPojo.class, 2L));
+
+        cache.evictAll(MockPojo.class);
+        assertNull(cache.get(MockPojo.class, 2L));
+    }
+
+    @Test
+    public void putAfterEvictIsDiscarded() {
+        EntityCache cache = new EntityCache(10, 0);
+        long stamp = cache.getStamp(MockPojo.class);
+        // The entity is evicted while it is being read from the database
+        cache.evict(MockPojo.class, 1L);
+        cache.put(createPojo(1L, 1L, "stale"), stamp);
+        assertNull(cache.get(MockPojo.class, 1L));
+
+        stamp = cache.getStamp(MockPojo.class);
+        cache.put(createPojo(1L, 2L, "fresh"), stamp);
+        assertEquals("fresh", cache.get(MockPojo.class, 1L).getFoo());
+
+        stamp = cache.getStamp(MockPojo.class);
+        cache.clear();
+        cache.put(createPojo(1L, 2L, "stale"), stamp);
+        assertNull(cache.get(MockPojo.class, 1L));
+    }
+
+    @Test
+    public void nullValuesAreIgnored() {
+        EntityCache cache = new EntityCache(10, 0);
+        cache.put(null);
+        cache.put(new MockPojo());
+        assertNull(cache.get(MockPojo.class, null));
+        cache.evict(MockPojo.class, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSize() {
+        new EntityCache(0, 0);
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.vaadin.appfoundation.test.persistence.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.cache.LruCache;
+
+public class LruCacheTest {
+
+    private static class MockClockCache extends LruCache<String, String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private long time = 0;
+
+        public MockClockCache(int maxSize, long timeToLive) {
+            super(maxSize, timeToLive);
+        }
+
+        @Override
+        protected long currentTime() {
+            return time;
+        }
+    }
+
+    @Test
+    public void putAndGet() {
+        LruCache<String, String> cache = new LruCache<String, String>(10, 0);
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        LruCache<String, String> cache = new LruCache<String, String>(2, 0);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        // Touch a, so b becomes the least recently used entry
+        cache.get("a");
+        cache.put("c", "3");
+
+        assertEquals(2, cache.size());
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    public void expiration() {
+        MockClockCache cache = new MockClockCache(10, 100);
+        cache.put("a", "1");
+        cache.time = 99;
+        assertEquals("1", cache.get("a"));
+        cache.time = 100;
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void peek() {
+        LruCache<String, String> cache = new LruCache<String, String>(10, 0);
+        cache.put("a", "1");
+        assertEquals("1", cache.peek("a"));
+        assertNull(cache.peek("b"));
+        assertEquals(0L, cache.getHits());
+        assertEquals(0L, cache.getMisses());
+    }
+
+    @Test
+    public void removeAndClear() {
+        LruCache<String, String> cache = new LruCache<String, String>(10, 0);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.remove("a");
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.size());
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSize() {
+        new LruCache<String, String>(0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeTimeToLive() {
+        new LruCache<String, String>(1, -1);
+    }
+
+}
@@ -0,0 +1,92 @@
+package org.vaadin.appfoundation.test.persistence.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.vaadin.appfoundation.authentication.data.User;
+import org.vaadin.appfoundation.persistence.cache.QueryResultCache;
+import org.vaadin.appfoundation.test.persistence.MockPojo;
+
+public class QueryResultCacheTest {
+
+    private static final String QUERY = "SELECT COUNT(p.id) FROM MockPojo p WHERE p.foo = :foo";
+
+    @Test
+    public void putAndGet() {
+        QueryResultCache cache = new QueryResultCache(10, 0);
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "foo");
+        cache.put(MockPojo.class, QUERY, parameters, 3L);
+
+        Map<String, Object> sameParameters = new HashMap<String, Object>();
+        sameParameters.put("foo", "foo");
+        assertEquals(3L, cache.get(MockPojo.class, QUERY, sameParameters));
+        assertEquals(1L, cache.getHits());
+    }
+
+    @Test
+    public void differentParameters() {
+        QueryResultCache cache = new QueryResultCache(10, 0);
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "foo");
+        cache.put(MockPojo.class, QUERY, parameters, 3L);
+
+        // Changing the original map doesn't affect the cached key
+        parameters.put("foo", "bar");
+        assertNull(cache.get(MockPojo.class, QUERY, parameters));
+        assertNull(cache.get(MockPojo.class, QUERY, null));
+        assertEquals(2L, cache.getMisses());
+    }
+
+    @Test
+    public void nullParameters() {
+        QueryResultCache cache = new QueryResultCache(10, 0);
+        cache.put(MockPojo.class, "SELECT COUNT(p.id) FROM MockPojo p", null,
+                5L);
+        assertEquals(5L, cache.get(MockPojo.class,
+                "SELECT COUNT(p.id) FROM MockPojo p", null));
+    }
+
+    @Test
+    public void invalidate() {
+        QueryResultCache cache = new QueryResultCache(10, 0);
+        cache.put(MockPojo.class, QUERY, null, 3L);
+        cache.put(User.class, QUERY, null, 4L);
+
+        cache.invalidate(MockPojo.class);
+        assertNull(cache.get(MockPojo.class, QUERY, null));
+        assertEquals(4L, cache.get(User.class, QUERY, null));
+
+        cache.clear();
+        assertNull(cache.get(User.class, QUERY, null));
+    }
+
+    @Test
+    public void putAfterInvalidateIsDiscarded() {
+        QueryResultCache cache = new QueryResultCache(10, 0);
+        long stamp = cache.getStamp(MockPojo.class);
+        // The class is invalidated while the query is running
+        cache.invalidate(MockPojo.class);
+        cache.put(MockPojo.class, QUERY, null, 3L, stamp);
+        assertNull(cache.get(MockPojo.class, QUERY, null));
+
+        stamp = cache.getStamp(MockPojo.class);
+        cache.put(MockPojo.class, QUERY, null, 4L, stamp);
+        assertEquals(4L, cache.get(MockPojo.class, QUERY, null));
+
+        stamp = cache.getStamp(MockPojo.class);
+        cache.clear();
+        cache.put(MockPojo.class, QUERY, null, 5L, stamp);
+        assertNull(cache.get(MockPojo.class, QUERY, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSize() {
+        new QueryResultCache(0, 0);
+    }
+
+}
@@ -0,0 +1,230 @@
+package org.vaadin.appfoundation.test.persistence.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.container.EntityContainer;
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.FacadeFactory;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
+import org.vaadin.appfoundation.persistence.facade.InMemoryFacade;
+import org.vaadin.appfoundation.persistence.facade.JPAFacade;
+import org.vaadin.appfoundation.test.persistence.MockPojo;
+
+import com.vaadin.data.Container.ItemSetChangeEvent;
+import com.vaadin.data.Container.ItemSetChangeListener;
+
+public class EntityContainerTest {
+
+    private CountingFacade facade;
+
+    private List<MockPojo> pojos;
+
+    private EntityContainer<MockPojo> container;
+
+    private static class CountingFacade extends InMemoryFacade {
+
+        private final List<String> queries = new ArrayList<String>();
+
+        private final List<Integer> amounts = new ArrayList<Integer>();
+
+        @Override
+        public <A extends AbstractPojo> List<A> list(String queryStr,
+                Map<String, Object> parameters, int startIndex, int amount) {
+            queries.add(queryStr);
+            amounts.add(amount);
+            return super.list(queryStr, parameters, startIndex, amount);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        facade = new CountingFacade();
+        FacadeFactory.registerFacade(facade, "container", true);
+
+        pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < 25; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo((i % 2 == 0 ? "Even" : "odd") + (char) ('a' + i));
+            facade.store(pojo);
+            pojos.add(pojo);
+        }
+
+        container = new EntityContainer<MockPojo>(MockPojo.class);
+        container.setPageSize(5);
+    }
+
+    @After
+    public void tearDown() {
+        FacadeFactory.removeFacade("container");
+    }
+
+    @Test
+    public void pagesAreFetchedLazily() {
+        assertEquals(25, container.size());
+        assertTrue(facade.queries.isEmpty());
+
+        assertEquals(pojos.get(0).getId(), container.firstItemId());
+        // The next page was fetched with the first one
+        assertEquals(1, facade.queries.size());
+        assertEquals(10, (int) facade.amounts.get(0));
+        assertEquals(pojos.get(7).getId(), container.getIdByIndex(7));
+        assertEquals(1, facade.queries.size());
+
+        assertEquals(pojos.get(24).getId(), container.lastItemId());
+        assertEquals(2, facade.queries.size());
+        assertEquals("Evenm", container.getContainerProperty(
+                pojos.get(12).getId(), "foo").getValue());
+    }
+
+    @Test
+    public void prefetchFollowsScrollingDirection() {
+        container.getIdByIndex(20);
+        container.getIdByIndex(15);
+        // Scrolling up fetches the previous page with the current one
+        assertEquals(2, facade.queries.size());
+        container.getIdByIndex(10);
+        assertEquals(2, facade.queries.size());
+        container.getIdByIndex(5);
+        assertEquals(3, facade.queries.size());
+    }
+
+    @Test
+    public void navigation() {
+        Object id = pojos.get(4).getId();
+        assertEquals(4, container.indexOfId(id));
+        assertEquals(pojos.get(5).getId(), container.nextItemId(id));
+        assertEquals(pojos.get(3).getId(), container.prevItemId(id));
+        assertTrue(container.isFirstId(pojos.get(0).getId()));
+        assertTrue(container.isLastId(pojos.get(24).getId()));
+        assertNull(container.nextItemId(pojos.get(24).getId()));
+        assertTrue(container.containsId(id));
+        assertFalse(container.containsId(-1L));
+        assertEquals(25, container.getItemIds().size());
+    }
+
+    @Test
+    public void indexOfUncachedItem() {
+        container.sort(new Object[] { "foo" }, new boolean[] { false });
+        // Counted by the database, as no pages have been fetched
+        assertEquals(0, container.indexOfId(pojos.get(23).getId()));
+        assertEquals(12, container.indexOfId(pojos.get(24).getId()));
+        assertTrue(facade.queries.isEmpty());
+        assertEquals(pojos.get(24).getId(), container.getIdByIndex(12));
+    }
+
+    /**
+     * Checks that the counted index of every item is the index at which the
+     * sorted container returns it.
+     */
+    private void assertIndexesCounted(boolean ascending) {
+        container.sort(new Object[] { "foo" }, new boolean[] { ascending });
+        List<Object> ids = new ArrayList<Object>(container.getItemIds());
+        for (int i = 0; i < ids.size(); i++) {
+            EntityContainer<MockPojo> uncached = new EntityContainer<MockPojo>(
+                    MockPojo.class);
+            uncached.sort(new Object[] { "foo" }, new boolean[] { ascending });
+            assertEquals(i, uncached.indexOfId(ids.get(i)));
+        }
+    }
+
+    private void clearFoo(IFacade facade, List<MockPojo> pojos) {
+        for (int i = 0; i < 5; i++) {
+            MockPojo pojo = pojos.get(i * 5);
+            pojo.setFoo(null);
+            facade.store(pojo);
+        }
+    }
+
+    @Test
+    public void indexOfItemWithNulls() {
+        clearFoo(facade, pojos);
+        assertIndexesCounted(true);
+        assertIndexesCounted(false);
+    }
+
+    @Test
+    public void indexOfItemWithNullsInDatabase() {
+        JPAFacade jpaFacade = new JPAFacade("default");
+        FacadeFactory.registerFacade(jpaFacade, "database", true);
+        try {
+            List<MockPojo> stored = new ArrayList<MockPojo>();
+            for (MockPojo pojo : pojos) {
+                MockPojo copy = new MockPojo();
+                copy.setFoo(pojo.getFoo());
+                jpaFacade.store(copy);
+                stored.add(copy);
+            }
+            clearFoo(jpaFacade, stored);
+
+            // HSQLDB orders the null values like the in-memory facade
+            assertIndexesCounted(true);
+            assertIndexesCounted(false);
+        } finally {
+            FacadeFactory.removeFacade("database");
+        }
+    }
+
+    @Test
+    public void sort() {
+        assertTrue(container.getSortableContainerPropertyIds().contains("foo"));
+        container.sort(new Object[] { "foo" }, new boolean[] { true });
+        assertEquals(pojos.get(0).getId(), container.getIdByIndex(0));
+        assertEquals(pojos.get(1).getId(), container.getIdByIndex(13));
+        assertTrue(facade.queries.get(0).endsWith(
+                "ORDER BY p.foo ASC, p.id ASC"));
+    }
+
+    @Test
+    public void filter() {
+        final List<ItemSetChangeEvent> events = new ArrayList<ItemSetChangeEvent>();
+        container.addListener(new ItemSetChangeListener() {
+            private static final long serialVersionUID = 1L;
+
+            public void containerItemSetChange(ItemSetChangeEvent event) {
+                events.add(event);
+            }
+        });
+
+        container.addContainerFilter("foo", "even", true, true);
+        assertEquals(1, events.size());
+        assertEquals(13, container.size());
+        assertEquals(pojos.get(2).getId(), container.getIdByIndex(1));
+        assertFalse(container.containsId(pojos.get(1).getId()));
+
+        container.removeAllContainerFilters();
+        container.addContainerFilter("foo", "even", false, true);
+        assertEquals(0, container.size());
+
+        container.removeContainerFilters("foo");
+        container.addContainerFilter("foo", "dd", false, false);
+        assertEquals(12, container.size());
+        assertEquals(5, events.size());
+    }
+
+    @Test
+    public void filterEscapesWildcards() {
+        container.addContainerFilter("foo", "%", false, false);
+        assertEquals(0, container.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void filterNonStringProperty() {
+        container.addContainerFilter("id", "1", false, false);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void readOnly() {
+        container.addItem();
+    }
+
+}